@@ -5,6 +5,8 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.Size;
 import android.view.View;
@@ -18,7 +20,7 @@ import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
 import com.afei.camerarecorder.camera.CameraConfig;
-import com.afei.camerarecorder.camera.CameraUtil;
+import com.afei.camerarecorder.camera.CameraInfoCache;
 import com.afei.camerarecorder.databinding.ActivityMainBinding;
 import com.afei.camerarecorder.normal.CameraActivity;
 import com.afei.camerarecorder.opengl.GLCameraActivity;
@@ -41,10 +43,12 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
     private String[] mCameraIds;
     private String[] mPreviewSizes;
     private String[] mPictureSizes;
+    private long mCreateTime;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mCreateTime = SystemClock.elapsedRealtime();
         mBinding = ActivityMainBinding.inflate(getLayoutInflater());
         setContentView(mBinding.getRoot());
         init();
@@ -57,7 +61,16 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         mBinding.cameraIdLayout.setOnClickListener(this::onClick);
         mBinding.previewSizeLayout.setOnClickListener(this::onClick);
         mBinding.pictureSizeLayout.setOnClickListener(this::onClick);
-        mCameraConfigList = CameraUtil.getCameraInfo(this);
+        // querying every camera takes tens of milliseconds, keep it off the main thread
+        CameraInfoCache.loadAsync(this, this::onCameraInfoLoaded);
+    }
+
+    private void onCameraInfoLoaded(List<CameraConfig> cameraConfigs, boolean fromCache) {
+        if (isDestroyed()) {
+            return;
+        }
+        logStartupTime(fromCache);
+        mCameraConfigList = cameraConfigs;
         if (mCameraConfigList == null || mCameraConfigList.size() == 0) {
             Log.w(TAG, "CameraUtil getCameraInfo is empty");
             return;
@@ -69,6 +82,17 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         updateUI(mCameraConfigList.get(0));
     }
 
+    /**
+     * Logs the launch to camera info ready time, compare a launch with the cache to the first one after install.
+     * The time since process start is the cold start one, when this activity started the process.
+     */
+    private void logStartupTime(boolean fromCache) {
+        long now = SystemClock.elapsedRealtime();
+        Log.i(TAG, "camera info ready " + (fromCache ? "from cache" : "from cameras") + ", "
+                + (now - mCreateTime) + "ms after onCreate, " + (now - Process.getStartElapsedRealtime())
+                + "ms after process start");
+    }
+
     private void updateUI(CameraConfig config) {
         if (config != null) {
             mBinding.cameraIdTv.setText(config.getCameraId());
@@ -127,6 +151,10 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
     }
 
     private void startCameraActivity(Class<?> cls) {
+        if (mCameraConfig == null) {
+            Log.w(TAG, "camera info is not loaded yet");
+            return;
+        }
         if (checkPermission()) {
             CameraConfig.sCameraConfig = mCameraConfig;
             Intent intent = new Intent(this, cls);
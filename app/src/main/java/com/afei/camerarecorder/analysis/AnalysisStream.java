@@ -0,0 +1,92 @@
+package com.afei.camerarecorder.analysis;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.util.Size;
+import android.view.Surface;
+
+import com.afei.camerarecorder.image.YuvConverter;
+
+/**
+ * Low resolution YUV_420_888 output of the video session, feeding a {@link FramePipeline}.
+ * <p>
+ * Only the latest image is taken, older ones are closed unseen. Each image is copied into a pooled frame and closed
+ * right away, the camera never waits for an analyzer.
+ */
+public class AnalysisStream {
+
+    private static final int MAX_IMAGES = 3;  // one being copied, one arriving, one spare for acquireLatestImage
+
+    private final ImageReader mImageReader;
+    private final Size mSize;
+    private final FramePipeline mPipeline;
+    private final byte[] mScratch;  // a chroma row of semi-planar devices, only used on the handler thread
+
+    /**
+     * @param handler where images are copied, not the camera thread
+     */
+    public AnalysisStream(Size size, Handler handler, FramePipeline pipeline) {
+        mPipeline = pipeline;
+        mSize = size;
+        mScratch = new byte[size.getWidth()];
+        mPipeline.start(size.getWidth(), size.getHeight());
+        mImageReader = ImageReader.newInstance(size.getWidth(), size.getHeight(), ImageFormat.YUV_420_888,
+                MAX_IMAGES);
+        mImageReader.setOnImageAvailableListener(reader -> onImageAvailable(), handler);
+    }
+
+    public Surface getSurface() {
+        return mImageReader.getSurface();
+    }
+
+    public Size getSize() {
+        return mSize;
+    }
+
+    /**
+     * Closes the reader, the pipeline keeps running for the next stream.
+     */
+    public void release() {
+        mImageReader.close();
+    }
+
+    private void onImageAvailable() {
+        Image image;
+        try {
+            image = mImageReader.acquireLatestImage();
+        } catch (IllegalStateException e) {
+            return;  // released while the image was on its way
+        }
+        if (image == null) {
+            return;
+        }
+        Frame frame = null;
+        try {
+            frame = mPipeline.obtainFrame();
+            if (frame == null) {
+                return;  // counted by the pipeline
+            }
+            Image.Plane[] planes = image.getPlanes();
+            int width = frame.getWidth();
+            int height = frame.getHeight();
+            copyPlane(planes[0], width, height, frame.getY());
+            copyPlane(planes[1], (width + 1) / 2, (height + 1) / 2, frame.getU());
+            copyPlane(planes[2], (width + 1) / 2, (height + 1) / 2, frame.getV());
+            frame.setTimestampNs(image.getTimestamp());
+            mPipeline.submit(frame);
+            frame = null;
+        } finally {
+            if (frame != null) {
+                frame.release();  // the copy failed, give it back to the pool
+            }
+            image.close();
+        }
+    }
+
+    private void copyPlane(Image.Plane plane, int width, int height, byte[] dst) {
+        YuvConverter.copyPlane(plane.getBuffer(), plane.getRowStride(), plane.getPixelStride(), width, dst, mScratch,
+                0, height);
+    }
+}
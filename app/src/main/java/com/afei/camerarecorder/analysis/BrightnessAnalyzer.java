@@ -0,0 +1,32 @@
+package com.afei.camerarecorder.analysis;
+
+/**
+ * Mean luma of each frame, for exposure hints such as a too dark scene.
+ */
+public class BrightnessAnalyzer implements FrameAnalyzer {
+
+    private volatile float mMeanLuma = -1;
+
+    @Override
+    public String getName() {
+        return "brightness";
+    }
+
+    @Override
+    public void analyze(Frame frame) {
+        byte[] y = frame.getY();
+        int length = frame.getWidth() * frame.getHeight();
+        long sum = 0;
+        for (int i = 0; i < length; i++) {
+            sum += y[i] & 0xff;
+        }
+        mMeanLuma = length == 0 ? -1 : (float) sum / length;
+    }
+
+    /**
+     * @return mean luma of the last analyzed frame in [0, 255], -1 if there was none
+     */
+    public float getMeanLuma() {
+        return mMeanLuma;
+    }
+}
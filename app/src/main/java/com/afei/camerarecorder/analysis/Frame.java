@@ -0,0 +1,82 @@
+package com.afei.camerarecorder.analysis;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A low resolution YUV frame in I420 layout: a full size luma plane, then quarter size U and V planes, each of them
+ * without row padding.
+ * <p>
+ * Frames belong to a {@link FramePipeline} and are reused. An analyzer may read one only within
+ * {@link FrameAnalyzer#analyze(Frame)}, it must not keep it.
+ */
+public class Frame {
+
+    private final int mWidth;
+    private final int mHeight;
+    private final byte[] mY;
+    private final byte[] mU;
+    private final byte[] mV;
+    private final FramePipeline mPipeline;
+    final AtomicInteger mRefCount = new AtomicInteger();
+    private long mTimestampNs;
+    long mSubmitTimeNs;  // System.nanoTime() when submitted, for the queue wait
+
+    Frame(FramePipeline pipeline, int width, int height) {
+        mPipeline = pipeline;
+        mWidth = width;
+        mHeight = height;
+        mY = new byte[width * height];
+        mU = new byte[((width + 1) / 2) * ((height + 1) / 2)];
+        mV = new byte[mU.length];
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return luma, width * height bytes, row stride is the width
+     */
+    public byte[] getY() {
+        return mY;
+    }
+
+    /**
+     * @return Cb, (width + 1) / 2 per row
+     */
+    public byte[] getU() {
+        return mU;
+    }
+
+    /**
+     * @return Cr, (width + 1) / 2 per row
+     */
+    public byte[] getV() {
+        return mV;
+    }
+
+    /**
+     * @return sensor timestamp of the frame
+     */
+    public long getTimestampNs() {
+        return mTimestampNs;
+    }
+
+    public void setTimestampNs(long timestampNs) {
+        mTimestampNs = timestampNs;
+    }
+
+    void retain() {
+        mRefCount.incrementAndGet();
+    }
+
+    void release() {
+        if (mRefCount.decrementAndGet() == 0) {
+            mPipeline.recycle(this);
+        }
+    }
+}
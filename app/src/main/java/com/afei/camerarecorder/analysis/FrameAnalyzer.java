@@ -0,0 +1,20 @@
+package com.afei.camerarecorder.analysis;
+
+/**
+ * Works on the frames of the analysis stream, such as motion or brightness detection.
+ * <p>
+ * Runs on a worker of the {@link FramePipeline}, one frame at a time and in order. A slow analyzer only drops its
+ * own frames, it never holds up the camera or the other analyzers.
+ */
+public interface FrameAnalyzer {
+
+    /**
+     * @return a short name for the metrics
+     */
+    String getName();
+
+    /**
+     * @param frame only valid during this call
+     */
+    void analyze(Frame frame);
+}
@@ -0,0 +1,374 @@
+package com.afei.camerarecorder.analysis;
+
+import com.afei.camerarecorder.camera.LatencyHistogram;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands frames of the analysis stream to the analyzers on a bounded worker pool, without ever blocking the producer.
+ * <p>
+ * Each analyzer has its own bounded queue. When it is full, the oldest frame is dropped for that analyzer only:
+ * {@link #KEEP_LATEST} keeps a single pending frame, {@link #DROP_OLDEST} keeps up to the queue capacity. Frames come
+ * from a pool sized so that every queue can be full while the producer fills the next one, nothing is allocated per
+ * frame once started.
+ * <p>
+ * Plain Java, no Android classes, so it can be driven with synthetic frames on the JVM.
+ */
+public class FramePipeline {
+
+    public static final int KEEP_LATEST = 0;
+    public static final int DROP_OLDEST = 1;
+
+    private static final long STOP_TIMEOUT_MS = 500;
+
+    private final int mWorkerCount;
+    private volatile int mQueueCapacity = 1;
+    private volatile int mActiveQueueCapacity = 1;  // of the running start, the pool is sized for it
+    private final CopyOnWriteArrayList<Slot> mSlots = new CopyOnWriteArrayList<>();
+
+    private ExecutorService mExecutor;
+    private ArrayBlockingQueue<Frame> mFreeFrames;
+    private int mWidth;
+    private int mHeight;
+    private final AtomicLong mInputDropCount = new AtomicLong();
+    private final AtomicLong mInputCount = new AtomicLong();
+
+    /**
+     * @param workerCount threads shared by all analyzers, at most one per analyzer is busy at a time
+     */
+    public FramePipeline(int workerCount) {
+        mWorkerCount = Math.max(1, workerCount);
+    }
+
+    /**
+     * Takes effect at the next {@link #start(int, int)}.
+     *
+     * @param queueCapacity frames pending per analyzer for {@link #DROP_OLDEST}, {@link #KEEP_LATEST} always has 1
+     */
+    public void setBackpressure(int backpressure, int queueCapacity) {
+        mQueueCapacity = backpressure == KEEP_LATEST ? 1 : Math.max(1, queueCapacity);
+    }
+
+    /**
+     * The frame pool is sized for the analyzers at {@link #start(int, int)}, add them before it.
+     */
+    public void addAnalyzer(FrameAnalyzer analyzer) {
+        mSlots.add(new Slot(analyzer));
+    }
+
+    public void removeAnalyzer(FrameAnalyzer analyzer) {
+        for (Slot slot : mSlots) {
+            if (slot.mAnalyzer == analyzer) {
+                mSlots.remove(slot);
+                slot.clear();
+            }
+        }
+    }
+
+    public boolean hasAnalyzers() {
+        return !mSlots.isEmpty();
+    }
+
+    /**
+     * Allocates the frame pool and the workers. Does nothing if already running with the same size.
+     */
+    public void start(int width, int height) {
+        synchronized (this) {
+            if (mExecutor != null && mWidth == width && mHeight == height) {
+                return;
+            }
+        }
+        stop();
+        synchronized (this) {
+            allocate(width, height);
+        }
+    }
+
+    private void allocate(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mActiveQueueCapacity = mQueueCapacity;
+        // every analyzer may hold a full queue plus the frame it analyzes, the producer fills one more
+        int poolSize = mSlots.size() * (mActiveQueueCapacity + 1) + 1;
+        mFreeFrames = new ArrayBlockingQueue<>(poolSize);
+        for (int i = 0; i < poolSize; i++) {
+            mFreeFrames.offer(new Frame(this, width, height));
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        mExecutor = Executors.newFixedThreadPool(mWorkerCount, runnable -> {
+            Thread thread = new Thread(runnable, "FrameAnalyzer-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);  // below the camera and the encoder
+            return thread;
+        });
+    }
+
+    /**
+     * Drops pending frames and waits a little for running analyzers.
+     */
+    public void stop() {
+        ExecutorService executor;
+        synchronized (this) {
+            executor = mExecutor;
+            mExecutor = null;
+            mFreeFrames = null;  // frames still out are left to the garbage collector
+        }
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        for (Slot slot : mSlots) {
+            slot.clear();
+        }
+        try {
+            // not holding the lock, workers take it to recycle their frames
+            executor.awaitTermination(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return mExecutor != null;
+    }
+
+    /**
+     * For the producer: a free frame to fill and {@link #submit(Frame)}.
+     *
+     * @return null if stopped or no frame is free, the input frame is then dropped
+     */
+    public Frame obtainFrame() {
+        ArrayBlockingQueue<Frame> freeFrames;
+        synchronized (this) {
+            freeFrames = mFreeFrames;
+        }
+        Frame frame = freeFrames == null ? null : freeFrames.poll();
+        mInputCount.incrementAndGet();
+        if (frame == null) {
+            mInputDropCount.incrementAndGet();
+            return null;
+        }
+        frame.mRefCount.set(1);  // held by the producer until submitted
+        return frame;
+    }
+
+    /**
+     * Queues the frame for every analyzer. Never blocks.
+     */
+    public void submit(Frame frame) {
+        ExecutorService executor;
+        synchronized (this) {
+            executor = mExecutor;
+        }
+        frame.mSubmitTimeNs = System.nanoTime();
+        if (executor != null) {
+            for (Slot slot : mSlots) {
+                slot.offer(frame, executor);
+            }
+        }
+        frame.release();  // the producer's reference
+    }
+
+    void recycle(Frame frame) {
+        synchronized (this) {
+            // frames of an older start are not taken back, their size may be wrong
+            if (mFreeFrames != null && frame.getWidth() == mWidth && frame.getHeight() == mHeight) {
+                mFreeFrames.offer(frame);
+            }
+        }
+    }
+
+    /**
+     * @return frames the producer had to drop because no frame was free
+     */
+    public long getInputDropCount() {
+        return mInputDropCount.get();
+    }
+
+    public List<AnalyzerStats> getStats() {
+        ArrayList<AnalyzerStats> stats = new ArrayList<>();
+        for (Slot slot : mSlots) {
+            stats.add(new AnalyzerStats(slot));
+        }
+        return stats;
+    }
+
+    public void resetStats() {
+        mInputCount.set(0);
+        mInputDropCount.set(0);
+        for (Slot slot : mSlots) {
+            slot.mLatencies.reset();
+            slot.mWaits.reset();
+            slot.mDropCount.set(0);
+            slot.mFailureCount.set(0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("input " + mInputCount.get() + ", dropped " + mInputDropCount.get());
+        for (AnalyzerStats stats : getStats()) {
+            builder.append("\n  ").append(stats);
+        }
+        return builder.toString();
+    }
+
+    public static class AnalyzerStats {
+        private final String mName;
+        private final LatencyHistogram.Snapshot mLatencies;
+        private final LatencyHistogram.Snapshot mWaits;
+        private final long mDropCount;
+        private final long mFailureCount;
+
+        private AnalyzerStats(Slot slot) {
+            mName = slot.mAnalyzer.getName();
+            mLatencies = slot.mLatencies.snapshot();
+            mWaits = slot.mWaits.snapshot();
+            mDropCount = slot.mDropCount.get();
+            mFailureCount = slot.mFailureCount.get();
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * @return time spent in {@link FrameAnalyzer#analyze(Frame)}, the count is the frames analyzed
+         */
+        public LatencyHistogram.Snapshot getLatencies() {
+            return mLatencies;
+        }
+
+        /**
+         * @return time from submit to the start of the analysis
+         */
+        public LatencyHistogram.Snapshot getWaits() {
+            return mWaits;
+        }
+
+        /**
+         * @return frames dropped from the queue of this analyzer because it was behind
+         */
+        public long getDropCount() {
+            return mDropCount;
+        }
+
+        public long getFailureCount() {
+            return mFailureCount;
+        }
+
+        @Override
+        public String toString() {
+            return mName + ": dropped " + mDropCount + ", failed " + mFailureCount + ", latency: " + mLatencies
+                    + ", wait: " + mWaits;
+        }
+    }
+
+    /**
+     * The queue of one analyzer. At most one worker runs it at a time, one frame per run so the analyzers take turns
+     * on the workers.
+     */
+    private class Slot implements Runnable {
+        final FrameAnalyzer mAnalyzer;
+        final ArrayDeque<Frame> mQueue = new ArrayDeque<>();  // guarded by this
+        boolean mScheduled;  // guarded by this
+        final LatencyHistogram mLatencies = new LatencyHistogram();
+        final LatencyHistogram mWaits = new LatencyHistogram();
+        final AtomicLong mDropCount = new AtomicLong();
+        final AtomicLong mFailureCount = new AtomicLong();
+
+        Slot(FrameAnalyzer analyzer) {
+            mAnalyzer = analyzer;
+        }
+
+        void offer(Frame frame, ExecutorService executor) {
+            Frame dropped = null;
+            boolean schedule;
+            frame.retain();
+            synchronized (this) {
+                if (mQueue.size() >= mActiveQueueCapacity) {
+                    dropped = mQueue.pollFirst();
+                }
+                mQueue.addLast(frame);
+                schedule = !mScheduled;
+                mScheduled = true;
+            }
+            if (dropped != null) {
+                mDropCount.incrementAndGet();
+                dropped.release();
+            }
+            if (schedule) {
+                execute(executor);
+            }
+        }
+
+        private void execute(ExecutorService executor) {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                clear();  // stopped meanwhile
+            }
+        }
+
+        void clear() {
+            ArrayList<Frame> frames;
+            synchronized (this) {
+                frames = new ArrayList<>(mQueue);
+                mQueue.clear();
+                mScheduled = false;
+            }
+            for (Frame frame : frames) {
+                frame.release();
+            }
+        }
+
+        @Override
+        public void run() {
+            Frame frame;
+            synchronized (this) {
+                frame = mQueue.pollFirst();
+                if (frame == null) {
+                    mScheduled = false;
+                    return;
+                }
+            }
+            long startTime = System.nanoTime();
+            mWaits.record((startTime - frame.mSubmitTimeNs) / 1000);
+            try {
+                mAnalyzer.analyze(frame);
+            } catch (RuntimeException e) {
+                mFailureCount.incrementAndGet();
+                e.printStackTrace();
+            } finally {
+                mLatencies.record((System.nanoTime() - startTime) / 1000);
+                frame.release();
+            }
+            boolean more;
+            synchronized (this) {
+                more = !mQueue.isEmpty();
+                mScheduled = more;
+            }
+            if (more) {
+                ExecutorService executor;
+                synchronized (FramePipeline.this) {
+                    executor = mExecutor;
+                }
+                if (executor != null) {
+                    execute(executor);
+                } else {
+                    clear();
+                }
+            }
+        }
+    }
+}
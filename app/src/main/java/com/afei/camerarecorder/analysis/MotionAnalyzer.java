@@ -0,0 +1,75 @@
+package com.afei.camerarecorder.analysis;
+
+/**
+ * Reports when motion starts and stops in the analysis stream, see {@link MotionDetector}.
+ */
+public class MotionAnalyzer implements FrameAnalyzer {
+
+    private static final int DEFAULT_SHORT_SIDE = 120;
+
+    public interface OnMotionListener {
+        /**
+         * Called on a worker of the pipeline.
+         *
+         * @param timestampNs sensor timestamp of the frame that changed the state
+         */
+        void onMotionChanged(boolean motion, long timestampNs);
+    }
+
+    private final MotionDetector mDetector;
+    private final OnMotionListener mListener;
+    private volatile boolean mMotion;
+    private volatile boolean mResetPending;
+    private volatile float mMovingFraction;
+
+    public MotionAnalyzer(OnMotionListener listener) {
+        this(new MotionDetector(DEFAULT_SHORT_SIDE), listener);
+    }
+
+    /**
+     * @param detector configured by the caller, then only used by this analyzer
+     */
+    public MotionAnalyzer(MotionDetector detector, OnMotionListener listener) {
+        mDetector = detector;
+        mListener = listener;
+    }
+
+    @Override
+    public String getName() {
+        return "motion";
+    }
+
+    @Override
+    public void analyze(Frame frame) {
+        if (mResetPending) {
+            mResetPending = false;
+            mDetector.reset();
+            mMotion = false;
+        }
+        boolean motion = mDetector.update(frame.getY(), frame.getWidth(), frame.getHeight());
+        mMovingFraction = mDetector.getMovingFraction();
+        if (motion != mMotion) {
+            mMotion = motion;
+            mListener.onMotionChanged(motion, frame.getTimestampNs());
+        }
+    }
+
+    /**
+     * Forgets the background and the motion state at the next frame, without a callback. For a new session, whose
+     * first frames have nothing to do with the last ones.
+     */
+    public void reset() {
+        mResetPending = true;
+    }
+
+    public boolean isMotion() {
+        return mMotion;
+    }
+
+    /**
+     * @return moving blocks of the last analyzed frame, in [0, 1]
+     */
+    public float getMovingFraction() {
+        return mMovingFraction;
+    }
+}
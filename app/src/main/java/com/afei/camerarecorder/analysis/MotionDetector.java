@@ -0,0 +1,244 @@
+package com.afei.camerarecorder.analysis;
+
+import com.afei.camerarecorder.image.PlaneScaler;
+
+import java.util.Arrays;
+
+/**
+ * Motion in a luma plane against a running average background.
+ * <p>
+ * The luma is box downscaled first, then compared to the background block by block: a block moves when the sum of its
+ * absolute differences is above {@link #setPixelThreshold(int)} per pixel. Motion starts when enough blocks move for a
+ * few frames in a row and stops when few enough stay still for a few frames, the two thresholds apart so a borderline
+ * scene does not flicker. The background follows the scene slowly, and 8 times slower in moving blocks: a passing
+ * object leaves no ghost behind, a parked car still becomes part of the background.
+ * <p>
+ * Buffers are allocated on the first frame and when the size changes, nothing per frame after that. Plain Java, not
+ * thread safe, it is fed by one analyzer.
+ */
+public class MotionDetector {
+
+    private static final int FIXED_SHIFT = 8;  // background in 8.8 fixed point, so slow learning does not round away
+    private static final int DEFAULT_LEARN_SHIFT = 5;  // background moves 1/32 of the way to each frame
+    private static final int MOVING_EXTRA_SHIFT = 3;  // moving blocks learn 8 times slower
+    private static final int DEFAULT_BLOCK_SIZE = 8;
+
+    private final int mTargetShortSide;
+    private int mBlockSize = DEFAULT_BLOCK_SIZE;
+    private int mActiveBlockSize;  // of the current size, no larger than the downscaled plane
+    private int mLearnShift = DEFAULT_LEARN_SHIFT;
+    private int mPixelThreshold = 16;  // mean absolute difference of a moving block, in luma levels
+    private float mStartFraction = 0.02f;  // of all blocks
+    private float mStopFraction = 0.005f;
+    private int mStartFrames = 3;
+    private int mStopFrames = 10;
+
+    private int mWidth;
+    private int mHeight;
+    private int mFactor;
+    private int mScaledWidth;
+    private int mScaledHeight;
+    private int mBlockColumns;
+    private int mBlockRows;
+    private byte[] mScaled;
+    private int[] mRowSums;
+    private int[] mBackground;
+    private int[] mBlockSads;
+    private boolean[] mMovingBlocks;  // of the last compared frame, row by row
+    private boolean mSeeded;
+    private int mWarmupFrames;  // frames the background only learns, before it is compared
+
+    private boolean mMotion;
+    private int mStreak;  // frames in a row past the threshold of the opposite state
+    private float mMovingFraction;
+
+    /**
+     * @param targetShortSide short side after the downscale, such as 120, the factor is the largest not going below it
+     */
+    public MotionDetector(int targetShortSide) {
+        mTargetShortSide = Math.max(1, targetShortSide);
+    }
+
+    /**
+     * @param blockSize side of the compared blocks in downscaled pixels, takes effect at the next size change
+     */
+    public void setBlockSize(int blockSize) {
+        mBlockSize = Math.max(1, blockSize);
+    }
+
+    /**
+     * @param learnShift the background moves 1 / 2^learnShift of the way to each frame
+     */
+    public void setLearnShift(int learnShift) {
+        mLearnShift = Math.max(0, Math.min(FIXED_SHIFT, learnShift));
+    }
+
+    public void setPixelThreshold(int pixelThreshold) {
+        mPixelThreshold = Math.max(0, pixelThreshold);
+    }
+
+    /**
+     * @param startFraction moving blocks that start motion, after startFrames frames in a row
+     * @param stopFraction  moving blocks below which motion stops, after stopFrames frames in a row
+     */
+    public void setHysteresis(float startFraction, int startFrames, float stopFraction, int stopFrames) {
+        mStartFraction = startFraction;
+        mStopFraction = Math.min(stopFraction, startFraction);
+        mStartFrames = Math.max(1, startFrames);
+        mStopFrames = Math.max(1, stopFrames);
+    }
+
+    /**
+     * Forgets the background, it is learned again from the next frames.
+     */
+    public void reset() {
+        mSeeded = false;
+        mWarmupFrames = 1 << mLearnShift;
+        if (mMovingBlocks != null) {
+            Arrays.fill(mMovingBlocks, false);
+        }
+        mMotion = false;
+        mStreak = 0;
+        mMovingFraction = 0;
+    }
+
+    /**
+     * @param luma packed, width bytes per row
+     * @return whether there is motion after this frame
+     */
+    public boolean update(byte[] luma, int width, int height) {
+        if (width != mWidth || height != mHeight) {
+            allocate(width, height);
+        }
+        byte[] scaled = luma;
+        if (mFactor > 1) {
+            PlaneScaler.boxDownscale(luma, width, height, mFactor, mScaled, mRowSums);
+            scaled = mScaled;
+        }
+        if (mWarmupFrames > 0) {
+            mWarmupFrames--;
+            learn(scaled);
+            return mMotion;
+        }
+        int moving = compare(scaled);
+        learn(scaled);
+        mMovingFraction = (float) moving / (mBlockColumns * mBlockRows);
+        boolean opposite = mMotion ? mMovingFraction < mStopFraction : mMovingFraction >= mStartFraction;
+        mStreak = opposite ? mStreak + 1 : 0;
+        if (mStreak >= (mMotion ? mStopFrames : mStartFrames)) {
+            mMotion = !mMotion;
+            mStreak = 0;
+        }
+        return mMotion;
+    }
+
+    public boolean isMotion() {
+        return mMotion;
+    }
+
+    /**
+     * @return moving blocks of the last frame, in [0, 1]
+     */
+    public float getMovingFraction() {
+        return mMovingFraction;
+    }
+
+    private void allocate(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mFactor = Math.max(1, Math.min(width, height) / mTargetShortSide);
+        mScaledWidth = PlaneScaler.getScaledSize(width, mFactor);
+        mScaledHeight = PlaneScaler.getScaledSize(height, mFactor);
+        mActiveBlockSize = Math.min(mBlockSize, Math.min(mScaledWidth, mScaledHeight));
+        mBlockColumns = mScaledWidth / mActiveBlockSize;
+        mBlockRows = mScaledHeight / mActiveBlockSize;
+        int length = mScaledWidth * mScaledHeight;
+        mScaled = mFactor > 1 ? new byte[length] : null;
+        mRowSums = mFactor > 1 ? new int[width] : null;
+        mBackground = new int[length];
+        mBlockSads = new int[mBlockColumns];
+        mMovingBlocks = new boolean[mBlockColumns * mBlockRows];
+        reset();
+    }
+
+    private void learn(byte[] scaled) {
+        int length = mScaledWidth * mScaledHeight;
+        int[] background = mBackground;
+        if (!mSeeded) {
+            mSeeded = true;  // the first frame is the background, learning refines it
+            for (int i = 0; i < length; i++) {
+                background[i] = (scaled[i] & 0xff) << FIXED_SHIFT;
+            }
+            return;
+        }
+        int blockSize = mActiveBlockSize;
+        int width = mScaledWidth;
+        int blocksWidth = mBlockColumns * blockSize;
+        for (int row = 0; row < mScaledHeight; row++) {
+            int offset = row * width;
+            int blockRow = row / blockSize;
+            if (blockRow < mBlockRows) {
+                int blockIndex = blockRow * mBlockColumns;
+                for (int blockColumn = 0; blockColumn < mBlockColumns; blockColumn++) {
+                    int shift = mMovingBlocks[blockIndex + blockColumn] ? mLearnShift + MOVING_EXTRA_SHIFT
+                            : mLearnShift;
+                    int start = offset + blockColumn * blockSize;
+                    learn(scaled, start, start + blockSize, shift);
+                }
+                learn(scaled, offset + blocksWidth, offset + width, mLearnShift);
+            } else {
+                learn(scaled, offset, offset + width, mLearnShift);  // rows below the last whole block
+            }
+        }
+    }
+
+    private void learn(byte[] scaled, int start, int end, int shift) {
+        int[] background = mBackground;
+        for (int i = start; i < end; i++) {
+            int value = (scaled[i] & 0xff) << FIXED_SHIFT;
+            background[i] += (value - background[i]) >> shift;
+        }
+    }
+
+    /**
+     * Marks the blocks whose sum of absolute differences is above the threshold.
+     *
+     * @return count of those blocks
+     */
+    private int compare(byte[] scaled) {
+        int blockSize = mActiveBlockSize;
+        int width = mScaledWidth;
+        int[] background = mBackground;
+        int[] sads = mBlockSads;
+        int threshold = mPixelThreshold * blockSize * blockSize;
+        int moving = 0;
+        for (int blockRow = 0; blockRow < mBlockRows; blockRow++) {
+            for (int i = 0; i < mBlockColumns; i++) {
+                sads[i] = 0;
+            }
+            int rowEnd = (blockRow + 1) * blockSize;
+            for (int row = blockRow * blockSize; row < rowEnd; row++) {
+                int offset = row * width;
+                for (int blockColumn = 0; blockColumn < mBlockColumns; blockColumn++) {
+                    int start = offset + blockColumn * blockSize;
+                    int end = start + blockSize;
+                    int sad = 0;
+                    for (int i = start; i < end; i++) {
+                        int diff = (scaled[i] & 0xff) - (background[i] >> FIXED_SHIFT);
+                        sad += diff < 0 ? -diff : diff;
+                    }
+                    sads[blockColumn] += sad;
+                }
+            }
+            int blockIndex = blockRow * mBlockColumns;
+            for (int i = 0; i < mBlockColumns; i++) {
+                boolean blockMoving = sads[i] > threshold;
+                mMovingBlocks[blockIndex + i] = blockMoving;
+                if (blockMoving) {
+                    moving++;
+                }
+            }
+        }
+        return moving;
+    }
+}
@@ -0,0 +1,348 @@
+package com.afei.camerarecorder.camera;
+
+import android.content.Context;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraConstrainedHighSpeedCaptureSession;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureFailure;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.OutputConfiguration;
+import android.hardware.camera2.params.SessionConfiguration;
+import android.os.Build;
+import android.os.Handler;
+import android.util.Log;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * {@link CameraBackend} on the camera2 api of the device.
+ * <p>
+ * Every open and session gets its own callback, one that was closed or replaced meanwhile closes what it gets and
+ * reports nothing. The device and session are guarded by this, a release may come from another thread.
+ */
+public class Camera2Backend implements CameraBackend {
+
+    private static final String TAG = "Camera2Backend";
+
+    private final CameraManager mCameraManager;
+    private Handler mHandler;
+    private CameraDevice.StateCallback mOpenCallback;  // of the open in progress or done, null when closed
+    private CameraDevice mCameraDevice;
+    private CameraCaptureSession.StateCallback mSessionCallback;  // of the session being created or configured
+    private CameraCaptureSession mCameraSession;
+    private final IdentityHashMap<Output, OutputConfiguration> mOutputConfigurations = new IdentityHashMap<>();
+
+    public Camera2Backend(Context context) {
+        mCameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+    }
+
+    @Override
+    public String[] getCameraIdList() throws CameraAccessException {
+        return mCameraManager.getCameraIdList();
+    }
+
+    @Override
+    public CameraCharacteristics getCameraCharacteristics(String cameraId) throws CameraAccessException {
+        return mCameraManager.getCameraCharacteristics(cameraId);
+    }
+
+    @Override
+    public void openCamera(String cameraId, StateCallback callback, Handler handler) throws CameraAccessException {
+        closeCamera();
+        CameraDevice.StateCallback openCallback = new CameraDevice.StateCallback() {
+            @Override
+            public void onOpened(@NonNull CameraDevice camera) {
+                synchronized (Camera2Backend.this) {
+                    if (mOpenCallback != this) {
+                        Log.w(TAG, "onOpened after close, close camera " + camera.getId());
+                        camera.close();
+                        return;
+                    }
+                    mCameraDevice = camera;
+                }
+                callback.onOpened();
+            }
+
+            @Override
+            public void onDisconnected(@NonNull CameraDevice camera) {
+                if (isCurrent(this, camera)) {
+                    callback.onDisconnected();
+                }
+            }
+
+            @Override
+            public void onError(@NonNull CameraDevice camera, int error) {
+                if (isCurrent(this, camera)) {
+                    callback.onError(error);
+                }
+            }
+        };
+        synchronized (this) {
+            mHandler = handler;
+            mOpenCallback = openCallback;
+        }
+        try {
+            mCameraManager.openCamera(cameraId, openCallback, handler);
+        } catch (CameraAccessException | IllegalArgumentException | SecurityException e) {
+            synchronized (this) {
+                mOpenCallback = null;
+            }
+            throw e;
+        }
+    }
+
+    private synchronized boolean isCurrent(CameraDevice.StateCallback openCallback, CameraDevice camera) {
+        if (mOpenCallback != openCallback) {
+            camera.close();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isSessionSupported(List<Output> outputs, int sessionType, Request sessionParameters)
+            throws CameraAccessException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            throw new UnsupportedOperationException("isSessionConfigurationSupported needs android Q");
+        }
+        CameraDevice device = getDevice();
+        SessionConfiguration configuration = new SessionConfiguration(sessionType, toConfigurations(outputs, null),
+                Runnable::run, new CameraCaptureSession.StateCallback() {
+            @Override
+            public void onConfigured(@NonNull CameraCaptureSession session) {
+            }
+
+            @Override
+            public void onConfigureFailed(@NonNull CameraCaptureSession session) {
+            }
+        });
+        configuration.setSessionParameters(build(device, sessionParameters));
+        return device.isSessionConfigurationSupported(configuration);
+    }
+
+    @Override
+    public void createSession(List<Output> outputs, int sessionType, Request sessionParameters,
+                              SessionCallback callback) throws CameraAccessException {
+        closeSession();
+        CameraDevice device = getDevice();
+        CameraCaptureSession.StateCallback sessionCallback = new CameraCaptureSession.StateCallback() {
+            @Override
+            public void onConfigured(@NonNull CameraCaptureSession session) {
+                synchronized (Camera2Backend.this) {
+                    if (mSessionCallback != this) {
+                        Log.w(TAG, "onConfigured after close, close session");
+                        session.close();
+                        return;
+                    }
+                    mCameraSession = session;
+                }
+                callback.onConfigured();
+            }
+
+            @Override
+            public void onConfigureFailed(@NonNull CameraCaptureSession session) {
+                synchronized (Camera2Backend.this) {
+                    if (mSessionCallback != this) {
+                        return;
+                    }
+                    mSessionCallback = null;
+                }
+                callback.onConfigureFailed();
+            }
+        };
+        Handler handler;
+        ArrayList<OutputConfiguration> configurations;
+        synchronized (this) {
+            handler = mHandler;
+            mSessionCallback = sessionCallback;
+            configurations = toConfigurations(outputs, mOutputConfigurations);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            SessionConfiguration configuration = new SessionConfiguration(sessionType, configurations,
+                    new HandlerExecutor(handler), sessionCallback);
+            configuration.setSessionParameters(build(device, sessionParameters));
+            device.createCaptureSession(configuration);
+        } else if (sessionType == SessionConfiguration.SESSION_HIGH_SPEED) {
+            ArrayList<Surface> surfaces = new ArrayList<>();
+            for (Output output : outputs) {
+                surfaces.add(output.getSurface());
+            }
+            device.createConstrainedHighSpeedCaptureSession(surfaces, sessionCallback, handler);
+        } else {
+            device.createCaptureSessionByOutputConfigurations(configurations, sessionCallback, handler);
+        }
+    }
+
+    /**
+     * @param created where to keep the configuration of each output for {@link #finalizeOutput}, null for a probe
+     */
+    private static ArrayList<OutputConfiguration> toConfigurations(List<Output> outputs,
+                                                                   Map<Output, OutputConfiguration> created) {
+        ArrayList<OutputConfiguration> configurations = new ArrayList<>();
+        for (Output output : outputs) {
+            OutputConfiguration configuration = output.isDeferred()
+                    ? new OutputConfiguration(output.getSize(), output.getKlass())
+                    : new OutputConfiguration(output.getSurface());
+            configurations.add(configuration);
+            if (created != null) {
+                created.put(output, configuration);
+            }
+        }
+        return configurations;
+    }
+
+    @Override
+    public void finalizeOutput(Output output, Surface surface) throws CameraAccessException {
+        OutputConfiguration configuration;
+        CameraCaptureSession session;
+        synchronized (this) {
+            configuration = mOutputConfigurations.get(output);
+            session = mCameraSession;
+        }
+        if (configuration == null || session == null) {
+            throw new IllegalStateException("no session with this output");
+        }
+        configuration.addSurface(surface);
+        session.finalizeOutputConfigurations(Collections.singletonList(configuration));
+        output.setSurface(surface);
+    }
+
+    @Override
+    public void setRepeatingRequest(Request request, CaptureListener listener) throws CameraAccessException {
+        CameraCaptureSession session = getSession();
+        CaptureRequest captureRequest = build(getDevice(), request);
+        CaptureCallback callback = new CaptureCallback(listener);
+        if (session instanceof CameraConstrainedHighSpeedCaptureSession) {
+            // high speed requests go in bursts, each of them gets its own capture callbacks
+            List<CaptureRequest> requests = ((CameraConstrainedHighSpeedCaptureSession) session)
+                    .createHighSpeedRequestList(captureRequest);
+            session.setRepeatingBurst(requests, callback, mHandler);
+        } else {
+            session.setRepeatingRequest(captureRequest, callback, mHandler);
+        }
+    }
+
+    @Override
+    public void capture(Request request, CaptureListener listener) throws CameraAccessException {
+        getSession().capture(build(getDevice(), request), new CaptureCallback(listener), mHandler);
+    }
+
+    @Override
+    public void stopRepeating() throws CameraAccessException {
+        getSession().stopRepeating();
+    }
+
+    @Override
+    public void closeSession() {
+        CameraCaptureSession session;
+        synchronized (this) {
+            session = mCameraSession;
+            mCameraSession = null;
+            mSessionCallback = null;
+            mOutputConfigurations.clear();
+        }
+        if (session != null) {
+            session.close();
+        }
+    }
+
+    @Override
+    public void closeCamera() {
+        closeSession();
+        CameraDevice device;
+        synchronized (this) {
+            device = mCameraDevice;
+            mCameraDevice = null;
+            mOpenCallback = null;  // an open still in progress closes its device when it comes
+        }
+        if (device != null) {
+            device.close();
+        }
+    }
+
+    private synchronized CameraDevice getDevice() {
+        if (mCameraDevice == null) {
+            throw new IllegalStateException("camera is not opened");
+        }
+        return mCameraDevice;
+    }
+
+    private synchronized CameraCaptureSession getSession() {
+        if (mCameraSession == null) {
+            throw new IllegalStateException("session is not configured");
+        }
+        return mCameraSession;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static CaptureRequest build(CameraDevice device, Request request) throws CameraAccessException {
+        CaptureRequest.Builder builder = device.createCaptureRequest(request.getTemplate());
+        for (Surface target : request.getTargets()) {
+            builder.addTarget(target);
+        }
+        for (Map.Entry<CaptureRequest.Key<?>, Object> entry : request.getSettings().entrySet()) {
+            builder.set((CaptureRequest.Key<Object>) entry.getKey(), entry.getValue());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Hands the camera2 callbacks on as primitives, one per request, not per frame.
+     */
+    private static class CaptureCallback extends CameraCaptureSession.CaptureCallback {
+        private final CaptureListener mListener;
+
+        CaptureCallback(CaptureListener listener) {
+            mListener = listener;
+        }
+
+        @Override
+        public void onCaptureStarted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request,
+                                     long timestamp, long frameNumber) {
+            mListener.onCaptureStarted(frameNumber, timestamp);
+        }
+
+        @Override
+        public void onCaptureCompleted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request,
+                                       @NonNull TotalCaptureResult result) {
+            mListener.onCaptureCompleted(result.getFrameNumber());
+        }
+
+        @Override
+        public void onCaptureFailed(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request,
+                                    @NonNull CaptureFailure failure) {
+            mListener.onCaptureFailed(failure.getFrameNumber());
+        }
+
+        @Override
+        public void onCaptureBufferLost(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request,
+                                        @NonNull Surface target, long frameNumber) {
+            mListener.onCaptureBufferLost(frameNumber);
+        }
+    }
+
+    private static class HandlerExecutor implements Executor {
+        private final Handler mHandler;
+
+        HandlerExecutor(Handler handler) {
+            mHandler = handler;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            mHandler.post(command);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.afei.camerarecorder.camera;
+
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CaptureRequest;
+import android.os.Handler;
+import android.util.Size;
+import android.view.Surface;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The camera operations {@link CameraModule} relies on: open -> session -> repeating request -> close.
+ * <p>
+ * {@link Camera2Backend} runs them on the camera of the device. Outputs and requests are described by the plain
+ * {@link Output} and {@link Request} instead of camera2 objects only an opened device can create, so an
+ * implementation without a camera (see {@link SyntheticCameraBackend}) runs the same flow on a JVM.
+ * <p>
+ * Called on the thread of the handler given to {@link #openCamera}, all callbacks come on that handler too.
+ */
+public interface CameraBackend {
+
+    interface StateCallback {
+        void onOpened();
+
+        void onDisconnected();
+
+        /**
+         * @param error one of the CameraDevice.StateCallback.ERROR_* codes
+         */
+        void onError(int error);
+    }
+
+    interface SessionCallback {
+        void onConfigured();
+
+        void onConfigureFailed();
+    }
+
+    /**
+     * Per frame callbacks of {@link #setRepeatingRequest} and {@link #capture}, with primitives only, so nothing is
+     * allocated per frame.
+     */
+    interface CaptureListener {
+        /**
+         * @param frameNumber increasing number of the frame, a gap means frames were dropped
+         * @param timestampNs start of exposure, the SENSOR_TIMESTAMP of the result
+         */
+        void onCaptureStarted(long frameNumber, long timestampNs);
+
+        void onCaptureCompleted(long frameNumber);
+
+        void onCaptureFailed(long frameNumber);
+
+        void onCaptureBufferLost(long frameNumber);
+    }
+
+    /**
+     * An output of the session, a surface or, for a preview view not laid out yet, the size and class of the surface
+     * that comes later through {@link #finalizeOutput}.
+     */
+    final class Output {
+        private Surface mSurface;
+        private final Size mSize;
+        private final Class<?> mKlass;
+
+        private Output(Surface surface, Size size, Class<?> klass) {
+            mSurface = surface;
+            mSize = size;
+            mKlass = klass;
+        }
+
+        public static Output of(Surface surface) {
+            return new Output(surface, null, null);
+        }
+
+        /**
+         * @param klass SurfaceHolder.class or SurfaceTexture.class
+         */
+        public static Output deferred(Size size, Class<?> klass) {
+            return new Output(null, size, klass);
+        }
+
+        /**
+         * @return null while deferred
+         */
+        @Nullable
+        public Surface getSurface() {
+            return mSurface;
+        }
+
+        public Size getSize() {
+            return mSize;
+        }
+
+        public Class<?> getKlass() {
+            return mKlass;
+        }
+
+        public boolean isDeferred() {
+            return mSurface == null;
+        }
+
+        void setSurface(Surface surface) {
+            mSurface = surface;
+        }
+    }
+
+    /**
+     * A capture request: its template, target surfaces and settings, built into a CaptureRequest by the backend.
+     */
+    final class Request {
+        private final int mTemplate;
+        private final ArrayList<Surface> mTargets = new ArrayList<>();
+        private final LinkedHashMap<CaptureRequest.Key<?>, Object> mSettings = new LinkedHashMap<>();
+
+        /**
+         * @param template one of the CameraDevice.TEMPLATE_* types
+         */
+        public Request(int template) {
+            mTemplate = template;
+        }
+
+        public int getTemplate() {
+            return mTemplate;
+        }
+
+        public void addTarget(Surface surface) {
+            if (!mTargets.contains(surface)) {
+                mTargets.add(surface);
+            }
+        }
+
+        public void removeTarget(Surface surface) {
+            mTargets.remove(surface);
+        }
+
+        public List<Surface> getTargets() {
+            return Collections.unmodifiableList(mTargets);
+        }
+
+        public <T> void set(CaptureRequest.Key<T> key, T value) {
+            mSettings.put(key, value);
+        }
+
+        @SuppressWarnings("unchecked")
+        @Nullable
+        public <T> T get(CaptureRequest.Key<T> key) {
+            return (T) mSettings.get(key);
+        }
+
+        public Map<CaptureRequest.Key<?>, Object> getSettings() {
+            return Collections.unmodifiableMap(mSettings);
+        }
+    }
+
+    String[] getCameraIdList() throws CameraAccessException;
+
+    /**
+     * @return null if the backend has no characteristics, the caller then goes with defaults
+     * @throws IllegalArgumentException if there is no such camera
+     */
+    @Nullable
+    CameraCharacteristics getCameraCharacteristics(String cameraId) throws CameraAccessException;
+
+    /**
+     * Opens the camera, closing the one opened before. Callbacks of an open that was closed or replaced meanwhile
+     * are not delivered.
+     */
+    void openCamera(String cameraId, StateCallback callback, Handler handler) throws CameraAccessException;
+
+    /**
+     * Asks the opened camera whether it can configure the session, without creating it.
+     *
+     * @param sessionType one of the SessionConfiguration.SESSION_* types
+     * @throws UnsupportedOperationException if the camera can not answer it
+     */
+    boolean isSessionSupported(List<Output> outputs, int sessionType, Request sessionParameters)
+            throws CameraAccessException;
+
+    /**
+     * Creates the session of the opened camera, closing the one created before. A high speed session needs every
+     * output surface.
+     */
+    void createSession(List<Output> outputs, int sessionType, Request sessionParameters, SessionCallback callback)
+            throws CameraAccessException;
+
+    /**
+     * Adds the surface of an output the session was configured without.
+     */
+    void finalizeOutput(Output output, Surface surface) throws CameraAccessException;
+
+    /**
+     * Replaces the repeating request, in bursts for a high speed session.
+     */
+    void setRepeatingRequest(Request request, CaptureListener listener) throws CameraAccessException;
+
+    void capture(Request request, CaptureListener listener) throws CameraAccessException;
+
+    void stopRepeating() throws CameraAccessException;
+
+    void closeSession();
+
+    void closeCamera();
+}
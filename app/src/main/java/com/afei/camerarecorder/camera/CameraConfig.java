@@ -8,12 +8,30 @@ public class CameraConfig {
 
     public static CameraConfig sCameraConfig;  // global for all Activity access
 
+    /* record engine */
+    public static final int RECORD_ENGINE_MEDIA_RECORDER = 0;
+    public static final int RECORD_ENGINE_MEDIA_CODEC = 1;
+
     private String mCameraId;
     private Size mPreviewSize;
     private Size mPictureSize;
     private float mExposure;
     private List<Size> mPreviewSizes;  // all support preview size
     private List<Size> mPictureSizes;  // all support picture size
+    private int mRecordEngine = RECORD_ENGINE_MEDIA_RECORDER;
+    private int mVideoBitRate;  // 0 means width * height * 8
+    private int mVideoFrameRate = 30;
+    private int mIFrameInterval = 1;  // seconds between key frames
+    private int mMaxBFrames;
+    private long mSegmentDurationMs;  // 0 means one file per record
+    private long mSegmentSizeBytes;  // 0 means one file per record
+    private long mPreRecordDurationMs;  // only for RECORD_ENGINE_MEDIA_CODEC
+    private boolean mFragmentedMp4;  // only for RECORD_ENGINE_MEDIA_CODEC
+    private boolean mFastStart;  // move moov in front of mdat after record
+    private int mHighSpeedFrameRate;  // 120 or 240 for a constrained high speed session, 0 means a regular session
+    private boolean mMotionRecord;  // start and stop records on motion, the pre-record duration is the pre-roll
+    private long mMotionPostRollMs = 5000;  // keep recording this long after motion stops
+    private int mZslBufferCount;  // full resolution frames the zero shutter lag ring holds, 0 means none, see ZslRing
 
     public static CameraConfig createDefault() {
         return new Builder().build();
@@ -29,6 +47,20 @@ public class CameraConfig {
         mExposure = builder.exposure;
         mPreviewSizes = builder.previewSizes;
         mPictureSizes = builder.pictureSizes;
+        mRecordEngine = builder.recordEngine;
+        mVideoBitRate = builder.videoBitRate;
+        mVideoFrameRate = builder.videoFrameRate;
+        mIFrameInterval = builder.iFrameInterval;
+        mMaxBFrames = builder.maxBFrames;
+        mSegmentDurationMs = builder.segmentDurationMs;
+        mSegmentSizeBytes = builder.segmentSizeBytes;
+        mPreRecordDurationMs = builder.preRecordDurationMs;
+        mFragmentedMp4 = builder.fragmentedMp4;
+        mFastStart = builder.fastStart;
+        mHighSpeedFrameRate = builder.highSpeedFrameRate;
+        mMotionRecord = builder.motionRecord;
+        mMotionPostRollMs = builder.motionPostRollMs;
+        mZslBufferCount = builder.zslBufferCount;
     }
 
     public String getCameraId() {
@@ -79,6 +111,121 @@ public class CameraConfig {
         mPictureSizes = pictureSizes;
     }
 
+    public int getRecordEngine() {
+        return mRecordEngine;
+    }
+
+    public void setRecordEngine(int recordEngine) {
+        mRecordEngine = recordEngine;
+    }
+
+    public int getVideoBitRate() {
+        if (mVideoBitRate <= 0 && mPreviewSize != null) {
+            return mPreviewSize.getWidth() * mPreviewSize.getHeight() * 8;
+        }
+        return mVideoBitRate;
+    }
+
+    public void setVideoBitRate(int videoBitRate) {
+        mVideoBitRate = videoBitRate;
+    }
+
+    public int getVideoFrameRate() {
+        return mVideoFrameRate;
+    }
+
+    public void setVideoFrameRate(int videoFrameRate) {
+        mVideoFrameRate = videoFrameRate;
+    }
+
+    public int getIFrameInterval() {
+        return mIFrameInterval;
+    }
+
+    public void setIFrameInterval(int iFrameInterval) {
+        mIFrameInterval = iFrameInterval;
+    }
+
+    public int getMaxBFrames() {
+        return mMaxBFrames;
+    }
+
+    public void setMaxBFrames(int maxBFrames) {
+        mMaxBFrames = maxBFrames;
+    }
+
+    public long getSegmentDurationMs() {
+        return mSegmentDurationMs;
+    }
+
+    public void setSegmentDurationMs(long segmentDurationMs) {
+        mSegmentDurationMs = segmentDurationMs;
+    }
+
+    public long getSegmentSizeBytes() {
+        return mSegmentSizeBytes;
+    }
+
+    public void setSegmentSizeBytes(long segmentSizeBytes) {
+        mSegmentSizeBytes = segmentSizeBytes;
+    }
+
+    public long getPreRecordDurationMs() {
+        return mPreRecordDurationMs;
+    }
+
+    public void setPreRecordDurationMs(long preRecordDurationMs) {
+        mPreRecordDurationMs = preRecordDurationMs;
+    }
+
+    public boolean isFragmentedMp4() {
+        return mFragmentedMp4;
+    }
+
+    public void setFragmentedMp4(boolean fragmentedMp4) {
+        mFragmentedMp4 = fragmentedMp4;
+    }
+
+    public boolean isFastStart() {
+        return mFastStart;
+    }
+
+    public void setFastStart(boolean fastStart) {
+        mFastStart = fastStart;
+    }
+
+    public int getHighSpeedFrameRate() {
+        return mHighSpeedFrameRate;
+    }
+
+    public void setHighSpeedFrameRate(int highSpeedFrameRate) {
+        mHighSpeedFrameRate = highSpeedFrameRate;
+    }
+
+    public boolean isMotionRecord() {
+        return mMotionRecord;
+    }
+
+    public void setMotionRecord(boolean motionRecord) {
+        mMotionRecord = motionRecord;
+    }
+
+    public long getMotionPostRollMs() {
+        return mMotionPostRollMs;
+    }
+
+    public void setMotionPostRollMs(long motionPostRollMs) {
+        mMotionPostRollMs = motionPostRollMs;
+    }
+
+    public int getZslBufferCount() {
+        return mZslBufferCount;
+    }
+
+    public void setZslBufferCount(int zslBufferCount) {
+        mZslBufferCount = zslBufferCount;
+    }
+
     public static class Builder {
         private String cameraId;
         private Size previewSize = null;
@@ -86,6 +233,20 @@ public class CameraConfig {
         private float exposure = 0;
         private List<Size> previewSizes = null;
         private List<Size> pictureSizes = null;
+        private int recordEngine = RECORD_ENGINE_MEDIA_RECORDER;
+        private int videoBitRate = 0;
+        private int videoFrameRate = 30;
+        private int iFrameInterval = 1;
+        private int maxBFrames = 0;
+        private long segmentDurationMs = 0;
+        private long segmentSizeBytes = 0;
+        private long preRecordDurationMs = 0;
+        private boolean fragmentedMp4 = false;
+        private boolean fastStart = false;
+        private int highSpeedFrameRate = 0;
+        private boolean motionRecord = false;
+        private long motionPostRollMs = 5000;
+        private int zslBufferCount = 0;
 
         public Builder setCameraId(String cameraId) {
             this.cameraId = cameraId;
@@ -121,6 +282,76 @@ public class CameraConfig {
             return this;
         }
 
+        public Builder setRecordEngine(int recordEngine) {
+            this.recordEngine = recordEngine;
+            return this;
+        }
+
+        public Builder setVideoBitRate(int videoBitRate) {
+            this.videoBitRate = videoBitRate;
+            return this;
+        }
+
+        public Builder setVideoFrameRate(int videoFrameRate) {
+            this.videoFrameRate = videoFrameRate;
+            return this;
+        }
+
+        public Builder setIFrameInterval(int iFrameInterval) {
+            this.iFrameInterval = iFrameInterval;
+            return this;
+        }
+
+        public Builder setMaxBFrames(int maxBFrames) {
+            this.maxBFrames = maxBFrames;
+            return this;
+        }
+
+        public Builder setSegmentDurationMs(long segmentDurationMs) {
+            this.segmentDurationMs = segmentDurationMs;
+            return this;
+        }
+
+        public Builder setSegmentSizeBytes(long segmentSizeBytes) {
+            this.segmentSizeBytes = segmentSizeBytes;
+            return this;
+        }
+
+        public Builder setPreRecordDurationMs(long preRecordDurationMs) {
+            this.preRecordDurationMs = preRecordDurationMs;
+            return this;
+        }
+
+        public Builder setFragmentedMp4(boolean fragmentedMp4) {
+            this.fragmentedMp4 = fragmentedMp4;
+            return this;
+        }
+
+        public Builder setFastStart(boolean fastStart) {
+            this.fastStart = fastStart;
+            return this;
+        }
+
+        public Builder setHighSpeedFrameRate(int highSpeedFrameRate) {
+            this.highSpeedFrameRate = highSpeedFrameRate;
+            return this;
+        }
+
+        public Builder setMotionRecord(boolean motionRecord) {
+            this.motionRecord = motionRecord;
+            return this;
+        }
+
+        public Builder setMotionPostRollMs(long motionPostRollMs) {
+            this.motionPostRollMs = motionPostRollMs;
+            return this;
+        }
+
+        public Builder setZslBufferCount(int zslBufferCount) {
+            this.zslBufferCount = zslBufferCount;
+            return this;
+        }
+
         public CameraConfig build() {
             return new CameraConfig(this);
         }
@@ -0,0 +1,202 @@
+package com.afei.camerarecorder.camera;
+
+import android.content.Context;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Size;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * On disk copy of {@link CameraUtil#getCameraInfo(Context)}, which asks every camera for its characteristics and is
+ * slow on phones with many cameras.
+ * <p>
+ * The file is a small binary one, kept for a build fingerprint and a camera id list: a system update or a camera
+ * coming or going queries the cameras again. Only {@link CameraManager#getCameraIdList()} runs on every load.
+ */
+public class CameraInfoCache {
+
+    private static final String TAG = "CameraInfoCache";
+    private static final String FILE_NAME = "camera_info.bin";
+    private static final int MAGIC = 0x43494e46;  // "CINF"
+    private static final int VERSION = 3;  // 2: sizes chosen by SizeCatalog, 3: encoder size and rate checked per codec
+
+    public interface Callback {
+        /**
+         * Called on the main thread.
+         *
+         * @param fromCache false if the cameras were queried, the first launch or after a system update
+         */
+        void onCameraInfoLoaded(List<CameraConfig> cameraConfigs, boolean fromCache);
+    }
+
+    /**
+     * Loads on a background thread and calls back on the main thread.
+     */
+    public static void loadAsync(Context context, Callback callback) {
+        Context appContext = context.getApplicationContext();
+        Handler mainHandler = new Handler(Looper.getMainLooper());
+        new Thread(() -> {
+            boolean[] fromCache = new boolean[1];
+            List<CameraConfig> cameraConfigs = load(appContext, fromCache);
+            mainHandler.post(() -> callback.onCameraInfoLoaded(cameraConfigs, fromCache[0]));
+        }, TAG).start();
+    }
+
+    /**
+     * Reads the cache file, or queries the cameras and writes it if it is missing or out of date. May block, do not
+     * call on the main thread.
+     */
+    public static List<CameraConfig> load(Context context) {
+        return load(context, new boolean[1]);
+    }
+
+    /**
+     * @param fromCache its first element is set to whether the cache file was used
+     */
+    private static List<CameraConfig> load(Context context, boolean[] fromCache) {
+        long startTime = SystemClock.elapsedRealtimeNanos();
+        CameraManager cameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        String[] cameraIdList;
+        try {
+            cameraIdList = cameraManager.getCameraIdList();
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+            return new ArrayList<>();
+        }
+        String key = getKey(cameraIdList);
+        File file = new File(context.getCacheDir(), FILE_NAME);
+        List<CameraConfig> cameraConfigs = read(file, key);
+        if (cameraConfigs != null) {
+            fromCache[0] = true;
+            Log.d(TAG, "camera info from cache, cost: " + getCostMs(startTime) + "ms");
+            return cameraConfigs;
+        }
+        cameraConfigs = CameraUtil.getCameraInfo(context);
+        Log.d(TAG, "camera info from cameras, cost: " + getCostMs(startTime) + "ms");
+        if (!cameraConfigs.isEmpty()) {
+            write(file, key, cameraConfigs);
+        }
+        return cameraConfigs;
+    }
+
+    public static void invalidate(Context context) {
+        File file = new File(context.getCacheDir(), FILE_NAME);
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "delete " + file + " failed");
+        }
+    }
+
+    private static String getKey(String[] cameraIdList) {
+        StringBuilder builder = new StringBuilder(Build.FINGERPRINT);
+        for (String cameraId : cameraIdList) {
+            builder.append('|').append(cameraId);
+        }
+        return builder.toString();
+    }
+
+    private static float getCostMs(long startTimeNs) {
+        return (SystemClock.elapsedRealtimeNanos() - startTimeNs) / 1000000f;
+    }
+
+    /**
+     * @return null if the file is missing, corrupt or written for another key
+     */
+    private static List<CameraConfig> read(File file, String key) {
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !key.equals(in.readUTF())) {
+                Log.d(TAG, "cache is out of date");
+                return null;
+            }
+            int count = in.readInt();
+            ArrayList<CameraConfig> cameraConfigs = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String cameraId = in.readUTF();
+                Size previewSize = readSize(in);
+                Size pictureSize = readSize(in);
+                List<Size> previewSizes = readSizes(in);
+                List<Size> pictureSizes = readSizes(in);
+                cameraConfigs.add(new CameraConfig.Builder().setCameraId(cameraId).setPreviewSizes(previewSizes)
+                        .setPreviewSize(previewSize).setPictureSizes(pictureSizes).setPictureSize(pictureSize)
+                        .build());
+            }
+            return cameraConfigs;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "read " + file + " failed");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static void write(File file, String key, List<CameraConfig> cameraConfigs) {
+        // written aside and renamed, a reader never sees half a file
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(key);
+            out.writeInt(cameraConfigs.size());
+            for (CameraConfig config : cameraConfigs) {
+                out.writeUTF(config.getCameraId());
+                writeSize(out, config.getPreviewSize());
+                writeSize(out, config.getPictureSize());
+                writeSizes(out, config.getPreviewSizes());
+                writeSizes(out, config.getPictureSizes());
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "write " + temp + " failed");
+            e.printStackTrace();
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            Log.w(TAG, "rename " + temp + " failed");
+            temp.delete();
+        }
+    }
+
+    private static Size readSize(DataInputStream in) throws IOException {
+        int width = in.readInt();
+        int height = in.readInt();
+        return width > 0 ? new Size(width, height) : null;
+    }
+
+    private static void writeSize(DataOutputStream out, Size size) throws IOException {
+        out.writeInt(size == null ? 0 : size.getWidth());
+        out.writeInt(size == null ? 0 : size.getHeight());
+    }
+
+    private static List<Size> readSizes(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        ArrayList<Size> sizes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            sizes.add(readSize(in));
+        }
+        return sizes;
+    }
+
+    private static void writeSizes(DataOutputStream out, List<Size> sizes) throws IOException {
+        int count = sizes == null ? 0 : sizes.size();
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            writeSize(out, sizes.get(i));
+        }
+    }
+}
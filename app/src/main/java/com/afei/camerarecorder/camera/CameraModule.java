@@ -2,59 +2,126 @@ package com.afei.camerarecorder.camera;
 
 import android.Manifest;
 import android.app.Activity;
-import android.content.Context;
 import android.content.pm.PackageManager;
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
-import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
-import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CameraMetadata;
 import android.hardware.camera2.CaptureRequest;
-import android.hardware.camera2.params.OutputConfiguration;
 import android.hardware.camera2.params.SessionConfiguration;
+import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
 import android.media.MediaRecorder;
 import android.os.Environment;
 import android.os.Handler;
-import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.Range;
 import android.util.Size;
 import android.view.Surface;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.core.app.ActivityCompat;
 
+import com.afei.camerarecorder.analysis.AnalysisStream;
+import com.afei.camerarecorder.analysis.FrameAnalyzer;
+import com.afei.camerarecorder.analysis.FramePipeline;
+import com.afei.camerarecorder.analysis.MotionAnalyzer;
+import com.afei.camerarecorder.record.CodecRecorder;
+import com.afei.camerarecorder.record.Mp4FastStart;
+import com.afei.camerarecorder.record.RecordEngine;
+import com.afei.camerarecorder.record.RecorderPool;
+
 import java.io.File;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
-import java.util.concurrent.Executor;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class CameraModule {
 
     private final String TAG = getClass().getSimpleName();
-    /* camera state */
-    private final int CAMERA_STATE_OPENING = 0x001;
-    private final int CAMERA_STATE_OPENED = 0x002;
-    private final int CAMERA_STATE_CLOSE = 0x003;
-    private final int CAMERA_STATE_ERROR = 0x004;
-    private final int CAMERA_STATE_PREVIEW = 0x005;
+
+    public static final long RELEASE_TIMEOUT_MS = 3000;
+    private static final int ANALYSIS_SHORT_SIDE = 240;
+    private static final int ANALYSIS_WORKER_COUNT = 2;
+    private static final long MOTION_RETRY_MS = 500;  // a motion record that failed to start is tried again
+
+    public interface OnReleasedListener {
+        /**
+         * @param timedOut true if the release was not done in {@link #RELEASE_TIMEOUT_MS}, it goes on in the background
+         */
+        void onReleased(boolean timedOut);
+    }
+
+    public interface OnPreviewSizeChangedListener {
+        /**
+         * Called on the main thread when the camera can not configure the preview size it opened with and goes on with
+         * a smaller one of the same aspect ratio. The session takes the preview surface again from the next
+         * {@link #setPreviewSurface(Surface)}, once its buffers have the new size.
+         */
+        void onPreviewSizeChanged(Size size);
+    }
+
+    public interface OnRecorderStartedListener {
+        /**
+         * Called on the main thread when {@link #startRecorder(OnRecorderStartedListener)} is done.
+         */
+        void onRecorderStarted(boolean started);
+    }
+
+    public interface OnRecorderStoppedListener {
+        /**
+         * Called on the main thread when {@link #stopRecorder(OnRecorderStoppedListener)} is done.
+         *
+         * @param file the last file of the record, null if nothing was recording or the file is not valid
+         */
+        void onRecorderStopped(@Nullable File file);
+    }
+
+    /**
+     * Creates the record surface and the engine drawing from it, on the encoder stage. Replaced to run the module
+     * without codecs, see {@link #setRecordEngineFactory(RecordEngineFactory)}.
+     */
+    interface RecordEngineFactory {
+        Surface createRecordSurface();
+
+        RecordEngine createRecordEngine(Surface recordSurface);
+    }
 
     /* common */
     private Activity mActivity;
-    private CameraManager mCameraManager;
-    private CameraCharacteristics mCameraCharacteristics;
-    private CameraDevice mCameraDevice;
-    private CameraCaptureSession mCameraSession;
+    private final CameraBackend mBackend;
+    private CameraCharacteristics mCameraCharacteristics;  // null if the backend has none
+    private boolean mCameraOpened;  // the backend has an opened camera
+    private boolean mSessionConfigured;  // the backend has a configured session
     private Surface mPreviewSurface;  // the surface for display
-    private CaptureRequest.Builder mRequestBuilder;
-    private Handler mCameraHandler;
-    private HandlerThread mCameraThread;
-    private ReentrantLock mCameraStateLock = new ReentrantLock();
-    private int mCameraState = CAMERA_STATE_CLOSE;
+    private Class<?> mDeferredPreviewClass = SurfaceTexture.class;  // kind of the preview surface before it exists
+    private CameraBackend.Output mPreviewOutput;
+    private boolean mPreviewDeferred;  // session configured without the preview surface, only on the control stage
+    private CameraBackend.Request mRequest;  // the repeating request
+    private Handler mCameraHandler;  // handler of the control stage
+    private final CameraScheduler mScheduler = new CameraScheduler();
+    private final CameraStateMachine mCameraState = new CameraStateMachine();
+    private final CaptureStats mCaptureStats = new CaptureStats();
+    private final SessionSupportCache mSessionSupport;
+    private String mSessionKey;  // stream combination of the session being created, only on the control stage
+    private SnapshotSaver mSnapshotSaver;  // null if the session has no JPEG output
+    private ZslRing mZslRing;  // null if the session has no zero shutter lag output, replaces the JPEG output
+    private AnalysisStream mAnalysisStream;  // null if the session has no analysis output
+    private final FramePipeline mFramePipeline = new FramePipeline(ANALYSIS_WORKER_COUNT);
+    private volatile CaptureStats.Snapshot mSnapshotBaseline;  // stats when the last snapshot was taken
+    private volatile long mSnapshotStartTimeNs;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ArrayList<OnReleasedListener> mReleasedListeners = new ArrayList<>();
+    private final AtomicBoolean mOpenPending = new AtomicBoolean();  // openCamera() called while closing
 
     // Clockwise angle through which the output image needs to be rotated to be upright on the device screen.
     // Range of valid values: 0, 90, 180, 270
@@ -63,39 +130,149 @@ public class CameraModule {
 
     /* 录制相关*/
     private Surface mRecordSurface;
-    private MediaRecorder mMediaRecorder;
-    private boolean mIsRecording;
+    private RecordEngineFactory mRecordEngineFactory;
+    private volatile RecordEngine mRecordEngine;  // started, stopped and released on the encoder stage
+    private boolean mRecordEnginePrepared;  // only accessed on the control stage
+    private volatile int mOpenCount;  // only changed on the main thread
+    private MotionAnalyzer mMotionAnalyzer;  // null unless records start and stop on motion
+    private boolean mMotionRecording;  // only accessed on the main thread, the record was started by motion
+    private final Runnable mMotionStopRunnable = this::stopMotionRecorder;  // the post-roll, on the main thread
+    private final Runnable mMotionStartRunnable = this::startMotionRecorder;
+
+    /* open timing, elapsedRealtimeNanos */
+    private long mOpenStartTimeNs;
+    private boolean mSwitching;  // the running open is a camera switch
+    private volatile float mLastSwitchLatencyMs = -1;
+    private long mOpenedTimeNs;
+    private long mPreparedTimeNs;
 
     private CameraConfig mCameraConfig;
-    private Size mPreviewSize;
+    private volatile Size mPreviewSize;  // changed on the control stage if the camera can not configure it
+    private volatile OnPreviewSizeChangedListener mPreviewSizeListener;
+    private int mHighSpeedFrameRate;  // frame rate of the constrained high speed session, 0 for a regular one
 
-    private CameraDevice.StateCallback mCameraOpenCallback = new CameraDevice.StateCallback() {
+    private CameraBackend.StateCallback mCameraOpenCallback = new CameraBackend.StateCallback() {
         @Override
-        public void onOpened(@NonNull CameraDevice camera) {
-            mCameraState = CAMERA_STATE_OPENED;
-            mCameraDevice = camera;
-            createVideoSession();  // create session after open camera
+        public void onOpened() {
+            if (!mCameraState.transition(CameraState.OPENING, CameraState.OPENED)) {
+                // releaseCamera() was called while opening, nobody wants this device anymore
+                Log.w(TAG, "onOpened after release, close camera");
+                mBackend.closeCamera();
+                return;
+            }
+            mCameraOpened = true;
+            mOpenedTimeNs = SystemClock.elapsedRealtimeNanos();
+            createCaptureSessionIfReady();  // the recorder may still be preparing
         }
 
         @Override
-        public void onDisconnected(@NonNull CameraDevice camera) {
-            mCameraState = CAMERA_STATE_ERROR;
+        public void onDisconnected() {
+            mCameraState.moveTo(CameraState.ERROR);
             releaseCamera();
         }
 
         @Override
-        public void onError(@NonNull CameraDevice camera, int error) {
+        public void onError(int error) {
             Log.e(TAG, "Camera onError: " + error);
-            mCameraState = CAMERA_STATE_ERROR;
+            mCameraState.moveTo(CameraState.ERROR);
             releaseCamera();
         }
     };
 
     public CameraModule(Activity activity, @NonNull CameraConfig config) {
+        this(activity, config, new Camera2Backend(activity));
+    }
+
+    /**
+     * @param backend the camera to run on, {@link SyntheticCameraBackend} runs the module without one
+     */
+    public CameraModule(Activity activity, @NonNull CameraConfig config, @NonNull CameraBackend backend) {
         mActivity = activity;
-        mCameraManager = (CameraManager) mActivity.getSystemService(Context.CAMERA_SERVICE);
+        mBackend = backend;
         mCameraConfig = config;
-        mPreviewSize = config.getPreviewSize();
+        mSessionSupport = new SessionSupportCache(activity);
+        // decided before the views read it, a size that failed on an earlier launch is not tried again
+        int highSpeedFrameRate = config.getHighSpeedFrameRate();
+        int sessionType = highSpeedFrameRate > 0 ? SessionConfiguration.SESSION_HIGH_SPEED
+                : SessionConfiguration.SESSION_REGULAR;
+        mPreviewSize = mSessionSupport.chooseSize(config.getCameraId(), config.getPreviewSize(),
+                config.getPreviewSizes(), highSpeedFrameRate > 0 ? highSpeedFrameRate : config.getVideoFrameRate(),
+                sessionType);
+        mCameraState.addListener(mCameraStateListener);
+        if (config.isMotionRecord()) {
+            if (config.getPreRecordDurationMs() > 0
+                    && config.getRecordEngine() != CameraConfig.RECORD_ENGINE_MEDIA_CODEC) {
+                Log.w(TAG, "motion pre-roll needs RECORD_ENGINE_MEDIA_CODEC, records start at the motion");
+            }
+            mMotionAnalyzer = new MotionAnalyzer(this::onMotionChanged);
+            mFramePipeline.addAnalyzer(mMotionAnalyzer);
+        }
+        mCaptureStats.setFirstFrameListener(() -> {
+            if (mSwitching) {
+                mSwitching = false;
+                mLastSwitchLatencyMs = getOpenToFirstFrameLatencyMs();
+                Log.i(TAG, "switch to first frame: " + mLastSwitchLatencyMs + "ms");
+            } else {
+                Log.i(TAG, "open to first frame: " + getOpenToFirstFrameLatencyMs() + "ms");
+            }
+        });
+    }
+
+    private CameraStateMachine.Listener mCameraStateListener = new CameraStateMachine.Listener() {
+        @Override
+        public void onStateChanged(CameraState from, CameraState to) {
+            Log.v(TAG, "camera state: " + from + " -> " + to);
+        }
+
+        @Override
+        public void onTransitionRejected(CameraState expected, CameraState actual, CameraState target) {
+            Log.w(TAG, "camera state " + expected + " -> " + target + " rejected, current state: " + actual);
+        }
+    };
+
+    public CameraState getCameraState() {
+        return mCameraState.getState();
+    }
+
+    public void addCameraStateListener(CameraStateMachine.Listener listener) {
+        mCameraState.addListener(listener);
+    }
+
+    public void removeCameraStateListener(CameraStateMachine.Listener listener) {
+        mCameraState.removeListener(listener);
+    }
+
+    /**
+     * @return per frame timing of the running preview, cheap enough to poll from the UI
+     */
+    public CaptureStats.Snapshot getCaptureStats() {
+        return mCaptureStats.snapshot();
+    }
+
+    /**
+     * @return the time from {@link #openCamera()} to the first completed preview capture, -1 if there was none yet
+     */
+    public float getOpenToFirstFrameLatencyMs() {
+        long firstFrameTimeNs = mCaptureStats.getFirstFrameTimeNs();
+        if (firstFrameTimeNs == 0 || mOpenStartTimeNs == 0) {
+            return -1;
+        }
+        return (firstFrameTimeNs - mOpenStartTimeNs) / 1000000f;
+    }
+
+    /**
+     * @return the time from {@link #switchCamera(String)} to the first preview capture of the new camera, -1 if no
+     * switch finished yet
+     */
+    public float getLastSwitchLatencyMs() {
+        return mLastSwitchLatencyMs;
+    }
+
+    /**
+     * @return the stage threads, their busy time shows which stage is saturated
+     */
+    public CameraScheduler getScheduler() {
+        return mScheduler;
     }
 
 
@@ -103,12 +280,48 @@ public class CameraModule {
         return mPreviewSize;
     }
 
+    /**
+     * @param listener for a view that fixes its buffer size from {@link #getPreviewSize()}
+     */
+    public void setOnPreviewSizeChangedListener(@Nullable OnPreviewSizeChangedListener listener) {
+        mPreviewSizeListener = listener;
+    }
+
+    /**
+     * Sets the surface to display. It may come after {@link #openCamera()}, the session is then created without it and
+     * the surface is added once it is set.
+     */
     public void setPreviewSurface(Surface previewSurface) {
         mPreviewSurface = previewSurface;
+        if (previewSurface != null && mCameraHandler != null) {
+            CameraScheduler.handOff(mScheduler.getControl(), this::finalizePreviewSurface);
+        }
+    }
+
+    /**
+     * @param klass SurfaceHolder.class for a SurfaceView, SurfaceTexture.class for a TextureView or GL texture
+     */
+    public void setDeferredPreviewClass(Class<?> klass) {
+        mDeferredPreviewClass = klass;
+    }
+
+    /**
+     * @param factory null for the engine of the {@link CameraConfig}, set before {@link #openCamera()}
+     */
+    void setRecordEngineFactory(@Nullable RecordEngineFactory factory) {
+        mRecordEngineFactory = factory;
     }
 
     public void openCamera() {
-        if (mCameraState != CAMERA_STATE_CLOSE) {
+        if (mCameraState.isIn(CameraState.CLOSING)) {
+            mOpenPending.set(true);
+            // the release may have finished meanwhile, then take the pending open back and go on
+            if (!mCameraState.isIn(CameraState.CLOSED) || !mOpenPending.getAndSet(false)) {
+                Log.d(TAG, "camera is closing, open it when released");
+                return;
+            }
+        }
+        if (!mCameraState.isIn(CameraState.CLOSED)) {
             Log.e(TAG, "only could open camera when closed");
             return;
         }
@@ -116,43 +329,127 @@ public class CameraModule {
             Log.e(TAG, "Open camera failed! No permission CAMERA.");
             return;
         }
-        if (mPreviewSurface == null) {
-            Log.e(TAG, "Open camera failed! No PreviewSurface");
+        if (!mCameraState.transition(CameraState.CLOSED, CameraState.OPENING)) {
             return;
         }
-        mCameraStateLock.lock();
+        mOpenCount++;  // a recorder prepared for an earlier open is not taken
         String cameraId = mCameraConfig.getCameraId();
         Log.i(TAG, "openCamera --> cameraId: " + cameraId);
-        mCameraState = CAMERA_STATE_OPENING;
+        mOpenStartTimeNs = SystemClock.elapsedRealtimeNanos();
+        mCaptureStats.clearFirstFrame();
         startBackgroundThread();
         try {
-            String[] cameraIdList = mCameraManager.getCameraIdList();
+            String[] cameraIdList = mBackend.getCameraIdList();
             boolean isValidCameraId = false;
             for (int i = 0; i < cameraIdList.length; i++) {
                 if (cameraIdList[i].equals(cameraId)) {
                     isValidCameraId = true;
                 }
             }
-            if (isValidCameraId) {
-                mCameraCharacteristics = mCameraManager.getCameraCharacteristics(cameraId);
-                initDisplayRotation(mCameraCharacteristics);
-                mCameraManager.openCamera(cameraId, mCameraOpenCallback, mCameraHandler);
-            } else {
+            if (!isValidCameraId) {
                 Log.e(TAG, "openCamera failed! invalid camera id: " + cameraId);
+                mCameraState.moveTo(CameraState.ERROR);
+                releaseCamera();
+                return;
+            }
+            mCameraCharacteristics = mBackend.getCameraCharacteristics(cameraId);
+            initDisplayRotation(mCameraCharacteristics);
+            mHighSpeedFrameRate = getHighSpeedFrameRate(mCameraCharacteristics);  // the encoder depends on it
+            // on the encoder stage in parallel with opening, the session needs both
+            if (prepareRecordEngine()) {
+                mBackend.openCamera(cameraId, mCameraOpenCallback, mCameraHandler);
+            } else {
+                mCameraState.moveTo(CameraState.ERROR);
+                releaseCamera();
             }
-        } catch (CameraAccessException e) {
+        } catch (CameraAccessException | IllegalArgumentException e) {
             e.printStackTrace();
-        } finally {
-            mCameraStateLock.unlock();
+            mCameraState.moveTo(CameraState.ERROR);
+            releaseCamera();
+        }
+    }
+
+    /**
+     * Switches to another camera, keeping the threads, the record surface and the prepared recorder. Only the device
+     * and the session are created again. Refused while recording. When the camera is closed, only the id of the next
+     * open changes.
+     */
+    public void switchCamera(@NonNull String cameraId) {
+        if (cameraId.equals(mCameraConfig.getCameraId())) {
+            return;
+        }
+        if (mCameraState.isIn(CameraState.CLOSED)) {
+            mCameraConfig.setCameraId(cameraId);
+            return;
+        }
+        RecordEngine recordEngine = mRecordEngine;
+        if (recordEngine != null && recordEngine.isRecording()) {
+            Log.w(TAG, "switchCamera failed! stop recorder first");
+            return;
+        }
+        if (!CameraScheduler.handOff(mScheduler.getControl(), () -> switchCameraInternal(cameraId))) {
+            Log.w(TAG, "switchCamera dropped!");
+        }
+    }
+
+    private void switchCameraInternal(String cameraId) {
+        if (!mCameraState.isIn(CameraState.PREVIEW) && !mCameraState.isIn(CameraState.OPENED)) {
+            Log.w(TAG, "switchCamera failed! camera is " + mCameraState.getState());
+            return;
+        }
+        long startTime = SystemClock.elapsedRealtimeNanos();
+        CameraCharacteristics characteristics;
+        try {
+            characteristics = mBackend.getCameraCharacteristics(cameraId);
+        } catch (CameraAccessException | IllegalArgumentException e) {
+            Log.e(TAG, "switchCamera failed! invalid camera id: " + cameraId);
+            return;
+        }
+        // the record surface and the encoder keep their size, the new camera has to support it
+        StreamConfigurationMap map = characteristics == null ? null
+                : characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        if (characteristics != null && (map == null
+                || !Arrays.asList(map.getOutputSizes(MediaRecorder.class)).contains(mPreviewSize))) {
+            Log.e(TAG, "switchCamera failed! camera " + cameraId + " does not support " + mPreviewSize);
+            return;
+        }
+        if (getHighSpeedFrameRate(characteristics) != mHighSpeedFrameRate) {
+            Log.e(TAG, "switchCamera failed! camera " + cameraId + " has another high speed frame rate");
+            return;
+        }
+        Log.i(TAG, "switchCamera --> cameraId: " + cameraId);
+        stopPreview();
+        closeCameraSession();
+        if (!mCameraState.transition(CameraState.OPENED, CameraState.OPENING)) {
+            return;
+        }
+        closeCameraDevice();
+        mCameraConfig.setCameraId(cameraId);
+        mCameraCharacteristics = characteristics;
+        initDisplayRotation(characteristics);
+        RecordEngine recordEngine = mRecordEngine;
+        if (recordEngine != null) {
+            recordEngine.setOrientationHint(mDisplayRotation);
+        }
+        mOpenStartTimeNs = startTime;
+        mPreparedTimeNs = startTime;  // prepared before the switch
+        mSwitching = true;
+        mCaptureStats.clearFirstFrame();
+        try {
+            mBackend.openCamera(cameraId, mCameraOpenCallback, mCameraHandler);
+        } catch (CameraAccessException | IllegalArgumentException e) {
+            e.printStackTrace();
+            mSwitching = false;
+            mCameraState.moveTo(CameraState.ERROR);
+            releaseCamera();
         }
     }
 
     private void startBackgroundThread() {
-        if (mCameraThread == null || mCameraHandler == null) {
+        if (mCameraHandler == null) {
             Log.v(TAG, "startBackgroundThread");
-            mCameraThread = new HandlerThread("CameraBackground");
-            mCameraThread.start();
-            mCameraHandler = new Handler(mCameraThread.getLooper());
+            mScheduler.start();
+            mCameraHandler = mScheduler.getControl().getHandler();
         }
     }
 
@@ -180,124 +477,546 @@ public class CameraModule {
         Log.d(TAG, "mDisplayRotation: " + mDisplayRotation);
     }
 
-    private void createVideoSession() {
-        Log.v(TAG, "createVideoSession start...");
-        try {
+    /**
+     * Creates and prepares the recorder on the encoder stage, in parallel with opening the camera. The record surface
+     * gets its buffer size from the prepared recorder, so the session is created once both are done.
+     *
+     * @return false if the encoder stage refused the prepare
+     */
+    private boolean prepareRecordEngine() {
+        int openCount = mOpenCount;
+        boolean queued = CameraScheduler.handOff(mScheduler.getEncoder(), () -> {
+            Log.v(TAG, "prepareRecordEngine start...");
             // video surface
-            mRecordSurface = MediaCodec.createPersistentInputSurface();
-            mMediaRecorder = createRecorder();
-            ArrayList<Surface> sessionSurfaces = new ArrayList<>();
-            sessionSurfaces.add(mPreviewSurface);
-            sessionSurfaces.add(mRecordSurface);
-            createPreviewRequest();
-            if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.Q) {
-                ArrayList<OutputConfiguration> outputConfigurations = new ArrayList<>();
-                for (Surface surface : sessionSurfaces) {
-                    if (surface != null) {
-                        OutputConfiguration configuration = new OutputConfiguration(surface);
-                        outputConfigurations.add(configuration);
-                    }
+            RecordEngineFactory factory = mRecordEngineFactory;
+            Surface recordSurface = factory != null ? factory.createRecordSurface()
+                    : MediaCodec.createPersistentInputSurface();
+            RecordEngine recordEngine = factory != null ? factory.createRecordEngine(recordSurface)
+                    : createRecordEngine(recordSurface);
+            // Sets the orientation hint for output video playback. Values: 0, 90, 180, 270
+            recordEngine.setOrientationHint(mDisplayRotation);
+            recordEngine.setSegmentLimit(mCameraConfig.getSegmentDurationMs(), mCameraConfig.getSegmentSizeBytes());
+            recordEngine.setOnSegmentListener(file -> {
+                Log.i(TAG, "segment saved: " + file);
+                postProcessRecord(file);
+            });
+            recordEngine.prepare();
+            boolean handedOver = CameraScheduler.handOff(mScheduler.getControl(), () -> {
+                if (openCount != mOpenCount || !(mCameraState.isIn(CameraState.OPENING)
+                        || mCameraState.isIn(CameraState.OPENED))) {
+                    Log.w(TAG, "recorder prepared after release");
+                    releaseRecordEngine(recordEngine, recordSurface);
+                    return;
                 }
-                SessionConfiguration sessionConfiguration = new SessionConfiguration(SessionConfiguration.SESSION_REGULAR,
-                        outputConfigurations, new HandlerExecutor(mCameraHandler), mSessionCreateCallback);
-                sessionConfiguration.setSessionParameters(mRequestBuilder.build());
-//                try {
-//                    boolean supported = mCameraDevice.isSessionConfigurationSupported(sessionConfiguration);
-//                    Log.v(TAG, " createCaptureSessionWithSessionConfiguration result :" + supported);
-//                } catch (CameraAccessException | IllegalArgumentException | NullPointerException e) {
-//                    Log.w(TAG, " check isSessionConfigurationSupported sessionConfig error");
-//                    e.printStackTrace();
-//                }
-                mCameraDevice.createCaptureSession(sessionConfiguration);
+                mRecordSurface = recordSurface;
+                mRecordEngine = recordEngine;
+                mRecordEnginePrepared = true;
+                mPreparedTimeNs = SystemClock.elapsedRealtimeNanos();
+                createCaptureSessionIfReady();
+            });
+            if (!handedOver) {
+                recordEngine.release();  // released meanwhile, nothing else knows the engine
+                recordSurface.release();
+            }
+        });
+        if (!queued) {
+            Log.e(TAG, "prepare of the recorder dropped, no session can be created");
+        }
+        return queued;
+    }
+
+    /**
+     * Creates the session once both the camera is opened and the recorder is prepared, runs on the control stage.
+     */
+    private void createCaptureSessionIfReady() {
+        if (!mCameraOpened || !mRecordEnginePrepared) {
+            return;
+        }
+        if (!mCameraState.isIn(CameraState.OPENED)) {
+            Log.w(TAG, "createCaptureSession after release");
+            return;
+        }
+        if (mHighSpeedFrameRate > 0 && mPreviewSurface == null) {
+            Log.d(TAG, "high speed session can not defer the preview surface, wait for it");
+            return;  // setPreviewSurface() calls back through finalizePreviewSurface()
+        }
+        Log.v(TAG, "createCaptureSession, opened: " + (mOpenedTimeNs - mOpenStartTimeNs) / 1000000
+                + "ms, recorder prepared: " + (mPreparedTimeNs - mOpenStartTimeNs) / 1000000 + "ms");
+        try {
+            ArrayList<CameraBackend.Output> outputs = new ArrayList<>();
+            Surface previewSurface = mPreviewSurface;
+            if (previewSurface != null) {
+                mPreviewOutput = CameraBackend.Output.of(previewSurface);
+                mPreviewDeferred = false;
             } else {
-                mCameraDevice.createCaptureSession(sessionSurfaces, mSessionCreateCallback, mCameraHandler);
+                // the view is not laid out yet, its surface is added by finalizePreviewSurface() later
+                Log.d(TAG, "no preview surface yet, defer it");
+                mPreviewOutput = CameraBackend.Output.deferred(mPreviewSize, mDeferredPreviewClass);
+                mPreviewDeferred = true;
+            }
+            outputs.add(mPreviewOutput);
+            outputs.add(CameraBackend.Output.of(mRecordSurface));
+            createExtraOutputs();
+            if (mAnalysisStream != null) {
+                outputs.add(CameraBackend.Output.of(mAnalysisStream.getSurface()));
+            }
+            if (mSnapshotSaver != null) {
+                outputs.add(CameraBackend.Output.of(mSnapshotSaver.getSurface()));
+            }
+            if (mZslRing != null) {
+                outputs.add(CameraBackend.Output.of(mZslRing.getSurface()));
             }
-        } catch (CameraAccessException e) {
+            createPreviewRequest(previewSurface);
+            if (mHighSpeedFrameRate > 0) {
+                mRequest.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE,
+                        new Range<>(mHighSpeedFrameRate, mHighSpeedFrameRate));
+            }
+            int sessionType = getSessionType();
+            mSessionKey = getSessionKey(sessionType);
+            String cameraId = mCameraConfig.getCameraId();
+            boolean supported = mSessionSupport.probe(mBackend, cameraId, outputs, sessionType, mRequest, mSessionKey);
+            // extra streams are the first thing to give up, recording matters more
+            while (!supported && dropExtraOutput(outputs)) {
+                mSessionKey = getSessionKey(sessionType);
+                supported = mSessionSupport.probe(mBackend, cameraId, outputs, sessionType, mRequest, mSessionKey);
+            }
+            if (!supported && mHighSpeedFrameRate == 0) {
+                // then the preview size, before the session fails for this launch too
+                Size size = probeSmallerPreviewSize(sessionType);
+                if (size != null) {
+                    changePreviewSize(size);
+                    return;
+                }
+            }
+            if (!supported) {
+                Log.e(TAG, "createCaptureSession failed! not supported: " + mSessionKey);
+                mCameraState.moveTo(CameraState.ERROR);
+                releaseCamera();
+                return;
+            }
+            mBackend.createSession(outputs, sessionType, mRequest, mSessionCreateCallback);
+        } catch (CameraAccessException | IllegalArgumentException | IllegalStateException e) {
             e.printStackTrace();
         }
     }
 
-    private void createPreviewRequest() {
-        CaptureRequest.Builder builder;
+    /**
+     * Probes the sizes of the preview aspect ratio below the preview size, largest first, the results are cached.
+     * Only regular sessions, high speed ones can not defer outputs.
+     *
+     * @return the first the camera can configure with a record stream of the same size, null if none
+     */
+    @Nullable
+    private Size probeSmallerPreviewSize(int sessionType) {
+        String cameraId = mCameraConfig.getCameraId();
+        CameraBackend.Request parameters = new CameraBackend.Request(CameraDevice.TEMPLATE_RECORD);
+        applyCommonSettings(parameters);
+        for (Size size : SessionSupportCache.getSmallerSizes(mPreviewSize, mCameraConfig.getPreviewSizes())) {
+            // the record surface has the size it was prepared with, a deferred output of the size stands for it
+            List<CameraBackend.Output> outputs = Arrays.asList(
+                    CameraBackend.Output.deferred(size, mDeferredPreviewClass),
+                    CameraBackend.Output.deferred(size, SurfaceTexture.class));
+            String key = SessionSupportCache.key(cameraId, size, size, getRecordFrameRate(), sessionType);
+            if (mSessionSupport.probe(mBackend, cameraId, outputs, sessionType, parameters, key)) {
+                return size;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Goes on with another preview size, runs on the control stage before the session is created. The recorder is
+     * prepared again for it and the session waits for the view to set a preview surface of the new size.
+     */
+    private void changePreviewSize(Size size) {
+        Log.w(TAG, mPreviewSize + " not supported by camera " + mCameraConfig.getCameraId() + ", use " + size);
+        mPreviewSize = size;
+        mPreviewSurface = null;  // of the old size
+        RecordEngine recordEngine = mRecordEngine;
+        Surface recordSurface = mRecordSurface;
+        mRecordEngine = null;
+        mRecordSurface = null;
+        mRecordEnginePrepared = false;
+        if (recordEngine != null) {
+            releaseRecordEngine(recordEngine, recordSurface);  // no session draws into it yet
+        }
+        if (!prepareRecordEngine()) {
+            mCameraState.moveTo(CameraState.ERROR);
+            releaseCamera();
+            return;
+        }
+        mMainHandler.post(() -> {
+            OnPreviewSizeChangedListener listener = mPreviewSizeListener;
+            if (listener != null) {
+                listener.onPreviewSizeChanged(size);
+            }
+        });
+    }
+
+    private String getSessionKey(int sessionType) {
+        ArrayList<String> extraOutputs = new ArrayList<>();
+        if (mAnalysisStream != null) {
+            extraOutputs.add(SessionSupportCache.output(ImageFormat.YUV_420_888, mAnalysisStream.getSize()));
+        }
+        if (mSnapshotSaver != null) {
+            extraOutputs.add(SessionSupportCache.output(ImageFormat.JPEG, mCameraConfig.getPictureSize()));
+        }
+        if (mZslRing != null) {
+            extraOutputs.add(SessionSupportCache.output(ImageFormat.YUV_420_888, mZslRing.getSize()));
+        }
+        return SessionSupportCache.key(mCameraConfig.getCameraId(), mPreviewSize, mPreviewSize, getRecordFrameRate(),
+                sessionType, extraOutputs.toArray(new String[0]));
+    }
+
+    /**
+     * Creates the outputs besides preview and record: the analysis stream if there are analyzers, the output for
+     * {@link #takeSnapshot()} if a picture size is set, a ZSL ring or a JPEG stream. High speed sessions take only the
+     * preview and the record surface.
+     */
+    private void createExtraOutputs() {
+        if (mHighSpeedFrameRate > 0) {
+            return;
+        }
+        if (mFramePipeline.hasAnalyzers()) {
+            Size analysisSize = chooseAnalysisSize();
+            if (analysisSize != null) {
+                mAnalysisStream = new AnalysisStream(analysisSize, mScheduler.getAnalysis().getHandler(),
+                        mFramePipeline);
+            }
+        }
+        Size pictureSize = mCameraConfig.getPictureSize();
+        Size zslSize = pictureSize != null && mCameraConfig.getZslBufferCount() > 0 ? chooseZslSize(pictureSize) : null;
+        if (zslSize != null) {
+            mZslRing = new ZslRing(zslSize, mCameraConfig.getZslBufferCount(), getPipelineMaxDepth(), mCameraHandler,
+                    mScheduler.getIo().getHandler(), getSaveDirectory());
+            mZslRing.setJpegOrientation(mDisplayRotation);
+            mZslRing.setOnSnapshotListener(this::onSnapshotSaved);
+        } else if (pictureSize != null) {
+            mSnapshotSaver = new SnapshotSaver(pictureSize, mScheduler.getIo().getHandler(), getSaveDirectory());
+            mSnapshotSaver.setOnSnapshotListener(this::onSnapshotSaved);
+        }
+        // give up what failed on an earlier launch at once, in the order a failed probe would
+        while (Boolean.FALSE.equals(mSessionSupport.isSupported(getSessionKey(getSessionType())))
+                && dropExtraOutput(null)) {
+            Log.d(TAG, "the extra stream failed before with " + mPreviewSize);
+        }
+    }
+
+    /**
+     * Gives up the snapshot stream or the ZSL ring, then the analysis stream, the one the user asked for.
+     *
+     * @param outputs the session outputs to remove it from, null if not added yet
+     * @return false if there was none left
+     */
+    private boolean dropExtraOutput(@Nullable ArrayList<CameraBackend.Output> outputs) {
+        if (mSnapshotSaver != null) {
+            Log.w(TAG, "snapshot stream not supported with " + mPreviewSize + ", go without it");
+            mSnapshotSaver.release();
+            mSnapshotSaver = null;
+        } else if (mZslRing != null) {
+            Log.w(TAG, "ZSL stream not supported with " + mPreviewSize + ", go without it");
+            if (outputs != null) {
+                mRequest.removeTarget(mZslRing.getSurface());
+            }
+            mZslRing.release();
+            mZslRing = null;
+        } else if (mAnalysisStream != null) {
+            Log.w(TAG, "analysis stream not supported with " + mPreviewSize + ", go without it");
+            if (outputs != null) {
+                mRequest.removeTarget(mAnalysisStream.getSurface());
+            }
+            mAnalysisStream.release();
+            mAnalysisStream = null;
+        } else {
+            return false;
+        }
+        if (outputs != null) {
+            outputs.remove(outputs.size() - 1);  // added in the same order
+        }
+        return true;
+    }
+
+    /**
+     * @return a small YUV size of the preview aspect ratio, about {@link #ANALYSIS_SHORT_SIDE} on its short side
+     */
+    private Size chooseAnalysisSize() {
+        StreamConfigurationMap map = getStreamConfigurationMap();
+        if (map == null) {
+            return null;
+        }
+        float ratio = (float) mPreviewSize.getWidth() / mPreviewSize.getHeight();
+        Size size = SizeCatalog.create(map, ImageFormat.YUV_420_888).choose(new float[]{ratio}, ANALYSIS_SHORT_SIDE,
+                mPreviewSize, getRecordFrameRate());
+        Log.d(TAG, "analysis size: " + size);
+        return size;
+    }
+
+    /**
+     * @return the largest YUV size up to the picture size, of its aspect ratio, that keeps up with the record frame
+     * rate: every frame of the repeating request fills the ring
+     */
+    private Size chooseZslSize(Size pictureSize) {
+        StreamConfigurationMap map = getStreamConfigurationMap();
+        if (map == null) {
+            return null;
+        }
+        float ratio = (float) pictureSize.getWidth() / pictureSize.getHeight();
+        Size size = SizeCatalog.create(map, ImageFormat.YUV_420_888).choose(new float[]{ratio},
+                Math.min(pictureSize.getWidth(), pictureSize.getHeight()), pictureSize, getRecordFrameRate());
+        Log.d(TAG, "ZSL size: " + size);
+        return size;
+    }
+
+    /**
+     * @return frames the camera may have in flight, the buffers it holds of each output
+     */
+    private int getPipelineMaxDepth() {
+        Byte depth = mCameraCharacteristics == null ? null
+                : mCameraCharacteristics.get(CameraCharacteristics.REQUEST_PIPELINE_MAX_DEPTH);
+        return depth != null ? depth : ZslRing.DEFAULT_PIPELINE_DEPTH;
+    }
+
+    @Nullable
+    private StreamConfigurationMap getStreamConfigurationMap() {
+        return mCameraCharacteristics == null ? null
+                : mCameraCharacteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+    }
+
+    /**
+     * Analyzers run on frames of a low resolution YUV stream, next to preview and record. Add them before
+     * {@link #openCamera()}, the stream is part of the session only if there are analyzers.
+     */
+    public void addFrameAnalyzer(FrameAnalyzer analyzer) {
+        mFramePipeline.addAnalyzer(analyzer);
+    }
+
+    public void removeFrameAnalyzer(FrameAnalyzer analyzer) {
+        mFramePipeline.removeAnalyzer(analyzer);
+    }
+
+    /**
+     * @return the pipeline of the analysis stream, for its backpressure and per analyzer latency and drop metrics
+     */
+    public FramePipeline getFramePipeline() {
+        return mFramePipeline;
+    }
+
+    /**
+     * @return time from {@link #takeSnapshot()} to the saved file of the ZSL snapshots of this session, null if the
+     * session has no ZSL ring
+     */
+    @Nullable
+    public LatencyHistogram.Snapshot getZslSaveLatencies() {
+        ZslRing zslRing = mZslRing;
+        return zslRing == null ? null : zslRing.getSaveLatencies();
+    }
+
+    /**
+     * Takes a still of the picture size without stopping the repeating request, while previewing or recording. The
+     * JPEG is written on the io stage, next to the videos. With a ZSL ring the frame of this call is taken from the
+     * ring, else a still is captured after it.
+     */
+    public void takeSnapshot() {
+        long shutterTimeNs = SystemClock.elapsedRealtimeNanos();
+        if (!CameraScheduler.handOff(mScheduler.getControl(), () -> takeSnapshotInternal(shutterTimeNs))) {
+            Log.w(TAG, "takeSnapshot dropped!");
+        }
+    }
+
+    private void takeSnapshotInternal(long shutterTimeNs) {
+        if (!mCameraState.isIn(CameraState.PREVIEW) || (mSnapshotSaver == null && mZslRing == null)) {
+            Log.w(TAG, "takeSnapshot failed! camera is " + mCameraState.getState() + ", snapshot stream: "
+                    + (mSnapshotSaver != null) + ", ZSL: " + (mZslRing != null));
+            return;
+        }
+        if (mZslRing != null) {
+            mSnapshotBaseline = mCaptureStats.snapshot();
+            mSnapshotStartTimeNs = shutterTimeNs;
+            // without realtime timestamps the shutter can not be placed among the frames, the newest is closest
+            mZslRing.takeSnapshot(isRealtimeTimestamps() ? shutterTimeNs : -1, shutterTimeNs);
+            return;
+        }
         try {
-            builder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
-        } catch (CameraAccessException e) {
+            CameraBackend.Request request = new CameraBackend.Request(CameraDevice.TEMPLATE_VIDEO_SNAPSHOT);
+            // the same streams as the repeating request, neither the preview nor the record loses this frame
+            if (!mPreviewDeferred && mPreviewSurface != null) {
+                request.addTarget(mPreviewSurface);
+            }
+            request.addTarget(mRecordSurface);
+            request.addTarget(mSnapshotSaver.getSurface());
+            applyCommonSettings(request);
+            Range<Integer> fpsRange = mRequest.get(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE);
+            if (fpsRange != null) {
+                request.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fpsRange);
+            }
+            request.set(CaptureRequest.JPEG_ORIENTATION, mDisplayRotation);
+            mSnapshotBaseline = mCaptureStats.snapshot();
+            mSnapshotStartTimeNs = shutterTimeNs;
+            // counted by the same stats as the repeating request, its frame number is part of the same sequence
+            mBackend.capture(request, mCaptureStats);
+        } catch (CameraAccessException | IllegalStateException e) {
+            Log.e(TAG, "takeSnapshot failed! ");
             e.printStackTrace();
-            Log.e(TAG, "setUpPreviewRequest, Camera access failed");
+        }
+    }
+
+    /**
+     * Runs on the io stage. Logs how the preview stream fared from the shutter to the saved file, a snapshot must not
+     * cost the recording any frame.
+     */
+    private void onSnapshotSaved(File file) {
+        CaptureStats.Snapshot baseline = mSnapshotBaseline;
+        if (baseline == null) {
             return;
         }
-        builder.addTarget(mPreviewSurface);
-        builder.addTarget(mRecordSurface);
-        applyCommonSettings(builder);
-        mRequestBuilder = builder;
+        CaptureStats.Snapshot stats = mCaptureStats.snapshot();
+        Log.i(TAG, "snapshot saved: " + file + ", cost: "
+                + (SystemClock.elapsedRealtimeNanos() - mSnapshotStartTimeNs) / 1000000 + "ms, meanwhile frames: "
+                + (stats.getFrameCount() - baseline.getFrameCount()) + ", dropped: "
+                + (stats.getDroppedFrameCount() - baseline.getDroppedFrameCount()) + ", sequence gaps: "
+                + (stats.getSequenceGapCount() - baseline.getSequenceGapCount()));
     }
 
-    private void applyCommonSettings(CaptureRequest.Builder builder) {
-        if (builder == null) {
+    /**
+     * Adds the preview surface to a session configured without it, then starts the preview. Runs on the control
+     * stage, does nothing until both the session and the surface are there.
+     */
+    private void finalizePreviewSurface() {
+        if (mHighSpeedFrameRate > 0 && !mSessionConfigured) {
+            createCaptureSessionIfReady();  // was waiting for the surface
             return;
         }
-        builder.set(CaptureRequest.CONTROL_MODE, CaptureRequest.CONTROL_MODE_AUTO);
-        builder.set(CaptureRequest.CONTROL_AF_MODE, CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_VIDEO);  // set auto focus mode
-        builder.set(CaptureRequest.CONTROL_AWB_MODE, CaptureRequest.CONTROL_AWB_MODE_AUTO); // set auto white balance mode
-        builder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH); // set auto exposure mode
-        // applyExposure(builder);
-        // applyIso(builder);
+        Surface previewSurface = mPreviewSurface;
+        if (!mPreviewDeferred || !mSessionConfigured || previewSurface == null) {
+            return;
+        }
+        try {
+            mBackend.finalizeOutput(mPreviewOutput, previewSurface);
+            mPreviewDeferred = false;
+            mRequest.addTarget(previewSurface);
+            Log.d(TAG, "preview surface finalized");
+            startPreview();
+        } catch (CameraAccessException | IllegalArgumentException | IllegalStateException e) {
+            Log.e(TAG, "finalizePreviewSurface failed! ");
+            e.printStackTrace();
+        }
+    }
+
+    private void createPreviewRequest(Surface previewSurface) {
+        CameraBackend.Request request = new CameraBackend.Request(CameraDevice.TEMPLATE_RECORD);
+        if (previewSurface != null) {
+            request.addTarget(previewSurface);
+        }
+        request.addTarget(mRecordSurface);
+        if (mAnalysisStream != null) {
+            request.addTarget(mAnalysisStream.getSurface());
+        }
+        if (mZslRing != null) {
+            request.addTarget(mZslRing.getSurface());  // every frame goes to the ring
+        }
+        applyCommonSettings(request);
+        mRequest = request;
+    }
+
+    private void applyCommonSettings(CameraBackend.Request request) {
+        request.set(CaptureRequest.CONTROL_MODE, CaptureRequest.CONTROL_MODE_AUTO);
+        request.set(CaptureRequest.CONTROL_AF_MODE, CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_VIDEO);  // set auto focus mode
+        request.set(CaptureRequest.CONTROL_AWB_MODE, CaptureRequest.CONTROL_AWB_MODE_AUTO); // set auto white balance mode
+        request.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH); // set auto exposure mode
+        // applyExposure(request);
+        // applyIso(request);
     }
 
-    private CameraCaptureSession.StateCallback mSessionCreateCallback = new CameraCaptureSession.StateCallback() {
+    private CameraBackend.SessionCallback mSessionCreateCallback = new CameraBackend.SessionCallback() {
         @Override
-        public void onConfigured(@NonNull CameraCaptureSession session) {
-            mCameraSession = session;
-            startPreview();
+        public void onConfigured() {
+            if (!mCameraState.isIn(CameraState.OPENED)) {
+                Log.w(TAG, "onConfigured after release, close session");
+                mBackend.closeSession();
+                return;
+            }
+            mSessionConfigured = true;
+            mSessionSupport.setSupported(mSessionKey, true);
+            if (mPreviewDeferred) {
+                finalizePreviewSurface();  // starts the preview if the surface came meanwhile
+            } else {
+                startPreview();
+            }
         }
 
         @Override
-        public void onConfigureFailed(@NonNull CameraCaptureSession session) {
+        public void onConfigureFailed() {
+            Log.e(TAG, "onConfigureFailed: " + mSessionKey);
+            mSessionSupport.setSupported(mSessionKey, false);  // the next launch picks another size
             releaseCamera();
         }
     };
 
     public void startPreview() {
         Log.v(TAG, "startPreview");
-        if (mCameraSession == null || mRequestBuilder == null) {
-            Log.w(TAG, "startPreview failed. mCaptureSession or mCurrentRequestBuilder is null");
+        if (!mSessionConfigured || mRequest == null) {
+            Log.w(TAG, "startPreview failed. no session or request");
             return;
         }
         try {
-            CaptureRequest captureRequest = mRequestBuilder.build();
-            mCameraSession.setRepeatingRequest(captureRequest, null, mCameraHandler);
-            mCameraState = CAMERA_STATE_PREVIEW;
-        } catch (CameraAccessException e) {
+            mCaptureStats.reset();
+            mCaptureStats.setExpectedFrameRate(getRecordFrameRate());
+            mBackend.setRepeatingRequest(mRequest, mCaptureStats);
+            mCameraState.transition(CameraState.OPENED, CameraState.PREVIEW);
+        } catch (CameraAccessException | IllegalStateException e) {
             e.printStackTrace();
         }
     }
 
-    private MediaRecorder createRecorder() {
-        MediaRecorder mediaRecorder = new MediaRecorder();
-        try {
-            File tmpFile = configRecorder(mediaRecorder);
-            if (tmpFile != null) {
-                // we will create new file when click record button.
-                // so need delete this temporary file
-                tmpFile.delete();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-            Log.e(TAG, "createRecorder error: " + e.getMessage());
+    private RecordEngine createRecordEngine(Surface recordSurface) {
+        if (mCameraConfig.getRecordEngine() == CameraConfig.RECORD_ENGINE_MEDIA_CODEC) {
+            CodecRecorder codecRecorder = new CodecRecorder(mScheduler.getEncoder().getHandler(),
+                    mScheduler.getIo().getHandler(), recordSurface, createVideoFormat(),
+                    mDisplayRotation, isRealtimeTimestamps(), getSaveDirectory());
+            codecRecorder.setPreRecordDuration(mCameraConfig.getPreRecordDurationMs());
+            codecRecorder.setFragmentedMp4(mCameraConfig.isFragmentedMp4());
+            return codecRecorder;
         }
-        return mediaRecorder;
+        return new RecorderPool(mScheduler.getEncoder().getHandler(),
+                (mediaRecorder, outputFile) -> configRecorder(mediaRecorder, outputFile, recordSurface),
+                getSaveDirectory());
     }
 
-    private File configRecorder(@NonNull MediaRecorder mediaRecorder) throws IOException {
-        if (mediaRecorder == null) {
-            Log.e(TAG, "configRecorder failed! mediaRecorder is null");
-            return null;
+    /**
+     * @return whether sensor timestamps are elapsedRealtimeNanos(), comparable to other clocks of the device
+     */
+    private boolean isRealtimeTimestamps() {
+        if (mCameraCharacteristics == null) {
+            return false;
+        }
+        Integer timestampSource = mCameraCharacteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+        return timestampSource != null && timestampSource == CameraMetadata.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+    }
+
+    private MediaFormat createVideoFormat() {
+        MediaFormat format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, mPreviewSize.getWidth(),
+                mPreviewSize.getHeight());
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, getRecordBitRate());
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, getRecordFrameRate());
+        if (mHighSpeedFrameRate > 0) {
+            format.setInteger(MediaFormat.KEY_OPERATING_RATE, mHighSpeedFrameRate);  // run the codec that fast
+        }
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, mCameraConfig.getIFrameInterval());
+        format.setInteger(MediaFormat.KEY_MAX_B_FRAMES, mCameraConfig.getMaxBFrames());
+        format.setInteger(MediaFormat.KEY_PRIORITY, 0);  // realtime
+        if (mCameraConfig.getMaxBFrames() == 0 && android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.R) {
+            format.setInteger(MediaFormat.KEY_LATENCY, 1);  // output each frame as soon as it is encoded
         }
-        mediaRecorder.reset();
+        return format;
+    }
+
+    private void configRecorder(@NonNull MediaRecorder mediaRecorder, @NonNull File outputFile,
+                                @NonNull Surface recordSurface) throws IOException {
         // Sets the video source to be used for recording
         mediaRecorder.setVideoSource(MediaRecorder.VideoSource.SURFACE);
         // Sets the video encoding bit rate for recording
-        mediaRecorder.setVideoEncodingBitRate(mPreviewSize.getWidth() * mPreviewSize.getHeight() * 8);
+        mediaRecorder.setVideoEncodingBitRate(getRecordBitRate());
         // Sets the audio source to be used for recording
         mediaRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
         // Sets the audio encoding bit rate for recording
@@ -305,52 +1024,182 @@ public class CameraModule {
         // Sets the audio sampling rate for recording
         mediaRecorder.setAudioSamplingRate(44100);
         // Set video frame capture rate
-        mediaRecorder.setCaptureRate(30);
-        // Sets the orientation hint for output video playback. Values: 0, 90, 180, 270
-        mediaRecorder.setOrientationHint(mDisplayRotation);
+        mediaRecorder.setCaptureRate(getRecordFrameRate());
 
         // Sets the format of the output file produced during recording
         mediaRecorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
         // Sets the width and height of the video to be captured
         mediaRecorder.setVideoSize(mPreviewSize.getWidth(), mPreviewSize.getHeight());
         // Sets the frame rate of the video to be captured
-        mediaRecorder.setVideoFrameRate(30);
+        mediaRecorder.setVideoFrameRate(getRecordFrameRate());
         // Sets the video encoder to be used for recording
         mediaRecorder.setVideoEncoder(MediaRecorder.VideoEncoder.H264);
         // Sets the audio encoder to be used for recording
         mediaRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.AAC);
         // a persistent input surface created by MediaCodec.createPersistentInputSurface()
-        mediaRecorder.setInputSurface(mRecordSurface);
-        File outputFile = getOutputFile();
+        mediaRecorder.setInputSurface(recordSurface);
         mediaRecorder.setOutputFile(outputFile);
-        mediaRecorder.prepare();
-        mIsRecording = false;
-        return outputFile;
     }
 
-    private File getOutputFile() {
-        File saveDirectory = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM),
-                "CameraRecorder");
-        saveDirectory.mkdirs();
-        SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyyMMdd_HHmmss");
-        String fileName = simpleDateFormat.format(new Date(System.currentTimeMillis())) + ".mp4";
-        File outputFile = new File(saveDirectory, fileName);
-        return outputFile;
+    /**
+     * @return the requested high speed frame rate if the camera supports it at the preview size, else 0
+     */
+    private int getHighSpeedFrameRate(@Nullable CameraCharacteristics characteristics) {
+        int frameRate = mCameraConfig.getHighSpeedFrameRate();
+        if (frameRate <= 0) {
+            return 0;
+        }
+        if (characteristics == null) {
+            Log.w(TAG, "no camera characteristics, use a regular session");
+            return 0;
+        }
+        int[] capabilities = characteristics.get(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
+        boolean supported = false;
+        for (int i = 0; capabilities != null && i < capabilities.length; i++) {
+            if (capabilities[i] == CameraMetadata.REQUEST_AVAILABLE_CAPABILITIES_CONSTRAINED_HIGH_SPEED_VIDEO) {
+                supported = true;
+            }
+        }
+        StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        if (!supported || map == null || !Arrays.asList(map.getHighSpeedVideoSizes()).contains(mPreviewSize)) {
+            Log.w(TAG, "high speed " + mPreviewSize + " not supported, use a regular session");
+            return 0;
+        }
+        for (Range<Integer> range : map.getHighSpeedVideoFpsRangesFor(mPreviewSize)) {
+            if (range.getLower() == frameRate && range.getUpper() == frameRate) {
+                return frameRate;
+            }
+        }
+        Log.w(TAG, "high speed " + frameRate + "fps not supported at " + mPreviewSize + ", use a regular session");
+        return 0;
+    }
+
+    private int getSessionType() {
+        return mHighSpeedFrameRate > 0 ? SessionConfiguration.SESSION_HIGH_SPEED
+                : SessionConfiguration.SESSION_REGULAR;
+    }
+
+    private int getRecordFrameRate() {
+        return mHighSpeedFrameRate > 0 ? mHighSpeedFrameRate : mCameraConfig.getVideoFrameRate();
+    }
+
+    /**
+     * @return the configured bitrate, scaled up by the frame rate in high speed so each frame keeps its quality
+     */
+    private int getRecordBitRate() {
+        int bitRate = mCameraConfig.getVideoBitRate();
+        if (mHighSpeedFrameRate > 0) {
+            long scaled = (long) bitRate * mHighSpeedFrameRate / Math.max(1, mCameraConfig.getVideoFrameRate());
+            bitRate = (int) Math.min(scaled, Integer.MAX_VALUE);
+        }
+        return bitRate;
+    }
+
+    /**
+     * Starts a record on motion, it holds the pre-record of {@link CameraConfig#getPreRecordDurationMs()}. Stops it
+     * {@link CameraConfig#getMotionPostRollMs()} after the motion, unless motion comes back before. A record started
+     * by hand is left to the user.
+     */
+    private void onMotionChanged(boolean motion, long timestampNs) {
+        Log.i(TAG, "motion " + (motion ? "started" : "stopped") + " at " + timestampNs + ", moving: "
+                + mMotionAnalyzer.getMovingFraction());
+        // on the main thread like the record buttons
+        mMainHandler.post(() -> {
+            if (!motion) {
+                mMainHandler.removeCallbacks(mMotionStartRunnable);
+                if (mMotionRecording) {
+                    mMainHandler.postDelayed(mMotionStopRunnable, mCameraConfig.getMotionPostRollMs());
+                }
+                return;
+            }
+            mMainHandler.removeCallbacks(mMotionStopRunnable);
+            startMotionRecorder();
+        });
+    }
+
+    private void startMotionRecorder() {
+        RecordEngine recordEngine = mRecordEngine;
+        if (recordEngine != null && recordEngine.isRecording()) {
+            return;  // the motion record goes on, or one started by hand
+        }
+        mMotionRecording = true;
+        requestStartRecorder(started -> {
+            if (started || !mMotionRecording) {
+                return;
+            }
+            mMotionRecording = false;
+            // not in preview yet, or the recorder is not ready: try again while the motion lasts and the camera is up
+            CameraState state = mCameraState.getState();
+            if (mMotionAnalyzer.isMotion()
+                    && (state == CameraState.OPENING || state == CameraState.OPENED || state == CameraState.PREVIEW)) {
+                Log.w(TAG, "motion record did not start, retry in " + MOTION_RETRY_MS + "ms");
+                mMainHandler.postDelayed(mMotionStartRunnable, MOTION_RETRY_MS);
+            }
+        });
+    }
+
+    private void stopMotionRecorder() {
+        if (mMotionRecording) {
+            mMotionRecording = false;
+            requestStopRecorder(null);
+        }
+    }
+
+    private File getSaveDirectory() {
+        return new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM), "CameraRecorder");
     }
 
     public void startRecorder() {
-        if (mCameraState != CAMERA_STATE_PREVIEW || mMediaRecorder == null) {
-            Log.e(TAG, "Start Recorder failed!");
-            return;
+        startRecorder(null);
+    }
+
+    /**
+     * Returns at once and starts the record on the encoder stage, a recorder still preparing is waited for there. Called
+     * on the main thread, a record started here is not stopped by motion.
+     */
+    public void startRecorder(@Nullable OnRecorderStartedListener listener) {
+        requestStartRecorder(started -> {
+            if (started) {
+                mMotionRecording = false;
+            }
+            if (listener != null) {
+                listener.onRecorderStarted(started);
+            }
+        });
+    }
+
+    private void requestStartRecorder(@Nullable OnRecorderStartedListener listener) {
+        boolean queued = CameraScheduler.handOff(mScheduler.getEncoder(), () -> {
+            boolean started = startRecorderInternal();
+            if (listener != null) {
+                mMainHandler.post(() -> listener.onRecorderStarted(started));
+            }
+        });
+        if (!queued && listener != null) {
+            mMainHandler.post(() -> listener.onRecorderStarted(false));
         }
-        try {
-            configRecorder(mMediaRecorder);
-            mMediaRecorder.start();
-            mIsRecording = true;
-            Log.i(TAG, "startRecorder...");
-        } catch (IOException e) {
-            Log.e(TAG, "startRecorder failed! " + e.getMessage());
+    }
+
+    private boolean startRecorderInternal() {
+        RecordEngine recordEngine = mRecordEngine;
+        if (!mCameraState.isIn(CameraState.PREVIEW) || recordEngine == null) {
+            Log.e(TAG, "Start Recorder failed! camera is " + mCameraState.getState());
+            return false;
+        }
+        if (!recordEngine.start()) {
+            Log.e(TAG, "startRecorder failed!");
+            return false;
         }
+        Log.i(TAG, "startRecorder...");
+        return true;
+    }
+
+    /**
+     * @return the time from {@link #startRecorder()} to the recorder running of the last record, in milliseconds
+     */
+    public float getRecorderStartLatencyMs() {
+        RecordEngine recordEngine = mRecordEngine;
+        return recordEngine == null ? -1 : recordEngine.getLastStartLatencyMs();
     }
 
     public boolean isFrontCamera() {
@@ -359,91 +1208,230 @@ public class CameraModule {
     }
 
     public void stopRecorder() {
-        if (mMediaRecorder != null && mIsRecording) {
-            Log.i(TAG, "stopRecorder...");
-            mMediaRecorder.stop();
-            mIsRecording = false;
+        stopRecorder(null);
+    }
+
+    /**
+     * Returns at once and stops the record on the encoder stage, where the encoders are drained. Called on the main
+     * thread, a record started by motion is stopped too.
+     */
+    public void stopRecorder(@Nullable OnRecorderStoppedListener listener) {
+        mMotionRecording = false;
+        mMainHandler.removeCallbacks(mMotionStopRunnable);
+        requestStopRecorder(listener);
+    }
+
+    private void requestStopRecorder(@Nullable OnRecorderStoppedListener listener) {
+        boolean queued = CameraScheduler.handOff(mScheduler.getEncoder(), () -> {
+            File file = stopRecorderInternal();
+            if (listener != null) {
+                mMainHandler.post(() -> listener.onRecorderStopped(file));
+            }
+        });
+        if (!queued && listener != null) {
+            mMainHandler.post(() -> listener.onRecorderStopped(null));
+        }
+    }
+
+    private File stopRecorderInternal() {
+        RecordEngine recordEngine = mRecordEngine;
+        if (recordEngine == null || !recordEngine.isRecording()) {
+            return null;
+        }
+        Log.i(TAG, "stopRecorder...");
+        File file = recordEngine.stop();
+        Log.i(TAG, "record saved: " + file);
+        postProcessRecord(file);
+        return file;
+    }
+
+    private void postProcessRecord(File file) {
+        if (file == null || !mCameraConfig.isFastStart()) {
+            return;
+        }
+        boolean queued = CameraScheduler.handOff(mScheduler.getIo(), () -> {
+            long start = System.nanoTime();
+            try {
+                boolean changed = Mp4FastStart.process(file);
+                Log.d(TAG, "faststart " + file + " changed: " + changed + ", cost: "
+                        + (System.nanoTime() - start) / 1000000 + "ms");
+            } catch (IOException e) {
+                Log.e(TAG, "faststart " + file + " failed! ");
+                e.printStackTrace();
+            }
+        });
+        if (!queued) {
+            Log.w(TAG, "faststart " + file + " dropped, kept as recorded");
         }
     }
 
     private void releaseRecorder() {
-        if (mMediaRecorder == null) {
+        RecordEngine recordEngine = mRecordEngine;
+        if (recordEngine == null) {
             return;
         }
-        stopRecorder();  // stop if is recording
-        mMediaRecorder.reset();
-        mMediaRecorder.release();
-        mMediaRecorder = null;
+        mRecordEngine = null;
+        mRecordEnginePrepared = false;
+        releaseRecordEngine(recordEngine, null);  // the session may still draw into the record surface
+    }
+
+    /**
+     * Releases the engine on the encoder stage after the starts and stops already queued, the stage runs it before it
+     * quits. The handler is not bounded, a release is never dropped.
+     */
+    private void releaseRecordEngine(RecordEngine recordEngine, @Nullable Surface recordSurface) {
+        Runnable release = () -> {
+            recordEngine.release();  // stop if is recording
+            if (recordSurface != null) {
+                recordSurface.release();
+            }
+        };
+        Handler encoderHandler = mScheduler.getEncoder().getHandler();
+        if (encoderHandler == null || !encoderHandler.post(release)) {
+            release.run();  // the stage is gone, nothing else uses the engine
+        }
     }
 
+    /**
+     * Releases the camera on the calling thread. From the UI thread use {@link #releaseCameraAsync(OnReleasedListener)}.
+     */
     public void releaseCamera() {
-        if (mCameraState == CAMERA_STATE_CLOSE) {
-            Log.w(TAG, "camera is closed");
+        // only one caller wins the move to CLOSING, the others return at once
+        if (mCameraState.moveTo(CameraState.CLOSING) == null) {
+            Log.w(TAG, "camera is closed or closing");
             return;
         }
-        mCameraStateLock.lock();
         Log.v(TAG, "releaseCamera");
+        teardown();
+    }
+
+    /**
+     * Returns at once and releases the camera on the control stage. The listener is called on the main thread when the
+     * release is done, or after {@link #RELEASE_TIMEOUT_MS} if it is not. An {@link #openCamera()} during the release
+     * runs when it is done.
+     */
+    public void releaseCameraAsync(@Nullable OnReleasedListener listener) {
+        if (listener != null) {
+            synchronized (mReleasedListeners) {
+                mReleasedListeners.add(listener);
+            }
+        }
+        if (mCameraState.moveTo(CameraState.CLOSING) == null) {
+            if (mCameraState.isIn(CameraState.CLOSED)) {
+                mMainHandler.post(() -> notifyReleased(false));
+            }  // else the running release notifies
+            return;
+        }
+        Log.v(TAG, "releaseCameraAsync");
+        Handler handler = mCameraHandler;
+        if (handler == null) {
+            teardown();  // nothing was started, nothing blocks
+            mMainHandler.post(() -> notifyReleased(false));
+            return;
+        }
+        Runnable timeout = () -> {
+            Log.e(TAG, "release not done after " + RELEASE_TIMEOUT_MS + "ms");
+            notifyReleased(true);
+        };
+        mMainHandler.postDelayed(timeout, RELEASE_TIMEOUT_MS);
+        // posted directly, a release must not be refused by a full queue
+        handler.post(() -> {
+            long startTime = SystemClock.elapsedRealtimeNanos();
+            teardown();
+            Log.d(TAG, "release cost: " + (SystemClock.elapsedRealtimeNanos() - startTime) / 1000000 + "ms");
+            mMainHandler.removeCallbacks(timeout);
+            mMainHandler.post(() -> notifyReleased(false));
+        });
+    }
+
+    private void teardown() {
+        Log.i(TAG, "capture stats: " + mCaptureStats.snapshot());
+        Log.i(TAG, "stages:\n" + mScheduler);
+        if (mFramePipeline.hasAnalyzers()) {
+            Log.i(TAG, "analysis: " + mFramePipeline);
+        }
+        if (mMotionAnalyzer != null) {
+            mMainHandler.removeCallbacks(mMotionStopRunnable);
+            mMainHandler.removeCallbacks(mMotionStartRunnable);
+            mMotionAnalyzer.reset();  // the next session learns its own background
+        }
         releaseRecorder();
         stopPreview();
         closeCameraSession();
         closeCameraDevice();
         stopBackgroundThread();
-        mCameraState = CAMERA_STATE_CLOSE;
-        mCameraStateLock.unlock();
+        mFramePipeline.stop();
+        mCameraState.transition(CameraState.CLOSING, CameraState.CLOSED);
+    }
+
+    /**
+     * Runs on the main thread. After a timeout the listeners are called once, the open waiting for the release still
+     * waits for it to be done.
+     */
+    private void notifyReleased(boolean timedOut) {
+        ArrayList<OnReleasedListener> listeners;
+        synchronized (mReleasedListeners) {
+            listeners = new ArrayList<>(mReleasedListeners);
+            mReleasedListeners.clear();
+        }
+        for (OnReleasedListener listener : listeners) {
+            listener.onReleased(timedOut);
+        }
+        if (!timedOut && mOpenPending.getAndSet(false)) {
+            Log.d(TAG, "release done, open the pending camera");
+            openCamera();
+        }
     }
 
     public void stopPreview() {
         Log.v(TAG, "stopPreview");
-        if (mCameraSession == null) {
-            Log.w(TAG, "stopPreview: mCaptureSession is null");
+        if (!mSessionConfigured) {
+            Log.w(TAG, "stopPreview: no session");
             return;
         }
         try {
-            mCameraSession.stopRepeating();
-            mCameraState = CAMERA_STATE_OPENED;
-        } catch (CameraAccessException e) {
+            mBackend.stopRepeating();
+            if (mCameraState.isIn(CameraState.PREVIEW)) {
+                mCameraState.transition(CameraState.PREVIEW, CameraState.OPENED);
+            }
+        } catch (CameraAccessException | IllegalStateException e) {
             e.printStackTrace();
         }
     }
 
     private void closeCameraSession() {
-        if (mCameraSession != null) {
-            mCameraSession.close();
-            mCameraSession = null;
+        mBackend.closeSession();  // also one still being configured
+        mSessionConfigured = false;
+        if (mSnapshotSaver != null) {
+            mSnapshotSaver.release();
+            mSnapshotSaver = null;
         }
+        if (mZslRing != null) {
+            Log.i(TAG, "ZSL memory: " + mZslRing.getMemoryBytes() / 1024 + "KB in " + mZslRing.getBufferCount()
+                    + " buffers, shutter to saved: "
+                    + mZslRing.getSaveLatencies());
+            mZslRing.release();
+            mZslRing = null;
+        }
+        if (mAnalysisStream != null) {
+            mAnalysisStream.release();
+            mAnalysisStream = null;
+        }
+        mPreviewOutput = null;
+        mPreviewDeferred = false;
     }
 
     private void closeCameraDevice() {
-        if (mCameraDevice != null) {
-            mCameraDevice.close();
-            mCameraDevice = null;
-        }
+        mBackend.closeCamera();  // also one still opening
+        mCameraOpened = false;
     }
 
     private void stopBackgroundThread() {
         Log.v(TAG, "stopBackgroundThread");
-        if (mCameraThread != null) {
-            mCameraThread.quitSafely();
-            try {
-                mCameraThread.join();
-                mCameraThread = null;
-                mCameraHandler = null;
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
-    }
-
-    private class HandlerExecutor implements Executor {
-        private final Handler ihandler;
-
-        public HandlerExecutor(Handler handler) {
-            ihandler = handler;
-        }
-
-        @Override
-        public void execute(Runnable runCmd) {
-            ihandler.post(runCmd);
+        if (mCameraHandler != null) {
+            // when released from a camera callback, the control thread ends after this message
+            mScheduler.quit(RELEASE_TIMEOUT_MS);
+            mCameraHandler = null;
         }
     }
 
@@ -0,0 +1,80 @@
+package com.afei.camerarecorder.camera;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * The threads of a camera module, one per stage, so a slow stage does not hold up the others:
+ * <ul>
+ * <li>control: camera device, session and capture callbacks</li>
+ * <li>encoder: creating and preparing recorders, preparing the next segment</li>
+ * <li>io: finishing files and post processing them</li>
+ * <li>analysis: copying frames of the analysis stream out of the camera buffers</li>
+ * </ul>
+ */
+public class CameraScheduler {
+
+    private static final String TAG = "CameraScheduler";
+    private static final int QUEUE_CAPACITY = 32;
+
+    private final StageThread mControl = new StageThread("CameraControl", Process.THREAD_PRIORITY_DISPLAY,
+            QUEUE_CAPACITY);
+    private final StageThread mEncoder = new StageThread("CameraEncoder", Process.THREAD_PRIORITY_DEFAULT,
+            QUEUE_CAPACITY);
+    private final StageThread mIo = new StageThread("CameraIO", Process.THREAD_PRIORITY_BACKGROUND, QUEUE_CAPACITY);
+    private final StageThread mAnalysis = new StageThread("CameraAnalysis", Process.THREAD_PRIORITY_DEFAULT,
+            QUEUE_CAPACITY);
+
+    public void start() {
+        mControl.start();
+        mEncoder.start();
+        mIo.start();
+        mAnalysis.start();
+    }
+
+    /**
+     * Stops all stages. Waits at most timeoutMs for each of the control and encoder stages, the io stage finishes its
+     * queued files on its own and the analysis stage its queued frames.
+     */
+    public void quit(long timeoutMs) {
+        mEncoder.quit(timeoutMs);
+        mIo.quit(0);
+        mAnalysis.quit(0);
+        mControl.quit(timeoutMs);
+    }
+
+    public StageThread getControl() {
+        return mControl;
+    }
+
+    public StageThread getEncoder() {
+        return mEncoder;
+    }
+
+    public StageThread getIo() {
+        return mIo;
+    }
+
+    public StageThread getAnalysis() {
+        return mAnalysis;
+    }
+
+    /**
+     * Hands the task to the stage. Stage work never runs on the calling thread: if the stage queue is full, or the
+     * stage is stopped, the task is dropped and counted in the rejected messages of the stage.
+     *
+     * @return false if the task was dropped, the caller gives up what the task was for
+     */
+    public static boolean handOff(StageThread stage, Runnable task) {
+        if (!stage.offer(task)) {
+            Log.w(TAG, stage.getName() + " is full or stopped, task dropped, rejected: " + stage.getRejectedCount());
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return mControl + "\n" + mEncoder + "\n" + mIo + "\n" + mAnalysis;
+    }
+}
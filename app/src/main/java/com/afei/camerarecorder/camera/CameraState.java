@@ -0,0 +1,10 @@
+package com.afei.camerarecorder.camera;
+
+public enum CameraState {
+    CLOSED,
+    OPENING,
+    OPENED,
+    PREVIEW,
+    ERROR,
+    CLOSING
+}
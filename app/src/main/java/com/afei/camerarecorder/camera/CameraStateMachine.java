@@ -0,0 +1,116 @@
+package com.afei.camerarecorder.camera;
+
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Camera state shared by the UI thread and the camera thread. Every change is a compare-and-set from an expected
+ * state, so no caller ever blocks, and a change which lost a race (e.g. onOpened after releaseCamera) is rejected
+ * instead of overwriting the newer state.
+ */
+public class CameraStateMachine {
+
+    public interface Listener {
+        void onStateChanged(CameraState from, CameraState to);
+
+        /**
+         * Called when {@link #transition(CameraState, CameraState)} failed.
+         *
+         * @param expected the state the caller expected
+         * @param actual   the state the camera really was in
+         * @param target   the state the caller wanted to move to
+         */
+        void onTransitionRejected(CameraState expected, CameraState actual, CameraState target);
+    }
+
+    private static final Map<CameraState, EnumSet<CameraState>> LEGAL_TRANSITIONS = new EnumMap<>(CameraState.class);
+
+    static {
+        LEGAL_TRANSITIONS.put(CameraState.CLOSED, EnumSet.of(CameraState.OPENING));
+        LEGAL_TRANSITIONS.put(CameraState.OPENING, EnumSet.of(CameraState.OPENED, CameraState.ERROR, CameraState.CLOSING));
+        // OPENED -> OPENING is a camera switch, which keeps the recorder and threads
+        LEGAL_TRANSITIONS.put(CameraState.OPENED, EnumSet.of(CameraState.OPENING, CameraState.PREVIEW, CameraState.ERROR,
+                CameraState.CLOSING));
+        LEGAL_TRANSITIONS.put(CameraState.PREVIEW, EnumSet.of(CameraState.OPENED, CameraState.ERROR, CameraState.CLOSING));
+        LEGAL_TRANSITIONS.put(CameraState.ERROR, EnumSet.of(CameraState.CLOSING));
+        LEGAL_TRANSITIONS.put(CameraState.CLOSING, EnumSet.of(CameraState.CLOSED));
+    }
+
+    private final AtomicReference<CameraState> mState = new AtomicReference<>(CameraState.CLOSED);
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong mRejectedCount = new AtomicLong();
+
+    public static boolean isLegal(CameraState from, CameraState to) {
+        return LEGAL_TRANSITIONS.get(from).contains(to);
+    }
+
+    public CameraState getState() {
+        return mState.get();
+    }
+
+    public boolean isIn(CameraState state) {
+        return mState.get() == state;
+    }
+
+    /**
+     * Moves from {@code from} to {@code to} only if the current state is {@code from}.
+     *
+     * @return true if this call made the transition
+     */
+    public boolean transition(CameraState from, CameraState to) {
+        if (!isLegal(from, to)) {
+            throw new IllegalArgumentException("illegal transition " + from + " -> " + to);
+        }
+        if (mState.compareAndSet(from, to)) {
+            for (Listener listener : mListeners) {
+                listener.onStateChanged(from, to);
+            }
+            return true;
+        }
+        mRejectedCount.incrementAndGet();
+        CameraState actual = mState.get();
+        for (Listener listener : mListeners) {
+            listener.onTransitionRejected(from, actual, to);
+        }
+        return false;
+    }
+
+    /**
+     * Moves to {@code to} from whatever the current state is, as long as that transition is legal.
+     *
+     * @return the state before the transition, or null if {@code to} is not reachable from the current state
+     */
+    public CameraState moveTo(CameraState to) {
+        while (true) {
+            CameraState from = mState.get();
+            if (!isLegal(from, to)) {
+                return null;
+            }
+            if (mState.compareAndSet(from, to)) {
+                for (Listener listener : mListeners) {
+                    listener.onStateChanged(from, to);
+                }
+                return from;
+            }
+        }
+    }
+
+    /**
+     * @return the number of transitions rejected because the state was changed concurrently
+     */
+    public long getRejectedCount() {
+        return mRejectedCount.get();
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+}
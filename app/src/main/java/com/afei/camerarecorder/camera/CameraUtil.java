@@ -7,6 +7,9 @@ import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
 import android.util.Size;
 
 import java.util.ArrayList;
@@ -15,22 +18,26 @@ import java.util.List;
 
 public class CameraUtil {
 
+    private static final int DEFAULT_FRAME_RATE = 30;
+
     public static List<CameraConfig> getCameraInfo(Context context) {
         ArrayList<CameraConfig> cameraConfigs = new ArrayList<>();
         CameraManager cameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
         try {
             String[] cameraIdList = cameraManager.getCameraIdList();
+            SizeCatalog.SizeFilter encoderFilter = getEncoderSizeFilter(DEFAULT_FRAME_RATE);
             for (int i = 0; i < cameraIdList.length; i++) {
                 String cameraId = cameraIdList[i];
                 CameraCharacteristics cameraCharacteristics = cameraManager.getCameraCharacteristics(cameraId);
                 StreamConfigurationMap map = cameraCharacteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-                Size[] previewSizes = map.getOutputSizes(SurfaceTexture.class);
-                Size[] pictureSizes = map.getOutputSizes(ImageFormat.JPEG);
+                SizeCatalog previewCatalog = SizeCatalog.create(map, SurfaceTexture.class);
+                SizeCatalog pictureCatalog = SizeCatalog.create(map, ImageFormat.JPEG);
                 float[] ratios = {3.0f / 4.0f, 9.0f / 16.0f};  // limit size is 4:3 or 16:9
-                Size previewSize = chooseOptimalSize(previewSizes, 1080, ratios);
-                Size pictureSize = chooseOptimalSize(pictureSizes, 1080, ratios);
+                // the preview size is the record size too, an encoder has to take it at the default frame rate
+                Size previewSize = previewCatalog.choose(ratios, 1080, null, DEFAULT_FRAME_RATE, encoderFilter);
+                Size pictureSize = pictureCatalog.choose(ratios, 1080, null, 0);
                 CameraConfig cameraConfig =
-                        new CameraConfig.Builder().setCameraId(cameraId).setPreviewSizes(Arrays.asList(previewSizes)).setPreviewSize(previewSize).setPictureSizes(Arrays.asList(pictureSizes)).setPictureSize(pictureSize).build();
+                        new CameraConfig.Builder().setCameraId(cameraId).setPreviewSizes(previewCatalog.getSizes()).setPreviewSize(previewSize).setPictureSizes(pictureCatalog.getSizes()).setPictureSize(pictureSize).build();
                 cameraConfigs.add(cameraConfig);
             }
         } catch (CameraAccessException e) {
@@ -39,27 +46,40 @@ public class CameraUtil {
         return cameraConfigs;
     }
 
+    /**
+     * Builds a {@link SizeCatalog} for one query, keep the catalog instead when choosing from the same sizes again.
+     *
+     * @return the size of one of the ratios whose short side is closest to dstSize, any ratio if none matches
+     */
     public static Size chooseOptimalSize(Size[] sizes, int dstSize, float[] ratios) {
-        if (sizes == null || sizes.length == 0) {
+        return new SizeCatalog(sizes).choose(ratios, dstSize, null, 0);
+    }
+
+    /**
+     * Each AVC encoder is asked for the size and frame rate together, the largest width of one and the largest height
+     * of another are not a size either of them takes.
+     *
+     * @return accepts the sizes one of the AVC encoders takes at the frame rate, null if there is no AVC encoder
+     */
+    public static SizeCatalog.SizeFilter getEncoderSizeFilter(int frameRate) {
+        MediaCodecList codecList = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+        ArrayList<MediaCodecInfo.VideoCapabilities> encoders = new ArrayList<>();
+        for (MediaCodecInfo info : codecList.getCodecInfos()) {
+            if (!info.isEncoder() || !Arrays.asList(info.getSupportedTypes()).contains(MediaFormat.MIMETYPE_VIDEO_AVC)) {
+                continue;
+            }
+            encoders.add(info.getCapabilitiesForType(MediaFormat.MIMETYPE_VIDEO_AVC).getVideoCapabilities());
+        }
+        if (encoders.isEmpty()) {
             return null;
         }
-        int minDelta = Integer.MAX_VALUE;
-        int index = 0;
-        for (int i = 0; i < sizes.length; i++) {
-            Size size = sizes[i];
-            for (float ratio : ratios) {
-                if (size.getWidth() * ratio == size.getHeight()) {
-                    int delta = Math.abs(dstSize - size.getHeight());
-                    if (delta == 0) {
-                        return size;
-                    }
-                    if (minDelta > delta) {
-                        minDelta = delta;
-                        index = i;
-                    }
+        return size -> {
+            for (MediaCodecInfo.VideoCapabilities capabilities : encoders) {
+                if (capabilities.areSizeAndRateSupported(size.getWidth(), size.getHeight(), frameRate)) {
+                    return true;
                 }
             }
-        }
-        return sizes[index];
+            return false;
+        };
     }
 }
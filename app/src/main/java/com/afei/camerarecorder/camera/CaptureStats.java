@@ -0,0 +1,208 @@
+package com.afei.camerarecorder.camera;
+
+import android.os.SystemClock;
+
+/**
+ * Per frame timing of a repeating request: sensor timestamp intervals, the time from capture start to its completed
+ * result, and frames the camera skipped or failed.
+ * <p>
+ * Nothing is allocated per frame, it is meant to stay on in release builds. The callbacks run on the camera thread,
+ * {@link #snapshot()} may be called from any thread.
+ */
+public class CaptureStats implements CameraBackend.CaptureListener {
+
+    private static final int START_TIME_SLOTS = 64;  // power of two, more than frames in flight
+
+    private final LatencyHistogram mFrameIntervals = new LatencyHistogram();
+    private final LatencyHistogram mCaptureLatencies = new LatencyHistogram();
+    // start time of in flight frames, indexed by frame number
+    private final long[] mStartTimeNs = new long[START_TIME_SLOTS];
+    private final long[] mStartFrameNumbers = new long[START_TIME_SLOTS];
+
+    private volatile long mExpectedFrameDurationNs;
+    private volatile long mFirstSensorTimestamp = -1;
+    private volatile long mLastSensorTimestamp = -1;
+    private volatile long mStartedCount;
+    private long mLastFrameNumber = -1;
+    private volatile long mFrameCount;
+    private volatile long mDroppedFrameCount;  // judged from sensor timestamp gaps
+    private volatile long mSequenceGapCount;  // frame numbers skipped between started captures
+    private volatile long mFailedCount;
+    private volatile long mBufferLostCount;
+    private volatile long mFirstFrameTimeNs;  // elapsedRealtimeNanos of the first completed capture, 0 if none
+    private volatile Runnable mFirstFrameListener;
+
+    /**
+     * @param frameRate expected frame rate, used to find frames missing between two sensor timestamps
+     */
+    public void setExpectedFrameRate(int frameRate) {
+        mExpectedFrameDurationNs = frameRate > 0 ? 1000000000L / frameRate : 0;
+    }
+
+    /**
+     * @param listener runs on the callback thread at the first completed capture after each {@link #clearFirstFrame()}
+     */
+    public void setFirstFrameListener(Runnable listener) {
+        mFirstFrameListener = listener;
+    }
+
+    /**
+     * @return {@link SystemClock#elapsedRealtimeNanos()} of the first completed capture, 0 if there was none yet
+     */
+    public long getFirstFrameTimeNs() {
+        return mFirstFrameTimeNs;
+    }
+
+    /**
+     * Clears everything, to be called before a new repeating request is set.
+     */
+    public void reset() {
+        mFrameIntervals.reset();
+        mCaptureLatencies.reset();
+        mFirstSensorTimestamp = -1;
+        mLastSensorTimestamp = -1;
+        mLastFrameNumber = -1;
+        mStartedCount = 0;
+        mFrameCount = 0;
+        mDroppedFrameCount = 0;
+        mSequenceGapCount = 0;
+        mFailedCount = 0;
+        mBufferLostCount = 0;
+    }
+
+    /**
+     * Makes the next completed capture the first frame again. Unlike {@link #reset()}, which runs on every preview
+     * start, this is meant for a camera open.
+     */
+    public void clearFirstFrame() {
+        mFirstFrameTimeNs = 0;
+    }
+
+    @Override
+    public void onCaptureStarted(long frameNumber, long timestamp) {
+        int slot = (int) (frameNumber & (START_TIME_SLOTS - 1));
+        mStartTimeNs[slot] = System.nanoTime();
+        mStartFrameNumbers[slot] = frameNumber;
+        if (mLastSensorTimestamp >= 0) {
+            long intervalNs = timestamp - mLastSensorTimestamp;
+            mFrameIntervals.record(intervalNs / 1000);
+            long expectedNs = mExpectedFrameDurationNs;
+            if (expectedNs > 0 && intervalNs > expectedNs * 3 / 2) {
+                mDroppedFrameCount += (intervalNs + expectedNs / 2) / expectedNs - 1;
+            }
+        }
+        if (mFirstSensorTimestamp < 0) {
+            mFirstSensorTimestamp = timestamp;
+        }
+        mStartedCount++;
+        if (mLastFrameNumber >= 0 && frameNumber > mLastFrameNumber + 1) {
+            mSequenceGapCount += frameNumber - mLastFrameNumber - 1;
+        }
+        mLastSensorTimestamp = timestamp;
+        mLastFrameNumber = frameNumber;
+    }
+
+    @Override
+    public void onCaptureCompleted(long frameNumber) {
+        int slot = (int) (frameNumber & (START_TIME_SLOTS - 1));
+        if (mStartFrameNumbers[slot] == frameNumber) {
+            mCaptureLatencies.record((System.nanoTime() - mStartTimeNs[slot]) / 1000);
+        }
+        mFrameCount++;
+        if (mFirstFrameTimeNs == 0) {
+            mFirstFrameTimeNs = SystemClock.elapsedRealtimeNanos();
+            Runnable listener = mFirstFrameListener;
+            if (listener != null) {
+                listener.run();
+            }
+        }
+    }
+
+    @Override
+    public void onCaptureFailed(long frameNumber) {
+        mFailedCount++;
+    }
+
+    @Override
+    public void onCaptureBufferLost(long frameNumber) {
+        mBufferLostCount++;
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    public static class Snapshot {
+        private final LatencyHistogram.Snapshot mFrameIntervals;
+        private final LatencyHistogram.Snapshot mCaptureLatencies;
+        private final long mFrameCount;
+        private final float mSustainedFrameRate;
+        private final long mDroppedFrameCount;
+        private final long mSequenceGapCount;
+        private final long mFailedCount;
+        private final long mBufferLostCount;
+
+        private Snapshot(CaptureStats stats) {
+            mFrameIntervals = stats.mFrameIntervals.snapshot();
+            mCaptureLatencies = stats.mCaptureLatencies.snapshot();
+            mFrameCount = stats.mFrameCount;
+            long durationNs = stats.mLastSensorTimestamp - stats.mFirstSensorTimestamp;
+            long intervals = stats.mStartedCount - 1;
+            mSustainedFrameRate = stats.mFirstSensorTimestamp < 0 || durationNs <= 0 || intervals <= 0 ? 0
+                    : intervals * 1e9f / durationNs;
+            mDroppedFrameCount = stats.mDroppedFrameCount;
+            mSequenceGapCount = stats.mSequenceGapCount;
+            mFailedCount = stats.mFailedCount;
+            mBufferLostCount = stats.mBufferLostCount;
+        }
+
+        /**
+         * @return intervals between sensor timestamps of started captures
+         */
+        public LatencyHistogram.Snapshot getFrameIntervals() {
+            return mFrameIntervals;
+        }
+
+        /**
+         * @return time from onCaptureStarted to onCaptureCompleted of the same frame
+         */
+        public LatencyHistogram.Snapshot getCaptureLatencies() {
+            return mCaptureLatencies;
+        }
+
+        public long getFrameCount() {
+            return mFrameCount;
+        }
+
+        /**
+         * @return frames per second the sensor delivered from the first to the last started capture, the rate a high
+         * speed session really kept up
+         */
+        public float getSustainedFrameRate() {
+            return mSustainedFrameRate;
+        }
+
+        public long getDroppedFrameCount() {
+            return mDroppedFrameCount;
+        }
+
+        public long getSequenceGapCount() {
+            return mSequenceGapCount;
+        }
+
+        public long getFailedCount() {
+            return mFailedCount;
+        }
+
+        public long getBufferLostCount() {
+            return mBufferLostCount;
+        }
+
+        @Override
+        public String toString() {
+            return "frames " + mFrameCount + " (" + Math.round(mSustainedFrameRate) + "fps), dropped " + mDroppedFrameCount + ", sequence gaps " + mSequenceGapCount
+                    + ", failed " + mFailedCount + ", buffer lost " + mBufferLostCount + "\n  interval: "
+                    + mFrameIntervals + "\n  capture latency: " + mCaptureLatencies;
+        }
+    }
+}
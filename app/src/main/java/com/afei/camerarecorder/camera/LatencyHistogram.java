@@ -0,0 +1,139 @@
+package com.afei.camerarecorder.camera;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size, lock free histogram of durations in microseconds.
+ * <p>
+ * Buckets are log-linear: values below 16 have a bucket each, above that every power of two is split into 8 linear
+ * buckets, so a recorded value is off by at most 1/8. {@link #record(long)} never allocates, it may be called from
+ * any thread while others take a {@link #snapshot()}.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_SHIFT = 32;  // values up to 2^36us, about 19 hours, longer go to the last bucket
+    private static final int BUCKET_COUNT = MAX_SHIFT * SUB_BUCKET_COUNT / 2 + SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mTotalCount = new AtomicLong();
+    private final AtomicLong mTotalUs = new AtomicLong();
+    private final AtomicLong mMaxUs = new AtomicLong();
+
+    public void record(long valueUs) {
+        if (valueUs < 0) {
+            valueUs = 0;
+        }
+        mCounts.incrementAndGet(getBucketIndex(valueUs));
+        mTotalCount.incrementAndGet();
+        mTotalUs.addAndGet(valueUs);
+        long max = mMaxUs.get();
+        while (valueUs > max && !mMaxUs.compareAndSet(max, valueUs)) {
+            max = mMaxUs.get();
+        }
+    }
+
+    public long getCount() {
+        return mTotalCount.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts.set(i, 0);
+        }
+        mTotalCount.set(0);
+        mTotalUs.set(0);
+        mMaxUs.set(0);
+    }
+
+    /**
+     * Copies the current counts. Values recorded during the copy may or may not be part of it.
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        long totalCount = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mCounts.get(i);
+            totalCount += counts[i];
+        }
+        return new Snapshot(counts, totalCount, mTotalUs.get(), mMaxUs.get());
+    }
+
+    static int getBucketIndex(long valueUs) {
+        if (valueUs < SUB_BUCKET_COUNT) {
+            return (int) valueUs;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(valueUs) - SUB_BUCKET_BITS + 1;
+        if (shift > MAX_SHIFT) {
+            return BUCKET_COUNT - 1;
+        }
+        // the top bit is always set here, so the sub bucket is in [SUB_BUCKET_COUNT / 2, SUB_BUCKET_COUNT)
+        int subBucket = (int) (valueUs >> shift);
+        return shift * SUB_BUCKET_COUNT / 2 + subBucket;
+    }
+
+    /**
+     * @return the highest value that falls into the bucket
+     */
+    static long getBucketUpperBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKET_COUNT / 2) / (SUB_BUCKET_COUNT / 2);
+        long subBucket = index - shift * SUB_BUCKET_COUNT / 2;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    public static class Snapshot {
+        private final long[] mCounts;
+        private final long mCount;
+        private final long mTotalUs;
+        private final long mMaxUs;
+
+        Snapshot(long[] counts, long count, long totalUs, long maxUs) {
+            mCounts = counts;
+            mCount = count;
+            mTotalUs = totalUs;
+            mMaxUs = maxUs;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getMeanUs() {
+            return mCount == 0 ? 0 : mTotalUs / mCount;
+        }
+
+        public long getMaxUs() {
+            return mMaxUs;
+        }
+
+        /**
+         * @param percentile in [0, 100]
+         * @return the upper bound of the bucket holding the percentile, never above the max
+         */
+        public long getPercentileUs(double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * mCount));
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank) {
+                    return Math.min(getBucketUpperBound(i), mMaxUs);
+                }
+            }
+            return mMaxUs;
+        }
+
+        @Override
+        public String toString() {
+            return "count " + mCount + ", mean " + getMeanUs() + "us, p50 " + getPercentileUs(50) + "us, p99 "
+                    + getPercentileUs(99) + "us, max " + mMaxUs + "us";
+        }
+    }
+}
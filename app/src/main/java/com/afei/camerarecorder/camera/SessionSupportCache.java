@@ -0,0 +1,152 @@
+package com.afei.camerarecorder.camera;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.hardware.camera2.CameraAccessException;
+import android.os.Build;
+import android.util.Log;
+import android.util.Size;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Remembers which stream combinations a camera can configure a session with, so a later launch picks a known good one
+ * at once instead of finding out through onConfigureFailed.
+ * <p>
+ * A combination is the camera id, the preview and record sizes, the frame rate, the session type and the format and
+ * size of any extra outputs. Results are kept in shared preferences and dropped when the build fingerprint changes, a
+ * system update may change what the camera HAL supports.
+ */
+public class SessionSupportCache {
+
+    private static final String TAG = "SessionSupportCache";
+    private static final String PREFS_NAME = "session_support";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    private static final String KEY_PROBE_UNSUPPORTED = "probe_unsupported|";  // + camera id
+
+    private final SharedPreferences mPreferences;
+
+    public SessionSupportCache(Context context) {
+        mPreferences = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        if (!Build.FINGERPRINT.equals(mPreferences.getString(KEY_FINGERPRINT, null))) {
+            Log.d(TAG, "new build fingerprint, clear cached results");
+            mPreferences.edit().clear().putString(KEY_FINGERPRINT, Build.FINGERPRINT).apply();
+        }
+    }
+
+    /**
+     * @param extraOutputs {@link #output(int, Size)} of outputs other than the preview and the record surface, in the
+     *                     order they are added to the session
+     */
+    public static String key(String cameraId, Size previewSize, Size recordSize, int frameRate, int sessionType,
+                             String... extraOutputs) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(cameraId).append('|').append(previewSize).append('|').append(recordSize).append('|')
+                .append(frameRate).append('|').append(sessionType);
+        for (String output : extraOutputs) {
+            builder.append('|').append(output);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return an extra output for {@link #key}, two YUV outputs of different sizes are different combinations
+     */
+    public static String output(int format, Size size) {
+        return format + "@" + size;
+    }
+
+    /**
+     * @return the result of an earlier probe or session, null if the combination was never tried
+     */
+    @Nullable
+    public Boolean isSupported(String key) {
+        return mPreferences.contains(key) ? mPreferences.getBoolean(key, false) : null;
+    }
+
+    public void setSupported(String key, boolean supported) {
+        Boolean cached = isSupported(key);
+        if (cached == null || cached != supported) {
+            mPreferences.edit().putBoolean(key, supported).apply();
+        }
+    }
+
+    /**
+     * Asks the camera whether it can configure the session, the answer is cached. Much cheaper than creating the
+     * session, but it needs the opened camera.
+     *
+     * @return false only if the camera said no. An error while asking counts as supported and is not cached, the
+     * session is tried then. A camera that can not be asked at all is not asked again on this build.
+     */
+    public boolean probe(@NonNull CameraBackend backend, String cameraId, @NonNull List<CameraBackend.Output> outputs,
+                         int sessionType, @NonNull CameraBackend.Request sessionParameters, String key) {
+        Boolean cached = isSupported(key);
+        if (cached != null) {
+            return cached;
+        }
+        if (mPreferences.getBoolean(KEY_PROBE_UNSUPPORTED + cameraId, false)) {
+            return true;
+        }
+        long start = System.nanoTime();
+        try {
+            boolean supported = backend.isSessionSupported(outputs, sessionType, sessionParameters);
+            Log.d(TAG, "probe " + key + ": " + supported + ", cost: " + (System.nanoTime() - start) / 1000 + "us");
+            setSupported(key, supported);
+            return supported;
+        } catch (UnsupportedOperationException e) {
+            Log.w(TAG, "camera " + cameraId + " can not probe sessions, try them without asking");
+            mPreferences.edit().putBoolean(KEY_PROBE_UNSUPPORTED + cameraId, true).apply();
+            return true;
+        } catch (CameraAccessException | IllegalArgumentException | IllegalStateException e) {
+            Log.w(TAG, "probe " + key + " failed, try the session");
+            e.printStackTrace();
+            return true;
+        }
+    }
+
+    /**
+     * Picks the preview size to open with: the preferred one, unless it is known to fail. Then the largest smaller
+     * size of the same aspect ratio not known to fail, the closest to what was asked, so the view keeps its layout.
+     *
+     * @param candidates sizes the camera supports in any order, record size is the same as the preview size
+     */
+    public Size chooseSize(String cameraId, Size preferred, @Nullable List<Size> candidates, int frameRate,
+                           int sessionType) {
+        if (!Boolean.FALSE.equals(isSupported(key(cameraId, preferred, preferred, frameRate, sessionType)))) {
+            return preferred;
+        }
+        for (Size size : getSmallerSizes(preferred, candidates)) {
+            if (!Boolean.FALSE.equals(isSupported(key(cameraId, size, size, frameRate, sessionType)))) {
+                Log.i(TAG, preferred + " failed before on camera " + cameraId + ", use " + size);
+                return size;
+            }
+        }
+        Log.w(TAG, preferred + " failed before on camera " + cameraId + ", no other size to try");
+        return preferred;
+    }
+
+    /**
+     * @return the candidates of the aspect ratio of size that are smaller than it, largest first
+     */
+    public static List<Size> getSmallerSizes(Size size, @Nullable List<Size> candidates) {
+        ArrayList<Size> sizes = new ArrayList<>();
+        if (candidates == null) {
+            return sizes;
+        }
+        long area = (long) size.getWidth() * size.getHeight();
+        for (Size candidate : candidates) {
+            if ((long) candidate.getWidth() * size.getHeight() == (long) candidate.getHeight() * size.getWidth()
+                    && (long) candidate.getWidth() * candidate.getHeight() < area) {
+                sizes.add(candidate);
+            }
+        }
+        Collections.sort(sizes, (a, b) -> Long.compare((long) b.getWidth() * b.getHeight(),
+                (long) a.getWidth() * a.getHeight()));
+        return sizes;
+    }
+}
@@ -0,0 +1,259 @@
+package com.afei.camerarecorder.camera;
+
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.util.Size;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The output sizes of one camera for one format, grouped by aspect ratio and sorted, so choosing a size is a binary
+ * search instead of a scan of every size and ratio.
+ * <p>
+ * Sizes are grouped by their reduced long:short ratio, 1920x1080 and 1280x720 are both 16:9, 1920x1088 is 30:17, so
+ * the groups do not depend on the order of the sizes. A query takes every group within a relative tolerance of the
+ * ratio it asks for, 16:9 gets 1920x1088 too. Within a group sizes are sorted by their short side, which sorts them by
+ * area too.
+ */
+public class SizeCatalog {
+
+    public static final float ASPECT_TOLERANCE = 0.01f;  // relative
+
+    // ties broken by the long side, then landscape first, so the order does not depend on the input either
+    private static final Comparator<Size> SHORT_SIDE_COMPARATOR = (a, b) -> {
+        int result = Integer.compare(getShortSide(a), getShortSide(b));
+        if (result == 0) {
+            result = Integer.compare(Math.max(a.getWidth(), a.getHeight()), Math.max(b.getWidth(), b.getHeight()));
+        }
+        return result != 0 ? result : Integer.compare(b.getWidth(), a.getWidth());
+    };
+
+    public interface SizeFilter {
+        boolean accept(Size size);
+    }
+
+    private final ArrayList<Bucket> mBuckets = new ArrayList<>();
+    private final Size[] mAllSizes;  // sorted by short side
+    private final long[] mMinFrameDurationsNs;  // parallel to mAllSizes, 0 if unknown
+    private final int[] mAllIndices;  // 0 to n - 1, for a target of any ratio
+
+    private static class Bucket {
+        final float ratio;  // long side / short side, of the reduced ratio
+        int[] indices = new int[4];  // into mAllSizes, so sorted too
+        int count;
+
+        Bucket(int longSide, int shortSide) {
+            this.ratio = (float) longSide / shortSide;
+        }
+
+        void add(int index) {
+            if (count == indices.length) {
+                indices = Arrays.copyOf(indices, count * 2);
+            }
+            indices[count++] = index;
+        }
+    }
+
+    public SizeCatalog(Size[] sizes) {
+        this(sizes, null);
+    }
+
+    /**
+     * @param minFrameDurationsNs minimum frame duration of each size, parallel to sizes, null if unknown
+     */
+    public SizeCatalog(Size[] sizes, @Nullable long[] minFrameDurationsNs) {
+        int count = sizes == null ? 0 : sizes.length;
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> SHORT_SIDE_COMPARATOR.compare(sizes[a], sizes[b]));
+        mAllSizes = new Size[count];
+        mMinFrameDurationsNs = new long[count];
+        mAllIndices = new int[count];
+        HashMap<Long, Bucket> buckets = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            mAllSizes[i] = sizes[order[i]];
+            mMinFrameDurationsNs[i] = minFrameDurationsNs == null ? 0 : minFrameDurationsNs[order[i]];
+            mAllIndices[i] = i;
+            int longSide = Math.max(mAllSizes[i].getWidth(), mAllSizes[i].getHeight());
+            int shortSide = getShortSide(mAllSizes[i]);
+            int gcd = gcd(longSide, shortSide);
+            long key = ((long) (longSide / gcd) << 32) | (shortSide / gcd);
+            Bucket bucket = buckets.get(key);
+            if (bucket == null) {
+                bucket = new Bucket(longSide / gcd, shortSide / gcd);
+                buckets.put(key, bucket);
+                mBuckets.add(bucket);
+            }
+            bucket.add(i);
+        }
+    }
+
+    public static SizeCatalog create(StreamConfigurationMap map, int format) {
+        Size[] sizes = map.getOutputSizes(format);
+        long[] durations = new long[sizes == null ? 0 : sizes.length];
+        for (int i = 0; i < durations.length; i++) {
+            durations[i] = map.getOutputMinFrameDuration(format, sizes[i]);
+        }
+        return new SizeCatalog(sizes, durations);
+    }
+
+    public static <T> SizeCatalog create(StreamConfigurationMap map, Class<T> klass) {
+        Size[] sizes = map.getOutputSizes(klass);
+        long[] durations = new long[sizes == null ? 0 : sizes.length];
+        for (int i = 0; i < durations.length; i++) {
+            durations[i] = map.getOutputMinFrameDuration(klass, sizes[i]);
+        }
+        return new SizeCatalog(sizes, durations);
+    }
+
+    /**
+     * @return all sizes, smallest first
+     */
+    public List<Size> getSizes() {
+        return Arrays.asList(mAllSizes);
+    }
+
+    /**
+     * @param ratio long side / short side, 4:3 is 4f / 3
+     * @return sizes of the ratio within {@link #ASPECT_TOLERANCE}, smallest first
+     */
+    public List<Size> getSizes(float ratio) {
+        ratio = normalize(ratio);
+        boolean[] matches = new boolean[mAllSizes.length];
+        for (int i = 0; i < mBuckets.size(); i++) {
+            Bucket bucket = mBuckets.get(i);
+            if (isMatch(bucket, ratio)) {
+                for (int j = 0; j < bucket.count; j++) {
+                    matches[bucket.indices[j]] = true;
+                }
+            }
+        }
+        ArrayList<Size> sizes = new ArrayList<>();
+        for (int i = 0; i < matches.length; i++) {
+            if (matches[i]) {
+                sizes.add(mAllSizes[i]);
+            }
+        }
+        return sizes;
+    }
+
+    /**
+     * Finds the size whose short side is closest to the target, among the given ratios. If no size of these ratios
+     * meets the constraints, any ratio will do.
+     *
+     * @param ratios       long side / short side, or short over long as {@link CameraUtil} used to pass them
+     * @param maxSize      largest width and height allowed, such as the encoder limit, null for none
+     * @param minFrameRate frame rate the size has to reach, 0 for any
+     * @return null only if no size meets the constraints
+     */
+    @Nullable
+    public Size choose(float[] ratios, int targetShortSide, @Nullable Size maxSize, int minFrameRate) {
+        return choose(ratios, targetShortSide, maxSize, minFrameRate, null);
+    }
+
+    /**
+     * @param filter further constraint a size has to meet, such as the sizes an encoder takes, null for none
+     */
+    @Nullable
+    public Size choose(float[] ratios, int targetShortSide, @Nullable Size maxSize, int minFrameRate,
+                       @Nullable SizeFilter filter) {
+        long maxFrameDurationNs = minFrameRate > 0 ? 1000000000L / minFrameRate : Long.MAX_VALUE;
+        Size best = null;
+        if (ratios != null) {
+            for (float ratio : ratios) {
+                ratio = normalize(ratio);
+                for (int i = 0; i < mBuckets.size(); i++) {
+                    Bucket bucket = mBuckets.get(i);
+                    if (!isMatch(bucket, ratio)) {
+                        continue;
+                    }
+                    Size size = closest(bucket.indices, bucket.count, targetShortSide, maxSize, maxFrameDurationNs,
+                            filter);
+                    if (size != null && (best == null || isCloser(size, best, targetShortSide))) {
+                        best = size;
+                    }
+                }
+            }
+        }
+        if (best == null) {
+            best = closest(mAllIndices, mAllIndices.length, targetShortSide, maxSize, maxFrameDurationNs, filter);
+        }
+        return best;
+    }
+
+    /**
+     * Binary search for the target, then walks out to both sides until a size meets the constraints.
+     */
+    private Size closest(int[] indices, int count, int targetShortSide, Size maxSize, long maxFrameDurationNs,
+                         SizeFilter filter) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getShortSide(mAllSizes[indices[mid]]) < targetShortSide) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        // low is the first size not smaller than the target
+        int up = low;
+        int down = low - 1;
+        while (up < count || down >= 0) {
+            int index;
+            if (down < 0 || (up < count && getShortSide(mAllSizes[indices[up]]) - targetShortSide
+                    <= targetShortSide - getShortSide(mAllSizes[indices[down]]))) {
+                index = indices[up++];
+            } else {
+                index = indices[down--];
+            }
+            if (accept(index, maxSize, maxFrameDurationNs, filter)) {
+                return mAllSizes[index];
+            }
+        }
+        return null;
+    }
+
+    private boolean accept(int index, Size maxSize, long maxFrameDurationNs, SizeFilter filter) {
+        Size size = mAllSizes[index];
+        if (maxSize != null && (size.getWidth() > maxSize.getWidth() || size.getHeight() > maxSize.getHeight())) {
+            return false;
+        }
+        return mMinFrameDurationsNs[index] <= maxFrameDurationNs && (filter == null || filter.accept(size));
+    }
+
+    /**
+     * The tolerance is relative to the ratio asked for, not to a size of the group.
+     */
+    private static boolean isMatch(Bucket bucket, float ratio) {
+        return Math.abs(bucket.ratio - ratio) <= ratio * ASPECT_TOLERANCE;
+    }
+
+    private static boolean isCloser(Size a, Size b, int targetShortSide) {
+        return Math.abs(getShortSide(a) - targetShortSide) < Math.abs(getShortSide(b) - targetShortSide);
+    }
+
+    private static float normalize(float ratio) {
+        return ratio < 1 ? 1 / ratio : ratio;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    private static int getShortSide(Size size) {
+        return Math.min(size.getWidth(), size.getHeight());
+    }
+}
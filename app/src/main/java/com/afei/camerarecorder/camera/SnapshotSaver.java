@@ -0,0 +1,115 @@
+package com.afei.camerarecorder.camera;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * JPEG output of the video session, for still captures during preview or record.
+ * <p>
+ * Images arrive on the io stage. Each one is copied into a byte array and closed right away, so the camera gets its
+ * buffer back before the file is written. Copy and write both run on the io stage, one image after the other, so a
+ * single array is enough. It grows to the largest JPEG seen and is kept, a snapshot allocates nothing once it is warm.
+ */
+public class SnapshotSaver {
+
+    private static final String TAG = "SnapshotSaver";
+    private static final int MAX_IMAGES = 2;  // one being copied, one being captured
+
+    public interface OnSnapshotListener {
+        /**
+         * Called on the io stage.
+         *
+         * @param file null if the snapshot could not be written
+         */
+        void onSnapshotSaved(File file);
+    }
+
+    private final ImageReader mImageReader;
+    private final File mSaveDirectory;
+    private byte[] mBuffer = new byte[0];  // only touched on the io stage
+    private volatile OnSnapshotListener mListener;
+
+    public SnapshotSaver(Size pictureSize, Handler ioHandler, File saveDirectory) {
+        mSaveDirectory = saveDirectory;
+        mImageReader = ImageReader.newInstance(pictureSize.getWidth(), pictureSize.getHeight(), ImageFormat.JPEG,
+                MAX_IMAGES);
+        mImageReader.setOnImageAvailableListener(reader -> save(), ioHandler);
+    }
+
+    public Surface getSurface() {
+        return mImageReader.getSurface();
+    }
+
+    public void setOnSnapshotListener(OnSnapshotListener listener) {
+        mListener = listener;
+    }
+
+    public void release() {
+        mImageReader.close();
+    }
+
+    private void save() {
+        int length;
+        Image image = null;
+        try {
+            image = mImageReader.acquireNextImage();
+            if (image == null) {
+                return;
+            }
+            ByteBuffer data = image.getPlanes()[0].getBuffer();
+            length = data.remaining();
+            if (mBuffer.length < length) {
+                mBuffer = new byte[length];
+            }
+            data.get(mBuffer, 0, length);
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "image reader is closed");  // released while the image was on its way
+            return;
+        } finally {
+            if (image != null) {
+                image.close();
+            }
+        }
+        File file = newFile(mSaveDirectory);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(mBuffer, 0, length);
+        } catch (IOException e) {
+            Log.e(TAG, "write " + file + " failed! ");
+            e.printStackTrace();
+            file = null;
+        }
+        notifySaved(file);
+    }
+
+    private void notifySaved(File file) {
+        OnSnapshotListener listener = mListener;
+        if (listener != null) {
+            listener.onSnapshotSaved(file);
+        }
+    }
+
+    /**
+     * @return a new IMG_ file of the current time, the directory is created if needed
+     */
+    static File newFile(File saveDirectory) {
+        saveDirectory.mkdirs();
+        String name = "IMG_" + new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
+        File file = new File(saveDirectory, name + ".jpg");
+        for (int i = 1; file.exists(); i++) {
+            file = new File(saveDirectory, name + "_" + i + ".jpg");
+        }
+        return file;
+    }
+}
@@ -0,0 +1,194 @@
+package com.afei.camerarecorder.camera;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A HandlerThread for one stage of the camera pipeline, with a thread priority, a bounded hand off queue and busy
+ * time metrics.
+ * <p>
+ * Everything that goes through {@link #getHandler()}, framework callbacks included, is counted in the queue depth and
+ * the busy time. Only {@link #offer(Runnable)} is bounded: callbacks of the framework are never refused. Messages
+ * must not be removed from the handler, they would stay in the queue depth.
+ */
+public class StageThread {
+
+    private static final String TAG = "StageThread";
+
+    private final String mName;
+    private final int mPriority;
+    private final int mCapacity;
+    private HandlerThread mThread;
+    private StageHandler mHandler;
+
+    private final AtomicInteger mQueueDepth = new AtomicInteger();
+    private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+    private final AtomicLong mBusyTimeNs = new AtomicLong();
+    private final AtomicLong mMessageCount = new AtomicLong();
+    private final AtomicLong mRejectedCount = new AtomicLong();
+    private volatile long mMetricsStartNs;
+
+    /**
+     * @param priority a android.os.Process thread priority
+     * @param capacity the most messages waiting before {@link #offer(Runnable)} refuses more
+     */
+    public StageThread(String name, int priority, int capacity) {
+        mName = name;
+        mPriority = priority;
+        mCapacity = capacity;
+    }
+
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = new HandlerThread(mName, mPriority);
+        mThread.start();
+        mHandler = new StageHandler(mThread.getLooper());
+        mQueueDepth.set(0);
+        resetMetrics();
+    }
+
+    /**
+     * Stops after the messages already queued.
+     *
+     * @param timeoutMs how long to wait for the queued messages, 0 to return at once. Never waits when called on this
+     *                  thread
+     */
+    public void quit(long timeoutMs) {
+        HandlerThread thread;
+        synchronized (this) {
+            thread = mThread;
+            mThread = null;
+            mHandler = null;
+        }
+        if (thread == null) {
+            return;
+        }
+        thread.quitSafely();
+        if (timeoutMs <= 0 || Thread.currentThread() == thread) {
+            return;
+        }
+        try {
+            thread.join(timeoutMs);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        if (thread.isAlive()) {
+            Log.w(TAG, mName + " still busy after " + timeoutMs + "ms, leave it");
+        }
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public synchronized Handler getHandler() {
+        return mHandler;
+    }
+
+    public synchronized boolean isCurrentThread() {
+        return mThread != null && Thread.currentThread() == mThread;
+    }
+
+    /**
+     * Hands a task over to this stage.
+     *
+     * @return false if the stage is not started or its queue is full, the caller decides what to do with the task.
+     * Both are counted in {@link #getRejectedCount()}
+     */
+    public boolean offer(Runnable task) {
+        Handler handler = getHandler();
+        if (handler == null || mQueueDepth.get() >= mCapacity || !handler.post(task)) {
+            mRejectedCount.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    public int getQueueDepth() {
+        return mQueueDepth.get();
+    }
+
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth.get();
+    }
+
+    public long getRejectedCount() {
+        return mRejectedCount.get();
+    }
+
+    public long getMessageCount() {
+        return mMessageCount.get();
+    }
+
+    public long getBusyTimeMs() {
+        return mBusyTimeNs.get() / 1000000;
+    }
+
+    /**
+     * @return part of the time since the last reset this thread spent running messages, in [0, 1]
+     */
+    public float getUtilization() {
+        long elapsedNs = SystemClock.elapsedRealtimeNanos() - mMetricsStartNs;
+        return elapsedNs <= 0 ? 0 : Math.min(1f, (float) mBusyTimeNs.get() / elapsedNs);
+    }
+
+    public void resetMetrics() {
+        mMaxQueueDepth.set(mQueueDepth.get());
+        mBusyTimeNs.set(0);
+        mMessageCount.set(0);
+        mRejectedCount.set(0);
+        mMetricsStartNs = SystemClock.elapsedRealtimeNanos();
+    }
+
+    @Override
+    public String toString() {
+        return mName + ": busy " + getBusyTimeMs() + "ms (" + Math.round(getUtilization() * 100) + "%), messages "
+                + getMessageCount() + ", queue " + getQueueDepth() + " max " + getMaxQueueDepth() + ", rejected "
+                + getRejectedCount();
+    }
+
+    private class StageHandler extends Handler {
+
+        StageHandler(@NonNull Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public boolean sendMessageAtTime(@NonNull Message msg, long uptimeMillis) {
+            int depth = mQueueDepth.incrementAndGet();  // before queueing, the message may run at once
+            boolean queued = super.sendMessageAtTime(msg, uptimeMillis);
+            if (!queued) {
+                mQueueDepth.decrementAndGet();
+                return false;
+            }
+            int max = mMaxQueueDepth.get();
+            while (depth > max && !mMaxQueueDepth.compareAndSet(max, depth)) {
+                max = mMaxQueueDepth.get();
+            }
+            return true;
+        }
+
+        @Override
+        public void dispatchMessage(@NonNull Message msg) {
+            mQueueDepth.decrementAndGet();
+            long startTime = SystemClock.elapsedRealtimeNanos();
+            try {
+                super.dispatchMessage(msg);
+            } finally {
+                mBusyTimeNs.addAndGet(SystemClock.elapsedRealtimeNanos() - startTime);
+                mMessageCount.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package com.afei.camerarecorder.camera;
+
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CaptureRequest;
+import android.os.Handler;
+import android.util.Range;
+import android.util.Size;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A {@link CameraBackend} without any hardware, frames are produced by a "sensor" thread at a fixed rate and their
+ * capture callbacks posted to the handler of the open, like the camera does.
+ * <p>
+ * The sensor has {@link #MAX_IN_FLIGHT} frames of buffers: while that many callbacks are still queued on a busy
+ * handler the next frames are dropped, the frame number jumps and {@link #getDroppedFrameCount()} increases. A sensor
+ * thread that itself falls behind drops the frames it missed the same way.
+ * <p>
+ * Each frame is read out as a YUV 4:2:0 image of the frame size into a buffer of every target of the request, so a
+ * larger size or a record target costs what the copies cost.
+ */
+public class SyntheticCameraBackend implements CameraBackend {
+
+    public static final String DEFAULT_CAMERA_ID = "0";
+    public static final int DEFAULT_FRAME_RATE = 30;
+    public static final Size DEFAULT_FRAME_SIZE = new Size(1920, 1080);
+    public static final int MAX_IN_FLIGHT = 4;  // frames queued on the handler before the sensor drops
+    // same value as CameraDevice.StateCallback.ERROR_CAMERA_DEVICE
+    private static final int ERROR_CAMERA_DEVICE = 4;
+
+    private final String[] mCameraIdList;
+    private final int mFrameRate;
+    private final int mFrameBytes;
+    private final byte[] mPattern;  // noise a frame and a row long, frames are read from it at a moving offset
+    private final int mPatternShift;
+    private final long mOpenDelayMs;
+    private final long mSessionDelayMs;
+
+    private Handler mHandler;  // guarded by this
+    private int mGeneration;  // guarded by this, an open or session made before the last close is stale
+    private boolean mOpened;  // guarded by this
+    private boolean mSessionConfigured;  // guarded by this
+    private Thread mSensorThread;  // guarded by this
+    private ByteBuffer[][] mTargetBuffers = new ByteBuffer[0][];  // guarded by this, MAX_IN_FLIGHT per target
+    private volatile boolean mRepeating;
+    private volatile int mSessionFrameRate;
+
+    private final AtomicLong mNextFrameNumber = new AtomicLong();
+    private final AtomicInteger mInFlight = new AtomicInteger();
+    private final AtomicLong mFrameCount = new AtomicLong();
+    private final AtomicLong mDroppedFrameCount = new AtomicLong();
+    private final AtomicLong mBytesWritten = new AtomicLong();
+
+    public SyntheticCameraBackend() {
+        this(new String[]{DEFAULT_CAMERA_ID}, DEFAULT_FRAME_SIZE, DEFAULT_FRAME_RATE, 0, 0);
+    }
+
+    /**
+     * @param frameSize      of the YUV 4:2:0 image written to each target for every frame
+     * @param frameRate      of a repeating request without a CONTROL_AE_TARGET_FPS_RANGE
+     * @param openDelayMs    simulated time of opening the device
+     * @param sessionDelayMs simulated time of configuring a session
+     */
+    public SyntheticCameraBackend(String[] cameraIdList, Size frameSize, int frameRate, long openDelayMs,
+                                  long sessionDelayMs) {
+        mCameraIdList = cameraIdList.clone();
+        mFrameBytes = frameSize.getWidth() * frameSize.getHeight() * 3 / 2;
+        mPatternShift = frameSize.getWidth();
+        mPattern = new byte[mFrameBytes + mPatternShift];
+        new Random(mFrameBytes).nextBytes(mPattern);
+        mFrameRate = frameRate;
+        mOpenDelayMs = openDelayMs;
+        mSessionDelayMs = sessionDelayMs;
+    }
+
+    @Override
+    public String[] getCameraIdList() {
+        return mCameraIdList.clone();
+    }
+
+    @Override
+    public CameraCharacteristics getCameraCharacteristics(String cameraId) {
+        if (!isValidCameraId(cameraId)) {
+            throw new IllegalArgumentException("no camera " + cameraId);
+        }
+        return null;  // no hardware to describe, the module goes with defaults
+    }
+
+    private boolean isValidCameraId(String cameraId) {
+        for (String id : mCameraIdList) {
+            if (id.equals(cameraId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void openCamera(String cameraId, StateCallback callback, Handler handler) {
+        closeCamera();
+        int generation;
+        synchronized (this) {
+            mHandler = handler;
+            generation = mGeneration;
+        }
+        handler.postDelayed(() -> {
+            synchronized (this) {
+                if (generation != mGeneration) {
+                    return;  // closed meanwhile
+                }
+                mOpened = isValidCameraId(cameraId);
+            }
+            if (isValidCameraId(cameraId)) {
+                callback.onOpened();
+            } else {
+                callback.onError(ERROR_CAMERA_DEVICE);
+            }
+        }, mOpenDelayMs);
+    }
+
+    @Override
+    public synchronized boolean isSessionSupported(List<Output> outputs, int sessionType, Request sessionParameters) {
+        checkOpened();
+        return !outputs.isEmpty();
+    }
+
+    @Override
+    public void createSession(List<Output> outputs, int sessionType, Request sessionParameters,
+                              SessionCallback callback) {
+        closeSession();
+        Handler handler;
+        int generation;
+        synchronized (this) {
+            checkOpened();
+            handler = mHandler;
+            generation = mGeneration;
+        }
+        handler.postDelayed(() -> {
+            synchronized (this) {
+                if (generation != mGeneration) {
+                    return;
+                }
+                mSessionConfigured = !outputs.isEmpty();
+            }
+            if (outputs.isEmpty()) {
+                callback.onConfigureFailed();
+            } else {
+                callback.onConfigured();
+            }
+        }, mSessionDelayMs);
+    }
+
+    @Override
+    public synchronized void finalizeOutput(Output output, Surface surface) {
+        checkConfigured();
+        output.setSurface(surface);
+    }
+
+    @Override
+    public synchronized void setRepeatingRequest(Request request, CaptureListener listener) {
+        checkConfigured();
+        stopSensor();
+        Range<Integer> fpsRange = request.get(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE);
+        int frameRate = fpsRange != null ? fpsRange.getUpper() : mFrameRate;
+        mSessionFrameRate = frameRate;
+        Handler handler = mHandler;
+        ByteBuffer[][] buffers = getTargetBuffers(request.getTargets().size());
+        final long intervalNs = TimeUnit.SECONDS.toNanos(1) / frameRate;
+        mRepeating = true;
+        mSensorThread = new Thread(() -> {
+            long deadline = System.nanoTime();
+            while (mRepeating) {
+                long now = System.nanoTime();
+                if (now < deadline) {
+                    LockSupport.parkNanos(deadline - now);
+                    continue;
+                }
+                long missed = (now - deadline) / intervalNs;
+                if (missed > 0) {
+                    // the sensor thread itself fell behind, these frames were never exposed
+                    mDroppedFrameCount.addAndGet(missed);
+                    mNextFrameNumber.addAndGet(missed);
+                    deadline += missed * intervalNs;
+                }
+                long frameNumber = mNextFrameNumber.getAndIncrement();
+                if (mInFlight.get() >= MAX_IN_FLIGHT) {
+                    mDroppedFrameCount.incrementAndGet();  // no free buffer, the handler is behind
+                } else {
+                    readOut(buffers, frameNumber);
+                    deliver(handler, listener, frameNumber, deadline);
+                }
+                deadline += intervalNs;
+            }
+        }, "SyntheticCameraSensor");
+        mSensorThread.start();
+    }
+
+    @Override
+    public synchronized void capture(Request request, CaptureListener listener) {
+        checkConfigured();
+        long frameNumber = mNextFrameNumber.getAndIncrement();
+        readOut(getTargetBuffers(request.getTargets().size()), frameNumber);
+        deliver(mHandler, listener, frameNumber, System.nanoTime());
+    }
+
+    /**
+     * @return the buffers of the first targetCount targets, allocated once and kept for the next sessions
+     */
+    private ByteBuffer[][] getTargetBuffers(int targetCount) {
+        if (mTargetBuffers.length < targetCount) {
+            ByteBuffer[][] buffers = new ByteBuffer[targetCount][];
+            System.arraycopy(mTargetBuffers, 0, buffers, 0, mTargetBuffers.length);
+            for (int i = mTargetBuffers.length; i < targetCount; i++) {
+                buffers[i] = new ByteBuffer[MAX_IN_FLIGHT];
+                for (int j = 0; j < MAX_IN_FLIGHT; j++) {
+                    buffers[i][j] = ByteBuffer.allocateDirect(mFrameBytes);
+                }
+            }
+            mTargetBuffers = buffers;
+        }
+        ByteBuffer[][] buffers = new ByteBuffer[targetCount][];
+        System.arraycopy(mTargetBuffers, 0, buffers, 0, targetCount);
+        return buffers;
+    }
+
+    /**
+     * Writes the frame into the buffer of each target it is in flight in.
+     */
+    private void readOut(ByteBuffer[][] buffers, long frameNumber) {
+        int offset = (int) (frameNumber % mPatternShift);  // the scene moves a pixel a frame
+        for (ByteBuffer[] target : buffers) {
+            ByteBuffer buffer = target[(int) (frameNumber % MAX_IN_FLIGHT)];
+            buffer.clear();
+            buffer.put(mPattern, offset, mFrameBytes);
+        }
+        mBytesWritten.addAndGet((long) mFrameBytes * buffers.length);
+    }
+
+    private void deliver(Handler handler, CaptureListener listener, long frameNumber, long timestampNs) {
+        mInFlight.incrementAndGet();
+        boolean posted = handler.post(() -> {
+            mInFlight.decrementAndGet();
+            listener.onCaptureStarted(frameNumber, timestampNs);
+            listener.onCaptureCompleted(frameNumber);
+            mFrameCount.incrementAndGet();
+        });
+        if (!posted) {
+            mInFlight.decrementAndGet();  // the handler quit, nobody waits for frames anymore
+        }
+    }
+
+    @Override
+    public synchronized void stopRepeating() {
+        checkConfigured();
+        stopSensor();
+    }
+
+    private void stopSensor() {
+        mRepeating = false;
+        if (mSensorThread != null) {
+            try {
+                mSensorThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mSensorThread = null;
+        }
+    }
+
+    @Override
+    public synchronized void closeSession() {
+        stopSensor();
+        mSessionConfigured = false;
+        mGeneration++;
+    }
+
+    @Override
+    public synchronized void closeCamera() {
+        closeSession();
+        mOpened = false;
+    }
+
+    private void checkOpened() {
+        if (!mOpened) {
+            throw new IllegalStateException("camera is not opened");
+        }
+    }
+
+    private void checkConfigured() {
+        if (!mSessionConfigured) {
+            throw new IllegalStateException("session is not configured");
+        }
+    }
+
+    /**
+     * @return frame rate of the last repeating request
+     */
+    public int getSessionFrameRate() {
+        return mSessionFrameRate;
+    }
+
+    /**
+     * @return frames whose callbacks were delivered
+     */
+    public long getFrameCount() {
+        return mFrameCount.get();
+    }
+
+    public long getDroppedFrameCount() {
+        return mDroppedFrameCount.get();
+    }
+
+    /**
+     * @return bytes of frames written to the targets
+     */
+    public long getBytesWritten() {
+        return mBytesWritten.get();
+    }
+
+    public void resetCounters() {
+        mFrameCount.set(0);
+        mDroppedFrameCount.set(0);
+        mBytesWritten.set(0);
+    }
+}
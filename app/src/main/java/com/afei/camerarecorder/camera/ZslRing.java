@@ -0,0 +1,272 @@
+package com.afei.camerarecorder.camera;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.media.ExifInterface;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+
+import com.afei.camerarecorder.image.YuvConverter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Zero shutter lag: keeps the last frames of a full resolution YUV output of the video session, so a snapshot takes
+ * the frame of the moment the shutter was pressed instead of one captured after it.
+ * <p>
+ * Frames stay in the buffers of the image reader until they are picked or pushed out, nothing is copied meanwhile.
+ * The ring holds all but one of the buffer count as images, the last is the NV21 copy the picked frame is compressed
+ * from. One of the images is kept free for the next frame, so the camera never waits for this output.
+ * <p>
+ * The memory is more than the buffer count: the buffer queue of the reader also has the buffers the camera is
+ * filling, up to its pipeline depth. The HAL decides their exact number, {@link #getMemoryBytes()} estimates it with
+ * the pipeline depth.
+ * <p>
+ * Frames arrive and are picked on the control stage, the picked one is converted and compressed on the io stage.
+ */
+public class ZslRing {
+
+    private static final String TAG = "ZslRing";
+    public static final int MIN_BUFFER_COUNT = 3;  // one frame to pick, one arriving, one NV21 copy
+    public static final int DEFAULT_PIPELINE_DEPTH = 8;  // the most REQUEST_PIPELINE_MAX_DEPTH may report
+    private static final int JPEG_QUALITY = 95;
+
+    private final ImageReader mImageReader;
+    private final Size mSize;
+    private final int mMaxImages;
+    private final int mPipelineDepth;
+    private final int mWidth;
+    private final int mHeight;
+    private final Handler mIoHandler;
+    private final File mSaveDirectory;
+    private final ArrayDeque<Image> mRing = new ArrayDeque<>();  // guarded by this, oldest first
+    private final AtomicBoolean mEncoding = new AtomicBoolean();  // the NV21 copy is in use, at most one at a time
+    private final byte[] mNv21;  // only used on the io stage
+    private final byte[] mScratch;
+    private final LatencyHistogram mSaveLatencies = new LatencyHistogram();
+    private volatile int mJpegOrientation;
+    private volatile SnapshotSaver.OnSnapshotListener mListener;
+    private Image mOutImage;  // guarded by this, picked and not yet converted
+    private boolean mReleased;  // guarded by this
+
+    /**
+     * @param size        an even width, see {@link YuvConverter#yuv420888ToNv21}
+     * @param bufferCount   frame buffers of the ring, at least {@link #MIN_BUFFER_COUNT}
+     * @param pipelineDepth REQUEST_PIPELINE_MAX_DEPTH of the camera, the buffers it may fill besides the ring's
+     * @param handler       where frames arrive and snapshots are picked, the control stage
+     */
+    public ZslRing(Size size, int bufferCount, int pipelineDepth, Handler handler, Handler ioHandler,
+                   File saveDirectory) {
+        mSize = size;
+        mWidth = size.getWidth();
+        mHeight = size.getHeight();
+        mMaxImages = Math.max(MIN_BUFFER_COUNT, bufferCount) - 1;
+        mPipelineDepth = Math.max(1, pipelineDepth);
+        mIoHandler = ioHandler;
+        mSaveDirectory = saveDirectory;
+        mNv21 = new byte[getFrameBytes()];
+        mScratch = new byte[YuvConverter.getScratchSize(mWidth)];
+        mImageReader = ImageReader.newInstance(mWidth, mHeight, ImageFormat.YUV_420_888, mMaxImages);
+        mImageReader.setOnImageAvailableListener(reader -> onImageAvailable(), handler);
+        Log.d(TAG, "ring of " + size + ", " + mMaxImages + " images, " + getBufferCount()
+                + " buffers with the camera's, memory: " + getMemoryBytes() / 1024 + "KB");
+    }
+
+    public Surface getSurface() {
+        return mImageReader.getSurface();
+    }
+
+    public Size getSize() {
+        return mSize;
+    }
+
+    public void setOnSnapshotListener(SnapshotSaver.OnSnapshotListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @param degrees clockwise rotation written to the EXIF of the next snapshots
+     */
+    public void setJpegOrientation(int degrees) {
+        mJpegOrientation = degrees;
+    }
+
+    /**
+     * @return bytes of one YUV 4:2:0 frame, a buffer may be padded beyond it by the driver
+     */
+    public int getFrameBytes() {
+        return mWidth * mHeight * 3 / 2;
+    }
+
+    /**
+     * @return frame buffers of this output: the images the ring may hold, the ones the camera fills meanwhile, at most
+     * its pipeline depth, and the NV21 copy
+     */
+    public int getBufferCount() {
+        return mMaxImages + mPipelineDepth + 1;
+    }
+
+    /**
+     * @return memory of {@link #getBufferCount()} frames, an estimate as the HAL decides how many buffers it fills
+     */
+    public long getMemoryBytes() {
+        return (long) getBufferCount() * getFrameBytes();
+    }
+
+    /**
+     * @return time from the shutter to the saved file, the count is the snapshots saved
+     */
+    public LatencyHistogram.Snapshot getSaveLatencies() {
+        return mSaveLatencies.snapshot();
+    }
+
+    /**
+     * Closes the frames of the ring. A frame being converted keeps the reader open until it is done.
+     */
+    public synchronized void release() {
+        mReleased = true;
+        while (!mRing.isEmpty()) {
+            mRing.pollFirst().close();
+        }
+        if (mOutImage == null) {
+            mImageReader.close();
+        }
+    }
+
+    private synchronized void onImageAvailable() {
+        if (mReleased) {
+            return;
+        }
+        // the reader may hold mMaxImages, keep one of them free for this image
+        int out = mOutImage != null ? 1 : 0;
+        while (!mRing.isEmpty() && mRing.size() + out >= mMaxImages) {
+            mRing.pollFirst().close();
+        }
+        try {
+            Image image = mImageReader.acquireNextImage();
+            if (image != null) {
+                mRing.addLast(image);
+            }
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "acquire failed, frame dropped");
+        }
+    }
+
+    /**
+     * Takes the frame closest to the target out of the ring and saves it as a JPEG in the background.
+     *
+     * @param targetTimestampNs sensor timestamp to match, negative for the newest frame
+     * @param shutterTimeNs     elapsedRealtimeNanos() of the shutter press, for the latency
+     * @return false if there is no frame or the last snapshot is still being saved, the listener is not called then
+     */
+    public synchronized boolean takeSnapshot(long targetTimestampNs, long shutterTimeNs) {
+        if (mReleased || mRing.isEmpty()) {
+            Log.w(TAG, "no frame to take");
+            return false;
+        }
+        if (!mEncoding.compareAndSet(false, true)) {
+            Log.w(TAG, "last snapshot is still being saved");
+            return false;
+        }
+        Image best = mRing.peekLast();
+        if (targetTimestampNs >= 0) {
+            long bestDistance = Long.MAX_VALUE;
+            for (Image image : mRing) {
+                long distance = Math.abs(image.getTimestamp() - targetTimestampNs);
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    best = image;
+                }
+            }
+            Log.d(TAG, "picked frame " + (best.getTimestamp() - targetTimestampNs) / 1000000 + "ms from the target, "
+                    + mRing.size() + " frames held");
+        }
+        mRing.remove(best);
+        mOutImage = best;
+        if (!mIoHandler.post(() -> save(shutterTimeNs))) {
+            mOutImage = null;
+            best.close();
+            mEncoding.set(false);
+            return false;
+        }
+        return true;
+    }
+
+    private void save(long shutterTimeNs) {
+        File file = null;
+        try {
+            convertOutImage();
+            file = SnapshotSaver.newFile(mSaveDirectory);
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                new YuvImage(mNv21, ImageFormat.NV21, mWidth, mHeight, null)
+                        .compressToJpeg(new Rect(0, 0, mWidth, mHeight), JPEG_QUALITY, out);
+            }
+            writeOrientation(file);
+            mSaveLatencies.record((SystemClock.elapsedRealtimeNanos() - shutterTimeNs) / 1000);
+        } catch (IOException e) {
+            Log.e(TAG, "write " + file + " failed! ");
+            e.printStackTrace();
+            file = null;
+        } finally {
+            mEncoding.set(false);
+        }
+        SnapshotSaver.OnSnapshotListener listener = mListener;
+        if (listener != null) {
+            listener.onSnapshotSaved(file);
+        }
+    }
+
+    /**
+     * Copies the picked frame into the NV21 array and gives its buffer back, before the slow compression.
+     */
+    private void convertOutImage() {
+        Image image;
+        synchronized (this) {
+            image = mOutImage;
+        }
+        try {
+            Image.Plane[] planes = image.getPlanes();
+            YuvConverter.yuv420888ToNv21(planes[0].getBuffer(), planes[0].getRowStride(), planes[1].getBuffer(),
+                    planes[2].getBuffer(), planes[1].getRowStride(), planes[1].getPixelStride(), mWidth, mHeight,
+                    mNv21, mScratch, 0, mHeight);
+        } finally {
+            synchronized (this) {
+                image.close();
+                mOutImage = null;
+                if (mReleased) {
+                    mImageReader.close();  // was waiting for this frame
+                }
+            }
+        }
+    }
+
+    private void writeOrientation(File file) throws IOException {
+        int orientation;
+        switch (mJpegOrientation) {
+            case 90:
+                orientation = ExifInterface.ORIENTATION_ROTATE_90;
+                break;
+            case 180:
+                orientation = ExifInterface.ORIENTATION_ROTATE_180;
+                break;
+            case 270:
+                orientation = ExifInterface.ORIENTATION_ROTATE_270;
+                break;
+            default:
+                return;
+        }
+        ExifInterface exif = new ExifInterface(file.getAbsolutePath());
+        exif.setAttribute(ExifInterface.TAG_ORIENTATION, String.valueOf(orientation));
+        exif.saveAttributes();
+    }
+}
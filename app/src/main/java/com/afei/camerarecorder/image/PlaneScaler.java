@@ -0,0 +1,72 @@
+package com.afei.camerarecorder.image;
+
+/**
+ * Crop and box downscale of 8 bit planes, such as luma, packed with width bytes per row.
+ * <p>
+ * Like {@link YuvConverter}, nothing is allocated and the kernels take a range of output rows for {@link RowStriper}.
+ */
+public final class PlaneScaler {
+
+    private PlaneScaler() {
+    }
+
+    public static void crop(byte[] src, int srcWidth, int left, int top, int width, int height, byte[] dst) {
+        crop(src, srcWidth, left, top, width, dst, 0, height);
+    }
+
+    /**
+     * Copies the rectangle at left, top into dst, width bytes per row.
+     */
+    public static void crop(byte[] src, int srcWidth, int left, int top, int width, byte[] dst, int rowStart,
+                            int rowEnd) {
+        for (int row = rowStart; row < rowEnd; row++) {
+            System.arraycopy(src, (top + row) * srcWidth + left, dst, row * width, width);
+        }
+    }
+
+    /**
+     * @return output width of a box downscale, pixels that do not fill a whole box are left out
+     */
+    public static int getScaledSize(int srcSize, int factor) {
+        return srcSize / factor;
+    }
+
+    public static void boxDownscale(byte[] src, int srcWidth, int srcHeight, int factor, byte[] dst, int[] rowSums) {
+        boxDownscale(src, srcWidth, factor, dst, rowSums, 0, getScaledSize(srcHeight, factor));
+    }
+
+    /**
+     * Averages factor x factor boxes. Source rows are summed column by column first, a loop the JIT vectorizes, then
+     * each output pixel sums factor of those column sums.
+     *
+     * @param rowSums scratch of at least srcWidth ints, one per concurrently running stripe
+     */
+    public static void boxDownscale(byte[] src, int srcWidth, int factor, byte[] dst, int[] rowSums, int rowStart,
+                                    int rowEnd) {
+        int dstWidth = getScaledSize(srcWidth, factor);
+        int usedWidth = dstWidth * factor;
+        int area = factor * factor;
+        int half = area / 2;  // rounds to nearest
+        for (int row = rowStart; row < rowEnd; row++) {
+            int srcOffset = row * factor * srcWidth;
+            for (int col = 0; col < usedWidth; col++) {
+                rowSums[col] = src[srcOffset + col] & 0xff;
+            }
+            for (int i = 1; i < factor; i++) {
+                srcOffset += srcWidth;
+                for (int col = 0; col < usedWidth; col++) {
+                    rowSums[col] += src[srcOffset + col] & 0xff;
+                }
+            }
+            int dstOffset = row * dstWidth;
+            for (int col = 0; col < dstWidth; col++) {
+                int sum = 0;
+                int base = col * factor;
+                for (int i = 0; i < factor; i++) {
+                    sum += rowSums[base + i];
+                }
+                dst[dstOffset + col] = (byte) ((sum + half) / area);
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.afei.camerarecorder.image;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a row kernel over horizontal stripes of a frame on a few fixed threads, the calling thread taking stripes too.
+ * <p>
+ * The threads are created once and wait for work, a {@link #run(int, RowTask)} allocates nothing. One run at a time:
+ * callers from several threads are served one after the other.
+ */
+public class RowStriper {
+
+    private static final int MIN_ROWS_PER_STRIPE = 16;  // smaller stripes cost more in hand off than they save
+
+    public interface RowTask {
+        /**
+         * @param stripe index of the stripe, for picking per stripe scratch
+         */
+        void run(int stripe, int rowStart, int rowEnd);
+    }
+
+    private final Thread[] mWorkers;
+    private final Object mLock = new Object();
+    // generation << 16 | next stripe, a worker late for its run can not take a stripe of the next one
+    private final AtomicLong mCursor = new AtomicLong();
+    private final AtomicInteger mDoneStripes = new AtomicInteger();
+    private RowTask mTask;  // guarded by mLock
+    private int mRows;
+    private int mStripeCount;
+    private int mStripeRows;
+    private long mGeneration;
+    private boolean mQuit;
+
+    /**
+     * @param threadCount threads besides the caller, 0 runs everything on the caller
+     */
+    public RowStriper(int threadCount) {
+        mWorkers = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            mWorkers[i] = new Thread(this::work, "RowStriper-" + i);
+            mWorkers[i].setDaemon(true);
+            mWorkers[i].start();
+        }
+    }
+
+    /**
+     * @return stripes the next run over rows is split into, at most one per thread, the caller included
+     */
+    public int getStripeCount(int rows) {
+        return Math.max(1, Math.min(mWorkers.length + 1, rows / MIN_ROWS_PER_STRIPE));
+    }
+
+    /**
+     * Runs the task over rows [0, rows) and returns when every stripe is done.
+     */
+    public synchronized void run(int rows, RowTask task) {
+        int stripeCount = getStripeCount(rows);
+        if (stripeCount == 1) {
+            task.run(0, 0, rows);
+            return;
+        }
+        synchronized (mLock) {
+            mTask = task;
+            mRows = rows;
+            mStripeCount = stripeCount;
+            mStripeRows = (rows + stripeCount - 1) / stripeCount;
+            mDoneStripes.set(0);
+            mGeneration++;
+            mCursor.set(mGeneration << 16);
+            mLock.notifyAll();
+        }
+        runStripes(mGeneration, task, rows, stripeCount, mStripeRows);
+        synchronized (mLock) {
+            while (mDoneStripes.get() < stripeCount) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+            mTask = null;
+        }
+    }
+
+    public void quit() {
+        synchronized (mLock) {
+            mQuit = true;
+            mLock.notifyAll();
+        }
+    }
+
+    private void runStripes(long generation, RowTask task, int rows, int stripeCount, int stripeRows) {
+        while (true) {
+            long cursor = mCursor.get();
+            int stripe = (int) (cursor & 0xffff);
+            if (cursor >>> 16 != generation || stripe >= stripeCount) {
+                return;
+            }
+            if (!mCursor.compareAndSet(cursor, cursor + 1)) {
+                continue;
+            }
+            int rowStart = stripe * stripeRows;
+            try {
+                task.run(stripe, rowStart, Math.min(rows, rowStart + stripeRows));
+            } finally {
+                if (mDoneStripes.incrementAndGet() == stripeCount) {
+                    synchronized (mLock) {
+                        mLock.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    private void work() {
+        long seenGeneration = 0;
+        while (true) {
+            RowTask task;
+            int rows;
+            int stripeCount;
+            int stripeRows;
+            synchronized (mLock) {
+                while (!mQuit && (mTask == null || mGeneration == seenGeneration)) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (mQuit) {
+                    return;
+                }
+                seenGeneration = mGeneration;
+                task = mTask;
+                rows = mRows;
+                stripeCount = mStripeCount;
+                stripeRows = mStripeRows;
+            }
+            runStripes(seenGeneration, task, rows, stripeCount, stripeRows);
+        }
+    }
+}
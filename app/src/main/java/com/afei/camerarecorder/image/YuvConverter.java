@@ -0,0 +1,166 @@
+package com.afei.camerarecorder.image;
+
+import java.nio.ByteBuffer;
+
+/**
+ * YUV 4:2:0 to ARGB and luma, BT.601 limited range in 8 bit fixed point.
+ * <p>
+ * Nothing is allocated: outputs and scratch rows are the caller's. Every kernel takes a row range so large frames can
+ * be split over threads with {@link RowStriper}, each stripe writes its own rows only. Inner loops are plain counted
+ * loops over arrays, the shape the JIT vectorizes. Direct buffers are bulk copied a row at a time into scratch arrays
+ * first, an element by element get on a buffer keeps a loop from being vectorized.
+ * <p>
+ * Buffer rows are read from index 0 and move the buffer position. Stripes running at the same time need their own
+ * {@link ByteBuffer#duplicate()} of each buffer, and their own scratch.
+ */
+public final class YuvConverter {
+
+    private YuvConverter() {
+    }
+
+    /**
+     * @return bytes of scratch {@link #yuv420888ToArgb} needs
+     */
+    public static int getScratchSize(int width) {
+        return 3 * width;
+    }
+
+    /**
+     * Planar I420: packed Y, then U and V of (width + 1) / 2 per row.
+     */
+    public static void i420ToArgb(byte[] y, byte[] u, byte[] v, int width, int height, int[] argb,
+                                  int rowStart, int rowEnd) {
+        int chromaWidth = (width + 1) / 2;
+        for (int row = rowStart; row < rowEnd; row++) {
+            int chromaOffset = (row >> 1) * chromaWidth;
+            convertRow(y, row * width, u, v, chromaOffset, 1, width, argb, row * width);
+        }
+    }
+
+    /**
+     * NV21: packed Y, then interleaved V and U of width bytes per row. The width must be even.
+     */
+    public static void nv21ToArgb(byte[] nv21, int width, int height, int[] argb, int rowStart, int rowEnd) {
+        int chromaStart = width * height;
+        for (int row = rowStart; row < rowEnd; row++) {
+            int chromaOffset = chromaStart + (row >> 1) * width;
+            // V first, so U is one byte after it
+            convertRow(nv21, row * width, nv21, nv21, chromaOffset, 2, width, argb, row * width, 1, 0);
+        }
+    }
+
+    /**
+     * The planes of an {@link android.media.Image} of YUV_420_888, with their strides. U and V share the row and
+     * pixel stride, as the format guarantees.
+     *
+     * @param scratch at least {@link #getScratchSize(int)} bytes
+     */
+    public static void yuv420888ToArgb(ByteBuffer y, int yRowStride, ByteBuffer u, ByteBuffer v, int uvRowStride,
+                                       int uvPixelStride, int width, int height, int[] argb, byte[] scratch,
+                                       int rowStart, int rowEnd) {
+        int chromaWidth = (width + 1) / 2;
+        int chromaLength = (chromaWidth - 1) * uvPixelStride + 1;
+        int uOffset = width;  // scratch: one luma row, one U row, one V row
+        int vOffset = width + chromaLength;
+        int lastChromaRow = -1;
+        for (int row = rowStart; row < rowEnd; row++) {
+            getRow(y, row * yRowStride, scratch, 0, width);
+            int chromaRow = row >> 1;
+            if (chromaRow != lastChromaRow) {
+                getRow(u, chromaRow * uvRowStride, scratch, uOffset, chromaLength);
+                getRow(v, chromaRow * uvRowStride, scratch, vOffset, chromaLength);
+                lastChromaRow = chromaRow;
+            }
+            convertRow(scratch, 0, scratch, scratch, 0, uvPixelStride, width, argb, row * width, uOffset, vOffset);
+        }
+    }
+
+    /**
+     * Copies the luma plane of a YUV_420_888 image without its row padding.
+     */
+    public static void yuv420888ToLuma(ByteBuffer y, int yRowStride, int width, byte[] luma, int rowStart,
+                                       int rowEnd) {
+        for (int row = rowStart; row < rowEnd; row++) {
+            getRow(y, row * yRowStride, luma, row * width, width);
+        }
+    }
+
+    /**
+     * Repacks a YUV_420_888 image as NV21, the layout {@link android.graphics.YuvImage} compresses. The width must be
+     * even. A chroma row is written with its first luma row, or the first row of the range, so stripes may start on
+     * odd rows.
+     *
+     * @param scratch at least {@link #getScratchSize(int)} bytes
+     */
+    public static void yuv420888ToNv21(ByteBuffer y, int yRowStride, ByteBuffer u, ByteBuffer v, int uvRowStride,
+                                       int uvPixelStride, int width, int height, byte[] nv21, byte[] scratch,
+                                       int rowStart, int rowEnd) {
+        int chromaWidth = width / 2;
+        int chromaLength = (chromaWidth - 1) * uvPixelStride + 1;
+        int chromaStart = width * height;
+        for (int row = rowStart; row < rowEnd; row++) {
+            getRow(y, row * yRowStride, nv21, row * width, width);
+            if ((row & 1) != 0 && row != rowStart) {
+                continue;
+            }
+            int chromaRow = row >> 1;
+            getRow(u, chromaRow * uvRowStride, scratch, 0, chromaLength);
+            getRow(v, chromaRow * uvRowStride, scratch, width, chromaLength);
+            int offset = chromaStart + chromaRow * width;
+            for (int col = 0; col < chromaWidth; col++) {
+                nv21[offset + 2 * col] = scratch[width + col * uvPixelStride];
+                nv21[offset + 2 * col + 1] = scratch[col * uvPixelStride];
+            }
+        }
+    }
+
+    /**
+     * Copies a plane of an {@link android.media.Image} into a packed array, width bytes per row. A pixel stride of 2,
+     * the chroma of semi-planar devices, is gathered through the scratch row.
+     *
+     * @param scratch at least (width - 1) * pixelStride + 1 bytes, unused if pixelStride is 1
+     */
+    public static void copyPlane(ByteBuffer plane, int rowStride, int pixelStride, int width, byte[] dst,
+                                 byte[] scratch, int rowStart, int rowEnd) {
+        int length = (width - 1) * pixelStride + 1;
+        for (int row = rowStart; row < rowEnd; row++) {
+            if (pixelStride == 1) {
+                getRow(plane, row * rowStride, dst, row * width, width);
+            } else {
+                getRow(plane, row * rowStride, scratch, 0, length);
+                int offset = row * width;
+                for (int col = 0; col < width; col++) {
+                    dst[offset + col] = scratch[col * pixelStride];
+                }
+            }
+        }
+    }
+
+    private static void getRow(ByteBuffer buffer, int index, byte[] dst, int offset, int length) {
+        buffer.position(index);
+        buffer.get(dst, offset, length);
+    }
+
+    private static void convertRow(byte[] y, int yOffset, byte[] u, byte[] v, int chromaOffset, int pixelStride,
+                                   int width, int[] argb, int outOffset) {
+        convertRow(y, yOffset, u, v, chromaOffset, pixelStride, width, argb, outOffset, 0, 0);
+    }
+
+    /**
+     * @param uShift added to the chroma index for U
+     * @param vShift added to the chroma index for V, so interleaved chroma can be read from one array
+     */
+    private static void convertRow(byte[] y, int yOffset, byte[] u, byte[] v, int chromaOffset, int pixelStride,
+                                   int width, int[] argb, int outOffset, int uShift, int vShift) {
+        for (int col = 0; col < width; col++) {
+            int chroma = chromaOffset + (col >> 1) * pixelStride;
+            int c = 298 * ((y[yOffset + col] & 0xff) - 16) + 128;
+            int d = (u[chroma + uShift] & 0xff) - 128;
+            int e = (v[chroma + vShift] & 0xff) - 128;
+            int r = Math.min(255, Math.max(0, (c + 409 * e) >> 8));
+            int g = Math.min(255, Math.max(0, (c - 100 * d - 208 * e) >> 8));
+            int b = Math.min(255, Math.max(0, (c + 516 * d) >> 8));
+            argb[outOffset + col] = 0xff000000 | (r << 16) | (g << 8) | b;
+        }
+    }
+}
@@ -47,14 +47,22 @@ public class CameraActivity extends AppCompatActivity implements View.OnClickLis
     }
 
     private void startRecorder() {
-        mCameraModule.startRecorder();
-        mBinding.startRecorderIv.setVisibility(View.GONE);
-        mBinding.stopRecorderIv.setVisibility(View.VISIBLE);
+        mBinding.startRecorderIv.setEnabled(false);  // until the encoder stage has started it
+        mCameraModule.startRecorder(started -> {
+            mBinding.startRecorderIv.setEnabled(true);
+            if (started) {
+                mBinding.startRecorderIv.setVisibility(View.GONE);
+                mBinding.stopRecorderIv.setVisibility(View.VISIBLE);
+            }
+        });
     }
 
     private void stopRecorder() {
-        mCameraModule.stopRecorder();
-        mBinding.startRecorderIv.setVisibility(View.VISIBLE);
-        mBinding.stopRecorderIv.setVisibility(View.GONE);
+        mBinding.stopRecorderIv.setEnabled(false);
+        mCameraModule.stopRecorder(file -> {
+            mBinding.stopRecorderIv.setEnabled(true);
+            mBinding.startRecorderIv.setVisibility(View.VISIBLE);
+            mBinding.stopRecorderIv.setVisibility(View.GONE);
+        });
     }
 }
\ No newline at end of file
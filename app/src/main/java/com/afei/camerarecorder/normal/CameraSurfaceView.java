@@ -7,6 +7,7 @@ import android.util.Size;
 import android.view.SurfaceHolder;
 
 import com.afei.camerarecorder.camera.CameraModule;
+import com.afei.camerarecorder.camera.CameraState;
 
 public class CameraSurfaceView extends AutoFitSurfaceView {
 
@@ -33,6 +34,13 @@ public class CameraSurfaceView extends AutoFitSurfaceView {
         if (cameraModule != null) {
             mCameraModule = cameraModule;
             mPreviewSize = mCameraModule.getPreviewSize();
+            mCameraModule.setOnPreviewSizeChangedListener(size -> {
+                mPreviewSize = size;
+                getHolder().setFixedSize(size.getWidth(), size.getHeight());  // surfaceChanged sets the surface again
+            });
+            // open while the view is laid out, the surface is added to the session when it is ready
+            mCameraModule.setDeferredPreviewClass(SurfaceHolder.class);
+            mCameraModule.openCamera();
         }
     }
 
@@ -64,7 +72,10 @@ public class CameraSurfaceView extends AutoFitSurfaceView {
             }
             if (ratio * mPreviewSize.getWidth() == mPreviewSize.getHeight()) {
                 mCameraModule.setPreviewSurface(holder.getSurface()); // 等view的大小固定后在设置surface
-                mCameraModule.openCamera();
+                CameraState state = mCameraModule.getCameraState();
+                if (state == CameraState.CLOSED || state == CameraState.CLOSING) {
+                    mCameraModule.openCamera();  // reopen after the surface was destroyed, waits for the release
+                }
             }
         }
 
@@ -72,7 +83,8 @@ public class CameraSurfaceView extends AutoFitSurfaceView {
         public void surfaceDestroyed(SurfaceHolder holder) {
             Log.v(TAG, "surfaceDestroyed");
             if (mCameraModule != null) {
-                mCameraModule.releaseCamera();
+                mCameraModule.setPreviewSurface(null);
+                mCameraModule.releaseCameraAsync(null);  // do not block the UI thread
             }
         }
     };
@@ -11,6 +11,7 @@ import android.view.Surface;
 import android.view.SurfaceHolder;
 
 import com.afei.camerarecorder.camera.CameraModule;
+import com.afei.camerarecorder.camera.CameraState;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -22,7 +23,7 @@ public class CameraGLSurfaceView extends AutoFitGLSurfaceView {
     private CameraDrawer mCameraDrawer;
     private SurfaceTexture mSurfaceTexture;
     private CameraModule mCameraModule;
-    private Size mPreviewSize;
+    private volatile Size mPreviewSize;  // read on the GL thread
 
     public CameraGLSurfaceView(Context context) {
         this(context, null);
@@ -44,6 +45,18 @@ public class CameraGLSurfaceView extends AutoFitGLSurfaceView {
         if (cameraModule != null) {
             mCameraModule = cameraModule;
             mPreviewSize = mCameraModule.getPreviewSize();
+            mCameraModule.setOnPreviewSizeChangedListener(size -> {
+                mPreviewSize = size;
+                queueEvent(() -> {
+                    if (mSurfaceTexture != null) {  // else onSurfaceCreated takes the new size
+                        mSurfaceTexture.setDefaultBufferSize(size.getWidth(), size.getHeight());
+                        mCameraModule.setPreviewSurface(new Surface(mSurfaceTexture));
+                    }
+                });
+            });
+            // open while the GL context is created, the surface is added to the session when it is ready
+            mCameraModule.setDeferredPreviewClass(SurfaceTexture.class);
+            mCameraModule.openCamera();
         }
     }
 
@@ -65,7 +78,10 @@ public class CameraGLSurfaceView extends AutoFitGLSurfaceView {
             });
             mSurfaceTexture.setDefaultBufferSize(mPreviewSize.getWidth(), mPreviewSize.getHeight());
             mCameraModule.setPreviewSurface(new Surface(mSurfaceTexture));
-            mCameraModule.openCamera();
+            CameraState state = mCameraModule.getCameraState();
+            if (state == CameraState.CLOSED || state == CameraState.CLOSING) {
+                mCameraModule.openCamera();  // reopen after the surface was destroyed, waits for the release
+            }
         }
 
         @Override
@@ -85,6 +101,7 @@ public class CameraGLSurfaceView extends AutoFitGLSurfaceView {
     @Override
     public void surfaceDestroyed(SurfaceHolder holder) {
         super.surfaceDestroyed(holder);
-        mCameraModule.releaseCamera();
+        mCameraModule.setPreviewSurface(null);
+        mCameraModule.releaseCameraAsync(null);  // do not block the UI thread
     }
 }
@@ -0,0 +1,292 @@
+package com.afei.camerarecorder.record;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes a file on its own thread, so a slow storage does not stall the encoder.
+ * <p>
+ * The data is copied into a fixed pool of direct buffers. Full buffers are queued to the writer thread, which writes
+ * everything queued with one gathering write and calls {@link FileChannel#force(boolean)} only every sync interval.
+ * The file length is extended in large steps ahead of the data and cut to the real size on {@link #close()}.
+ * <p>
+ * When all buffers are queued, {@link #write} waits for the writer, each wait is counted as a stall: the storage is
+ * slower than the data comes in.
+ */
+public class AsyncFileWriter implements Closeable {
+
+    private final File mFile;
+    private final RandomAccessFile mRandomAccessFile;
+    private final FileChannel mChannel;
+    private final ArrayBlockingQueue<ByteBuffer> mFreeBuffers;
+    private final ArrayBlockingQueue<ByteBuffer> mQueuedBuffers;
+    private final ByteBuffer[] mGatherBuffers;
+    private final long mPreallocateBytes;
+    private final long mSyncIntervalNs;
+    private final Thread mWriterThread;
+
+    /* only touched by the producer */
+    private ByteBuffer mCurrentBuffer;
+    private long mPosition;
+    private boolean mClosed;
+
+    /* only touched by the writer thread */
+    private long mAllocatedBytes;
+    private long mLastSyncTime;
+
+    private volatile IOException mWriteError;
+    private volatile long mBytesWritten;
+    private volatile long mWriteTimeNs;
+    private volatile int mQueueHighWaterMark;
+    private volatile int mStallCount;
+    private volatile long mStallTimeNs;
+
+    /**
+     * @param bufferSize       size of each pooled buffer
+     * @param bufferCount      number of pooled buffers, bufferSize * bufferCount is the max data not yet written
+     * @param preallocateBytes the file length is extended by this much when the data reaches it, 0 to disable
+     * @param syncIntervalMs   min time between two {@link FileChannel#force(boolean)}
+     */
+    public AsyncFileWriter(File file, int bufferSize, int bufferCount, long preallocateBytes, long syncIntervalMs)
+            throws IOException {
+        mFile = file;
+        mRandomAccessFile = new RandomAccessFile(file, "rw");
+        mRandomAccessFile.setLength(0);
+        mChannel = mRandomAccessFile.getChannel();
+        mFreeBuffers = new ArrayBlockingQueue<>(bufferCount);
+        mQueuedBuffers = new ArrayBlockingQueue<>(bufferCount + 1);  // and the end marker of close()
+        for (int i = 0; i < bufferCount; i++) {
+            mFreeBuffers.add(ByteBuffer.allocateDirect(bufferSize));
+        }
+        mGatherBuffers = new ByteBuffer[bufferCount];
+        mPreallocateBytes = preallocateBytes;
+        mSyncIntervalNs = TimeUnit.MILLISECONDS.toNanos(syncIntervalMs);
+        mWriterThread = new Thread(this::writeLoop, "FileWriter-" + file.getName());
+        mWriterThread.start();
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Queues the bytes between position and limit of {@code data}, its position is moved to the limit.
+     */
+    public void write(ByteBuffer data) throws IOException {
+        checkOpen();
+        while (data.hasRemaining()) {
+            ByteBuffer buffer = currentBuffer();
+            int length = Math.min(buffer.remaining(), data.remaining());
+            int limit = data.limit();
+            data.limit(data.position() + length);
+            buffer.put(data);
+            data.limit(limit);
+            mPosition += length;
+            if (!buffer.hasRemaining()) {
+                queueCurrentBuffer();
+            }
+        }
+    }
+
+    public void write(byte[] data, int offset, int length) throws IOException {
+        checkOpen();
+        while (length > 0) {
+            ByteBuffer buffer = currentBuffer();
+            int count = Math.min(buffer.remaining(), length);
+            buffer.put(data, offset, count);
+            offset += count;
+            length -= count;
+            mPosition += count;
+            if (!buffer.hasRemaining()) {
+                queueCurrentBuffer();
+            }
+        }
+    }
+
+    /**
+     * Hands the data written so far to the writer thread without waiting for a buffer to fill up.
+     */
+    public void flush() throws IOException {
+        checkOpen();
+        if (mCurrentBuffer != null && mCurrentBuffer.position() > 0) {
+            queueCurrentBuffer();
+        }
+    }
+
+    /**
+     * @return the number of bytes written by the producer, which is the file offset of the next byte
+     */
+    public long position() {
+        return mPosition;
+    }
+
+    private ByteBuffer currentBuffer() throws IOException {
+        if (mCurrentBuffer == null) {
+            ByteBuffer buffer = mFreeBuffers.poll();
+            if (buffer == null) {
+                long startTime = System.nanoTime();
+                try {
+                    buffer = mFreeBuffers.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("wait for free buffer");
+                }
+                mStallCount++;
+                mStallTimeNs += System.nanoTime() - startTime;
+            }
+            mCurrentBuffer = buffer;
+        }
+        return mCurrentBuffer;
+    }
+
+    private void queueCurrentBuffer() {
+        mCurrentBuffer.flip();
+        // never blocks, there is a slot for every buffer and one for the end marker
+        mQueuedBuffers.add(mCurrentBuffer);
+        mCurrentBuffer = null;
+        int queued = mQueuedBuffers.size();
+        if (queued > mQueueHighWaterMark) {
+            mQueueHighWaterMark = queued;
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (mClosed) {
+            throw new IOException("writer is closed");
+        }
+        IOException error = mWriteError;
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void writeLoop() {
+        mLastSyncTime = System.nanoTime();
+        while (true) {
+            ByteBuffer first;
+            try {
+                first = mQueuedBuffers.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (first.capacity() == 0) {
+                break;  // end marker of close()
+            }
+            mGatherBuffers[0] = first;
+            int count = 1;
+            ByteBuffer next;
+            while (count < mGatherBuffers.length && (next = mQueuedBuffers.peek()) != null && next.capacity() > 0) {
+                mGatherBuffers[count++] = mQueuedBuffers.poll();
+            }
+            if (mWriteError == null) {
+                try {
+                    writeBuffers(count);
+                } catch (IOException e) {
+                    mWriteError = e;
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                mGatherBuffers[i].clear();
+                mFreeBuffers.add(mGatherBuffers[i]);
+                mGatherBuffers[i] = null;
+            }
+        }
+    }
+
+    private void writeBuffers(int count) throws IOException {
+        long startTime = System.nanoTime();
+        long bytes = 0;
+        for (int i = 0; i < count; i++) {
+            bytes += mGatherBuffers[i].remaining();
+        }
+        long end = mBytesWritten + bytes;
+        if (mPreallocateBytes > 0 && end > mAllocatedBytes) {
+            // one length change per step instead of a metadata update with every write
+            mAllocatedBytes = end + mPreallocateBytes;
+            mRandomAccessFile.setLength(mAllocatedBytes);
+        }
+        long written = 0;
+        while (written < bytes) {
+            written += writeToChannel(mChannel, mGatherBuffers, count);
+        }
+        long now = System.nanoTime();
+        if (now - mLastSyncTime >= mSyncIntervalNs) {
+            mChannel.force(false);
+            mLastSyncTime = System.nanoTime();
+        }
+        mBytesWritten = end;
+        mWriteTimeNs += System.nanoTime() - startTime;
+    }
+
+    /**
+     * One gathering write to the storage, tests override it to stand in for a slow card.
+     */
+    long writeToChannel(FileChannel channel, ByteBuffer[] buffers, int count) throws IOException {
+        return channel.write(buffers, 0, count);
+    }
+
+    /**
+     * Writes everything queued, cuts the file to its real length and syncs it.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        flush();
+        mClosed = true;
+        mQueuedBuffers.add(ByteBuffer.allocate(0));
+        try {
+            mWriterThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            IOException error = mWriteError;
+            if (error != null) {
+                throw error;
+            }
+            mChannel.truncate(mBytesWritten);
+            mChannel.force(true);
+        } finally {
+            mRandomAccessFile.close();
+        }
+    }
+
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * @return bytes per second while the writer thread was writing, the real speed of the storage
+     */
+    public long getWriteThroughput() {
+        long timeNs = mWriteTimeNs;
+        return timeNs == 0 ? 0 : mBytesWritten * 1000000000L / timeNs;
+    }
+
+    /**
+     * @return the max number of full buffers waiting for the writer thread
+     */
+    public int getQueueHighWaterMark() {
+        return mQueueHighWaterMark;
+    }
+
+    /**
+     * @return how many times {@link #write} had to wait because all buffers were queued
+     */
+    public int getStallCount() {
+        return mStallCount;
+    }
+
+    public long getStallTimeMs() {
+        return TimeUnit.NANOSECONDS.toMillis(mStallTimeNs);
+    }
+}
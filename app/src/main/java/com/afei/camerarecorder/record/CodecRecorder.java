@@ -0,0 +1,839 @@
+package com.afei.camerarecorder.record;
+
+import android.annotation.SuppressLint;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.media.MediaRecorder;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link RecordEngine} which drives the video and audio {@link MediaCodec} in asynchronous mode and writes the
+ * samples with a {@link MediaMuxer}. The video encoder takes its input from the persistent input surface.
+ * <p>
+ * Like {@link RecorderPool}, the codecs and the muxer of the next record are prepared in the background after each
+ * stop, so {@link #start()} only starts them.
+ * <p>
+ * With a segment limit the output is split into several files. The switch happens on a video key frame: the muxer of
+ * the next segment is created ahead of time, so the switch only starts it and no sample is lost at the boundary.
+ * Audio read before the boundary and encoded after it still goes to the end of the previous file, with its own time.
+ * <p>
+ * With a pre-record duration the prepared codecs already run and keep the latest samples in an
+ * {@link EncodedSampleRingBuffer}. {@link #start()} writes those samples first and then goes on with the live ones,
+ * so the file begins before the moment the record was started.
+ * <p>
+ * Instead of {@link MediaMuxer}, the samples can be written by a {@link FragmentedMp4Writer}.
+ */
+public class CodecRecorder implements RecordEngine {
+
+    private static final String TAG = "CodecRecorder";
+
+    private static final int AUDIO_SAMPLE_RATE = 44100;
+    private static final int AUDIO_BIT_RATE = 96000;
+    private static final int AUDIO_CHANNEL_COUNT = 1;
+    private static final long STOP_TIMEOUT_MS = 2000;
+    private static final long FRAGMENT_DURATION_US = 1000000;
+    private static final long MAX_AUDIO_CARRY_US = 1000000;  // how long a switched segment waits for its audio
+
+    private final Handler mPrepareHandler;
+    private final Handler mIoHandler;
+    private final Surface mInputSurface;
+    private final MediaFormat mVideoFormat;
+    private volatile int mOrientationHint;
+    private final boolean mRealtimeTimestamps;
+    private final File mSaveDirectory;
+
+    // the codec callbacks, audio input reads block so they get their own thread
+    private final HandlerThread mVideoThread;
+    private final HandlerThread mAudioThread;
+    private final Handler mVideoHandler;
+    private final Handler mAudioHandler;
+
+    /* guarded by this */
+    private Recording mPreparedRecording;
+    private boolean mPrepareQueued;
+    private boolean mReleased;
+
+    /* only changed on the prepare thread */
+    private volatile Recording mActiveRecording;
+
+    private volatile long mLastStartLatencyNs = -1;
+    private volatile long mMaxSegmentDurationUs;
+    private volatile long mMaxSegmentBytes;
+    private volatile OnSegmentListener mOnSegmentListener;
+    private volatile long mPreRecordDurationUs;
+    private volatile boolean mFragmentedMp4;
+    // output buffers the codecs handed to us and we did not give back yet
+    private final AtomicInteger mEncoderQueueDepth = new AtomicInteger();
+    private final AtomicInteger mMaxEncoderQueueDepth = new AtomicInteger();
+
+    /**
+     * @param prepareHandler     runs codec and segment preparing
+     * @param ioHandler          runs finishing of segment files
+     * @param videoFormat        format of the video encoder, with {@link MediaCodecInfo.CodecCapabilities#COLOR_FormatSurface}
+     * @param orientationHint    orientation of the output video. Values: 0, 90, 180, 270
+     * @param realtimeTimestamps true if the camera timestamps are {@link SystemClock#elapsedRealtimeNanos()}, false
+     *                           if they are {@link System#nanoTime()}, the audio timestamps use the same clock
+     */
+    public CodecRecorder(@NonNull Handler prepareHandler, @NonNull Handler ioHandler, @NonNull Surface inputSurface,
+                         @NonNull MediaFormat videoFormat, int orientationHint, boolean realtimeTimestamps,
+                         @NonNull File saveDirectory) {
+        mPrepareHandler = prepareHandler;
+        mIoHandler = ioHandler;
+        mInputSurface = inputSurface;
+        mVideoFormat = videoFormat;
+        mOrientationHint = orientationHint;
+        mRealtimeTimestamps = realtimeTimestamps;
+        mSaveDirectory = saveDirectory;
+        mVideoThread = new HandlerThread("CodecVideo", Process.THREAD_PRIORITY_VIDEO);
+        mVideoThread.start();
+        mVideoHandler = new Handler(mVideoThread.getLooper());
+        mAudioThread = new HandlerThread("CodecAudio", Process.THREAD_PRIORITY_AUDIO);
+        mAudioThread.start();
+        mAudioHandler = new Handler(mAudioThread.getLooper());
+    }
+
+    @Override
+    public void prepare() {
+        synchronized (this) {
+            if (mReleased || mPreparedRecording != null) {
+                return;
+            }
+        }
+        prepareRecording();
+    }
+
+    @Override
+    public void prepareAsync() {
+        synchronized (this) {
+            if (mReleased || mPreparedRecording != null || mPrepareQueued) {
+                return;
+            }
+            mPrepareQueued = true;
+        }
+        mPrepareHandler.post(() -> {
+            synchronized (this) {
+                mPrepareQueued = false;
+            }
+            prepare();
+        });
+    }
+
+    private void prepareRecording() {
+        long startTime = SystemClock.elapsedRealtimeNanos();
+        Recording recording = new Recording();
+        boolean prepared = false;
+        try {
+            recording.prepare();
+            if (mPreRecordDurationUs > 0) {
+                recording.startPreRecord(mPreRecordDurationUs);
+            }
+            prepared = true;
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "prepare codec failed! " + e.getMessage());
+        }
+        synchronized (this) {
+            if (prepared && !mReleased && mPreparedRecording == null) {
+                mPreparedRecording = recording;
+                recording = null;
+            }
+        }
+        if (recording != null) {
+            recording.release();
+        }
+        Log.d(TAG, "prepare codec cost: " + (SystemClock.elapsedRealtimeNanos() - startTime) / 1000000 + "ms");
+    }
+
+    @Override
+    public boolean start() {
+        if (mActiveRecording != null) {
+            Log.w(TAG, "already recording");
+            return false;
+        }
+        long pressTime = SystemClock.elapsedRealtimeNanos();
+        Recording recording = takePreparedRecording();
+        if (recording == null) {
+            // a queued prepare would only run after this call, on this same thread
+            Log.w(TAG, "no prepared codec, prepare now");
+            prepare();
+            recording = takePreparedRecording();
+        }
+        if (recording == null) {
+            Log.e(TAG, "start failed! no prepared codec");
+            return false;
+        }
+        try {
+            if (recording.isPreRecording()) {
+                recording.stopPreRecord();
+            } else {
+                recording.start();
+            }
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "start failed! " + e.getMessage());
+            recording.release();
+            prepareAsync();
+            return false;
+        }
+        mActiveRecording = recording;
+        mLastStartLatencyNs = SystemClock.elapsedRealtimeNanos() - pressTime;
+        Log.i(TAG, "start latency: " + mLastStartLatencyNs / 1000 + "us");
+        return true;
+    }
+
+    private synchronized Recording takePreparedRecording() {
+        Recording recording = mPreparedRecording;
+        mPreparedRecording = null;
+        return recording;
+    }
+
+    @Override
+    public File stop() {
+        Recording recording = mActiveRecording;
+        if (recording == null) {
+            return null;
+        }
+        mActiveRecording = null;
+        boolean finished = recording.finish();
+        File result = recording.release();
+        Log.i(TAG, "stop, finished: " + finished + ", video frames: " + recording.videoFrameCount
+                + ", audio frames: " + recording.audioFrameCount + ", audio dropped: " + recording.droppedAudioCount
+                + ", max encoder queue depth: " + mMaxEncoderQueueDepth.get());
+        prepareAsync();
+        return result;
+    }
+
+    @Override
+    public void setSegmentLimit(long maxDurationMs, long maxFileSizeBytes) {
+        mMaxSegmentDurationUs = maxDurationMs * 1000;
+        mMaxSegmentBytes = maxFileSizeBytes;
+    }
+
+    @Override
+    public void setOnSegmentListener(OnSegmentListener listener) {
+        mOnSegmentListener = listener;
+    }
+
+    @Override
+    public void setOrientationHint(int degrees) {
+        mOrientationHint = degrees;  // applied when a segment starts, nothing prepared depends on it
+    }
+
+    /**
+     * Keeps the samples of the given duration before {@link #start()} in the record, 0 to disable.
+     * Must be called before {@link #prepare()} to take effect on the first record.
+     */
+    public void setPreRecordDuration(long durationMs) {
+        mPreRecordDurationUs = durationMs * 1000;
+    }
+
+    /**
+     * Writes fragmented mp4 files, which stay playable up to the last second if the process is killed.
+     * Takes effect from the next segment created.
+     */
+    public void setFragmentedMp4(boolean fragmentedMp4) {
+        mFragmentedMp4 = fragmentedMp4;
+    }
+
+    @Override
+    public boolean isRecording() {
+        return mActiveRecording != null;
+    }
+
+    @Override
+    public float getLastStartLatencyMs() {
+        long latency = mLastStartLatencyNs;
+        return latency < 0 ? -1 : latency / 1000000f;
+    }
+
+    /**
+     * @return the number of encoded buffers waiting to be written, a growing value means the muxer can not keep up
+     */
+    public int getEncoderQueueDepth() {
+        return mEncoderQueueDepth.get();
+    }
+
+    public int getMaxEncoderQueueDepth() {
+        return mMaxEncoderQueueDepth.get();
+    }
+
+    @Override
+    public void release() {
+        synchronized (this) {
+            mReleased = true;
+        }
+        stop();
+        Recording recording = takePreparedRecording();
+        if (recording != null) {
+            recording.release();
+        }
+        mVideoThread.quitSafely();
+        mAudioThread.quitSafely();
+    }
+
+    private long nowUs() {
+        return (mRealtimeTimestamps ? SystemClock.elapsedRealtimeNanos() : System.nanoTime()) / 1000;
+    }
+
+    private void onOutputBufferTaken() {
+        int depth = mEncoderQueueDepth.incrementAndGet();
+        int max;
+        while (depth > (max = mMaxEncoderQueueDepth.get())) {
+            if (mMaxEncoderQueueDepth.compareAndSet(max, depth)) {
+                break;
+            }
+        }
+    }
+
+    private static class PendingSample {
+        final MediaCodec codec;
+        final int index;
+        final MediaCodec.BufferInfo info;
+
+        PendingSample(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+            this.codec = codec;
+            this.index = index;
+            this.info = info;
+        }
+    }
+
+    /**
+     * One output file of a record, the muxer is created before the segment starts.
+     */
+    private class Segment extends SegmentTimeline.Entry {
+        final File file;
+        final MediaMuxer muxer;  // null when writing a fragmented mp4
+        final FragmentedMp4Writer fragmentedWriter;
+        int videoTrack = -1;
+        int audioTrack = -1;
+        boolean started;
+        long startTime;  // wall clock, names the file
+        boolean writeFailed;
+
+        Segment() throws IOException {
+            file = RecordFileUtil.newPendingFile(mSaveDirectory);
+            try {
+                if (mFragmentedMp4) {
+                    int maxFragmentBytes = mVideoFormat.getInteger(MediaFormat.KEY_BIT_RATE) / 8 * 2;
+                    // a segment size limit is the size the file grows to, reserve it at once
+                    fragmentedWriter = new FragmentedMp4Writer(file, FRAGMENT_DURATION_US, maxFragmentBytes,
+                            mOrientationHint, mMaxSegmentBytes);
+                    muxer = null;
+                } else {
+                    muxer = new MediaMuxer(file.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+                    fragmentedWriter = null;
+                }
+            } catch (IOException e) {
+                file.delete();
+                throw e;
+            }
+        }
+
+        void start(MediaFormat videoFormat, MediaFormat audioFormat) {
+            if (muxer != null) {
+                videoTrack = muxer.addTrack(videoFormat);
+                audioTrack = muxer.addTrack(audioFormat);
+                muxer.setOrientationHint(mOrientationHint);  // the latest one, segments are created ahead
+                muxer.start();
+            } else {
+                videoTrack = FragmentedMp4Writer.TRACK_VIDEO;
+                audioTrack = FragmentedMp4Writer.TRACK_AUDIO;
+                fragmentedWriter.setVideoTrack(videoFormat.getInteger(MediaFormat.KEY_WIDTH),
+                        videoFormat.getInteger(MediaFormat.KEY_HEIGHT), getCsd(videoFormat, "csd-0"),
+                        getCsd(videoFormat, "csd-1"));
+                fragmentedWriter.setAudioTrack(audioFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                        audioFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT), getCsd(audioFormat, "csd-0"));
+                fragmentedWriter.setOrientationHint(mOrientationHint);
+                try {
+                    fragmentedWriter.start();
+                } catch (IOException e) {
+                    Log.e(TAG, "write fragmented mp4 header failed! " + e.getMessage());
+                    writeFailed = true;
+                }
+            }
+            started = true;
+            startTime = System.currentTimeMillis();
+        }
+
+        void write(int track, ByteBuffer buffer, MediaCodec.BufferInfo info) {
+            if (muxer != null) {
+                muxer.writeSampleData(track, buffer, info);
+            } else if (!writeFailed) {
+                buffer.limit(info.offset + info.size).position(info.offset);
+                try {
+                    fragmentedWriter.writeSample(track, buffer, info.presentationTimeUs,
+                            (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+                } catch (IOException e) {
+                    Log.e(TAG, "write fragmented mp4 failed! " + e.getMessage());
+                    writeFailed = true;
+                }
+            }
+            bytes += info.size;
+        }
+
+        /**
+         * Writes the index of the file and releases the muxer, the file is deleted if it has no samples.
+         *
+         * @return the finished file, or null if it is not valid
+         */
+        File finish() {
+            boolean valid = false;
+            if (muxer != null) {
+                try {
+                    if (started) {
+                        muxer.stop();
+                        valid = bytes > 0;
+                    }
+                } catch (IllegalStateException e) {
+                    Log.e(TAG, "stop muxer failed! " + e.getMessage());
+                }
+                muxer.release();
+            } else {
+                try {
+                    fragmentedWriter.close();
+                    valid = started && bytes > 0;
+                } catch (IOException e) {
+                    // the fragments written before the error are still playable
+                    Log.e(TAG, "close fragmented mp4 failed! " + e.getMessage());
+                    valid = fragmentedWriter.getFragmentCount() > 0;
+                }
+                AsyncFileWriter fileWriter = fragmentedWriter.getFileWriter();
+                Log.i(TAG, "segment written: " + fileWriter.getBytesWritten() / 1024 + "KB, "
+                        + fileWriter.getWriteThroughput() / 1024 + "KB/s, queue high water mark: "
+                        + fileWriter.getQueueHighWaterMark() + ", stalls: " + fileWriter.getStallCount() + ", "
+                        + fileWriter.getStallTimeMs() + "ms");
+            }
+            if (!valid) {
+                file.delete();
+                return null;
+            }
+            return RecordFileUtil.finish(file, mSaveDirectory, startTime);
+        }
+    }
+
+    private void finishSegment(Segment segment) {
+        File file = segment.finish();
+        OnSegmentListener listener = mOnSegmentListener;
+        if (file != null && listener != null) {
+            listener.onSegmentFinished(file);
+        }
+    }
+
+    private static byte[] getCsd(MediaFormat format, String name) {
+        ByteBuffer csd = format.getByteBuffer(name);
+        if (csd == null) {
+            throw new IllegalStateException("no " + name + " in " + format);
+        }
+        byte[] data = new byte[csd.remaining()];
+        csd.duplicate().get(data);
+        return data;
+    }
+
+    /**
+     * The codecs, audio source and output segments of one record.
+     */
+    private class Recording implements SegmentTimeline.Callback<Segment> {
+        MediaCodec videoCodec;
+        MediaCodec audioCodec;
+        AudioRecord audioRecord;
+
+        /* guarded by this */
+        final SegmentTimeline<Segment> timeline = new SegmentTimeline<>(MAX_AUDIO_CARRY_US, this);
+        Segment nextSegment;  // created ahead so a switch only starts it
+        MediaFormat videoOutputFormat;
+        MediaFormat audioOutputFormat;
+        final ArrayDeque<Segment> unfinishedSegments = new ArrayDeque<>();  // the io stage refused to finish them
+        boolean released;
+        boolean live;  // false while the samples go to the pre-record buffer
+        EncodedSampleRingBuffer preRecordBuffer;
+        final ArrayDeque<PendingSample> pendingSamples = new ArrayDeque<>();
+        volatile int droppedAudioCount;  // only changed with the lock held
+        final MediaCodec.BufferInfo drainInfo = new MediaCodec.BufferInfo();
+
+        final CountDownLatch eosLatch = new CountDownLatch(2);
+        volatile boolean audioEosRequested;
+        long audioSampleCount;  // only touched on the audio thread
+        long audioBasePtsUs = -1;  // only touched on the audio thread
+        volatile int videoFrameCount;
+        volatile int audioFrameCount;
+
+        @SuppressLint("MissingPermission")
+        void prepare() throws IOException {
+            videoCodec = MediaCodec.createEncoderByType(mVideoFormat.getString(MediaFormat.KEY_MIME));
+            videoCodec.setCallback(new EncoderCallback(this, true), mVideoHandler);
+            videoCodec.configure(mVideoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            videoCodec.setInputSurface(mInputSurface);
+
+            MediaFormat audioFormat = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, AUDIO_SAMPLE_RATE,
+                    AUDIO_CHANNEL_COUNT);
+            audioFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+            audioFormat.setInteger(MediaFormat.KEY_BIT_RATE, AUDIO_BIT_RATE);
+            audioCodec = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_AAC);
+            audioCodec.setCallback(new EncoderCallback(this, false), mAudioHandler);
+            audioCodec.configure(audioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+
+            int minBufferSize = AudioRecord.getMinBufferSize(AUDIO_SAMPLE_RATE, AudioFormat.CHANNEL_IN_MONO,
+                    AudioFormat.ENCODING_PCM_16BIT);
+            audioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC, AUDIO_SAMPLE_RATE, AudioFormat.CHANNEL_IN_MONO,
+                    AudioFormat.ENCODING_PCM_16BIT, minBufferSize * 4);
+            if (audioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+                throw new IllegalStateException("AudioRecord init failed");
+            }
+
+            Segment segment = new Segment();
+            synchronized (this) {
+                timeline.setCurrent(segment);
+            }
+        }
+
+        void start() {
+            synchronized (this) {
+                live = true;
+            }
+            startCodecs();
+        }
+
+        private void startCodecs() {
+            audioRecord.startRecording();
+            videoCodec.start();
+            audioCodec.start();
+        }
+
+        void startPreRecord(long durationUs) {
+            int bitRate = mVideoFormat.getInteger(MediaFormat.KEY_BIT_RATE) + AUDIO_BIT_RATE;
+            int frameRate = mVideoFormat.getInteger(MediaFormat.KEY_FRAME_RATE);
+            // the buffer holds one GOP more than the duration, plus some headroom for bit rate peaks
+            float seconds = durationUs / 1000000f + mVideoFormat.getInteger(MediaFormat.KEY_I_FRAME_INTERVAL) + 1;
+            int capacityBytes = (int) (bitRate / 8 * seconds * 1.5f);
+            int maxSamples = (int) ((frameRate + AUDIO_SAMPLE_RATE / 1024 + 1) * seconds);
+            synchronized (this) {
+                preRecordBuffer = new EncodedSampleRingBuffer(capacityBytes, maxSamples, durationUs,
+                        MediaCodec.BUFFER_FLAG_KEY_FRAME);
+            }
+            Log.d(TAG, "start pre-record, buffer: " + capacityBytes / 1024 + "KB, " + maxSamples + " samples");
+            startCodecs();
+        }
+
+        synchronized boolean isPreRecording() {
+            return preRecordBuffer != null && !live;
+        }
+
+        /**
+         * Writes the pre-record buffer into the file on the video thread and goes on with the live samples.
+         */
+        void stopPreRecord() {
+            mVideoHandler.post(() -> {
+                synchronized (this) {
+                    if (released) {
+                        return;
+                    }
+                    live = true;
+                    long durationUs = preRecordBuffer.getDurationUs();
+                    if (videoOutputFormat == null || audioOutputFormat == null) {
+                        preRecordBuffer.clear();
+                        return;
+                    }
+                    Segment segment = timeline.getCurrent();
+                    segment.start(videoOutputFormat, audioOutputFormat);
+                    segment.startTime -= durationUs / 1000;
+                    // the buffer starts with a key frame, its pts is zero in the file and audio before it is dropped
+                    int count = preRecordBuffer.drainTo((track, data, ptsUs, flags) -> {
+                        drainInfo.set(data.position(), data.remaining(), ptsUs, flags);
+                        writeToSegment(track == EncodedSampleRingBuffer.TRACK_VIDEO, data, drainInfo);
+                    });
+                    Log.i(TAG, "pre-record written: " + count + " samples, " + durationUs / 1000 + "ms");
+                }
+            });
+        }
+
+        /**
+         * Signals end of stream and waits until both encoders drained.
+         */
+        boolean finish() {
+            audioEosRequested = true;
+            try {
+                videoCodec.signalEndOfInputStream();
+                return eosLatch.await(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "signalEndOfInputStream failed! " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        }
+
+        /**
+         * @return the finished last segment, or null if it is not valid
+         */
+        File release() {
+            if (videoCodec != null) {
+                try {
+                    videoCodec.stop();
+                } catch (IllegalStateException ignored) {
+                }
+                videoCodec.release();
+            }
+            if (audioCodec != null) {
+                try {
+                    audioCodec.stop();
+                } catch (IllegalStateException ignored) {
+                }
+                audioCodec.release();
+            }
+            if (audioRecord != null) {
+                if (audioRecord.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING) {
+                    audioRecord.stop();
+                }
+                audioRecord.release();
+            }
+            Segment last;
+            Segment unused;
+            ArrayDeque<Segment> unfinished = new ArrayDeque<>();
+            synchronized (this) {
+                released = true;
+                mEncoderQueueDepth.addAndGet(-pendingSamples.size());
+                pendingSamples.clear();
+                last = timeline.getCurrent();
+                unused = nextSegment;
+                nextSegment = null;
+                unfinished.addAll(unfinishedSegments);
+                unfinishedSegments.clear();
+                if (timeline.getPrevious() != null) {
+                    unfinished.add(timeline.getPrevious());
+                }
+                timeline.clear();
+            }
+            if (unused != null) {
+                unused.finish();
+            }
+            // older segments first, so the listener sees them in order
+            while (!unfinished.isEmpty()) {
+                finishSegment(unfinished.poll());
+            }
+            return last == null ? null : last.finish();
+        }
+
+        void onInputBufferAvailable(MediaCodec codec, int index) {
+            // only the audio codec has input buffers, the video codec reads from the surface
+            ByteBuffer buffer = codec.getInputBuffer(index);
+            if (audioEosRequested || buffer == null) {
+                long ptsUs = Math.max(audioBasePtsUs, 0) + audioSampleCount * 1000000L / AUDIO_SAMPLE_RATE;
+                codec.queueInputBuffer(index, 0, 0, ptsUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                return;
+            }
+            int read = audioRecord.read(buffer, buffer.capacity());
+            if (read < 0) {
+                Log.w(TAG, "read audio failed: " + read);
+                read = 0;
+            }
+            int samples = read / (2 * AUDIO_CHANNEL_COUNT);
+            if (audioBasePtsUs < 0) {
+                // the first read returns what was captured just before, count the samples from there on
+                audioBasePtsUs = nowUs() - samples * 1000000L / AUDIO_SAMPLE_RATE;
+            }
+            long ptsUs = audioBasePtsUs + audioSampleCount * 1000000L / AUDIO_SAMPLE_RATE;
+            audioSampleCount += samples;
+            codec.queueInputBuffer(index, 0, read, ptsUs, 0);
+        }
+
+        synchronized void onOutputFormatChanged(boolean isVideo, MediaFormat format) {
+            Segment segment = timeline.getCurrent();
+            if (segment == null || segment.started) {
+                Log.w(TAG, "ignore output format change");
+                return;
+            }
+            if (isVideo) {
+                videoOutputFormat = format;
+            } else {
+                audioOutputFormat = format;
+            }
+            if (videoOutputFormat != null && audioOutputFormat != null && live) {
+                segment.start(videoOutputFormat, audioOutputFormat);
+                while (!pendingSamples.isEmpty()) {
+                    PendingSample sample = pendingSamples.poll();
+                    writeSample(sample.codec, sample.index, sample.info);
+                }
+                if (mMaxSegmentDurationUs > 0 || mMaxSegmentBytes > 0) {
+                    mPrepareHandler.post(this::prepareNextSegment);
+                }
+            }
+        }
+
+        void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+            onOutputBufferTaken();
+            boolean eos = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+            synchronized (this) {
+                Segment segment = timeline.getCurrent();
+                if (segment == null) {
+                    releaseOutputBuffer(codec, index);
+                } else if (!live) {
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                        ByteBuffer buffer = codec.getOutputBuffer(index);
+                        if (buffer != null) {
+                            buffer.limit(info.offset + info.size).position(info.offset);
+                            preRecordBuffer.write(codec == videoCodec ? EncodedSampleRingBuffer.TRACK_VIDEO
+                                    : EncodedSampleRingBuffer.TRACK_AUDIO, buffer, info.presentationTimeUs, info.flags);
+                        }
+                    }
+                    releaseOutputBuffer(codec, index);
+                } else if (!segment.started) {
+                    // the other track is not known yet, keep the buffer until the muxer starts
+                    MediaCodec.BufferInfo copy = new MediaCodec.BufferInfo();
+                    copy.set(info.offset, info.size, info.presentationTimeUs, info.flags);
+                    pendingSamples.add(new PendingSample(codec, index, copy));
+                } else {
+                    writeSample(codec, index, info);
+                }
+            }
+            if (eos) {
+                eosLatch.countDown();
+            }
+        }
+
+        // called with the lock held and the segment started
+        private void writeSample(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && info.size > 0) {
+                ByteBuffer buffer = codec.getOutputBuffer(index);
+                if (buffer != null) {
+                    writeToSegment(codec == videoCodec, buffer, info);
+                }
+            }
+            releaseOutputBuffer(codec, index);
+        }
+
+        // called with the lock held and the segment started, both tracks have timestamps of the camera clock
+        private void writeToSegment(boolean isVideo, ByteBuffer buffer, MediaCodec.BufferInfo info) {
+            long ptsUs = info.presentationTimeUs;
+            if (isVideo) {
+                Segment segment = timeline.placeVideo(ptsUs, (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0,
+                        mMaxSegmentDurationUs, mMaxSegmentBytes);
+                info.presentationTimeUs = ptsUs - segment.basePtsUs;
+                segment.write(segment.videoTrack, buffer, info);
+                videoFrameCount++;
+                return;
+            }
+            Segment target = timeline.placeAudio(ptsUs);
+            if (target == null) {
+                droppedAudioCount++;
+                return;
+            }
+            info.presentationTimeUs = ptsUs - target.basePtsUs;
+            target.write(target.audioTrack, buffer, info);
+            audioFrameCount++;
+        }
+
+        // called with the lock held, right before the key frame at boundaryPtsUs is written
+        @Override
+        public Segment onSwitch(long boundaryPtsUs) {
+            Segment segment = timeline.getCurrent();
+            Segment next = nextSegment;
+            nextSegment = null;
+            if (next == null) {
+                Log.w(TAG, "next segment is not ready, create it now");
+                try {
+                    next = new Segment();
+                } catch (IOException e) {
+                    Log.e(TAG, "create segment failed! keep writing " + segment.file + ": " + e.getMessage());
+                    return null;
+                }
+            }
+            next.start(videoOutputFormat, audioOutputFormat);
+            Log.i(TAG, "switch segment at " + boundaryPtsUs + "us, last video frame of previous segment: "
+                    + segment.lastVideoPtsUs + "us, gap: " + (boundaryPtsUs - segment.lastVideoPtsUs) + "us");
+            mPrepareHandler.post(this::prepareNextSegment);
+            return next;
+        }
+
+        // called with the lock held
+        @Override
+        public void onPreviousFinished(Segment finished) {
+            if (!mIoHandler.post(() -> finishSegment(finished))) {
+                // a muxer which is never stopped leaves a file without index, release() finishes it
+                Log.w(TAG, "io stage stopped, finish " + finished.file + " at release");
+                unfinishedSegments.add(finished);
+            }
+        }
+
+        private void prepareNextSegment() {
+            synchronized (this) {
+                if (released || nextSegment != null) {
+                    return;
+                }
+            }
+            Segment next;
+            try {
+                next = new Segment();
+            } catch (IOException e) {
+                Log.e(TAG, "prepare next segment failed! " + e.getMessage());
+                return;
+            }
+            synchronized (this) {
+                if (!released && nextSegment == null) {
+                    nextSegment = next;
+                    return;
+                }
+            }
+            next.finish();
+        }
+
+        private void releaseOutputBuffer(MediaCodec codec, int index) {
+            mEncoderQueueDepth.decrementAndGet();
+            codec.releaseOutputBuffer(index, false);
+        }
+    }
+
+    private static class EncoderCallback extends MediaCodec.Callback {
+        private final Recording mRecording;
+        private final boolean mIsVideo;
+
+        EncoderCallback(Recording recording, boolean isVideo) {
+            mRecording = recording;
+            mIsVideo = isVideo;
+        }
+
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+            try {
+                mRecording.onInputBufferAvailable(codec, index);
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "onInputBufferAvailable after release: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+            try {
+                mRecording.onOutputBufferAvailable(codec, index, info);
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "onOutputBufferAvailable after release: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+            Log.e(TAG, (mIsVideo ? "video" : "audio") + " codec error: " + e.getDiagnosticInfo());
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+            mRecording.onOutputFormatChanged(mIsVideo, format);
+        }
+    }
+}
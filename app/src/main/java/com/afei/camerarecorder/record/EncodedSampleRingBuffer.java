@@ -0,0 +1,225 @@
+package com.afei.camerarecorder.record;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps the most recent encoded samples in one preallocated direct buffer, used to record the moments before a record
+ * is started.
+ * <p>
+ * The buffer always starts with a video key frame: old samples are evicted a whole GOP at a time, when the samples
+ * cover more than the max duration or there is no room for a new sample. Writing a sample only copies its bytes,
+ * nothing is allocated per sample.
+ * <p>
+ * All methods are synchronized, samples are usually written from the encoder threads and drained from another one.
+ */
+public class EncodedSampleRingBuffer {
+
+    public static final int TRACK_VIDEO = 0;
+    public static final int TRACK_AUDIO = 1;
+
+    public interface SampleConsumer {
+        /**
+         * @param data the sample bytes between position and limit, only valid during this call
+         */
+        void onSample(int track, ByteBuffer data, long ptsUs, int flags);
+    }
+
+    private final ByteBuffer mArena;
+    private final ByteBuffer mReadView;  // reused view for drainTo
+    private final int mCapacity;
+    private final long mMaxDurationUs;
+    private final int mKeyFrameFlag;
+
+    /* sample ring, indexed from mFirst */
+    private final int[] mOffsets;
+    private final int[] mSizes;
+    private final long[] mPtsUs;
+    private final int[] mFlags;
+    private final byte[] mTracks;
+    private int mFirst;
+    private int mCount;
+
+    /* positions of the video key frames in the sample ring, indexed from mKeyFirst */
+    private final int[] mKeyFrames;
+    private int mKeyFirst;
+    private int mKeyCount;
+
+    private int mWritePos;
+    private long mDroppedCount;
+
+    /**
+     * @param capacityBytes size of the direct buffer which holds the sample data
+     * @param maxSamples    max number of samples of all tracks
+     * @param maxDurationUs video duration to keep, the buffer holds at least this much once enough was written
+     * @param keyFrameFlag  the flag which marks a video key frame, e.g. MediaCodec.BUFFER_FLAG_KEY_FRAME
+     */
+    public EncodedSampleRingBuffer(int capacityBytes, int maxSamples, long maxDurationUs, int keyFrameFlag) {
+        mArena = ByteBuffer.allocateDirect(capacityBytes);
+        mReadView = mArena.duplicate();
+        mCapacity = capacityBytes;
+        mMaxDurationUs = maxDurationUs;
+        mKeyFrameFlag = keyFrameFlag;
+        mOffsets = new int[maxSamples];
+        mSizes = new int[maxSamples];
+        mPtsUs = new long[maxSamples];
+        mFlags = new int[maxSamples];
+        mTracks = new byte[maxSamples];
+        mKeyFrames = new int[maxSamples];
+    }
+
+    /**
+     * Copies a sample into the buffer, evicting old samples if needed.
+     *
+     * @param data the sample bytes between position and limit, the position is not changed
+     * @return false if the sample was dropped: it is larger than the buffer, or it is not a key frame and the buffer
+     * has no key frame to decode it from. A video sample larger than the buffer empties it, the frames up to the next
+     * key frame are dropped too.
+     */
+    public synchronized boolean write(int track, ByteBuffer data, long ptsUs, int flags) {
+        int size = data.remaining();
+        boolean isKeyFrame = track == TRACK_VIDEO && (flags & mKeyFrameFlag) != 0;
+        if (size == 0 || size > mCapacity || (mKeyCount == 0 && !isKeyFrame)) {
+            if (size > mCapacity && track == TRACK_VIDEO) {
+                clear();  // the frames after it depend on it, start again at the next key frame
+            }
+            mDroppedCount++;
+            return false;
+        }
+        if (mCount == mOffsets.length) {
+            evictOldestGop();
+        }
+        int offset = reserve(size);
+        if (mKeyCount == 0 && !isKeyFrame) {
+            // the only GOP was evicted to make room
+            mDroppedCount++;
+            return false;
+        }
+        int position = data.position();
+        mArena.limit(offset + size).position(offset);
+        mArena.put(data);
+        data.position(position);
+        mWritePos = offset + size;
+
+        int index = (mFirst + mCount) % mOffsets.length;
+        mOffsets[index] = offset;
+        mSizes[index] = size;
+        mPtsUs[index] = ptsUs;
+        mFlags[index] = flags;
+        mTracks[index] = (byte) track;
+        mCount++;
+        if (isKeyFrame) {
+            mKeyFrames[(mKeyFirst + mKeyCount) % mKeyFrames.length] = index;
+            mKeyCount++;
+        }
+        if (track == TRACK_VIDEO) {
+            // keep the shortest window which starts on a key frame and still covers max duration
+            while (mKeyCount > 1 && ptsUs - mPtsUs[mKeyFrames[(mKeyFirst + 1) % mKeyFrames.length]] >= mMaxDurationUs) {
+                evictOldestGop();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the offset to write a sample of {@code size} bytes at, evicting old samples until it fits
+     */
+    private int reserve(int size) {
+        while (mCount > 0) {
+            int tail = mOffsets[mFirst];
+            if (mWritePos > tail) {
+                if (mCapacity - mWritePos >= size) {
+                    return mWritePos;
+                }
+                if (tail >= size) {
+                    return 0;  // wrap around, the end of the arena stays unused this round
+                }
+            } else if (tail - mWritePos >= size) {
+                return mWritePos;
+            }
+            evictOldestGop();
+        }
+        mWritePos = 0;
+        return 0;
+    }
+
+    private void evictOldestGop() {
+        if (mKeyCount <= 1) {
+            clear();
+            return;
+        }
+        int nextKeyFrame = mKeyFrames[(mKeyFirst + 1) % mKeyFrames.length];
+        int evicted = (nextKeyFrame - mFirst + mOffsets.length) % mOffsets.length;
+        mFirst = nextKeyFrame;
+        mCount -= evicted;
+        mKeyFirst = (mKeyFirst + 1) % mKeyFrames.length;
+        mKeyCount--;
+    }
+
+    /**
+     * Hands all samples to {@code consumer} from the oldest to the newest and empties the buffer.
+     *
+     * @return the number of samples drained
+     */
+    public synchronized int drainTo(SampleConsumer consumer) {
+        int count = mCount;
+        for (int i = 0; i < count; i++) {
+            int index = (mFirst + i) % mOffsets.length;
+            mReadView.limit(mOffsets[index] + mSizes[index]).position(mOffsets[index]);
+            consumer.onSample(mTracks[index], mReadView, mPtsUs[index], mFlags[index]);
+        }
+        clear();
+        return count;
+    }
+
+    public synchronized void clear() {
+        mFirst = 0;
+        mCount = 0;
+        mKeyFirst = 0;
+        mKeyCount = 0;
+        mWritePos = 0;
+    }
+
+    public synchronized int getSampleCount() {
+        return mCount;
+    }
+
+    /**
+     * @return the bytes of sample data in the buffer
+     */
+    public synchronized long getSizeBytes() {
+        long bytes = 0;
+        for (int i = 0; i < mCount; i++) {
+            bytes += mSizes[(mFirst + i) % mOffsets.length];
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the time between the first and the last video sample
+     */
+    public synchronized long getDurationUs() {
+        if (mKeyCount == 0) {
+            return 0;
+        }
+        long first = mPtsUs[mFirst];
+        long last = first;
+        for (int i = 0; i < mCount; i++) {
+            int index = (mFirst + i) % mOffsets.length;
+            if (mTracks[index] == TRACK_VIDEO) {
+                last = Math.max(last, mPtsUs[index]);
+            }
+        }
+        return last - first;
+    }
+
+    public int getCapacityBytes() {
+        return mCapacity;
+    }
+
+    /**
+     * @return the number of samples rejected by {@link #write}
+     */
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+}
@@ -0,0 +1,601 @@
+package com.afei.camerarecorder.record;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes H.264 + AAC samples as a fragmented MP4: an empty moov at the start, then a moof + mdat pair about every
+ * fragment duration. Each fragment is complete on its own, so if the process is killed the file stays playable up to
+ * the last fragment written, and nothing grows with the length of the record.
+ * <p>
+ * The samples of a fragment are kept in direct buffers which are reused for the next one, and the file is written by
+ * an {@link AsyncFileWriter}.
+ */
+public class FragmentedMp4Writer implements Closeable {
+
+    public static final int TRACK_VIDEO = 0;
+    public static final int TRACK_AUDIO = 1;
+
+    private static final int VIDEO_TIMESCALE = 90000;
+    private static final int MOVIE_TIMESCALE = 1000;
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;  // does not depend on others
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;  // depends on others, non sync sample
+    private static final int MAX_NAL_UNITS = 64;
+
+    private final AsyncFileWriter mFileWriter;
+    private final long mFragmentDurationUs;
+    private int mOrientationHint;
+    private final TrackFragment[] mTracks = new TrackFragment[2];
+    private final ByteBuffer mHeader = ByteBuffer.allocate(64 * 1024);
+    private final int[] mNalStarts = new int[MAX_NAL_UNITS];
+    private final int[] mNalEnds = new int[MAX_NAL_UNITS];
+
+    private int mWidth;
+    private int mHeight;
+    private byte[] mSps;
+    private byte[] mPps;
+    private int mSampleRate;
+    private int mChannelCount;
+    private byte[] mAudioSpecificConfig;
+    private boolean mStarted;
+    private int mSequenceNumber;
+    private long mFragmentStartUs = -1;
+
+    /**
+     * @param fragmentDurationUs a fragment is written on the first video key frame after this duration
+     * @param maxFragmentBytes   size of the buffer of each track, a fragment is written early when it is full
+     * @param orientationHint    orientation of the output video. Values: 0, 90, 180, 270
+     */
+    public FragmentedMp4Writer(File file, long fragmentDurationUs, int maxFragmentBytes, int orientationHint)
+            throws IOException {
+        this(file, fragmentDurationUs, maxFragmentBytes, orientationHint, 0);
+    }
+
+    /**
+     * @param expectedBytes size the file is expected to reach, such as the segment size limit, the file length is
+     *                      extended by this much at once. 0 if unknown, the file then grows with every write. A killed
+     *                      process leaves zeros after the last fragment, read as a box of size 0 which runs to the end
+     *                      of the file and is skipped.
+     */
+    public FragmentedMp4Writer(File file, long fragmentDurationUs, int maxFragmentBytes, int orientationHint,
+                               long expectedBytes) throws IOException {
+        this(new AsyncFileWriter(file, 256 * 1024, 16, Math.max(expectedBytes, 0), fragmentDurationUs / 1000),
+                fragmentDurationUs, maxFragmentBytes, orientationHint);
+    }
+
+    /**
+     * Writes through the given file writer, for tests.
+     */
+    FragmentedMp4Writer(AsyncFileWriter fileWriter, long fragmentDurationUs, int maxFragmentBytes,
+                        int orientationHint) {
+        mFileWriter = fileWriter;
+        mFragmentDurationUs = fragmentDurationUs;
+        mOrientationHint = orientationHint;
+        mTracks[TRACK_VIDEO] = new TrackFragment(maxFragmentBytes, 4096);
+        mTracks[TRACK_AUDIO] = new TrackFragment(maxFragmentBytes / 4, 4096);
+    }
+
+    /**
+     * @param sps the sequence parameter set, with or without start code
+     * @param pps the picture parameter set, with or without start code
+     */
+    public void setVideoTrack(int width, int height, byte[] sps, byte[] pps) {
+        mWidth = width;
+        mHeight = height;
+        mSps = stripStartCode(sps);
+        mPps = stripStartCode(pps);
+    }
+
+    /**
+     * Changes the orientation given to the constructor, only before {@link #start()}.
+     */
+    public void setOrientationHint(int orientationHint) {
+        mOrientationHint = orientationHint;
+    }
+
+    public void setAudioTrack(int sampleRate, int channelCount, byte[] audioSpecificConfig) {
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+        mAudioSpecificConfig = audioSpecificConfig;
+        mTracks[TRACK_AUDIO].timescale = sampleRate;
+    }
+
+    /**
+     * Writes the file header, both tracks must be set.
+     */
+    public void start() throws IOException {
+        if (mSps == null || mPps == null || mAudioSpecificConfig == null) {
+            throw new IllegalStateException("tracks are not set");
+        }
+        mTracks[TRACK_VIDEO].timescale = VIDEO_TIMESCALE;
+        mHeader.clear();
+        writeFtyp(mHeader);
+        writeMoov(mHeader);
+        mHeader.flip();
+        mFileWriter.write(mHeader);
+        mFileWriter.flush();
+        mStarted = true;
+    }
+
+    /**
+     * @param data a sample between position and limit, H.264 samples may be in Annex-B or length prefixed format.
+     *             The position is not changed.
+     * @param ptsUs presentation time, increasing in each track
+     */
+    public void writeSample(int track, ByteBuffer data, long ptsUs, boolean isKeyFrame) throws IOException {
+        if (!mStarted) {
+            throw new IllegalStateException("not started");
+        }
+        if (track == TRACK_VIDEO && isKeyFrame && mFragmentStartUs >= 0
+                && ptsUs - mFragmentStartUs >= mFragmentDurationUs) {
+            writeFragment();
+        }
+        TrackFragment fragment = mTracks[track];
+        int size = track == TRACK_VIDEO ? getAvccSize(data) : data.remaining();
+        if (fragment.data.remaining() < size || fragment.count == fragment.ptsUs.length) {
+            writeFragment();
+            fragment.ensureCapacity(size);
+        }
+        if (mFragmentStartUs < 0) {
+            mFragmentStartUs = ptsUs;
+        }
+        if (track == TRACK_VIDEO) {
+            putAvcc(data, fragment.data);
+        } else {
+            int position = data.position();
+            fragment.data.put(data);
+            data.position(position);
+        }
+        fragment.add(ptsUs, size, isKeyFrame || track == TRACK_AUDIO);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (mStarted) {
+                writeFragment();
+            }
+        } finally {
+            mFileWriter.close();
+        }
+    }
+
+    public long getBytesWritten() {
+        return mFileWriter.position();
+    }
+
+    public int getFragmentCount() {
+        return mSequenceNumber;
+    }
+
+    public AsyncFileWriter getFileWriter() {
+        return mFileWriter;
+    }
+
+    private void writeFragment() throws IOException {
+        TrackFragment video = mTracks[TRACK_VIDEO];
+        TrackFragment audio = mTracks[TRACK_AUDIO];
+        if (video.count == 0 && audio.count == 0) {
+            return;
+        }
+        mSequenceNumber++;
+        mHeader.clear();
+        int moof = startBox(mHeader, "moof");
+        startFullBox(mHeader, "mfhd", 0, 0);
+        mHeader.putInt(mSequenceNumber);
+        endBox(mHeader, moof + 8);
+        int videoDataOffset = writeTraf(mHeader, 1, video);
+        int audioDataOffset = writeTraf(mHeader, 2, audio);
+        endBox(mHeader, moof);
+        int moofSize = mHeader.position();
+        // the data offsets are relative to the start of moof, mdat follows it
+        if (videoDataOffset >= 0) {
+            mHeader.putInt(videoDataOffset, moofSize + 8);
+        }
+        if (audioDataOffset >= 0) {
+            mHeader.putInt(audioDataOffset, moofSize + 8 + video.data.position());
+        }
+        mHeader.putInt(8 + video.data.position() + audio.data.position());
+        mHeader.put(fourcc("mdat"));
+        mHeader.flip();
+        mFileWriter.write(mHeader);
+        video.data.flip();
+        mFileWriter.write(video.data);
+        audio.data.flip();
+        mFileWriter.write(audio.data);
+        mFileWriter.flush();
+        video.reset();
+        audio.reset();
+        mFragmentStartUs = -1;
+    }
+
+    /**
+     * @return the position of the data offset field in the trun box, or -1 if the track has no sample
+     */
+    private int writeTraf(ByteBuffer buffer, int trackId, TrackFragment fragment) {
+        if (fragment.count == 0) {
+            return -1;
+        }
+        int traf = startBox(buffer, "traf");
+        int tfhd = startFullBox(buffer, "tfhd", 0, 0x020000);  // default-base-is-moof
+        buffer.putInt(trackId);
+        endBox(buffer, tfhd);
+        int tfdt = startFullBox(buffer, "tfdt", 1, 0);
+        buffer.putLong(fragment.toTimescale(fragment.ptsUs[0]));
+        endBox(buffer, tfdt);
+        // data offset, sample duration, sample size and sample flags present
+        int trun = startFullBox(buffer, "trun", 0, 0x000701);
+        buffer.putInt(fragment.count);
+        int dataOffset = buffer.position();
+        buffer.putInt(0);
+        long lastDuration = 0;
+        for (int i = 0; i < fragment.count; i++) {
+            long duration;
+            if (i + 1 < fragment.count) {
+                duration = fragment.toTimescale(fragment.ptsUs[i + 1]) - fragment.toTimescale(fragment.ptsUs[i]);
+            } else {
+                // the next sample is not known yet, the next fragment starts at its own decode time anyway
+                duration = lastDuration > 0 ? lastDuration : fragment.lastDuration;
+            }
+            lastDuration = duration;
+            buffer.putInt((int) duration);
+            buffer.putInt(fragment.sizes[i]);
+            buffer.putInt(fragment.keyFrames[i] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+        }
+        fragment.lastDuration = lastDuration;
+        endBox(buffer, trun);
+        endBox(buffer, traf);
+        return dataOffset;
+    }
+
+    private void writeFtyp(ByteBuffer buffer) {
+        int ftyp = startBox(buffer, "ftyp");
+        buffer.put(fourcc("isom"));
+        buffer.putInt(0x200);
+        buffer.put(fourcc("isom"));
+        buffer.put(fourcc("iso6"));
+        buffer.put(fourcc("avc1"));
+        buffer.put(fourcc("mp41"));
+        endBox(buffer, ftyp);
+    }
+
+    private void writeMoov(ByteBuffer buffer) {
+        int moov = startBox(buffer, "moov");
+        int mvhd = startFullBox(buffer, "mvhd", 0, 0);
+        buffer.putInt(0);  // creation time
+        buffer.putInt(0);  // modification time
+        buffer.putInt(MOVIE_TIMESCALE);
+        buffer.putInt(0);  // duration, unknown for fragments
+        buffer.putInt(0x00010000);  // rate 1.0
+        buffer.putShort((short) 0x0100);  // volume 1.0
+        buffer.put(new byte[10]);
+        putMatrix(buffer, 0);
+        buffer.put(new byte[24]);
+        buffer.putInt(3);  // next track id
+        endBox(buffer, mvhd);
+
+        writeTrak(buffer, 1, true);
+        writeTrak(buffer, 2, false);
+
+        int mvex = startBox(buffer, "mvex");
+        for (int trackId = 1; trackId <= 2; trackId++) {
+            int trex = startFullBox(buffer, "trex", 0, 0);
+            buffer.putInt(trackId);
+            buffer.putInt(1);  // sample description index
+            buffer.putInt(0);  // default duration
+            buffer.putInt(0);  // default size
+            buffer.putInt(0);  // default flags
+            endBox(buffer, trex);
+        }
+        endBox(buffer, mvex);
+        endBox(buffer, moov);
+    }
+
+    private void writeTrak(ByteBuffer buffer, int trackId, boolean isVideo) {
+        int trak = startBox(buffer, "trak");
+        int tkhd = startFullBox(buffer, "tkhd", 0, 0x7);  // enabled, in movie, in preview
+        buffer.putInt(0);  // creation time
+        buffer.putInt(0);  // modification time
+        buffer.putInt(trackId);
+        buffer.putInt(0);
+        buffer.putInt(0);  // duration
+        buffer.putLong(0);
+        buffer.putShort((short) 0);  // layer
+        buffer.putShort((short) 0);  // alternate group
+        buffer.putShort((short) (isVideo ? 0 : 0x0100));  // volume
+        buffer.putShort((short) 0);
+        putMatrix(buffer, isVideo ? mOrientationHint : 0);
+        buffer.putInt(isVideo ? mWidth << 16 : 0);
+        buffer.putInt(isVideo ? mHeight << 16 : 0);
+        endBox(buffer, tkhd);
+
+        int mdia = startBox(buffer, "mdia");
+        int mdhd = startFullBox(buffer, "mdhd", 0, 0);
+        buffer.putInt(0);  // creation time
+        buffer.putInt(0);  // modification time
+        buffer.putInt(isVideo ? VIDEO_TIMESCALE : mSampleRate);
+        buffer.putInt(0);  // duration
+        buffer.putShort((short) 0x55C4);  // language "und"
+        buffer.putShort((short) 0);
+        endBox(buffer, mdhd);
+        int hdlr = startFullBox(buffer, "hdlr", 0, 0);
+        buffer.putInt(0);
+        buffer.put(fourcc(isVideo ? "vide" : "soun"));
+        buffer.put(new byte[12]);
+        buffer.put((isVideo ? "VideoHandle" : "SoundHandle").getBytes(StandardCharsets.US_ASCII));
+        buffer.put((byte) 0);
+        endBox(buffer, hdlr);
+
+        int minf = startBox(buffer, "minf");
+        if (isVideo) {
+            int vmhd = startFullBox(buffer, "vmhd", 0, 1);
+            buffer.putLong(0);  // graphics mode and op color
+            endBox(buffer, vmhd);
+        } else {
+            int smhd = startFullBox(buffer, "smhd", 0, 0);
+            buffer.putInt(0);  // balance and reserved
+            endBox(buffer, smhd);
+        }
+        int dinf = startBox(buffer, "dinf");
+        int dref = startFullBox(buffer, "dref", 0, 0);
+        buffer.putInt(1);
+        int url = startFullBox(buffer, "url ", 0, 1);  // data in the same file
+        endBox(buffer, url);
+        endBox(buffer, dref);
+        endBox(buffer, dinf);
+
+        int stbl = startBox(buffer, "stbl");
+        int stsd = startFullBox(buffer, "stsd", 0, 0);
+        buffer.putInt(1);
+        if (isVideo) {
+            writeAvc1(buffer);
+        } else {
+            writeMp4a(buffer);
+        }
+        endBox(buffer, stsd);
+        // the samples are described in the fragments
+        for (String type : new String[]{"stts", "stsc", "stco"}) {
+            int box = startFullBox(buffer, type, 0, 0);
+            buffer.putInt(0);
+            endBox(buffer, box);
+        }
+        int stsz = startFullBox(buffer, "stsz", 0, 0);
+        buffer.putInt(0);
+        buffer.putInt(0);
+        endBox(buffer, stsz);
+        endBox(buffer, stbl);
+        endBox(buffer, minf);
+        endBox(buffer, mdia);
+        endBox(buffer, trak);
+    }
+
+    private void writeAvc1(ByteBuffer buffer) {
+        int avc1 = startBox(buffer, "avc1");
+        buffer.put(new byte[6]);
+        buffer.putShort((short) 1);  // data reference index
+        buffer.put(new byte[16]);
+        buffer.putShort((short) mWidth);
+        buffer.putShort((short) mHeight);
+        buffer.putInt(0x00480000);  // 72 dpi
+        buffer.putInt(0x00480000);
+        buffer.putInt(0);
+        buffer.putShort((short) 1);  // frame count
+        buffer.put(new byte[32]);  // compressor name
+        buffer.putShort((short) 0x0018);  // depth
+        buffer.putShort((short) -1);
+        int avcC = startBox(buffer, "avcC");
+        buffer.put((byte) 1);  // configuration version
+        buffer.put(mSps[1]);  // profile
+        buffer.put(mSps[2]);  // profile compatibility
+        buffer.put(mSps[3]);  // level
+        buffer.put((byte) 0xFF);  // 4 bytes NAL unit length
+        buffer.put((byte) 0xE1);  // 1 SPS
+        buffer.putShort((short) mSps.length);
+        buffer.put(mSps);
+        buffer.put((byte) 1);  // 1 PPS
+        buffer.putShort((short) mPps.length);
+        buffer.put(mPps);
+        endBox(buffer, avcC);
+        endBox(buffer, avc1);
+    }
+
+    private void writeMp4a(ByteBuffer buffer) {
+        int mp4a = startBox(buffer, "mp4a");
+        buffer.put(new byte[6]);
+        buffer.putShort((short) 1);  // data reference index
+        buffer.putLong(0);
+        buffer.putShort((short) mChannelCount);
+        buffer.putShort((short) 16);  // sample size
+        buffer.putInt(0);
+        buffer.putInt(mSampleRate << 16);
+        int esds = startFullBox(buffer, "esds", 0, 0);
+        int asc = mAudioSpecificConfig.length;
+        buffer.put((byte) 0x03);  // ES descriptor
+        buffer.put((byte) (3 + 15 + asc + 2 + 3));
+        buffer.putShort((short) 0);  // ES id
+        buffer.put((byte) 0);
+        buffer.put((byte) 0x04);  // decoder config descriptor
+        buffer.put((byte) (13 + 2 + asc));
+        buffer.put((byte) 0x40);  // MPEG-4 audio
+        buffer.put((byte) 0x15);  // audio stream
+        buffer.put(new byte[3]);  // buffer size
+        buffer.putInt(0);  // max bit rate
+        buffer.putInt(0);  // average bit rate
+        buffer.put((byte) 0x05);  // decoder specific info
+        buffer.put((byte) asc);
+        buffer.put(mAudioSpecificConfig);
+        buffer.put((byte) 0x06);  // SL config descriptor
+        buffer.put((byte) 1);
+        buffer.put((byte) 0x02);
+        endBox(buffer, esds);
+        endBox(buffer, mp4a);
+    }
+
+    private static void putMatrix(ByteBuffer buffer, int rotation) {
+        int a = 0x10000;
+        int b = 0;
+        int c = 0;
+        int d = 0x10000;
+        if (rotation == 90) {
+            a = 0;
+            b = 0x10000;
+            c = -0x10000;
+            d = 0;
+        } else if (rotation == 180) {
+            a = -0x10000;
+            d = -0x10000;
+        } else if (rotation == 270) {
+            a = 0;
+            b = -0x10000;
+            c = 0x10000;
+            d = 0;
+        }
+        buffer.putInt(a).putInt(b).putInt(0);
+        buffer.putInt(c).putInt(d).putInt(0);
+        buffer.putInt(0).putInt(0).putInt(0x40000000);
+    }
+
+    /**
+     * Finds the NAL units of an Annex-B sample.
+     *
+     * @return the number of NAL units, or 0 if the sample does not start with a start code
+     */
+    private int findNalUnits(ByteBuffer data) {
+        int start = data.position();
+        int end = data.limit();
+        int count = 0;
+        int i = start;
+        while (i + 3 <= end) {
+            if (data.get(i) == 0 && data.get(i + 1) == 0 && data.get(i + 2) == 1) {
+                if (count > 0) {
+                    // a 4 bytes start code has one more zero before
+                    mNalEnds[count - 1] = data.get(i - 1) == 0 && i - 1 >= mNalStarts[count - 1] ? i - 1 : i;
+                } else if (i - start > 1 || (i > start && data.get(start) != 0)) {
+                    return 0;
+                }
+                if (count == MAX_NAL_UNITS) {
+                    return 0;
+                }
+                mNalStarts[count++] = i + 3;
+                i += 3;
+            } else {
+                i++;
+            }
+        }
+        if (count > 0) {
+            mNalEnds[count - 1] = end;
+        }
+        return count;
+    }
+
+    private int getAvccSize(ByteBuffer data) {
+        int count = findNalUnits(data);
+        if (count == 0) {
+            return data.remaining();
+        }
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            size += 4 + mNalEnds[i] - mNalStarts[i];
+        }
+        return size;
+    }
+
+    /**
+     * Copies a H.264 sample and replaces the start codes by NAL unit lengths.
+     */
+    private void putAvcc(ByteBuffer data, ByteBuffer out) {
+        int count = findNalUnits(data);
+        int position = data.position();
+        int limit = data.limit();
+        if (count == 0) {
+            out.put(data);
+        } else {
+            for (int i = 0; i < count; i++) {
+                out.putInt(mNalEnds[i] - mNalStarts[i]);
+                data.limit(mNalEnds[i]).position(mNalStarts[i]);
+                out.put(data);
+                data.limit(limit);
+            }
+        }
+        data.limit(limit).position(position);
+    }
+
+    private static byte[] stripStartCode(byte[] nal) {
+        int offset = 0;
+        if (nal.length > 4 && nal[0] == 0 && nal[1] == 0 && nal[2] == 0 && nal[3] == 1) {
+            offset = 4;
+        } else if (nal.length > 3 && nal[0] == 0 && nal[1] == 0 && nal[2] == 1) {
+            offset = 3;
+        }
+        byte[] result = new byte[nal.length - offset];
+        System.arraycopy(nal, offset, result, 0, result.length);
+        return result;
+    }
+
+    private static byte[] fourcc(String type) {
+        return type.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static int startBox(ByteBuffer buffer, String type) {
+        int start = buffer.position();
+        buffer.putInt(0);
+        buffer.put(fourcc(type));
+        return start;
+    }
+
+    private static int startFullBox(ByteBuffer buffer, String type, int version, int flags) {
+        int start = startBox(buffer, type);
+        buffer.putInt((version << 24) | flags);
+        return start;
+    }
+
+    private static void endBox(ByteBuffer buffer, int start) {
+        buffer.putInt(start, buffer.position() - start);
+    }
+
+    /**
+     * The samples of one track in the current fragment.
+     */
+    private static class TrackFragment {
+        ByteBuffer data;
+        long[] ptsUs;
+        int[] sizes;
+        boolean[] keyFrames;
+        int count;
+        int timescale;
+        long lastDuration;
+
+        TrackFragment(int capacityBytes, int maxSamples) {
+            data = ByteBuffer.allocateDirect(capacityBytes);
+            ptsUs = new long[maxSamples];
+            sizes = new int[maxSamples];
+            keyFrames = new boolean[maxSamples];
+        }
+
+        void add(long pts, int size, boolean keyFrame) {
+            ptsUs[count] = pts;
+            sizes[count] = size;
+            keyFrames[count] = keyFrame;
+            count++;
+        }
+
+        void ensureCapacity(int size) {
+            if (data.capacity() < size) {
+                // a single sample larger than the buffer, only happens with a too small buffer
+                data = ByteBuffer.allocateDirect(size);
+            }
+        }
+
+        long toTimescale(long timeUs) {
+            return timeUs * timescale / 1000000;
+        }
+
+        void reset() {
+            data.clear();
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package com.afei.camerarecorder.record;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Moves the moov box of a mp4 file in front of the media data, so players can start before the whole file is
+ * downloaded.
+ * <p>
+ * All boxes, the moov box too, are copied with {@link FileChannel#transferTo}, which lets the kernel copy them without
+ * passing through the java heap. The chunk offsets in the stco / co64 boxes are then shifted in place, in a memory
+ * mapped region of the output. Only when an offset no longer fits in 32 bits and stco has to be widened to co64, which
+ * changes the size of the moov box, the moov box is rebuilt in memory.
+ */
+public class Mp4FastStart {
+
+    private static final int TYPE_MOOV = fourcc("moov");
+    private static final int TYPE_MDAT = fourcc("mdat");
+    private static final int TYPE_STCO = fourcc("stco");
+    private static final int TYPE_CO64 = fourcc("co64");
+    private static final int[] CONTAINER_TYPES = {
+            fourcc("moov"), fourcc("trak"), fourcc("mdia"), fourcc("minf"), fourcc("stbl"), fourcc("edts"),
+            fourcc("dinf")
+    };
+    private static final int MAX_MOOV_SIZE = 256 * 1024 * 1024;
+
+    /**
+     * Rewrites {@code input} into {@code output} with the moov box in front.
+     *
+     * @return false if nothing was written because the moov box is already in front, or the file is not a mp4
+     */
+    public static boolean process(File input, File output) throws IOException {
+        try (FileInputStream inputStream = new FileInputStream(input)) {
+            FileChannel in = inputStream.getChannel();
+            long fileSize = in.size();
+            long moovStart = -1;
+            long moovSize = 0;
+            long firstMdatStart = -1;
+            ByteBuffer header = ByteBuffer.allocate(16);
+            long position = 0;
+            while (position + 8 <= fileSize) {
+                header.clear();
+                header.limit(16);
+                readFully(in, header, position);
+                header.flip();
+                long size = header.getInt() & 0xFFFFFFFFL;
+                int type = header.getInt();
+                if (size == 1) {
+                    size = header.getLong();
+                } else if (size == 0) {
+                    size = fileSize - position;
+                }
+                if (size < 8 || position + size > fileSize) {
+                    throw new IOException("invalid box at " + position);
+                }
+                if (type == TYPE_MOOV) {
+                    moovStart = position;
+                    moovSize = size;
+                } else if (type == TYPE_MDAT && firstMdatStart < 0) {
+                    firstMdatStart = position;
+                }
+                position += size;
+            }
+            if (moovStart < 0 || firstMdatStart < 0 || moovStart < firstMdatStart) {
+                return false;
+            }
+            if (moovSize > MAX_MOOV_SIZE) {
+                throw new IOException("moov too large: " + moovSize);
+            }
+
+            long maxOffset = fileSize + moovSize;
+            int extraSize = 0;
+            MappedByteBuffer mapped = null;
+            if (maxOffset > 0xFFFFFFFFL) {
+                mapped = in.map(FileChannel.MapMode.READ_ONLY, moovStart, moovSize);
+                extraSize = getCo64GrowSize(mapped, 0, (int) moovSize);
+            }
+            long newMoovSize = moovSize + extraSize;
+            OffsetShift shift = new OffsetShift(firstMdatStart, moovStart, moovSize, newMoovSize);
+
+            try (RandomAccessFile outputFile = new RandomAccessFile(output, "rw")) {
+                outputFile.setLength(0);
+                FileChannel out = outputFile.getChannel();
+                transferFully(in, 0, firstMdatStart, out);
+                if (extraSize > 0) {
+                    ByteBuffer moov = ByteBuffer.allocate((int) newMoovSize);
+                    copyBoxes(mapped, 0, (int) moovSize, moov, shift);
+                    moov.flip();
+                    while (moov.hasRemaining()) {
+                        out.write(moov);
+                    }
+                } else {
+                    transferFully(in, moovStart, moovSize, out);
+                }
+                transferFully(in, firstMdatStart, moovStart - firstMdatStart, out);
+                long moovEnd = moovStart + moovSize;
+                transferFully(in, moovEnd, fileSize - moovEnd, out);
+                if (extraSize == 0) {
+                    MappedByteBuffer moov = out.map(FileChannel.MapMode.READ_WRITE, firstMdatStart, moovSize);
+                    shiftOffsets(moov, 0, (int) moovSize, shift);
+                    moov.force();
+                }
+                out.force(true);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Rewrites the file in place: the result is written next to it and then replaces it.
+     *
+     * @return false if the file was not changed
+     */
+    public static boolean process(File file) throws IOException {
+        File tmpFile = new File(file.getParentFile(), "." + file.getName() + ".faststart");
+        try {
+            if (!process(file, tmpFile)) {
+                return false;
+            }
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("rename " + tmpFile + " failed");
+            }
+            return true;
+        } finally {
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * Maps an offset of the input file to the output file.
+     */
+    private static class OffsetShift {
+        final long insertPosition;
+        final long moovStart;
+        final long moovSize;
+        final long newMoovSize;
+
+        OffsetShift(long insertPosition, long moovStart, long moovSize, long newMoovSize) {
+            this.insertPosition = insertPosition;
+            this.moovStart = moovStart;
+            this.moovSize = moovSize;
+            this.newMoovSize = newMoovSize;
+        }
+
+        long map(long offset) {
+            if (offset < insertPosition) {
+                return offset;
+            } else if (offset < moovStart) {
+                return offset + newMoovSize;
+            }
+            return offset - moovSize + newMoovSize;
+        }
+    }
+
+    /**
+     * @return the bytes all stco boxes grow by when converted to co64
+     */
+    private static int getCo64GrowSize(ByteBuffer moov, int start, int end) throws IOException {
+        int growSize = 0;
+        int position = start;
+        while (position + 8 <= end) {
+            int size = getBoxSize(moov, position, end);
+            int header = getHeaderSize(moov, position);
+            int type = moov.getInt(position + 4);
+            if (type == TYPE_STCO) {
+                growSize += 4 * moov.getInt(position + header + 4);
+            } else if (isContainer(type)) {
+                growSize += getCo64GrowSize(moov, position + header, position + size);
+            }
+            position += size;
+        }
+        return growSize;
+    }
+
+    /**
+     * Shifts the chunk offsets of the stco / co64 boxes where they are, the moov box keeps its size.
+     */
+    private static void shiftOffsets(ByteBuffer moov, int start, int end, OffsetShift shift) throws IOException {
+        int position = start;
+        while (position + 8 <= end) {
+            int size = getBoxSize(moov, position, end);
+            int header = getHeaderSize(moov, position);
+            int type = moov.getInt(position + 4);
+            int entries = position + header + 8;  // after version, flags and entry count
+            if (type == TYPE_STCO) {
+                int count = moov.getInt(position + header + 4);
+                for (int i = 0; i < count; i++) {
+                    int index = entries + 4 * i;
+                    moov.putInt(index, (int) shift.map(moov.getInt(index) & 0xFFFFFFFFL));
+                }
+            } else if (type == TYPE_CO64) {
+                int count = moov.getInt(position + header + 4);
+                for (int i = 0; i < count; i++) {
+                    int index = entries + 8 * i;
+                    moov.putLong(index, shift.map(moov.getLong(index)));
+                }
+            } else if (isContainer(type)) {
+                shiftOffsets(moov, position + header, position + size, shift);
+            }
+            position += size;
+        }
+    }
+
+    /**
+     * Copies the boxes with every stco widened to co64, the headers of the boxes around them grow with it.
+     */
+    private static void copyBoxes(ByteBuffer in, int start, int end, ByteBuffer out, OffsetShift shift)
+            throws IOException {
+        int position = start;
+        while (position + 8 <= end) {
+            int size = getBoxSize(in, position, end);
+            int header = getHeaderSize(in, position);
+            int type = in.getInt(position + 4);
+            if (type == TYPE_STCO || type == TYPE_CO64) {
+                int count = in.getInt(position + header + 4);
+                out.putInt(16 + 8 * count);
+                out.putInt(TYPE_CO64);
+                out.putInt(in.getInt(position + header));  // version and flags
+                out.putInt(count);
+                for (int i = 0; i < count; i++) {
+                    long offset = type == TYPE_STCO
+                            ? in.getInt(position + header + 8 + 4 * i) & 0xFFFFFFFFL
+                            : in.getLong(position + header + 8 + 8 * i);
+                    out.putLong(shift.map(offset));
+                }
+            } else if (isContainer(type)) {
+                int outStart = out.position();
+                out.putInt(0);
+                out.putInt(type);
+                copyBoxes(in, position + header, position + size, out, shift);
+                out.putInt(outStart, out.position() - outStart);
+            } else {
+                for (int i = 0; i < size; i++) {
+                    out.put(in.get(position + i));
+                }
+            }
+            position += size;
+        }
+    }
+
+    /**
+     * @return size of the box at position, with its header. A size of 1 is followed by the 64 bit size, a size of 0
+     * runs to the end of the parent box.
+     */
+    private static int getBoxSize(ByteBuffer moov, int position, int end) throws IOException {
+        long size = moov.getInt(position) & 0xFFFFFFFFL;
+        if (size == 1) {
+            size = position + 16 <= end ? moov.getLong(position + 8) : 0;
+        } else if (size == 0) {
+            size = end - position;
+        }
+        if (size < getHeaderSize(moov, position) || position + size > end) {
+            throw new IOException("invalid box in moov at " + position);
+        }
+        return (int) size;
+    }
+
+    private static int getHeaderSize(ByteBuffer moov, int position) {
+        return moov.getInt(position) == 1 ? 16 : 8;
+    }
+
+    private static boolean isContainer(int type) {
+        for (int containerType : CONTAINER_TYPES) {
+            if (type == containerType) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                break;
+            }
+            position += read;
+        }
+    }
+
+    private static void transferFully(FileChannel in, long position, long count, FileChannel out) throws IOException {
+        while (count > 0) {
+            long transferred = in.transferTo(position, count, out);
+            if (transferred <= 0) {
+                throw new IOException("transferTo stopped at " + position);
+            }
+            position += transferred;
+            count -= transferred;
+        }
+    }
+
+    private static int fourcc(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+    }
+}
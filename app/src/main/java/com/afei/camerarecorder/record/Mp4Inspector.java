@@ -0,0 +1,779 @@
+package com.afei.camerarecorder.record;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Checks recorded mp4 files for dropped frames, timestamp gaps, audio / video drift and bitrate spikes by reading
+ * their sample tables, without decoding anything.
+ * <p>
+ * Only the moov box is memory mapped. The moof boxes of fragmented files are read into one reused buffer, a mapping
+ * each would run out of map areas on long recordings before the garbage collector unmaps them. Samples are walked
+ * straight from the stts / ctts / stsz / stss (or trun) tables, nothing is allocated per sample.
+ */
+public class Mp4Inspector {
+
+    private static final int HISTOGRAM_MAX_MS = 200;  // longer intervals go to the last bucket
+    private static final float GAP_FACTOR = 1.5f;  // an interval this much longer than the nominal one is a gap
+    private static final int MAX_GAPS = 100;  // gap locations kept per track, the rest are only counted
+    private static final int SAMPLE_IS_NON_SYNC = 0x10000;
+
+    private static final int TYPE_MOOV = fourcc("moov");
+    private static final int TYPE_MOOF = fourcc("moof");
+    private static final int TYPE_MDAT = fourcc("mdat");
+    private static final int TYPE_TRAK = fourcc("trak");
+    private static final int TYPE_TKHD = fourcc("tkhd");
+    private static final int TYPE_MDIA = fourcc("mdia");
+    private static final int TYPE_MDHD = fourcc("mdhd");
+    private static final int TYPE_HDLR = fourcc("hdlr");
+    private static final int TYPE_MINF = fourcc("minf");
+    private static final int TYPE_STBL = fourcc("stbl");
+    private static final int TYPE_STTS = fourcc("stts");
+    private static final int TYPE_CTTS = fourcc("ctts");
+    private static final int TYPE_STSZ = fourcc("stsz");
+    private static final int TYPE_STSS = fourcc("stss");
+    private static final int TYPE_MVEX = fourcc("mvex");
+    private static final int TYPE_TREX = fourcc("trex");
+    private static final int TYPE_TRAF = fourcc("traf");
+    private static final int TYPE_TFHD = fourcc("tfhd");
+    private static final int TYPE_TFDT = fourcc("tfdt");
+    private static final int TYPE_TRUN = fourcc("trun");
+
+    public static class Gap {
+        private final int mSampleIndex;
+        private final long mTimeUs;
+        private final long mIntervalUs;
+
+        Gap(int sampleIndex, long timeUs, long intervalUs) {
+            mSampleIndex = sampleIndex;
+            mTimeUs = timeUs;
+            mIntervalUs = intervalUs;
+        }
+
+        public int getSampleIndex() {
+            return mSampleIndex;
+        }
+
+        public long getTimeUs() {
+            return mTimeUs;
+        }
+
+        public long getIntervalUs() {
+            return mIntervalUs;
+        }
+
+        @Override
+        public String toString() {
+            return "gap at sample " + mSampleIndex + " (" + mTimeUs / 1000 + "ms): " + mIntervalUs / 1000 + "ms";
+        }
+    }
+
+    public static class TrackReport {
+        private int mTrackId;
+        private String mHandlerType;
+        private long mTimescale;
+        private int mSampleCount;
+        private int mKeyFrameCount;
+        private long mStartUs;
+        private long mDurationUs;
+        private long mTotalBytes;
+        private long mNominalIntervalUs;
+        private long mMinIntervalUs = Long.MAX_VALUE;
+        private long mMaxIntervalUs;
+        private long mMaxKeyFrameIntervalUs;
+        private long mMaxCompositionOffsetUs;
+        private int mNonMonotonicCount;
+        private long mPeakBytesPerSecond;
+        private long mPeakTimeUs;
+        private int mGapCount;
+        private int mDroppedFrameEstimate;
+        private final int[] mIntervalHistogramMs = new int[HISTOGRAM_MAX_MS + 1];
+        private final List<Gap> mGaps = new ArrayList<>();
+
+        public int getTrackId() {
+            return mTrackId;
+        }
+
+        public String getHandlerType() {
+            return mHandlerType;
+        }
+
+        public boolean isVideo() {
+            return "vide".equals(mHandlerType);
+        }
+
+        public boolean isAudio() {
+            return "soun".equals(mHandlerType);
+        }
+
+        public int getSampleCount() {
+            return mSampleCount;
+        }
+
+        public int getKeyFrameCount() {
+            return mKeyFrameCount;
+        }
+
+        public long getStartUs() {
+            return mStartUs;
+        }
+
+        public long getDurationUs() {
+            return mDurationUs;
+        }
+
+        public long getEndUs() {
+            return mStartUs + mDurationUs;
+        }
+
+        public long getTotalBytes() {
+            return mTotalBytes;
+        }
+
+        public long getAverageBitRate() {
+            return mDurationUs > 0 ? mTotalBytes * 8 * 1000000 / mDurationUs : 0;
+        }
+
+        /**
+         * @return the highest bitrate of any one second of the track
+         */
+        public long getPeakBitRate() {
+            return mPeakBytesPerSecond * 8;
+        }
+
+        public long getPeakTimeUs() {
+            return mPeakTimeUs;
+        }
+
+        /**
+         * @return the most common interval between samples
+         */
+        public long getNominalIntervalUs() {
+            return mNominalIntervalUs;
+        }
+
+        public long getMinIntervalUs() {
+            return mSampleCount > 1 ? mMinIntervalUs : 0;
+        }
+
+        public long getMaxIntervalUs() {
+            return mMaxIntervalUs;
+        }
+
+        public long getMaxKeyFrameIntervalUs() {
+            return mMaxKeyFrameIntervalUs;
+        }
+
+        public long getMaxCompositionOffsetUs() {
+            return mMaxCompositionOffsetUs;
+        }
+
+        /**
+         * @return how often a sample's decode time was not after the previous one
+         */
+        public int getNonMonotonicCount() {
+            return mNonMonotonicCount;
+        }
+
+        /**
+         * @return count of intervals between samples, index is the interval in ms, the last bucket holds all longer
+         */
+        public int[] getIntervalHistogramMs() {
+            return mIntervalHistogramMs;
+        }
+
+        public int getGapCount() {
+            return mGapCount;
+        }
+
+        /**
+         * @return the first gaps, at most {@link #MAX_GAPS}
+         */
+        public List<Gap> getGaps() {
+            return mGaps;
+        }
+
+        /**
+         * @return samples missing in the gaps, judged from the nominal interval
+         */
+        public int getDroppedFrameEstimate() {
+            return mDroppedFrameEstimate;
+        }
+
+        long toUs(long time) {
+            return time * 1000000 / mTimescale;
+        }
+
+        @Override
+        public String toString() {
+            return "track " + mTrackId + " " + mHandlerType + ": samples " + mSampleCount + ", key frames "
+                    + mKeyFrameCount + ", duration " + mDurationUs / 1000 + "ms, interval " + mNominalIntervalUs
+                    + "us [" + getMinIntervalUs() + ", " + mMaxIntervalUs + "], gaps " + mGapCount + ", dropped "
+                    + mDroppedFrameEstimate + ", bitrate " + getAverageBitRate() + " peak " + getPeakBitRate()
+                    + " at " + mPeakTimeUs / 1000 + "ms";
+        }
+    }
+
+    public static class Report {
+        private final File mFile;
+        private boolean mFragmented;
+        private final List<TrackReport> mTracks = new ArrayList<>();
+        private String mError;
+
+        Report(File file) {
+            mFile = file;
+        }
+
+        public File getFile() {
+            return mFile;
+        }
+
+        public boolean isFragmented() {
+            return mFragmented;
+        }
+
+        public List<TrackReport> getTracks() {
+            return mTracks;
+        }
+
+        public TrackReport getVideoTrack() {
+            for (TrackReport track : mTracks) {
+                if (track.isVideo()) {
+                    return track;
+                }
+            }
+            return null;
+        }
+
+        public TrackReport getAudioTrack() {
+            for (TrackReport track : mTracks) {
+                if (track.isAudio()) {
+                    return track;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return video end time minus audio end time, 0 if the file misses one of them
+         */
+        public long getAvDriftUs() {
+            TrackReport video = getVideoTrack();
+            TrackReport audio = getAudioTrack();
+            if (video == null || audio == null) {
+                return 0;
+            }
+            return video.getEndUs() - audio.getEndUs();
+        }
+
+        /**
+         * @return the reason the file could not be inspected, null if it was
+         */
+        public String getError() {
+            return mError;
+        }
+
+        public boolean hasProblems() {
+            if (mError != null) {
+                return true;
+            }
+            for (TrackReport track : mTracks) {
+                if (track.mGapCount > 0 || track.mNonMonotonicCount > 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            if (mError != null) {
+                return mFile + ": " + mError;
+            }
+            StringBuilder builder = new StringBuilder();
+            builder.append(mFile).append(mFragmented ? " (fragmented)" : "").append(", av drift ")
+                    .append(getAvDriftUs() / 1000).append("ms");
+            for (TrackReport track : mTracks) {
+                builder.append("\n  ").append(track);
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * Sample table positions of one track, inside the mapped moov.
+     */
+    private static class Track {
+        final TrackReport report = new TrackReport();
+        int stts = -1;
+        int ctts = -1;
+        int stsz = -1;
+        int stss = -1;
+        // trex defaults, for fragmented files
+        long defaultDuration;
+        int defaultSize;
+        int defaultFlags;
+        // walk state of fragmented files
+        int sampleIndex;
+        long decodeTime;
+        // visitor state
+        long lastTimeUs;
+        long lastKeyTimeUs;
+        long windowStartUs;
+        long windowBytes;
+        final long[] bucketSumUs = new long[HISTOGRAM_MAX_MS + 1];
+    }
+
+    private interface SampleVisitor {
+        void onSample(Track track, int index, long decodeTime, long duration, int size, int compositionOffset,
+                      boolean keyFrame);
+    }
+
+    /**
+     * First pass: counts, histogram, key frames and bitrate.
+     */
+    private static final SampleVisitor STATS_VISITOR = new SampleVisitor() {
+        @Override
+        public void onSample(Track track, int index, long decodeTime, long duration, int size, int compositionOffset,
+                             boolean keyFrame) {
+            TrackReport report = track.report;
+            long timeUs = report.toUs(decodeTime);
+            if (index == 0) {
+                report.mStartUs = timeUs;
+                track.windowStartUs = timeUs;
+            } else {
+                long intervalUs = timeUs - track.lastTimeUs;
+                if (intervalUs <= 0) {
+                    report.mNonMonotonicCount++;
+                }
+                int bucket = (int) Math.max(0, Math.min(HISTOGRAM_MAX_MS, intervalUs / 1000));
+                report.mIntervalHistogramMs[bucket]++;
+                track.bucketSumUs[bucket] += intervalUs;
+                report.mMinIntervalUs = Math.min(report.mMinIntervalUs, intervalUs);
+                report.mMaxIntervalUs = Math.max(report.mMaxIntervalUs, intervalUs);
+            }
+            report.mSampleCount++;
+            report.mTotalBytes += size;
+            report.mDurationUs = report.toUs(decodeTime + duration) - report.mStartUs;
+            if (keyFrame) {
+                if (report.mKeyFrameCount > 0) {
+                    report.mMaxKeyFrameIntervalUs = Math.max(report.mMaxKeyFrameIntervalUs,
+                            timeUs - track.lastKeyTimeUs);
+                }
+                report.mKeyFrameCount++;
+                track.lastKeyTimeUs = timeUs;
+            }
+            report.mMaxCompositionOffsetUs = Math.max(report.mMaxCompositionOffsetUs,
+                    report.toUs(Math.abs((long) compositionOffset)));
+            if (timeUs - track.windowStartUs >= 1000000) {
+                track.windowStartUs = timeUs;
+                track.windowBytes = 0;
+            }
+            track.windowBytes += size;
+            if (track.windowBytes > report.mPeakBytesPerSecond) {
+                report.mPeakBytesPerSecond = track.windowBytes;
+                report.mPeakTimeUs = track.windowStartUs;
+            }
+            track.lastTimeUs = timeUs;
+        }
+    };
+
+    /**
+     * Second pass: intervals against the nominal interval found by the first pass.
+     */
+    private static final SampleVisitor GAP_VISITOR = new SampleVisitor() {
+        @Override
+        public void onSample(Track track, int index, long decodeTime, long duration, int size, int compositionOffset,
+                             boolean keyFrame) {
+            TrackReport report = track.report;
+            long timeUs = report.toUs(decodeTime);
+            long nominalUs = report.mNominalIntervalUs;
+            if (index > 0 && nominalUs > 0) {
+                long intervalUs = timeUs - track.lastTimeUs;
+                if (intervalUs > nominalUs * GAP_FACTOR) {
+                    report.mGapCount++;
+                    report.mDroppedFrameEstimate += (int) ((intervalUs + nominalUs / 2) / nominalUs) - 1;
+                    if (report.mGaps.size() < MAX_GAPS) {
+                        report.mGaps.add(new Gap(index, timeUs, intervalUs));
+                    }
+                }
+            }
+            track.lastTimeUs = timeUs;
+        }
+    };
+
+    /**
+     * Inspects one file.
+     */
+    public static Report inspect(File file) throws IOException {
+        Report report = new Report(file);
+        try (FileInputStream inputStream = new FileInputStream(file)) {
+            FileChannel channel = inputStream.getChannel();
+            long fileSize = channel.size();
+            long moovStart = -1;
+            long moovSize = 0;
+            long[] moofs = new long[16];  // start and size pairs
+            int moofCount = 0;
+            int lastType = 0;
+            ByteBuffer header = ByteBuffer.allocate(16);
+            long position = 0;
+            while (position + 8 <= fileSize) {
+                header.clear();
+                while (header.hasRemaining() && channel.read(header, position + header.position()) > 0) {
+                    // read the whole header
+                }
+                header.flip();
+                long size = header.getInt() & 0xFFFFFFFFL;
+                int type = header.getInt();
+                if (size == 1) {
+                    size = header.getLong();
+                } else if (size == 0) {
+                    size = fileSize - position;
+                }
+                if (size < 8 || position + size > fileSize) {
+                    // a crashed recording ends with a cut box, inspect what is complete
+                    break;
+                }
+                if (type == TYPE_MDAT && lastType == TYPE_MOOF) {
+                    moofCount++;  // a fragment counts once its samples are complete too
+                }
+                if (type == TYPE_MOOV) {
+                    moovStart = position;
+                    moovSize = size;
+                } else if (type == TYPE_MOOF) {
+                    if (moofCount * 2 == moofs.length) {
+                        moofs = Arrays.copyOf(moofs, moofs.length * 2);
+                    }
+                    moofs[moofCount * 2] = position;
+                    moofs[moofCount * 2 + 1] = size;
+                }
+                lastType = type;
+                position += size;
+            }
+            if (moovStart < 0) {
+                throw new IOException("no moov box");
+            }
+            MappedByteBuffer moov = channel.map(FileChannel.MapMode.READ_ONLY, moovStart, moovSize);
+            List<Track> tracks = parseMoov(moov, (int) moovSize);
+            report.mFragmented = moofCount > 0;
+            for (int pass = 0; pass < 2; pass++) {
+                SampleVisitor visitor = pass == 0 ? STATS_VISITOR : GAP_VISITOR;
+                for (Track track : tracks) {
+                    track.sampleIndex = 0;
+                    track.decodeTime = 0;
+                    if (track.stsz >= 0 && moov.getInt(track.stsz + 16) > 0) {
+                        walkTables(moov, track, visitor);
+                    }
+                }
+                if (moofCount > 0) {
+                    walkFragments(channel, moofs, moofCount, tracks, visitor);
+                }
+                if (pass == 0) {
+                    for (Track track : tracks) {
+                        track.report.mNominalIntervalUs = getNominalIntervalUs(track);
+                    }
+                }
+            }
+            for (Track track : tracks) {
+                report.mTracks.add(track.report);
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Inspects all mp4 files of a directory, spread over all cores.
+     *
+     * @return one report per file, files that could not be read have {@link Report#getError()} set
+     */
+    public static List<Report> inspectDirectory(File dir) throws InterruptedException {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".mp4") && !name.startsWith("."));
+        List<Report> reports = new ArrayList<>();
+        if (files == null || files.length == 0) {
+            return reports;
+        }
+        Arrays.sort(files);
+        int threadCount = Math.min(files.length, Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            List<Future<Report>> futures = new ArrayList<>(files.length);
+            for (File file : files) {
+                futures.add(executor.submit(() -> {
+                    try {
+                        return inspect(file);
+                    } catch (IOException | RuntimeException e) {
+                        Report report = new Report(file);
+                        report.mError = String.valueOf(e.getMessage());
+                        return report;
+                    }
+                }));
+            }
+            for (Future<Report> future : futures) {
+                try {
+                    reports.add(future.get());
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return reports;
+    }
+
+    private static List<Track> parseMoov(ByteBuffer moov, int moovEnd) {
+        List<Track> tracks = new ArrayList<>();
+        for (int trak = findBox(moov, 8, moovEnd, TYPE_TRAK); trak >= 0;
+             trak = findBox(moov, trak + moov.getInt(trak), moovEnd, TYPE_TRAK)) {
+            int trakEnd = trak + moov.getInt(trak);
+            Track track = new Track();
+            int tkhd = findBox(moov, trak + 8, trakEnd, TYPE_TKHD);
+            if (tkhd >= 0) {
+                track.report.mTrackId = moov.getInt(tkhd + (moov.get(tkhd + 8) == 1 ? 28 : 20));
+            }
+            int mdia = findBox(moov, trak + 8, trakEnd, TYPE_MDIA);
+            if (mdia < 0) {
+                continue;
+            }
+            int mdiaEnd = mdia + moov.getInt(mdia);
+            int mdhd = findBox(moov, mdia + 8, mdiaEnd, TYPE_MDHD);
+            int hdlr = findBox(moov, mdia + 8, mdiaEnd, TYPE_HDLR);
+            int minf = findBox(moov, mdia + 8, mdiaEnd, TYPE_MINF);
+            if (mdhd < 0 || hdlr < 0 || minf < 0) {
+                continue;
+            }
+            track.report.mTimescale = moov.getInt(mdhd + (moov.get(mdhd + 8) == 1 ? 28 : 20)) & 0xFFFFFFFFL;
+            if (track.report.mTimescale == 0) {
+                continue;
+            }
+            byte[] handler = new byte[4];
+            for (int i = 0; i < 4; i++) {
+                handler[i] = moov.get(hdlr + 16 + i);
+            }
+            track.report.mHandlerType = new String(handler);
+            int stbl = findBox(moov, minf + 8, minf + moov.getInt(minf), TYPE_STBL);
+            if (stbl >= 0) {
+                int stblEnd = stbl + moov.getInt(stbl);
+                track.stts = findBox(moov, stbl + 8, stblEnd, TYPE_STTS);
+                track.ctts = findBox(moov, stbl + 8, stblEnd, TYPE_CTTS);
+                track.stsz = findBox(moov, stbl + 8, stblEnd, TYPE_STSZ);
+                track.stss = findBox(moov, stbl + 8, stblEnd, TYPE_STSS);
+                if (track.stts < 0) {
+                    track.stsz = -1;
+                }
+            }
+            tracks.add(track);
+        }
+        int mvex = findBox(moov, 8, moovEnd, TYPE_MVEX);
+        if (mvex >= 0) {
+            int mvexEnd = mvex + moov.getInt(mvex);
+            for (int trex = findBox(moov, mvex + 8, mvexEnd, TYPE_TREX); trex >= 0;
+                 trex = findBox(moov, trex + moov.getInt(trex), mvexEnd, TYPE_TREX)) {
+                Track track = findTrack(tracks, moov.getInt(trex + 12));
+                if (track != null) {
+                    track.defaultDuration = moov.getInt(trex + 20) & 0xFFFFFFFFL;
+                    track.defaultSize = moov.getInt(trex + 24);
+                    track.defaultFlags = moov.getInt(trex + 28);
+                }
+            }
+        }
+        return tracks;
+    }
+
+    private static void walkTables(ByteBuffer moov, Track track, SampleVisitor visitor) {
+        int uniformSize = moov.getInt(track.stsz + 12);
+        int sampleCount = moov.getInt(track.stsz + 16);
+        int sttsEntries = moov.getInt(track.stts + 12);
+        int sttsIndex = 0;
+        int sttsRemaining = 0;
+        long duration = 0;
+        int cttsEntries = track.ctts < 0 ? 0 : moov.getInt(track.ctts + 12);
+        int cttsIndex = 0;
+        int cttsRemaining = 0;
+        int compositionOffset = 0;
+        int stssEntries = track.stss < 0 ? 0 : moov.getInt(track.stss + 12);
+        int stssIndex = 0;
+        int nextSyncSample = stssEntries > 0 ? moov.getInt(track.stss + 16) : -1;
+        long decodeTime = 0;
+        for (int i = 0; i < sampleCount; i++) {
+            while (sttsRemaining == 0 && sttsIndex < sttsEntries) {
+                sttsRemaining = moov.getInt(track.stts + 16 + 8 * sttsIndex);
+                duration = moov.getInt(track.stts + 20 + 8 * sttsIndex) & 0xFFFFFFFFL;
+                sttsIndex++;
+            }
+            if (sttsRemaining > 0) {
+                sttsRemaining--;
+            }
+            while (cttsRemaining == 0 && cttsIndex < cttsEntries) {
+                cttsRemaining = moov.getInt(track.ctts + 16 + 8 * cttsIndex);
+                compositionOffset = moov.getInt(track.ctts + 20 + 8 * cttsIndex);
+                cttsIndex++;
+            }
+            if (cttsRemaining > 0) {
+                cttsRemaining--;
+            }
+            int size = uniformSize != 0 ? uniformSize : moov.getInt(track.stsz + 20 + 4 * i);
+            boolean keyFrame = track.stss < 0;  // no stss means every sample is a sync sample
+            if (i + 1 == nextSyncSample) {
+                keyFrame = true;
+                stssIndex++;
+                nextSyncSample = stssIndex < stssEntries ? moov.getInt(track.stss + 16 + 4 * stssIndex) : -1;
+            }
+            visitor.onSample(track, i, decodeTime, duration, size, compositionOffset, keyFrame);
+            decodeTime += duration;
+        }
+        track.sampleIndex = sampleCount;
+        track.decodeTime = decodeTime;
+    }
+
+    private static void walkFragments(FileChannel channel, long[] moofs, int moofCount, List<Track> tracks,
+                                      SampleVisitor visitor) throws IOException {
+        ByteBuffer moof = ByteBuffer.allocate(16 * 1024);  // a moof is a few KB
+        for (int m = 0; m < moofCount; m++) {
+            int moofEnd = (int) moofs[m * 2 + 1];
+            if (moof.capacity() < moofEnd) {
+                moof = ByteBuffer.allocate(moofEnd);
+            }
+            moof.clear();
+            moof.limit(moofEnd);
+            while (moof.hasRemaining() && channel.read(moof, moofs[m * 2] + moof.position()) > 0) {
+                // read the whole moof
+            }
+            for (int traf = findBox(moof, 8, moofEnd, TYPE_TRAF); traf >= 0;
+                 traf = findBox(moof, traf + moof.getInt(traf), moofEnd, TYPE_TRAF)) {
+                int trafEnd = traf + moof.getInt(traf);
+                int tfhd = findBox(moof, traf + 8, trafEnd, TYPE_TFHD);
+                if (tfhd < 0) {
+                    continue;
+                }
+                Track track = findTrack(tracks, moof.getInt(tfhd + 12));
+                if (track == null) {
+                    continue;
+                }
+                int tfhdFlags = moof.getInt(tfhd + 8) & 0xFFFFFF;
+                int p = tfhd + 16;
+                if ((tfhdFlags & 0x01) != 0) {  // base data offset
+                    p += 8;
+                }
+                if ((tfhdFlags & 0x02) != 0) {  // sample description index
+                    p += 4;
+                }
+                long defaultDuration = track.defaultDuration;
+                int defaultSize = track.defaultSize;
+                int defaultFlags = track.defaultFlags;
+                if ((tfhdFlags & 0x08) != 0) {
+                    defaultDuration = moof.getInt(p) & 0xFFFFFFFFL;
+                    p += 4;
+                }
+                if ((tfhdFlags & 0x10) != 0) {
+                    defaultSize = moof.getInt(p);
+                    p += 4;
+                }
+                if ((tfhdFlags & 0x20) != 0) {
+                    defaultFlags = moof.getInt(p);
+                }
+                int tfdt = findBox(moof, traf + 8, trafEnd, TYPE_TFDT);
+                if (tfdt >= 0) {
+                    track.decodeTime = moof.get(tfdt + 8) == 1 ? moof.getLong(tfdt + 12)
+                            : moof.getInt(tfdt + 12) & 0xFFFFFFFFL;
+                }
+                for (int trun = findBox(moof, traf + 8, trafEnd, TYPE_TRUN); trun >= 0;
+                     trun = findBox(moof, trun + moof.getInt(trun), trafEnd, TYPE_TRUN)) {
+                    int trunFlags = moof.getInt(trun + 8) & 0xFFFFFF;
+                    int count = moof.getInt(trun + 12);
+                    int q = trun + 16;
+                    if ((trunFlags & 0x01) != 0) {  // data offset
+                        q += 4;
+                    }
+                    boolean hasFirstFlags = (trunFlags & 0x04) != 0;
+                    int firstFlags = 0;
+                    if (hasFirstFlags) {
+                        firstFlags = moof.getInt(q);
+                        q += 4;
+                    }
+                    for (int i = 0; i < count; i++) {
+                        long duration = defaultDuration;
+                        int size = defaultSize;
+                        int flags = i == 0 && hasFirstFlags ? firstFlags : defaultFlags;
+                        int compositionOffset = 0;
+                        if ((trunFlags & 0x100) != 0) {
+                            duration = moof.getInt(q) & 0xFFFFFFFFL;
+                            q += 4;
+                        }
+                        if ((trunFlags & 0x200) != 0) {
+                            size = moof.getInt(q);
+                            q += 4;
+                        }
+                        if ((trunFlags & 0x400) != 0) {
+                            flags = moof.getInt(q);
+                            q += 4;
+                        }
+                        if ((trunFlags & 0x800) != 0) {
+                            compositionOffset = moof.getInt(q);
+                            q += 4;
+                        }
+                        visitor.onSample(track, track.sampleIndex++, track.decodeTime, duration, size,
+                                compositionOffset, (flags & SAMPLE_IS_NON_SYNC) == 0);
+                        track.decodeTime += duration;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the average interval of the fullest histogram bucket
+     */
+    private static long getNominalIntervalUs(Track track) {
+        int[] histogram = track.report.mIntervalHistogramMs;
+        int best = -1;
+        for (int i = 0; i < HISTOGRAM_MAX_MS; i++) {  // the overflow bucket is never nominal
+            if (histogram[i] > 0 && (best < 0 || histogram[i] > histogram[best])) {
+                best = i;
+            }
+        }
+        return best < 0 ? 0 : track.bucketSumUs[best] / histogram[best];
+    }
+
+    private static Track findTrack(List<Track> tracks, int trackId) {
+        for (Track track : tracks) {
+            if (track.report.mTrackId == trackId) {
+                return track;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the position of the first box of the type in [start, end), or -1
+     */
+    private static int findBox(ByteBuffer buffer, int start, int end, int type) {
+        int position = start;
+        while (position + 8 <= end) {
+            int size = buffer.getInt(position);
+            if (size < 8 || position + size > end) {
+                return -1;
+            }
+            if (buffer.getInt(position + 4) == type) {
+                return position;
+            }
+            position += size;
+        }
+        return -1;
+    }
+
+    private static int fourcc(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+    }
+}
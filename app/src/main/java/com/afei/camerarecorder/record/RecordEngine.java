@@ -0,0 +1,69 @@
+package com.afei.camerarecorder.record;
+
+import java.io.File;
+
+/**
+ * A recorder fed by the persistent input surface of the video session.
+ * <p>
+ * {@link #prepare()}, {@link #start()}, {@link #stop()} and {@link #release()} are called on the thread of the prepare
+ * handler the engine was created with, the same thread background prepares run on, so none of them waits for another.
+ * They may take a while, never call them on the UI thread.
+ */
+public interface RecordEngine {
+
+    interface OnSegmentListener {
+        /**
+         * Called when a segment is complete and the record goes on in the next file. The last segment of a record is
+         * returned by {@link #stop()} instead.
+         */
+        void onSegmentFinished(File file);
+    }
+
+    /**
+     * Prepares the encoder if it is not prepared yet.
+     */
+    void prepare();
+
+    /**
+     * Prepares the encoder in the background if it is not prepared yet.
+     */
+    void prepareAsync();
+
+    /**
+     * Starts a record with the prepared encoder, or prepares one first if there is none.
+     *
+     * @return false if the record could not be started
+     */
+    boolean start();
+
+    /**
+     * Stops the record, waiting for the encoder to drain, and prepares for the next one in the background.
+     *
+     * @return the recorded file, or null if nothing was recording or the record is invalid
+     */
+    File stop();
+
+    /**
+     * Splits the records into files of at most the given duration or size, a value of 0 means no limit.
+     * Must be called before {@link #prepare()} to take effect on the first record.
+     */
+    void setSegmentLimit(long maxDurationMs, long maxFileSizeBytes);
+
+    void setOnSegmentListener(OnSegmentListener listener);
+
+    /**
+     * Sets the orientation of the files started after this call, values: 0, 90, 180, 270. A record prepared with
+     * another orientation is prepared again in the background if needed.
+     */
+    void setOrientationHint(int degrees);
+
+    boolean isRecording();
+
+    /**
+     * @return the time from {@link #start()} being called to the encoder running, in milliseconds, or -1 if
+     * nothing was recorded yet
+     */
+    float getLastStartLatencyMs();
+
+    void release();
+}
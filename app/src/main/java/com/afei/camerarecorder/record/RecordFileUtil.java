@@ -0,0 +1,36 @@
+package com.afei.camerarecorder.record;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+class RecordFileUtil {
+
+    private static final String PENDING_PREFIX = ".pending_";
+
+    /**
+     * @return a hidden file to record into before the start time of the record is known
+     */
+    static File newPendingFile(File saveDirectory) {
+        saveDirectory.mkdirs();
+        return new File(saveDirectory, PENDING_PREFIX + System.nanoTime() + ".mp4");
+    }
+
+    /**
+     * Renames a finished pending file to the start time of the record.
+     */
+    static File finish(File pendingFile, File saveDirectory, long startTime) {
+        String name = getFileName(startTime);
+        File file = new File(saveDirectory, name + ".mp4");
+        // short segments may start within the same second
+        for (int i = 1; file.exists(); i++) {
+            file = new File(saveDirectory, name + "_" + i + ".mp4");
+        }
+        return pendingFile.renameTo(file) ? file : pendingFile;
+    }
+
+    static String getFileName(long time) {
+        SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyyMMdd_HHmmss");
+        return simpleDateFormat.format(new Date(time));
+    }
+}
@@ -0,0 +1,317 @@
+package com.afei.camerarecorder.record;
+
+import android.media.MediaRecorder;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Keeps a {@link MediaRecorder} prepared in the background, so that starting a record is only {@link MediaRecorder#start()}.
+ * <p>
+ * A persistent input surface can only feed one encoder at a time, so there is at most one prepared recorder. It is
+ * prepared once before the session is created, and again on the prepare handler right after each {@link #stop()}.
+ * The output file is chosen when preparing, and renamed to the start time of the record when it stops.
+ * <p>
+ * MediaRecorder can only switch to the next segment when a file size is reached, the next file is handed over by
+ * {@link MediaRecorder#setNextOutputFile(File)} when the size is approaching, so the switch drops no frame.
+ */
+public class RecorderPool implements RecordEngine {
+
+    private static final String TAG = "RecorderPool";
+
+    public interface RecorderConfigurator {
+        /**
+         * Sets all parameters and the output file of a reset recorder, without calling prepare(). The orientation
+         * hint is set by the pool.
+         */
+        void configRecorder(@NonNull MediaRecorder mediaRecorder, @NonNull File outputFile) throws IOException;
+    }
+
+    private final Handler mPrepareHandler;
+    private final RecorderConfigurator mConfigurator;
+    private final File mSaveDirectory;
+
+    /* guarded by this */
+    private MediaRecorder mPreparedRecorder;
+    private File mPreparedFile;
+    private boolean mPrepareQueued;
+    private boolean mReleased;
+    private int mOrientationHint;
+
+    /* only changed on the prepare thread */
+    private volatile MediaRecorder mActiveRecorder;
+
+    /* guarded by this, also changed by the info listener when switching segment */
+    private File mActiveFile;
+    private File mNextFile;
+    private long mActiveStartTime;
+
+    private volatile long mLastStartLatencyNs = -1;
+    private volatile long mMaxSegmentBytes;
+    private volatile OnSegmentListener mOnSegmentListener;
+
+    public RecorderPool(@NonNull Handler prepareHandler, @NonNull RecorderConfigurator configurator,
+                        @NonNull File saveDirectory) {
+        mPrepareHandler = prepareHandler;
+        mConfigurator = configurator;
+        mSaveDirectory = saveDirectory;
+    }
+
+    @Override
+    public void prepare() {
+        synchronized (this) {
+            if (mReleased || mPreparedRecorder != null) {
+                return;
+            }
+        }
+        prepareRecorder(new MediaRecorder());
+    }
+
+    @Override
+    public void prepareAsync() {
+        synchronized (this) {
+            if (mReleased || mPreparedRecorder != null || mPrepareQueued) {
+                return;
+            }
+            mPrepareQueued = true;
+        }
+        mPrepareHandler.post(() -> {
+            synchronized (this) {
+                mPrepareQueued = false;
+            }
+            prepare();
+        });
+    }
+
+    private void prepareRecorder(MediaRecorder recorder) {
+        long startTime = SystemClock.elapsedRealtimeNanos();
+        int orientationHint;
+        synchronized (this) {
+            orientationHint = mOrientationHint;
+        }
+        File outputFile = RecordFileUtil.newPendingFile(mSaveDirectory);
+        boolean prepared = false;
+        try {
+            recorder.reset();
+            mConfigurator.configRecorder(recorder, outputFile);
+            recorder.setOrientationHint(orientationHint);
+            if (mMaxSegmentBytes > 0) {
+                recorder.setMaxFileSize(mMaxSegmentBytes);
+                recorder.setOnInfoListener(this::onInfo);
+            }
+            recorder.prepare();
+            prepared = true;
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "prepare recorder failed! " + e.getMessage());
+        }
+        boolean stale;
+        synchronized (this) {
+            stale = prepared && orientationHint != mOrientationHint;
+            if (prepared && !mReleased && !stale && mPreparedRecorder == null) {
+                mPreparedRecorder = recorder;
+                mPreparedFile = outputFile;
+                recorder = null;
+            }
+        }
+        if (recorder != null) {
+            // failed or released meanwhile
+            recorder.release();
+            outputFile.delete();
+        }
+        Log.d(TAG, "prepare recorder cost: " + (SystemClock.elapsedRealtimeNanos() - startTime) / 1000000 + "ms");
+        if (stale) {
+            Log.d(TAG, "orientation changed while preparing, prepare again");
+            prepareAsync();
+        }
+    }
+
+    @Override
+    public void setOrientationHint(int degrees) {
+        MediaRecorder staleRecorder;
+        File staleFile;
+        synchronized (this) {
+            if (degrees == mOrientationHint) {
+                return;
+            }
+            mOrientationHint = degrees;
+            staleRecorder = mPreparedRecorder;
+            staleFile = mPreparedFile;
+            mPreparedRecorder = null;
+            mPreparedFile = null;
+        }
+        if (staleRecorder != null) {
+            staleRecorder.release();
+            staleFile.delete();
+            prepareAsync();
+        }
+    }
+
+    @Override
+    public boolean start() {
+        if (mActiveRecorder != null) {
+            Log.w(TAG, "already recording");
+            return false;
+        }
+        long pressTime = SystemClock.elapsedRealtimeNanos();
+        boolean prepareNow;
+        synchronized (this) {
+            prepareNow = mPreparedRecorder == null;
+        }
+        if (prepareNow) {
+            // a queued prepare would only run after this call, on this same thread
+            Log.w(TAG, "no prepared recorder, prepare now");
+            prepare();
+        }
+        MediaRecorder recorder;
+        File file;
+        synchronized (this) {
+            recorder = mPreparedRecorder;
+            file = mPreparedFile;
+            mPreparedRecorder = null;
+            mPreparedFile = null;
+        }
+        if (recorder == null) {
+            Log.e(TAG, "start failed! no prepared recorder");
+            return false;
+        }
+        try {
+            recorder.start();
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "start failed! " + e.getMessage());
+            recorder.release();
+            file.delete();
+            prepareAsync();
+            return false;
+        }
+        mActiveRecorder = recorder;
+        synchronized (this) {
+            mActiveFile = file;
+            mNextFile = null;
+            mActiveStartTime = System.currentTimeMillis();
+        }
+        mLastStartLatencyNs = SystemClock.elapsedRealtimeNanos() - pressTime;
+        Log.i(TAG, "start latency: " + mLastStartLatencyNs / 1000 + "us");
+        return true;
+    }
+
+    @Override
+    public File stop() {
+        MediaRecorder recorder = mActiveRecorder;
+        if (recorder == null) {
+            return null;
+        }
+        mActiveRecorder = null;
+        boolean valid = true;
+        try {
+            recorder.stop();
+        } catch (RuntimeException e) {
+            // stop() right after start() throws, no valid data was received
+            Log.w(TAG, "stop failed! " + e.getMessage());
+            valid = false;
+        }
+        recorder.release();
+        File file;
+        long startTime;
+        synchronized (this) {
+            file = mActiveFile;
+            startTime = mActiveStartTime;
+            if (mNextFile != null) {
+                mNextFile.delete();  // handed over but never started
+            }
+            mActiveFile = null;
+            mNextFile = null;
+        }
+        File result = null;
+        if (valid) {
+            result = RecordFileUtil.finish(file, mSaveDirectory, startTime);
+        } else {
+            file.delete();
+        }
+        prepareAsync();
+        return result;
+    }
+
+    @Override
+    public void setSegmentLimit(long maxDurationMs, long maxFileSizeBytes) {
+        if (maxDurationMs > 0) {
+            Log.w(TAG, "MediaRecorder can not switch file by duration, use the codec record engine");
+        }
+        mMaxSegmentBytes = maxFileSizeBytes;
+    }
+
+    @Override
+    public void setOnSegmentListener(OnSegmentListener listener) {
+        mOnSegmentListener = listener;
+    }
+
+    private void onInfo(MediaRecorder mr, int what, int extra) {
+        if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_APPROACHING) {
+            File nextFile = RecordFileUtil.newPendingFile(mSaveDirectory);
+            try {
+                mr.setNextOutputFile(nextFile);
+                synchronized (this) {
+                    mNextFile = nextFile;
+                }
+            } catch (IOException | IllegalStateException e) {
+                Log.e(TAG, "setNextOutputFile failed! " + e.getMessage());
+                nextFile.delete();
+            }
+        } else if (what == MediaRecorder.MEDIA_RECORDER_INFO_NEXT_OUTPUT_FILE_STARTED) {
+            File finishedFile;
+            long startTime;
+            synchronized (this) {
+                if (mNextFile == null) {
+                    return;
+                }
+                finishedFile = mActiveFile;
+                startTime = mActiveStartTime;
+                mActiveFile = mNextFile;
+                mActiveStartTime = System.currentTimeMillis();
+                mNextFile = null;
+            }
+            File file = RecordFileUtil.finish(finishedFile, mSaveDirectory, startTime);
+            OnSegmentListener listener = mOnSegmentListener;
+            if (listener != null) {
+                listener.onSegmentFinished(file);
+            }
+        } else if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED) {
+            Log.e(TAG, "max file size reached before the next file was set, record stopped");
+        }
+    }
+
+    @Override
+    public boolean isRecording() {
+        return mActiveRecorder != null;
+    }
+
+    @Override
+    public float getLastStartLatencyMs() {
+        long latency = mLastStartLatencyNs;
+        return latency < 0 ? -1 : latency / 1000000f;
+    }
+
+    @Override
+    public void release() {
+        synchronized (this) {
+            mReleased = true;
+        }
+        stop();
+        MediaRecorder recorder;
+        File file;
+        synchronized (this) {
+            recorder = mPreparedRecorder;
+            file = mPreparedFile;
+            mPreparedRecorder = null;
+            mPreparedFile = null;
+        }
+        if (recorder != null) {
+            recorder.release();
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.afei.camerarecorder.record;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Places the samples of a segmented record in its files, the timing part of {@link CodecRecorder}.
+ * <p>
+ * The time of each file starts at its first video frame. A switch happens on a video key frame once the current file
+ * is full, that key frame is the first frame of the next file. Audio read before the switch may arrive after it, it
+ * still goes to the end of the previous file with its own time, until audio of the next file arrives or the video is
+ * more than the max audio carry past the boundary. Audio which would not come after the last audio of its file is
+ * dropped.
+ * <p>
+ * Not thread safe, called with the lock of the record held.
+ */
+class SegmentTimeline<T extends SegmentTimeline.Entry> {
+
+    /**
+     * Timing of one output file.
+     */
+    static class Entry {
+        long basePtsUs = -1;  // the video pts which is zero in this file, set by its first video frame
+        long lastVideoPtsUs = -1;
+        long lastAudioPtsUs = -1;  // in the time of the file
+        long bytes;  // of the samples written, counted by the writer
+    }
+
+    interface Callback<T> {
+        /**
+         * Called on the key frame which starts the next file, {@link #getCurrent()} is still the full one.
+         *
+         * @return the started next file, or null to keep writing the current one
+         */
+        @Nullable
+        T onSwitch(long boundaryPtsUs);
+
+        /**
+         * The file switched away from takes no more audio and can be finished.
+         */
+        void onPreviousFinished(T previous);
+    }
+
+    private final long mMaxAudioCarryUs;
+    private final Callback<T> mCallback;
+    private T mCurrent;
+    private T mPrevious;
+
+    /**
+     * @param maxAudioCarryUs how long after a switch the previous file still takes the audio read before it
+     */
+    SegmentTimeline(long maxAudioCarryUs, Callback<T> callback) {
+        mMaxAudioCarryUs = maxAudioCarryUs;
+        mCallback = callback;
+    }
+
+    T getCurrent() {
+        return mCurrent;
+    }
+
+    void setCurrent(T current) {
+        mCurrent = current;
+    }
+
+    /**
+     * @return the file switched away from which still waits for its audio, null if none
+     */
+    T getPrevious() {
+        return mPrevious;
+    }
+
+    /**
+     * Forgets the current and previous file, the caller finishes them.
+     */
+    void clear() {
+        mCurrent = null;
+        mPrevious = null;
+    }
+
+    /**
+     * @param maxDurationUs 0 for no duration limit
+     * @param maxBytes      0 for no size limit
+     * @return the file the frame goes to, its pts in the file is {@code ptsUs - basePtsUs}
+     */
+    T placeVideo(long ptsUs, boolean isKeyFrame, long maxDurationUs, long maxBytes) {
+        T segment = mCurrent;
+        if (segment.basePtsUs < 0) {
+            segment.basePtsUs = ptsUs;
+        } else if (isKeyFrame && isFull(segment, ptsUs, maxDurationUs, maxBytes)) {
+            T next = mCallback.onSwitch(ptsUs);
+            if (next != null) {
+                next.basePtsUs = ptsUs;
+                finishPrevious();
+                mPrevious = segment;  // finished once the audio reaches the boundary
+                mCurrent = next;
+                segment = next;
+            }
+        } else if (mPrevious != null && ptsUs - segment.basePtsUs > mMaxAudioCarryUs) {
+            finishPrevious();  // no audio came after the boundary, do not wait for it any longer
+        }
+        segment.lastVideoPtsUs = ptsUs;
+        return segment;
+    }
+
+    /**
+     * @return the file the audio goes to, its pts in the file is {@code ptsUs - basePtsUs}, or null if it is dropped
+     */
+    @Nullable
+    T placeAudio(long ptsUs) {
+        T segment = mCurrent;
+        if (segment.basePtsUs < 0) {
+            return null;  // the file starts with the first video frame
+        }
+        // audio read before a switch may arrive after it, it goes to the end of the previous file
+        T target = segment;
+        if (ptsUs < segment.basePtsUs) {
+            target = mPrevious;
+        } else {
+            finishPrevious();  // the audio caught up with the boundary
+        }
+        if (target == null || ptsUs - target.basePtsUs <= target.lastAudioPtsUs) {
+            // before the first video frame of the file, its real time has no place in it
+            return null;
+        }
+        target.lastAudioPtsUs = ptsUs - target.basePtsUs;
+        return target;
+    }
+
+    void finishPrevious() {
+        T finished = mPrevious;
+        if (finished == null) {
+            return;
+        }
+        mPrevious = null;
+        mCallback.onPreviousFinished(finished);
+    }
+
+    private static boolean isFull(Entry segment, long ptsUs, long maxDurationUs, long maxBytes) {
+        if (segment.bytes == 0) {
+            return false;
+        }
+        return (maxDurationUs > 0 && ptsUs - segment.basePtsUs >= maxDurationUs)
+                || (maxBytes > 0 && segment.bytes >= maxBytes);
+    }
+}
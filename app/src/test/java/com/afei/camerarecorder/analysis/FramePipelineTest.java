@@ -0,0 +1,275 @@
+package com.afei.camerarecorder.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives {@link FramePipeline} with synthetic frames: a slow analyzer drops its own frames and never the producer's or
+ * another analyzer's, the producer never blocks, and frames are reused instead of allocated.
+ */
+public class FramePipelineTest {
+
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 120;
+    private static final int FRAME_COUNT = 200;
+    private static final long FRAME_NS = 33_333_333;
+    private static final long MAX_SUBMIT_MS = 20;
+    private static final long TIMEOUT_S = 5;
+
+    private final FramePipeline mPipeline = new FramePipeline(2);
+
+    /**
+     * Records the timestamps it sees, each analysis releases one permit. Can be held up on a latch.
+     */
+    private static class RecordingAnalyzer implements FrameAnalyzer {
+        final String name;
+        final List<Long> timestamps = Collections.synchronizedList(new ArrayList<>());
+        final Map<Frame, Boolean> frames = Collections.synchronizedMap(new IdentityHashMap<>());
+        final Semaphore analyzed = new Semaphore(0);
+        volatile CountDownLatch gate;
+        volatile CountDownLatch entered = new CountDownLatch(1);
+        volatile boolean fail;
+
+        RecordingAnalyzer(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public void analyze(Frame frame) {
+            entered.countDown();
+            CountDownLatch latch = gate;
+            if (latch != null) {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            timestamps.add(frame.getTimestampNs());
+            frames.put(frame, true);
+            // the content is the one the producer wrote
+            assertEquals((byte) (frame.getTimestampNs() / FRAME_NS), frame.getY()[0]);
+            analyzed.release();
+            if (fail) {
+                throw new IllegalStateException("analyzer failed on purpose");
+            }
+        }
+
+        void awaitAnalyzed(int count) throws InterruptedException {
+            assertTrue(name + " analyzed " + timestamps.size(), analyzed.tryAcquire(count, TIMEOUT_S, TimeUnit.SECONDS));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mPipeline.stop();
+    }
+
+    @Test
+    public void fastAnalyzerSeesEveryFrameInOrder() throws InterruptedException {
+        RecordingAnalyzer analyzer = new RecordingAnalyzer("fast");
+        mPipeline.addAnalyzer(analyzer);
+        mPipeline.start(WIDTH, HEIGHT);
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            assertTrue(submit(i));
+            analyzer.awaitAnalyzed(1);
+        }
+
+        assertEquals(FRAME_COUNT, analyzer.timestamps.size());
+        assertInOrder(analyzer.timestamps);
+        FramePipeline.AnalyzerStats stats = mPipeline.getStats().get(0);
+        assertEquals("fast", stats.getName());
+        assertEquals(0, stats.getDropCount());
+        assertEquals(0, mPipeline.getInputDropCount());
+        assertEquals(FRAME_COUNT, stats.getWaits().getCount());
+        // pool of 1 * (1 + 1) + 1 frames, reused all along
+        assertTrue(analyzer.frames.size() <= 3);
+    }
+
+    @Test
+    public void slowAnalyzerDropsOnlyItsOwnFrames() throws InterruptedException {
+        RecordingAnalyzer fast = new RecordingAnalyzer("fast");
+        RecordingAnalyzer slow = new RecordingAnalyzer("slow");
+        slow.gate = new CountDownLatch(1);
+        mPipeline.setBackpressure(FramePipeline.DROP_OLDEST, 3);
+        mPipeline.addAnalyzer(fast);
+        mPipeline.addAnalyzer(slow);
+        mPipeline.start(WIDTH, HEIGHT);
+
+        long maxSubmitNs = 0;
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            long start = System.nanoTime();
+            assertTrue("no free frame for " + i, submit(i));
+            maxSubmitNs = Math.max(maxSubmitNs, System.nanoTime() - start);
+            fast.awaitAnalyzed(1);
+        }
+        assertTrue(slow.entered.await(TIMEOUT_S, TimeUnit.SECONDS));
+        slow.gate.countDown();
+        // the frame it was stuck on, then the 3 newest of its queue
+        slow.awaitAnalyzed(4);
+
+        assertTrue("submit blocked for " + maxSubmitNs / 1000000 + "ms",
+                maxSubmitNs < TimeUnit.MILLISECONDS.toNanos(MAX_SUBMIT_MS));
+        assertEquals(0, mPipeline.getInputDropCount());
+        assertEquals(FRAME_COUNT, fast.timestamps.size());
+        assertInOrder(fast.timestamps);
+        assertEquals(4, slow.timestamps.size());
+        assertInOrder(slow.timestamps);
+        for (int i = 1; i < 4; i++) {
+            assertEquals((FRAME_COUNT - 4 + i) * FRAME_NS, (long) slow.timestamps.get(i));
+        }
+        List<FramePipeline.AnalyzerStats> stats = mPipeline.getStats();
+        assertEquals(0, stats.get(0).getDropCount());
+        assertEquals(FRAME_COUNT - 4, stats.get(1).getDropCount());
+        // a pool of 2 * (3 + 1) + 1 frames, reused all along
+        Map<Frame, Boolean> frames = new IdentityHashMap<>(fast.frames);
+        frames.putAll(slow.frames);
+        assertTrue(frames.size() <= 2 * (3 + 1) + 1);
+        // analyzed and dropped frames all came back to the pool: the producer gets every one of them
+        waitForLatencyCount(0, FRAME_COUNT);
+        waitForLatencyCount(1, 4);
+        mPipeline.removeAnalyzer(slow);
+        mPipeline.removeAnalyzer(fast);
+        for (int i = 0; i < 2 * (3 + 1) + 1; i++) {
+            assertNotNull(mPipeline.obtainFrame());
+        }
+    }
+
+    @Test
+    public void keepLatestAnalyzesTheNewestFrameOnly() throws InterruptedException {
+        RecordingAnalyzer analyzer = new RecordingAnalyzer("latest");
+        analyzer.gate = new CountDownLatch(1);
+        mPipeline.setBackpressure(FramePipeline.KEEP_LATEST, 8);
+        mPipeline.addAnalyzer(analyzer);
+        mPipeline.start(WIDTH, HEIGHT);
+
+        assertTrue(submit(0));
+        assertTrue(analyzer.entered.await(TIMEOUT_S, TimeUnit.SECONDS));
+        for (int i = 1; i < 10; i++) {
+            assertTrue(submit(i));
+        }
+        analyzer.gate.countDown();
+        analyzer.awaitAnalyzed(2);
+        assertFalse(analyzer.analyzed.tryAcquire(100, TimeUnit.MILLISECONDS));
+
+        assertEquals(0L, (long) analyzer.timestamps.get(0));
+        assertEquals(9 * FRAME_NS, (long) analyzer.timestamps.get(1));
+        assertEquals(8, mPipeline.getStats().get(0).getDropCount());
+    }
+
+    @Test
+    public void producerDropsWhenEveryFrameIsTaken() throws InterruptedException {
+        RecordingAnalyzer analyzer = new RecordingAnalyzer("stuck");
+        analyzer.gate = new CountDownLatch(1);
+        mPipeline.addAnalyzer(analyzer);
+        mPipeline.start(WIDTH, HEIGHT);
+
+        assertTrue(submit(0));
+        assertTrue(analyzer.entered.await(TIMEOUT_S, TimeUnit.SECONDS));
+        // the pool of 3: one analyzed, one queued, one the producer fills and which replaces the queued one
+        List<Frame> held = new ArrayList<>();
+        for (Frame frame; (frame = mPipeline.obtainFrame()) != null; ) {
+            held.add(frame);
+        }
+        assertEquals(2, held.size());
+        assertEquals(1, mPipeline.getInputDropCount());
+        for (Frame frame : held) {
+            mPipeline.submit(frame);
+        }
+        analyzer.gate.countDown();
+        analyzer.awaitAnalyzed(2);
+    }
+
+    @Test
+    public void failingAnalyzerIsCountedAndKeepsRunning() throws InterruptedException {
+        RecordingAnalyzer analyzer = new RecordingAnalyzer("failing");
+        analyzer.fail = true;
+        mPipeline.addAnalyzer(analyzer);
+        mPipeline.start(WIDTH, HEIGHT);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(submit(i));
+            analyzer.awaitAnalyzed(1);
+        }
+        waitForLatencyCount(0, 5);
+        assertEquals(5, mPipeline.getStats().get(0).getFailureCount());
+        assertEquals(0, mPipeline.getInputDropCount());
+    }
+
+    @Test
+    public void restartWithAnotherSizeDropsTheOldFrames() throws InterruptedException {
+        RecordingAnalyzer analyzer = new RecordingAnalyzer("resized");
+        analyzer.gate = new CountDownLatch(1);
+        mPipeline.addAnalyzer(analyzer);
+        mPipeline.start(WIDTH, HEIGHT);
+        assertTrue(submit(0));
+        assertTrue(analyzer.entered.await(TIMEOUT_S, TimeUnit.SECONDS));
+
+        mPipeline.stop();
+        assertFalse(mPipeline.isRunning());
+        assertNull(mPipeline.obtainFrame());
+        mPipeline.start(WIDTH * 2, HEIGHT * 2);
+        analyzer.gate.countDown();  // the old frame comes back to the new pool, which does not take it
+
+        for (int i = 0; i < 20; i++) {
+            Frame frame = mPipeline.obtainFrame();
+            assertNotNull(frame);
+            assertEquals(WIDTH * 2, frame.getWidth());
+            assertEquals(WIDTH * 2 * HEIGHT * 2, frame.getY().length);
+            mPipeline.submit(frame);
+        }
+    }
+
+    /**
+     * Fills a frame as the analysis stream does, the first luma byte tells the frame.
+     *
+     * @return false if the producer had to drop it
+     */
+    private boolean submit(int index) {
+        Frame frame = mPipeline.obtainFrame();
+        if (frame == null) {
+            return false;
+        }
+        frame.setTimestampNs(index * FRAME_NS);
+        frame.getY()[0] = (byte) index;
+        mPipeline.submit(frame);
+        return true;
+    }
+
+    /**
+     * The latency is recorded, and the frame released, after the analyzer returns, a moment after it released its
+     * permit.
+     */
+    private void waitForLatencyCount(int analyzer, long count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_S);
+        while (mPipeline.getStats().get(analyzer).getLatencies().getCount() < count) {
+            assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static void assertInOrder(List<Long> timestamps) {
+        for (int i = 1; i < timestamps.size(); i++) {
+            assertTrue(timestamps.toString(), timestamps.get(i - 1) < timestamps.get(i));
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.afei.camerarecorder.camera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.graphics.SurfaceTexture;
+import android.util.Size;
+import android.view.Surface;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.LooperMode;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs {@link CameraModule} on a {@link SyntheticCameraBackend} at a sustained 60 fps of 1080p frames: open to
+ * preview, record start and stop latency, and the frames the control stage could not keep up with. Plain JVM, no
+ * camera needed.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class CameraModuleBenchmarkTest {
+
+    private static final int FRAME_RATE = 60;
+    private static final Size FRAME_SIZE = new Size(1920, 1080);
+    private static final long STEADY_MS = 3000;
+    private static final int RECORD_CYCLES = 10;
+
+    private SyntheticCameraBackend mBackend;
+    private CameraModuleFixture mFixture;
+    private CameraModule mCameraModule;
+
+    @Before
+    public void setUp() {
+        String[] cameraIdList = {SyntheticCameraBackend.DEFAULT_CAMERA_ID};
+        mBackend = new SyntheticCameraBackend(cameraIdList, FRAME_SIZE, FRAME_RATE, 0, 0);
+        mFixture = new CameraModuleFixture(mBackend, FRAME_SIZE, FRAME_RATE, 0);
+        mCameraModule = mFixture.cameraModule;
+    }
+
+    @After
+    public void tearDown() {
+        mFixture.release();
+    }
+
+    @Test
+    public void sustainsSixtyFpsThroughOpenRecordAndRelease() {
+        long openStart = System.nanoTime();
+        mCameraModule.openCamera();
+        // after the open, so the session defers the preview surface like a view laid out late
+        mCameraModule.setPreviewSurface(new Surface(new SurfaceTexture(0)));
+        mFixture.waitFor(() -> mCameraModule.getCameraState() == CameraState.PREVIEW);
+        long openUs = (System.nanoTime() - openStart) / 1000;
+
+        LatencyHistogram startLatencies = new LatencyHistogram();
+        LatencyHistogram stopLatencies = new LatencyHistogram();
+        for (int i = 0; i < RECORD_CYCLES; i++) {
+            AtomicReference<Boolean> started = new AtomicReference<>();
+            long start = System.nanoTime();
+            mCameraModule.startRecorder(started::set);
+            mFixture.waitFor(() -> started.get() != null);
+            startLatencies.record((System.nanoTime() - start) / 1000);
+            assertTrue("record " + i + " did not start", started.get());
+            mFixture.sleep(100);
+            AtomicBoolean stopped = new AtomicBoolean();
+            start = System.nanoTime();
+            mCameraModule.stopRecorder(file -> stopped.set(true));
+            mFixture.waitFor(stopped::get);
+            stopLatencies.record((System.nanoTime() - start) / 1000);
+        }
+        mFixture.sleep(STEADY_MS);
+        CaptureStats.Snapshot stats = mCameraModule.getCaptureStats();
+
+        long releaseStart = System.nanoTime();
+        AtomicReference<Boolean> timedOut = new AtomicReference<>();
+        mCameraModule.releaseCameraAsync(timedOut::set);
+        mFixture.waitFor(() -> timedOut.get() != null);
+        long releaseUs = (System.nanoTime() - releaseStart) / 1000;
+
+        // the measurements, in the message of each check
+        String report = "open to preview: " + openUs + "us, release: " + releaseUs + "us"
+                + "\nrecord start: " + startLatencies.snapshot() + "\nrecord stop: " + stopLatencies.snapshot()
+                + "\ncapture: " + stats + "\nsensor frames dropped for a busy control stage: "
+                + mBackend.getDroppedFrameCount() + " of "
+                + (mBackend.getFrameCount() + mBackend.getDroppedFrameCount());
+        assertEquals(report, FRAME_RATE, mBackend.getSessionFrameRate());
+        // every frame is read out into the preview target at least
+        long frameBytes = FRAME_SIZE.getWidth() * FRAME_SIZE.getHeight() * 3 / 2;
+        assertTrue(report, mBackend.getBytesWritten() >= frameBytes * mBackend.getFrameCount());
+        assertTrue(report, stats.getSustainedFrameRate() > FRAME_RATE * 0.95f);
+        assertTrue(report, stats.getDroppedFrameCount() * 100 <= stats.getFrameCount());
+        assertEquals(report, 0, stats.getFailedCount());
+        assertFalse(report, timedOut.get());
+        assertEquals(report, CameraState.CLOSED, mCameraModule.getCameraState());
+    }
+}
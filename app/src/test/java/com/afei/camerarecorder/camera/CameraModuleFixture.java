@@ -0,0 +1,130 @@
+package com.afei.camerarecorder.camera;
+
+import static org.junit.Assert.fail;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.Manifest;
+import android.app.Activity;
+import android.graphics.SurfaceTexture;
+import android.os.Looper;
+import android.util.Size;
+import android.view.Surface;
+
+import com.afei.camerarecorder.record.RecordEngine;
+
+import org.robolectric.Robolectric;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A {@link CameraModule} on a synthetic camera and {@link TestRecordEngine}s, in a Robolectric activity with the
+ * camera permission, for tests running with a paused main looper.
+ * <p>
+ * Every call made through {@link #ui(Runnable)} and every run of the main looper is timed as main thread work.
+ */
+class CameraModuleFixture {
+
+    static final long TIMEOUT_MS = 10000;
+
+    final SyntheticCameraBackend backend;
+    final CameraModule cameraModule;
+    private long mMaxUiMs;
+
+    /**
+     * @param recorderDelayMs of stopping and of releasing each recorder
+     */
+    CameraModuleFixture(SyntheticCameraBackend backend, Size previewSize, int frameRate, long recorderDelayMs) {
+        Activity activity = Robolectric.buildActivity(Activity.class).setup().get();
+        shadowOf(activity.getApplication()).grantPermissions(Manifest.permission.CAMERA);
+        CameraConfig config = new CameraConfig.Builder()
+                .setCameraId(SyntheticCameraBackend.DEFAULT_CAMERA_ID)
+                .setPreviewSize(previewSize)
+                .setVideoFrameRate(frameRate)
+                .build();
+        this.backend = backend;
+        cameraModule = new CameraModule(activity, config, backend);
+        cameraModule.setRecordEngineFactory(new CameraModule.RecordEngineFactory() {
+            @Override
+            public Surface createRecordSurface() {
+                return new Surface(new SurfaceTexture(0));
+            }
+
+            @Override
+            public RecordEngine createRecordEngine(Surface recordSurface) {
+                return new TestRecordEngine(recorderDelayMs);
+            }
+        });
+    }
+
+    /**
+     * Releases the module if a test left it open.
+     */
+    void release() {
+        if (cameraModule.getCameraState() != CameraState.CLOSED) {
+            cameraModule.releaseCameraAsync(null);
+            waitFor(() -> cameraModule.getCameraState() == CameraState.CLOSED);
+        }
+    }
+
+    /**
+     * Calls the module as the UI would.
+     *
+     * @return how long the call took
+     */
+    long ui(Runnable call) {
+        long start = System.nanoTime();
+        call.run();
+        long ms = (System.nanoTime() - start) / 1000000;
+        mMaxUiMs = Math.max(mMaxUiMs, ms);
+        return ms;
+    }
+
+    /**
+     * @return the longest main thread call or looper run since the last reset
+     */
+    long getMaxUiMs() {
+        return mMaxUiMs;
+    }
+
+    void resetMaxUiMs() {
+        mMaxUiMs = 0;
+    }
+
+    /**
+     * Runs the main looper, where the module posts its results, until the condition holds.
+     */
+    void waitFor(BooleanSupplier condition) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                fail("timed out after " + TIMEOUT_MS + "ms");
+            }
+            ui(() -> shadowOf(Looper.getMainLooper()).idle());
+            sleepUninterrupted(1);
+        }
+    }
+
+    /**
+     * Runs the main looper for a while, as the app idles.
+     */
+    void sleep(long ms) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ms);
+        while (System.nanoTime() < deadline) {
+            ui(() -> shadowOf(Looper.getMainLooper()).idle());
+            sleepUninterrupted(1);
+        }
+    }
+
+    static void sleepUninterrupted(long ms) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ms);
+        long remainingNs;
+        while ((remainingNs = deadline - System.nanoTime()) > 0) {
+            try {
+                Thread.sleep(remainingNs / 1000000, (int) (remainingNs % 1000000));
+            } catch (InterruptedException e) {
+                // a stage quitting does not cut the simulated device short
+            }
+        }
+    }
+}
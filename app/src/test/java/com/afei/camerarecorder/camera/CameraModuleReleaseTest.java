@@ -0,0 +1,178 @@
+package com.afei.camerarecorder.camera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.graphics.SurfaceTexture;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Size;
+import android.view.Surface;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.LooperMode;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Releases {@link CameraModule} while the device and the recorder are slow to close, like on a slow phone, and checks
+ * the UI thread only pays for posting the release and for the callbacks: each main thread call and each main looper
+ * message stays under {@link #MAX_UI_MS}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class CameraModuleReleaseTest {
+
+    private static final int FRAME_RATE = 30;
+    private static final long CLOSE_DELAY_MS = 400;  // of the device
+    private static final long RECORDER_DELAY_MS = 300;  // of stopping and of releasing the recorder
+    private static final long MAX_UI_MS = 100;  // a fraction of the teardown, the open after it included
+
+    private SlowCameraBackend mBackend;
+    private CameraModuleFixture mFixture;
+    private CameraModule mCameraModule;
+
+    /**
+     * Sleeps in closing an opened device, which the release does on the control stage.
+     */
+    private static class SlowCameraBackend extends SyntheticCameraBackend {
+        volatile long closeDelayMs = CLOSE_DELAY_MS;
+        volatile boolean opened;
+        volatile String closeThread;
+
+        SlowCameraBackend() {
+            super(new String[]{DEFAULT_CAMERA_ID}, DEFAULT_FRAME_SIZE, FRAME_RATE, 0, 0);
+        }
+
+        @Override
+        public void openCamera(String cameraId, StateCallback callback, Handler handler) {
+            super.openCamera(cameraId, callback, handler);  // closes first, that one is not slow
+            opened = true;
+        }
+
+        @Override
+        public void closeCamera() {
+            if (opened) {
+                opened = false;
+                closeThread = Thread.currentThread().getName();
+                CameraModuleFixture.sleepUninterrupted(closeDelayMs);
+            }
+            super.closeCamera();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mBackend = new SlowCameraBackend();
+        mFixture = new CameraModuleFixture(mBackend, new Size(1280, 720), FRAME_RATE, RECORDER_DELAY_MS);
+        mCameraModule = mFixture.cameraModule;
+        mCameraModule.setPreviewSurface(new Surface(new SurfaceTexture(0)));
+    }
+
+    @After
+    public void tearDown() {
+        mFixture.release();
+    }
+
+    @Test
+    public void releaseWhileRecordingCostsTheUiThreadNothing() {
+        openToPreview();
+        AtomicReference<Boolean> started = new AtomicReference<>();
+        ui(() -> mCameraModule.startRecorder(started::set));
+        waitFor(() -> started.get() != null);
+        assertTrue(started.get());
+
+        AtomicReference<Boolean> timedOut = new AtomicReference<>();
+        long start = System.nanoTime();
+        long releaseMs = ui(() -> mCameraModule.releaseCameraAsync(timedOut::set));
+        assertEquals(CameraState.CLOSING, mCameraModule.getCameraState());
+        waitFor(() -> timedOut.get() != null);
+        long doneMs = (System.nanoTime() - start) / 1000000;
+
+        assertTrue("releaseCameraAsync took " + releaseMs + "ms", releaseMs < MAX_UI_MS);
+        assertFalse("release timed out", timedOut.get());
+        assertEquals(CameraState.CLOSED, mCameraModule.getCameraState());
+        // the slow part really happened, somewhere else
+        assertTrue("done after " + doneMs + "ms", doneMs >= CLOSE_DELAY_MS);
+        assertFalse(Thread.currentThread().getName().equals(mBackend.closeThread));
+        assertUiBounded();
+    }
+
+    @Test
+    public void openDuringReleaseWaitsWithoutBlocking() {
+        openToPreview();
+        AtomicReference<Boolean> timedOut = new AtomicReference<>();
+        ui(() -> mCameraModule.releaseCameraAsync(timedOut::set));
+        // the user comes straight back: the open is kept until the release is done
+        ui(mCameraModule::openCamera);
+        assertEquals(CameraState.CLOSING, mCameraModule.getCameraState());
+        ui(mCameraModule::openCamera);  // a second one is not opened twice
+
+        waitFor(() -> mCameraModule.getCameraState() == CameraState.PREVIEW);
+        assertFalse(timedOut.get());
+        assertUiBounded();
+    }
+
+    @Test
+    public void secondReleaseIsNotifiedByTheRunningOne() {
+        openToPreview();
+        AtomicReference<Boolean> first = new AtomicReference<>();
+        AtomicReference<Boolean> second = new AtomicReference<>();
+        ui(() -> mCameraModule.releaseCameraAsync(first::set));
+        ui(() -> mCameraModule.releaseCameraAsync(second::set));
+        waitFor(() -> first.get() != null && second.get() != null);
+        assertFalse(first.get());
+        assertFalse(second.get());
+        assertEquals(CameraState.CLOSED, mCameraModule.getCameraState());
+
+        // and once closed, at once
+        AtomicReference<Boolean> closed = new AtomicReference<>();
+        ui(() -> mCameraModule.releaseCameraAsync(closed::set));
+        waitFor(() -> closed.get() != null);
+        assertFalse(closed.get());
+        assertUiBounded();
+    }
+
+    @Test
+    public void releaseLongerThanTheTimeoutIsReportedAndStillFinishes() {
+        openToPreview();
+        AtomicReference<Boolean> timedOut = new AtomicReference<>();
+        ui(() -> mCameraModule.releaseCameraAsync(timedOut::set));
+        // the main looper clock jumps past the timeout while the device is still closing
+        ui(() -> shadowOf(Looper.getMainLooper()).idleFor(CameraModule.RELEASE_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(Boolean.TRUE, timedOut.get());
+        assertEquals(CameraState.CLOSING, mCameraModule.getCameraState());
+
+        waitFor(() -> mCameraModule.getCameraState() == CameraState.CLOSED);
+        assertUiBounded();
+    }
+
+    private void openToPreview() {
+        ui(mCameraModule::openCamera);
+        waitFor(() -> mCameraModule.getCameraState() == CameraState.PREVIEW);
+        mFixture.resetMaxUiMs();  // only the release is measured
+    }
+
+    private void assertUiBounded() {
+        long maxUiMs = mFixture.getMaxUiMs();
+        assertTrue("main thread blocked for " + maxUiMs + "ms", maxUiMs < MAX_UI_MS);
+    }
+
+    private long ui(Runnable call) {
+        return mFixture.ui(call);
+    }
+
+    private void waitFor(BooleanSupplier condition) {
+        mFixture.waitFor(condition);
+    }
+}
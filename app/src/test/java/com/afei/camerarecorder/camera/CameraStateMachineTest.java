@@ -0,0 +1,152 @@
+package com.afei.camerarecorder.camera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hammers {@link CameraStateMachine} from several threads: no change is lost or illegal, and of two racing changes
+ * from the same state exactly one wins.
+ */
+public class CameraStateMachineTest {
+
+    private static final int THREAD_COUNT = 8;
+    private static final int ITERATIONS = 200000;
+    private static final int RACE_ROUNDS = 2000;
+    private static final CameraState[] STATES = CameraState.values();
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsIllegalTransition() {
+        new CameraStateMachine().transition(CameraState.CLOSED, CameraState.PREVIEW);
+    }
+
+    @Test
+    public void moveToFailsWhenNotReachable() {
+        CameraStateMachine stateMachine = new CameraStateMachine();
+        assertEquals(null, stateMachine.moveTo(CameraState.PREVIEW));
+        assertEquals(CameraState.CLOSED, stateMachine.moveTo(CameraState.OPENING));
+        assertEquals(CameraState.OPENING, stateMachine.getState());
+    }
+
+    @Test
+    public void concurrentTransitionsKeepEveryChange() throws Exception {
+        CameraStateMachine stateMachine = new CameraStateMachine();
+        AtomicLongArray entered = new AtomicLongArray(STATES.length);
+        AtomicLongArray left = new AtomicLongArray(STATES.length);
+        AtomicLong changedCount = new AtomicLong();
+        AtomicLong listenerRejectedCount = new AtomicLong();
+        AtomicBoolean illegal = new AtomicBoolean();
+        stateMachine.addListener(new CameraStateMachine.Listener() {
+            @Override
+            public void onStateChanged(CameraState from, CameraState to) {
+                if (!CameraStateMachine.isLegal(from, to)) {
+                    illegal.set(true);
+                }
+                left.incrementAndGet(from.ordinal());
+                entered.incrementAndGet(to.ordinal());
+                changedCount.incrementAndGet();
+            }
+
+            @Override
+            public void onTransitionRejected(CameraState expected, CameraState actual, CameraState target) {
+                listenerRejectedCount.incrementAndGet();
+            }
+        });
+
+        AtomicLong succeeded = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        CyclicBarrier barrier = new CyclicBarrier(THREAD_COUNT);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREAD_COUNT; t++) {
+            long seed = t;
+            Thread thread = new Thread(() -> {
+                Random random = new Random(seed);
+                await(barrier);
+                for (int i = 0; i < ITERATIONS; i++) {
+                    CameraState to = STATES[random.nextInt(STATES.length)];
+                    if (random.nextBoolean()) {
+                        if (stateMachine.moveTo(to) != null) {
+                            succeeded.incrementAndGet();
+                        }
+                        continue;
+                    }
+                    // a legal change from what this thread last saw, which may be stale by now
+                    CameraState from = stateMachine.getState();
+                    if (!CameraStateMachine.isLegal(from, to)) {
+                        continue;
+                    }
+                    if (stateMachine.transition(from, to)) {
+                        succeeded.incrementAndGet();
+                    } else {
+                        failed.incrementAndGet();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertFalse("an illegal change was reported", illegal.get());
+        assertEquals(succeeded.get(), changedCount.get());
+        assertEquals(failed.get(), stateMachine.getRejectedCount());
+        assertEquals(failed.get(), listenerRejectedCount.get());
+        assertTrue("threads never raced", stateMachine.getRejectedCount() > 0);
+        // every change leaves one state and enters the next: the counts only differ by the first and the last state
+        CameraState last = stateMachine.getState();
+        for (CameraState state : STATES) {
+            long expected = (state == last ? 1 : 0) - (state == CameraState.CLOSED ? 1 : 0);
+            assertEquals(state.toString(), expected, entered.get(state.ordinal()) - left.get(state.ordinal()));
+        }
+    }
+
+    /**
+     * The onOpened after releaseCamera race: OPENING -> OPENED against OPENING -> CLOSING, one of them has to lose.
+     */
+    @Test
+    public void exactlyOneOfTwoRacingTransitionsWins() throws Exception {
+        for (int round = 0; round < RACE_ROUNDS; round++) {
+            CameraStateMachine stateMachine = new CameraStateMachine();
+            stateMachine.transition(CameraState.CLOSED, CameraState.OPENING);
+            CyclicBarrier barrier = new CyclicBarrier(2);
+            AtomicBoolean opened = new AtomicBoolean();
+            AtomicBoolean closing = new AtomicBoolean();
+            Thread camera = new Thread(() -> {
+                await(barrier);
+                opened.set(stateMachine.transition(CameraState.OPENING, CameraState.OPENED));
+            });
+            Thread ui = new Thread(() -> {
+                await(barrier);
+                closing.set(stateMachine.transition(CameraState.OPENING, CameraState.CLOSING));
+            });
+            camera.start();
+            ui.start();
+            camera.join();
+            ui.join();
+
+            assertTrue("round " + round, opened.get() ^ closing.get());
+            assertEquals(opened.get() ? CameraState.OPENED : CameraState.CLOSING, stateMachine.getState());
+            assertEquals(1, stateMachine.getRejectedCount());
+        }
+    }
+
+    private static void await(CyclicBarrier barrier) {
+        try {
+            barrier.await();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
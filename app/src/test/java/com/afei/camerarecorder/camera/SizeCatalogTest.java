@@ -0,0 +1,231 @@
+package com.afei.camerarecorder.camera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.util.Size;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks {@link SizeCatalog} against a scan of every size, on random size lists: the same answer in any input order,
+ * never a size breaking a constraint, and always one as close to the target as the scan finds.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33)
+public class SizeCatalogTest {
+
+    private static final int ROUNDS = 2000;
+    private static final float[][] RATIOS = {{16f / 9}, {4f / 3}, {9f / 16}, {16f / 9, 4f / 3}, {1}, {21f / 9}};
+    private static final Size[] COMMON_SIZES = {
+            new Size(4032, 3024), new Size(3840, 2160), new Size(2560, 1440), new Size(1920, 1440),
+            new Size(1920, 1088), new Size(1920, 1080), new Size(1440, 1080), new Size(1280, 960),
+            new Size(1280, 720), new Size(1088, 1088), new Size(1024, 768), new Size(960, 720),
+            new Size(800, 600), new Size(720, 480), new Size(640, 480), new Size(352, 288), new Size(320, 240),
+            new Size(176, 144), new Size(2560, 1080), new Size(1080, 1920)};
+
+    private final Random mRandom = new Random(20);
+
+    @Test
+    public void tolerantRatioFindsRoundedSizes() {
+        SizeCatalog catalog = new SizeCatalog(COMMON_SIZES);
+        assertTrue(catalog.getSizes(4f / 3).contains(new Size(1440, 1080)));
+        assertTrue(catalog.getSizes(16f / 9).contains(new Size(1920, 1088)));
+        assertTrue(catalog.getSizes(16f / 9).contains(new Size(1080, 1920)));
+        assertEquals(new Size(1440, 1080), catalog.choose(new float[]{4f / 3}, 1080, null, 0));
+        // short over long, as CameraUtil used to pass them, is the same ratio
+        assertEquals(catalog.getSizes(16f / 9), catalog.getSizes(9f / 16));
+    }
+
+    @Test
+    public void emptyCatalogChoosesNothing() {
+        assertNull(new SizeCatalog(null).choose(new float[]{16f / 9}, 1080, null, 0));
+        assertNull(new SizeCatalog(new Size[0]).choose(null, 1080, null, 30));
+        assertTrue(new SizeCatalog(null).getSizes(4f / 3).isEmpty());
+    }
+
+    @Test
+    public void getSizesHasOnlyTheRatioSmallestFirst() {
+        for (int round = 0; round < ROUNDS; round++) {
+            Size[] sizes = randomSizes();
+            SizeCatalog catalog = new SizeCatalog(sizes);
+            assertEquals(sizes.length, catalog.getSizes().size());
+            assertSorted(catalog.getSizes());
+            for (float[] ratios : RATIOS) {
+                List<Size> result = catalog.getSizes(ratios[0]);
+                assertSorted(result);
+                List<Size> expected = new ArrayList<>();
+                for (Size size : sizes) {
+                    if (isMatch(size, ratios[0])) {
+                        expected.add(size);
+                    }
+                }
+                assertEquals(expected.size(), result.size());
+                assertTrue(result.containsAll(expected));
+            }
+        }
+    }
+
+    @Test
+    public void orderOfTheSizesDoesNotMatter() {
+        for (int round = 0; round < ROUNDS; round++) {
+            Size[] sizes = randomSizes();
+            long[] durations = randomDurations(sizes.length);
+            SizeCatalog catalog = new SizeCatalog(sizes, durations);
+
+            Integer[] order = new Integer[sizes.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Collections.shuffle(Arrays.asList(order), mRandom);
+            Size[] shuffledSizes = new Size[sizes.length];
+            long[] shuffledDurations = new long[sizes.length];
+            for (int i = 0; i < order.length; i++) {
+                shuffledSizes[i] = sizes[order[i]];
+                shuffledDurations[i] = durations[order[i]];
+            }
+            SizeCatalog shuffled = new SizeCatalog(shuffledSizes, shuffledDurations);
+
+            assertEquals(catalog.getSizes(), shuffled.getSizes());
+            for (float[] ratios : RATIOS) {
+                assertEquals(catalog.getSizes(ratios[0]), shuffled.getSizes(ratios[0]));
+                int target = randomTarget();
+                Size maxSize = randomMaxSize();
+                int minFrameRate = randomFrameRate();
+                assertEquals(catalog.choose(ratios, target, maxSize, minFrameRate),
+                        shuffled.choose(ratios, target, maxSize, minFrameRate));
+            }
+        }
+    }
+
+    @Test
+    public void chooseMeetsTheConstraintsAndIsClosest() {
+        for (int round = 0; round < ROUNDS; round++) {
+            Size[] sizes = randomSizes();
+            long[] durations = randomDurations(sizes.length);
+            SizeCatalog catalog = new SizeCatalog(sizes, durations);
+            for (float[] ratios : RATIOS) {
+                int target = randomTarget();
+                Size maxSize = randomMaxSize();
+                int minFrameRate = randomFrameRate();
+                // an encoder taking only sizes aligned to 16, like some do
+                SizeCatalog.SizeFilter filter = mRandom.nextBoolean() ? null
+                        : size -> size.getWidth() % 16 == 0 && size.getHeight() % 16 == 0;
+                Size result = catalog.choose(ratios, target, maxSize, minFrameRate, filter);
+
+                // the scan: the closest of the ratios, else the closest of any ratio
+                int bestDistance = Integer.MAX_VALUE;
+                int anyDistance = Integer.MAX_VALUE;
+                for (int i = 0; i < sizes.length; i++) {
+                    if (!accept(sizes[i], durations[i], maxSize, minFrameRate, filter)) {
+                        continue;
+                    }
+                    int distance = Math.abs(getShortSide(sizes[i]) - target);
+                    anyDistance = Math.min(anyDistance, distance);
+                    if (isMatchAny(sizes[i], ratios)) {
+                        bestDistance = Math.min(bestDistance, distance);
+                    }
+                }
+                String query = Arrays.toString(sizes) + " ratios " + Arrays.toString(ratios) + " target " + target
+                        + " max " + maxSize + " fps " + minFrameRate;
+                if (anyDistance == Integer.MAX_VALUE) {
+                    assertNull(query, result);
+                    continue;
+                }
+                assertNotNull(query, result);
+                int index = Arrays.asList(sizes).indexOf(result);
+                assertTrue(query, accept(result, durations[index], maxSize, minFrameRate, filter));
+                if (bestDistance != Integer.MAX_VALUE) {
+                    assertTrue(query, isMatchAny(result, ratios));
+                    assertEquals(query, bestDistance, Math.abs(getShortSide(result) - target));
+                } else {
+                    assertEquals(query, anyDistance, Math.abs(getShortSide(result) - target));
+                }
+            }
+        }
+    }
+
+    private Size[] randomSizes() {
+        LinkedHashSet<Size> sizes = new LinkedHashSet<>();
+        int count = mRandom.nextInt(COMMON_SIZES.length);
+        for (int i = 0; i < count; i++) {
+            sizes.add(COMMON_SIZES[mRandom.nextInt(COMMON_SIZES.length)]);
+        }
+        // and odd ones, some a few pixels off a common ratio
+        for (int i = mRandom.nextInt(6); i > 0; i--) {
+            int shortSide = 16 + mRandom.nextInt(2000);
+            float ratio = RATIOS[mRandom.nextInt(RATIOS.length)][0];
+            int longSide = Math.round(shortSide * (ratio < 1 ? 1 / ratio : ratio)) + mRandom.nextInt(9) - 4;
+            sizes.add(mRandom.nextBoolean() ? new Size(longSide, shortSide) : new Size(shortSide, longSide));
+        }
+        return sizes.toArray(new Size[0]);
+    }
+
+    private long[] randomDurations(int count) {
+        long[] durations = new long[count];
+        for (int i = 0; i < count; i++) {
+            durations[i] = mRandom.nextInt(4) == 0 ? 0 : 1000000000L / (15 + mRandom.nextInt(106));
+        }
+        return durations;
+    }
+
+    private int randomTarget() {
+        return 100 + mRandom.nextInt(3000);
+    }
+
+    private Size randomMaxSize() {
+        return mRandom.nextBoolean() ? null : new Size(320 + mRandom.nextInt(4000), 240 + mRandom.nextInt(3000));
+    }
+
+    private int randomFrameRate() {
+        return mRandom.nextBoolean() ? 0 : 15 + mRandom.nextInt(106);
+    }
+
+    private static boolean accept(Size size, long minFrameDurationNs, Size maxSize, int minFrameRate,
+                                  SizeCatalog.SizeFilter filter) {
+        if (maxSize != null && (size.getWidth() > maxSize.getWidth() || size.getHeight() > maxSize.getHeight())) {
+            return false;
+        }
+        if (minFrameRate > 0 && minFrameDurationNs > 1000000000L / minFrameRate) {
+            return false;
+        }
+        return filter == null || filter.accept(size);
+    }
+
+    private static boolean isMatchAny(Size size, float[] ratios) {
+        for (float ratio : ratios) {
+            if (isMatch(size, ratio)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isMatch(Size size, float ratio) {
+        ratio = ratio < 1 ? 1 / ratio : ratio;
+        float sizeRatio = (float) Math.max(size.getWidth(), size.getHeight()) / getShortSide(size);
+        return Math.abs(sizeRatio - ratio) <= ratio * SizeCatalog.ASPECT_TOLERANCE;
+    }
+
+    private static void assertSorted(List<Size> sizes) {
+        for (int i = 1; i < sizes.size(); i++) {
+            assertTrue(sizes.toString(), getShortSide(sizes.get(i - 1)) <= getShortSide(sizes.get(i)));
+        }
+    }
+
+    private static int getShortSide(Size size) {
+        return Math.min(size.getWidth(), size.getHeight());
+    }
+}
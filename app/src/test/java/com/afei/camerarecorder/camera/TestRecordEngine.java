@@ -0,0 +1,70 @@
+package com.afei.camerarecorder.camera;
+
+import com.afei.camerarecorder.record.RecordEngine;
+
+import java.io.File;
+
+/**
+ * Records nothing: starts at once, and takes a fixed time to stop and to release, like MediaRecorder writing its
+ * moov. Without a delay only the module's own cost is measured.
+ */
+class TestRecordEngine implements RecordEngine {
+    private final long mDelayMs;
+    private volatile boolean mRecording;
+
+    /**
+     * @param delayMs of stopping and of releasing
+     */
+    TestRecordEngine(long delayMs) {
+        mDelayMs = delayMs;
+    }
+
+    @Override
+    public void prepare() {
+    }
+
+    @Override
+    public void prepareAsync() {
+    }
+
+    @Override
+    public boolean start() {
+        mRecording = true;
+        return true;
+    }
+
+    @Override
+    public File stop() {
+        CameraModuleFixture.sleepUninterrupted(mDelayMs);
+        mRecording = false;
+        return null;
+    }
+
+    @Override
+    public void setSegmentLimit(long maxDurationMs, long maxFileSizeBytes) {
+    }
+
+    @Override
+    public void setOnSegmentListener(OnSegmentListener listener) {
+    }
+
+    @Override
+    public void setOrientationHint(int degrees) {
+    }
+
+    @Override
+    public boolean isRecording() {
+        return mRecording;
+    }
+
+    @Override
+    public float getLastStartLatencyMs() {
+        return 0;
+    }
+
+    @Override
+    public void release() {
+        CameraModuleFixture.sleepUninterrupted(mDelayMs);
+        mRecording = false;
+    }
+}
@@ -0,0 +1,92 @@
+package com.afei.camerarecorder.record;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Closes an {@link AsyncFileWriter} while its buffers are still queued to the writer thread, as on a slow SD card,
+ * and checks the file has every byte and its real length.
+ */
+public class AsyncFileWriterTest {
+
+    private static final int BUFFER_SIZE = 16;
+    private static final int BUFFER_COUNT = 2;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final Random mRandom = new Random(7);
+
+    @Test
+    public void closeWithEveryBufferQueued() throws IOException {
+        // the writer thread rarely wakes before close() queues its end marker behind both buffers
+        for (int i = 0; i < 500; i++) {
+            File file = mFolder.newFile();
+            byte[] data = randomBytes(BUFFER_SIZE * BUFFER_COUNT);
+            AsyncFileWriter writer = new AsyncFileWriter(file, BUFFER_SIZE, BUFFER_COUNT, 1024, 1000);
+            writer.write(data, 0, data.length);
+            writer.close();
+
+            assertEquals("run " + i, data.length, file.length());
+            assertArrayEquals("run " + i, data, Files.readAllBytes(file.toPath()));
+        }
+    }
+
+    @Test
+    public void closeOnSlowStorage() throws IOException {
+        File file = mFolder.newFile();
+        byte[] data = randomBytes(64 * 1024 + 5);
+        AsyncFileWriter writer = new SlowFileWriter(file, 1024, 8, 16 * 1024, 2);
+        for (int offset = 0; offset < data.length; offset += 1000) {
+            writer.write(ByteBuffer.wrap(data, offset, Math.min(1000, data.length - offset)));
+        }
+        assertTrue("the storage never fell behind", writer.getStallCount() > 0);
+        writer.close();
+
+        assertEquals(data.length, writer.getBytesWritten());
+        assertEquals(data.length, file.length());
+        assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        mRandom.nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Sleeps before every write, so the buffers queue up behind the storage.
+     */
+    static class SlowFileWriter extends AsyncFileWriter {
+        private final long mWriteDelayMs;
+
+        SlowFileWriter(File file, int bufferSize, int bufferCount, long preallocateBytes, long writeDelayMs)
+                throws IOException {
+            super(file, bufferSize, bufferCount, preallocateBytes, 1000);
+            mWriteDelayMs = writeDelayMs;
+        }
+
+        @Override
+        long writeToChannel(FileChannel channel, ByteBuffer[] buffers, int count) throws IOException {
+            try {
+                Thread.sleep(mWriteDelayMs);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("slow write");
+            }
+            return super.writeToChannel(channel, buffers, count);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package com.afei.camerarecorder.record;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Writes a 30 fps video track and an AAC audio track into {@link EncodedSampleRingBuffer}, drains it at random
+ * points and checks what comes out against every sample that went in.
+ */
+public class EncodedSampleRingBufferTest {
+
+    private static final int KEY_FRAME_FLAG = 1;  // MediaCodec.BUFFER_FLAG_KEY_FRAME
+    private static final long FRAME_US = 33_334;
+    private static final int KEY_FRAME_INTERVAL = 30;
+    private static final long AUDIO_FRAME_US = 1024 * 1_000_000L / 44100;
+    private static final int KEY_FRAME_BYTES = 8000;
+    private static final int MAX_FRAME_BYTES = 3000;
+
+    private static class Sample {
+        final int track;
+        final byte[] data;
+        final long ptsUs;
+        final int flags;
+
+        Sample(int track, byte[] data, long ptsUs, int flags) {
+            this.track = track;
+            this.data = data;
+            this.ptsUs = ptsUs;
+            this.flags = flags;
+        }
+
+        boolean isKeyFrame() {
+            return track == EncodedSampleRingBuffer.TRACK_VIDEO && (flags & KEY_FRAME_FLAG) != 0;
+        }
+    }
+
+    /**
+     * The samples the buffer accepted since the last drain, in write order.
+     */
+    private final List<Sample> mAccepted = new ArrayList<>();
+    private final Random mRandom = new Random(6);
+    private int mFrame;
+    private int mAudioFrame;
+
+    @Test
+    public void evictsWholeGopsAndDrainsFromAKeyFrame() {
+        int capacity = 64 * 1024;
+        int maxSamples = 256;
+        long maxDurationUs = 2_000_000;
+        EncodedSampleRingBuffer buffer = new EncodedSampleRingBuffer(capacity, maxSamples, maxDurationUs,
+                KEY_FRAME_FLAG);
+        int drains = 0;
+        while (mFrame * FRAME_US < 120_000_000) {
+            writeNext(buffer);
+            if (mRandom.nextInt(200) == 0) {
+                checkDrain(buffer, capacity, maxSamples, maxDurationUs);
+                drains++;
+            }
+        }
+        checkDrain(buffer, capacity, maxSamples, maxDurationUs);
+        assertTrue(drains > 5);
+    }
+
+    @Test
+    public void drainsTheExactBytesAfterWraparound() {
+        int capacity = 16 * 1024;  // a GOP is larger, samples wrap around the arena all the time
+        EncodedSampleRingBuffer buffer = new EncodedSampleRingBuffer(capacity, 4096, Long.MAX_VALUE,
+                KEY_FRAME_FLAG);
+        long writtenBytes = 0;
+        for (int drain = 0; drain < 20; drain++) {
+            int count = 50 + mRandom.nextInt(500);
+            for (int i = 0; i < count; i++) {
+                writtenBytes += writeNext(buffer).data.length;
+            }
+            checkDrain(buffer, capacity, 4096, Long.MAX_VALUE);
+        }
+        assertTrue(writtenBytes > 100L * capacity);
+    }
+
+    @Test
+    public void sampleLargerThanTheArena() {
+        int capacity = 10 * 1024;
+        EncodedSampleRingBuffer buffer = new EncodedSampleRingBuffer(capacity, 64, 10_000_000, KEY_FRAME_FLAG);
+        assertTrue(write(buffer, video(2000, true)));
+        assertTrue(write(buffer, video(1000, false)));
+        assertTrue(write(buffer, audio(300)));
+
+        // an audio sample too large is dropped alone
+        assertFalse(write(buffer, audio(capacity + 1)));
+        assertEquals(1, buffer.getDroppedCount());
+        assertEquals(3, buffer.getSampleCount());
+
+        // a video frame too large takes its GOP with it, the buffer starts again at the next key frame
+        assertFalse(write(buffer, video(capacity + 1, false)));
+        assertEquals(0, buffer.getSampleCount());
+        assertFalse(write(buffer, video(1000, false)));
+        assertFalse(write(buffer, audio(300)));
+        assertEquals(4, buffer.getDroppedCount());
+        assertTrue(write(buffer, video(2000, true)));
+        assertTrue(write(buffer, video(1000, false)));
+        checkDrain(buffer, capacity, 64, 10_000_000);
+
+        // a key frame as large as the arena fits, alone
+        assertTrue(write(buffer, video(1000, true)));
+        assertTrue(write(buffer, video(capacity, true)));
+        assertEquals(1, buffer.getSampleCount());
+        mAccepted.remove(0);
+        checkDrain(buffer, capacity, 64, 10_000_000);
+
+        assertFalse(write(buffer, video(capacity + 1, true)));
+        assertEquals(0, buffer.getSampleCount());
+    }
+
+    /**
+     * Writes the next sample of the two tracks in pts order.
+     */
+    private Sample writeNext(EncodedSampleRingBuffer buffer) {
+        Sample sample;
+        if (mFrame * FRAME_US <= mAudioFrame * AUDIO_FRAME_US) {
+            boolean keyFrame = mFrame % KEY_FRAME_INTERVAL == 0;
+            sample = video(keyFrame ? KEY_FRAME_BYTES : 200 + mRandom.nextInt(MAX_FRAME_BYTES - 200), keyFrame);
+        } else {
+            sample = audio(200 + mRandom.nextInt(200));
+        }
+        write(buffer, sample);
+        return sample;
+    }
+
+    private Sample video(int size, boolean keyFrame) {
+        return new Sample(EncodedSampleRingBuffer.TRACK_VIDEO, randomBytes(size), mFrame++ * FRAME_US,
+                keyFrame ? KEY_FRAME_FLAG : 0);
+    }
+
+    private Sample audio(int size) {
+        return new Sample(EncodedSampleRingBuffer.TRACK_AUDIO, randomBytes(size), mAudioFrame++ * AUDIO_FRAME_US, 0);
+    }
+
+    private boolean write(EncodedSampleRingBuffer buffer, Sample sample) {
+        ByteBuffer data = ByteBuffer.allocateDirect(sample.data.length + 16);
+        data.position(8);  // not at 0, the buffer must copy from the position
+        data.put(sample.data).flip().position(8);
+        boolean accepted = buffer.write(sample.track, data, sample.ptsUs, sample.flags);
+        assertEquals(8, data.position());
+        if (accepted) {
+            mAccepted.add(sample);
+        } else if (sample.track == EncodedSampleRingBuffer.TRACK_VIDEO) {
+            mAccepted.clear();  // gone with its GOP, or there was nothing to decode it from
+        }
+        return accepted;
+    }
+
+    /**
+     * Drains the buffer and checks the samples are the newest ones written, starting on a key frame, and that each
+     * GOP before them was evicted for a reason: it made the samples cover more than the max duration, or it did not
+     * fit in the arena or the sample table.
+     */
+    private void checkDrain(EncodedSampleRingBuffer buffer, int capacity, int maxSamples, long maxDurationUs) {
+        int count = buffer.getSampleCount();
+        long bytes = buffer.getSizeBytes();
+        List<Sample> drained = new ArrayList<>();
+        assertEquals(count, buffer.drainTo((track, data, ptsUs, flags) -> {
+            byte[] copy = new byte[data.remaining()];
+            data.get(copy);
+            drained.add(new Sample(track, copy, ptsUs, flags));
+        }));
+        assertEquals(0, buffer.getSampleCount());
+        assertEquals(count, drained.size());
+
+        long drainedBytes = 0;
+        for (Sample sample : drained) {
+            drainedBytes += sample.data.length;
+        }
+        assertEquals(bytes, drainedBytes);
+        if (drained.isEmpty()) {
+            mAccepted.clear();
+            return;
+        }
+        assertTrue("the first sample is not a key frame", drained.get(0).isKeyFrame());
+
+        int start = mAccepted.size() - drained.size();
+        assertTrue(start >= 0);
+        for (int i = 0; i < drained.size(); i++) {
+            Sample expected = mAccepted.get(start + i);
+            Sample actual = drained.get(i);
+            assertEquals("sample " + i, expected.track, actual.track);
+            assertEquals("sample " + i, expected.ptsUs, actual.ptsUs);
+            assertEquals("sample " + i, expected.flags, actual.flags);
+            assertArrayEquals("sample " + i, expected.data, actual.data);
+        }
+
+        long lastVideoPtsUs = 0;
+        for (Sample sample : drained) {
+            if (sample.track == EncodedSampleRingBuffer.TRACK_VIDEO) {
+                lastVideoPtsUs = sample.ptsUs;
+            }
+        }
+        for (int i = 1; i < drained.size(); i++) {
+            if (drained.get(i).isKeyFrame()) {
+                // else the first GOP should have been evicted
+                assertTrue(lastVideoPtsUs - drained.get(i).ptsUs < maxDurationUs);
+                break;
+            }
+        }
+        if (start > 0) {
+            int gopStart = start - 1;
+            while (!mAccepted.get(gopStart).isKeyFrame()) {
+                gopStart--;
+            }
+            long keptBytes = drainedBytes;
+            for (int i = gopStart; i < start; i++) {
+                keptBytes += mAccepted.get(i).data.length;
+            }
+            boolean tooLong = lastVideoPtsUs - drained.get(0).ptsUs >= maxDurationUs;
+            boolean tooMany = mAccepted.size() - gopStart > maxSamples;
+            // the end of the arena left unused at a wrap is smaller than a sample
+            boolean tooLarge = keptBytes > capacity - KEY_FRAME_BYTES;
+            assertTrue("a GOP was evicted for no reason", tooLong || tooMany || tooLarge);
+        }
+        mAccepted.clear();
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        mRandom.nextBytes(bytes);
+        return bytes;
+    }
+}
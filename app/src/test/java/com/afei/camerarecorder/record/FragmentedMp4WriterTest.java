@@ -0,0 +1,270 @@
+package com.afei.camerarecorder.record;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Kills a {@link FragmentedMp4Writer} in the middle of a record, by copying what reached the file without closing
+ * the writer, and checks {@link Mp4Inspector} reads every fragment that was complete at the cut. Also on a storage
+ * slower than the record, closed with every file writer buffer queued.
+ */
+public class FragmentedMp4WriterTest {
+
+    private static final long FRAGMENT_DURATION_US = 1_000_000;
+    private static final long FRAME_US = 33_334;
+    private static final int KEY_FRAME_INTERVAL = 30;
+    private static final long AUDIO_FRAME_US = 1024 * 1_000_000L / 44100;
+    private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0xC0, 0x1E, (byte) 0xDA, 0x02, (byte) 0x80};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+    private static final byte[] AUDIO_SPECIFIC_CONFIG = {0x12, 0x08};
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final Random mRandom = new Random(8);
+
+    @Test
+    public void closedFileHasEverySample() throws IOException {
+        File file = mFolder.newFile("closed.mp4");
+        FragmentedMp4Writer writer = newWriter(file, 0);
+        int[] counts = writeSamples(writer, 5_000_000);
+        writer.close();
+
+        Mp4Inspector.Report report = Mp4Inspector.inspect(file);
+        assertNull(report.getError());
+        assertTrue(report.isFragmented());
+        assertEquals(counts[0], report.getVideoTrack().getSampleCount());
+        assertEquals(counts[1], report.getAudioTrack().getSampleCount());
+        assertEquals(counts[0] / KEY_FRAME_INTERVAL, report.getVideoTrack().getKeyFrameCount());
+        assertEquals(0, report.getVideoTrack().getGapCount());
+        assertEquals(0, report.getVideoTrack().getNonMonotonicCount());
+    }
+
+    @Test
+    public void killedFileKeepsTheFragmentsWritten() throws IOException {
+        File file = mFolder.newFile("killed.mp4");
+        FragmentedMp4Writer writer = newWriter(file, 0);
+        int[] counts = writeSamples(writer, 4_500_000);
+        byte[] written = snapshot(writer, file);
+        writer.close();
+
+        // the half fragment in memory is lost, the 4 written before are not
+        Mp4Inspector.Report report = inspect(written, written.length);
+        assertEquals(4, writer.getFragmentCount() - 1);
+        int videoCount = report.getVideoTrack().getSampleCount();
+        assertEquals(4 * KEY_FRAME_INTERVAL, videoCount);
+        assertTrue(videoCount < counts[0]);
+        assertEquals(0, report.getVideoTrack().getGapCount());
+    }
+
+    @Test
+    public void cutAnywhereReadsTheCompleteFragments() throws IOException {
+        File file = mFolder.newFile("cut.mp4");
+        FragmentedMp4Writer writer = newWriter(file, 0);
+        writeSamples(writer, 4_000_000);
+        writer.close();
+        byte[] data = Files.readAllBytes(file.toPath());
+        List<long[]> boxes = topLevelBoxes(data);
+
+        List<Integer> cuts = new ArrayList<>();
+        for (long[] box : boxes) {
+            // a torn write ends right at, inside or just after any box header
+            for (int delta = -1; delta <= 9; delta++) {
+                cuts.add((int) (box[0] + delta));
+            }
+            cuts.add((int) (box[0] + box[1] / 2));
+        }
+        for (int i = 0; i < 50; i++) {
+            cuts.add(mRandom.nextInt(data.length));
+        }
+        for (int cut : cuts) {
+            if (cut <= 0 || cut > data.length) {
+                continue;
+            }
+            // what a player can use: the fragments whose mdat is complete
+            int complete = 0;
+            for (long[] box : boxes) {
+                if (box[2] == fourcc("mdat") && box[0] + box[1] <= cut) {
+                    complete = (int) (box[0] + box[1]);
+                }
+            }
+            if (complete == 0) {
+                continue;  // not even one fragment, nothing to keep
+            }
+            int expectedSamples = inspect(data, complete).getVideoTrack().getSampleCount();
+            Mp4Inspector.Report report = inspect(data, cut);
+            assertNull("cut at " + cut, report.getError());
+            assertEquals("cut at " + cut, expectedSamples, report.getVideoTrack().getSampleCount());
+        }
+    }
+
+    @Test
+    public void preallocatedFileKilledReadsLikeAnUnallocatedOne() throws IOException {
+        File plain = mFolder.newFile("plain.mp4");
+        FragmentedMp4Writer plainWriter = newWriter(plain, 0);
+        writeSamples(plainWriter, 3_500_000);
+        byte[] plainData = snapshot(plainWriter, plain);
+        plainWriter.close();
+
+        File preallocated = mFolder.newFile("preallocated.mp4");
+        FragmentedMp4Writer preallocatedWriter = newWriter(preallocated, 8 * 1024 * 1024);
+        writeSamples(preallocatedWriter, 3_500_000);
+        // a killed process leaves the preallocated length, zeros after the last fragment
+        byte[] preallocatedData = snapshot(preallocatedWriter, preallocated);
+        assertTrue(preallocatedData.length > plainData.length);
+        preallocatedWriter.close();
+        assertEquals(plain.length(), preallocated.length());
+
+        Mp4Inspector.Report plainReport = inspect(plainData, plainData.length);
+        Mp4Inspector.Report report = inspect(preallocatedData, preallocatedData.length);
+        assertNull(report.getError());
+        assertEquals(3 * KEY_FRAME_INTERVAL, report.getVideoTrack().getSampleCount());
+        assertEquals(plainReport.getVideoTrack().getSampleCount(), report.getVideoTrack().getSampleCount());
+        assertEquals(plainReport.getAudioTrack().getSampleCount(), report.getAudioTrack().getSampleCount());
+    }
+
+    @Test
+    public void slowStorageKilledAndClosedWithEveryBufferQueued() throws IOException {
+        File file = mFolder.newFile("slow.mp4");
+        AsyncFileWriter fileWriter = new AsyncFileWriterTest.SlowFileWriter(file, 16 * 1024, 4, 0, 20);
+        FragmentedMp4Writer writer = start(new FragmentedMp4Writer(fileWriter, FRAGMENT_DURATION_US, 512 * 1024,
+                0));
+        int[] counts = writeSamples(writer, 5_000_000);
+        assertTrue("the storage never fell behind", fileWriter.getStallCount() > 0);
+        // killed while the storage lags: whatever reached it, without waiting for the queue
+        byte[] killed = Files.readAllBytes(file.toPath());
+        // the last fragment is flushed into a full queue right before the file writer closes
+        writer.close();
+
+        assertEquals(fileWriter.getBytesWritten(), file.length());
+        Mp4Inspector.Report report = Mp4Inspector.inspect(file);
+        assertNull(report.getError());
+        assertEquals(counts[0], report.getVideoTrack().getSampleCount());
+        assertEquals(counts[1], report.getAudioTrack().getSampleCount());
+
+        if (killed.length > 0) {
+            Mp4Inspector.Report killedReport = inspect(killed, killed.length);
+            int videoCount = killedReport.getVideoTrack().getSampleCount();
+            assertEquals(0, videoCount % KEY_FRAME_INTERVAL);
+            assertTrue(videoCount < counts[0]);
+        }
+    }
+
+    private FragmentedMp4Writer newWriter(File file, long expectedBytes) throws IOException {
+        return start(new FragmentedMp4Writer(file, FRAGMENT_DURATION_US, 512 * 1024, 0, expectedBytes));
+    }
+
+    private static FragmentedMp4Writer start(FragmentedMp4Writer writer) throws IOException {
+        writer.setVideoTrack(1280, 720, SPS, PPS);
+        writer.setAudioTrack(44100, 1, AUDIO_SPECIFIC_CONFIG);
+        writer.start();
+        return writer;
+    }
+
+    /**
+     * Writes both tracks in pts order, like the encoders deliver them.
+     *
+     * @return the video and audio sample counts
+     */
+    private int[] writeSamples(FragmentedMp4Writer writer, long durationUs) throws IOException {
+        int frame = 0;
+        int audioFrame = 0;
+        while (frame * FRAME_US < durationUs) {
+            long videoPtsUs = frame * FRAME_US;
+            long audioPtsUs = audioFrame * AUDIO_FRAME_US;
+            if (videoPtsUs <= audioPtsUs) {
+                boolean keyFrame = frame % KEY_FRAME_INTERVAL == 0;
+                writer.writeSample(FragmentedMp4Writer.TRACK_VIDEO, videoSample(keyFrame), videoPtsUs, keyFrame);
+                frame++;
+            } else {
+                writer.writeSample(FragmentedMp4Writer.TRACK_AUDIO, ByteBuffer.wrap(randomBytes(200)), audioPtsUs,
+                        true);
+                audioFrame++;
+            }
+        }
+        return new int[]{frame, audioFrame};
+    }
+
+    private ByteBuffer videoSample(boolean keyFrame) {
+        byte[] payload = randomBytes(keyFrame ? 6000 : 1500);
+        ByteBuffer sample = ByteBuffer.allocate(4 + payload.length);
+        sample.putInt(1);
+        payload[0] = (byte) (keyFrame ? 0x65 : 0x41);
+        sample.put(payload);
+        sample.flip();
+        return sample;
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        mRandom.nextBytes(bytes);
+        for (int i = 0; i + 2 < length; i++) {
+            if (bytes[i] == 0 && bytes[i + 1] == 0) {
+                bytes[i + 2] |= 0x04;  // no start code inside the payload
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the file as the storage has it once the writer thread wrote what was handed to it, as after a kill
+     */
+    private static byte[] snapshot(FragmentedMp4Writer writer, File file) throws IOException {
+        AsyncFileWriter fileWriter = writer.getFileWriter();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (fileWriter.getBytesWritten() < fileWriter.position()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IOException("writer thread is stuck");
+            }
+            Thread.yield();
+        }
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            byte[] data = new byte[(int) in.length()];
+            in.readFully(data);
+            return data;
+        }
+    }
+
+    private Mp4Inspector.Report inspect(byte[] data, int length) throws IOException {
+        File file = mFolder.newFile();
+        Files.write(file.toPath(), Arrays.copyOf(data, length));
+        Mp4Inspector.Report report = Mp4Inspector.inspect(file);
+        assertNotNull(report.getVideoTrack());
+        return report;
+    }
+
+    /**
+     * @return start, size and type of each box
+     */
+    private static List<long[]> topLevelBoxes(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        List<long[]> boxes = new ArrayList<>();
+        int position = 0;
+        while (position + 8 <= data.length) {
+            int size = buffer.getInt(position);
+            boxes.add(new long[]{position, size, buffer.getInt(position + 4)});
+            position += size;
+        }
+        return boxes;
+    }
+
+    private static int fourcc(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+    }
+}
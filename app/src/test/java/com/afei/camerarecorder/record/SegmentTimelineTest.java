@@ -0,0 +1,226 @@
+package com.afei.camerarecorder.record;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Feeds a 30 fps video track and an AAC audio track arriving late, like the encoders deliver them, through
+ * {@link SegmentTimeline} and checks the files join without a gap or an overlap at each boundary.
+ */
+public class SegmentTimelineTest {
+
+    private static final long START_US = 5_000_000;  // camera clock, not zero
+    private static final long FRAME_US = 33_334;  // 30 frames are a bit more than a second
+    private static final int KEY_FRAME_INTERVAL = 30;  // frames
+    private static final long AUDIO_FRAME_US = 1024 * 1_000_000L / 44100;
+    private static final long MAX_AUDIO_CARRY_US = 1_000_000;
+    private static final int SAMPLE_BYTES = 1000;
+
+    private static class File extends SegmentTimeline.Entry {
+        final int index;
+        final List<Long> videoPtsUs = new ArrayList<>();  // in the time of the file
+        final List<Long> audioPtsUs = new ArrayList<>();
+        boolean finished;
+
+        File(int index) {
+            this.index = index;
+        }
+    }
+
+    private static class Recorder implements SegmentTimeline.Callback<File> {
+        final SegmentTimeline<File> timeline = new SegmentTimeline<>(MAX_AUDIO_CARRY_US, this);
+        final List<File> files = new ArrayList<>();
+        final List<File> finished = new ArrayList<>();
+        final List<Long> droppedAudioPtsUs = new ArrayList<>();
+        int refuseSwitches;
+
+        Recorder() {
+            files.add(new File(0));
+            timeline.setCurrent(files.get(0));
+        }
+
+        @Override
+        public File onSwitch(long boundaryPtsUs) {
+            if (refuseSwitches > 0) {
+                refuseSwitches--;
+                return null;
+            }
+            File next = new File(files.size());
+            files.add(next);
+            return next;
+        }
+
+        @Override
+        public void onPreviousFinished(File previous) {
+            assertFalse("finished twice", previous.finished);
+            previous.finished = true;
+            finished.add(previous);
+        }
+
+        void video(long ptsUs, boolean isKeyFrame, long maxDurationUs, long maxBytes) {
+            File file = timeline.placeVideo(ptsUs, isKeyFrame, maxDurationUs, maxBytes);
+            assertFalse("video after finish", file.finished);
+            file.videoPtsUs.add(ptsUs - file.basePtsUs);
+            file.bytes += SAMPLE_BYTES;
+        }
+
+        void audio(long ptsUs) {
+            File file = timeline.placeAudio(ptsUs);
+            if (file == null) {
+                droppedAudioPtsUs.add(ptsUs);
+                return;
+            }
+            assertFalse("audio after finish", file.finished);
+            file.audioPtsUs.add(ptsUs - file.basePtsUs);
+            file.bytes += SAMPLE_BYTES / 4;
+        }
+
+        /**
+         * Interleaves both tracks by arrival: a sample arrives at its pts plus the latency of its encoder.
+         */
+        void record(long durationUs, long audioLatencyUs, long maxDurationUs, long maxBytes) {
+            int frame = 0;
+            int audioFrame = 0;
+            // audio starts a bit before the first video frame, as AudioRecord does
+            long audioStartUs = START_US - 3 * AUDIO_FRAME_US;
+            while (true) {
+                long videoPtsUs = START_US + frame * FRAME_US;
+                long audioPtsUs = audioStartUs + audioFrame * AUDIO_FRAME_US;
+                if (videoPtsUs > START_US + durationUs && audioPtsUs > START_US + durationUs) {
+                    break;
+                }
+                if (videoPtsUs <= audioPtsUs + audioLatencyUs) {
+                    video(videoPtsUs, frame % KEY_FRAME_INTERVAL == 0, maxDurationUs, maxBytes);
+                    frame++;
+                } else {
+                    audio(audioPtsUs);
+                    audioFrame++;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void filesJoinWithoutGapOrOverlap() {
+        Recorder recorder = new Recorder();
+        recorder.record(10_000_000, 120_000, 2_000_000, 0);
+
+        assertTrue("segments: " + recorder.files.size(), recorder.files.size() >= 4);
+        long nextVideoUs = START_US;
+        for (File file : recorder.files) {
+            assertEquals("file " + file.index + " starts on its base", 0L, (long) file.videoPtsUs.get(0));
+            assertEquals("file " + file.index + " starts on the next frame", nextVideoUs, file.basePtsUs);
+            assertEquals("file " + file.index + " starts on a key frame", 0,
+                    Math.round((file.basePtsUs - START_US) / (double) FRAME_US) % KEY_FRAME_INTERVAL);
+            for (int i = 1; i < file.videoPtsUs.size(); i++) {
+                assertEquals(FRAME_US, file.videoPtsUs.get(i) - file.videoPtsUs.get(i - 1));
+            }
+            nextVideoUs = file.basePtsUs + file.videoPtsUs.get(file.videoPtsUs.size() - 1) + FRAME_US;
+        }
+    }
+
+    @Test
+    public void lateAudioGoesToTheEndOfThePreviousFile() {
+        Recorder recorder = new Recorder();
+        recorder.record(10_000_000, 120_000, 2_000_000, 0);
+
+        int audioCount = 0;
+        for (int i = 0; i < recorder.files.size(); i++) {
+            File file = recorder.files.get(i);
+            long endUs = i + 1 < recorder.files.size() ? recorder.files.get(i + 1).basePtsUs : Long.MAX_VALUE;
+            long previousUs = -1;
+            for (long ptsUs : file.audioPtsUs) {
+                assertTrue("audio goes back in file " + i, ptsUs > previousUs);
+                assertTrue("audio after the boundary in file " + i, file.basePtsUs + ptsUs < endUs);
+                previousUs = ptsUs;
+            }
+            audioCount += file.audioPtsUs.size();
+        }
+        // only the audio read before the first video frame is dropped, nothing at a boundary
+        for (long ptsUs : recorder.droppedAudioPtsUs) {
+            assertTrue(ptsUs < START_US);
+        }
+        assertEquals(3, recorder.droppedAudioPtsUs.size());
+        assertTrue(audioCount > 0);
+        // every file but the current one is finished once, in order, after its last audio. The one switched away from
+        // last may still wait for it.
+        int waiting = recorder.timeline.getPrevious() == null ? 0 : 1;
+        if (waiting > 0) {
+            assertSame(recorder.files.get(recorder.files.size() - 2), recorder.timeline.getPrevious());
+        }
+        assertEquals(recorder.files.subList(0, recorder.files.size() - 1 - waiting), recorder.finished);
+    }
+
+    @Test
+    public void previousFileStopsWaitingForAudioAfterTheCarry() {
+        Recorder recorder = new Recorder();
+        // the audio encoder is stuck for longer than the carry
+        recorder.record(6_000_000, MAX_AUDIO_CARRY_US + 500_000, 2_000_000, 0);
+
+        assertTrue(recorder.files.size() >= 2);
+        File first = recorder.files.get(0);
+        File second = recorder.files.get(1);
+        assertTrue(first.finished);
+        // audio of the first file that came after the carry has no place anymore
+        boolean droppedAtBoundary = false;
+        for (long ptsUs : recorder.droppedAudioPtsUs) {
+            if (ptsUs >= START_US && ptsUs < second.basePtsUs) {
+                droppedAtBoundary = true;
+            }
+        }
+        assertTrue(droppedAtBoundary);
+    }
+
+    @Test
+    public void refusedSwitchKeepsWritingAndRetriesAtTheNextKeyFrame() {
+        Recorder recorder = new Recorder();
+        recorder.refuseSwitches = 1;
+        recorder.record(4_000_000, 120_000, 2_000_000, 0);
+
+        assertEquals(2, recorder.files.size());
+        File first = recorder.files.get(0);
+        File second = recorder.files.get(1);
+        // 2s limit, the key frame at 2s was refused, the one at 3s starts the next file
+        assertEquals(START_US + 3 * KEY_FRAME_INTERVAL * FRAME_US, second.basePtsUs);
+        assertEquals(second.basePtsUs - FRAME_US, first.basePtsUs + first.videoPtsUs.get(first.videoPtsUs.size() - 1));
+    }
+
+    @Test
+    public void sizeLimitSwitchesOnAKeyFrame() {
+        Recorder recorder = new Recorder();
+        long maxBytes = 45 * SAMPLE_BYTES;  // full between two key frames
+        recorder.record(8_000_000, 120_000, 0, maxBytes);
+
+        assertTrue(recorder.files.size() >= 3);
+        for (int i = 1; i < recorder.files.size(); i++) {
+            File previous = recorder.files.get(i - 1);
+            assertTrue(previous.bytes >= maxBytes);
+            assertEquals(0, previous.videoPtsUs.size() % KEY_FRAME_INTERVAL);
+            // switched at the first key frame after it was full, not one later
+            assertTrue(previous.bytes - KEY_FRAME_INTERVAL * SAMPLE_BYTES < maxBytes + SAMPLE_BYTES * 12);
+        }
+    }
+
+    @Test
+    public void audioBeforeTheFirstVideoFrameIsDropped() {
+        Recorder recorder = new Recorder();
+        recorder.audio(START_US);
+        assertEquals(1, recorder.droppedAudioPtsUs.size());
+        recorder.video(START_US + 10_000, true, 0, 0);
+        recorder.audio(START_US);  // before the base of the file
+        recorder.audio(START_US + 20_000);
+        assertEquals(2, recorder.droppedAudioPtsUs.size());
+        File file = recorder.files.get(0);
+        assertEquals(10_000L, (long) file.audioPtsUs.get(0));
+        assertNull(recorder.timeline.getPrevious());
+        assertSame(file, recorder.timeline.getCurrent());
+    }
+}
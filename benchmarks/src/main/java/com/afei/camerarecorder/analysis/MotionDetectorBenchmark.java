@@ -0,0 +1,87 @@
+package com.afei.camerarecorder.analysis;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link MotionDetector#update(byte[], int, int)} per frame, as MotionAnalyzer sets it up, on the 320x240 luma of the
+ * analysis stream and on a 720p one. The frames are a noisy still scene, then the same scene with a square crossing
+ * it, a second each, so the background learning, the compare and both hysteresis paths all run.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MotionDetectorBenchmark {
+
+    private static final int TARGET_SHORT_SIDE = 120;  // of MotionAnalyzer
+    private static final int PHASE_FRAMES = 30;
+    private static final int NOISE = 4;  // luma levels of sensor noise
+
+    @Param({"320x240", "1280x720"})
+    public String size;
+
+    private int mWidth;
+    private int mHeight;
+    private byte[][] mFrames;
+    private int mIndex;
+    private MotionDetector mDetector;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        String[] sides = size.split("x");
+        mWidth = Integer.parseInt(sides[0]);
+        mHeight = Integer.parseInt(sides[1]);
+        Random random = new Random(mWidth);
+        byte[] scene = new byte[mWidth * mHeight];
+        for (int row = 0; row < mHeight; row++) {
+            for (int col = 0; col < mWidth; col++) {
+                scene[row * mWidth + col] = (byte) (64 + (row + col) * 128 / (mWidth + mHeight));
+            }
+        }
+        int square = mHeight / 4;
+        mFrames = new byte[2 * PHASE_FRAMES][];
+        for (int i = 0; i < mFrames.length; i++) {
+            byte[] frame = new byte[scene.length];
+            for (int j = 0; j < frame.length; j++) {
+                frame[j] = (byte) ((scene[j] & 0xff) + random.nextInt(2 * NOISE + 1) - NOISE);
+            }
+            if (i >= PHASE_FRAMES) {
+                int left = (i - PHASE_FRAMES) * (mWidth - square) / PHASE_FRAMES;
+                int top = (mHeight - square) / 2;
+                for (int row = top; row < top + square; row++) {
+                    for (int col = left; col < left + square; col++) {
+                        frame[row * mWidth + col] = (byte) 230;
+                    }
+                }
+            }
+            mFrames[i] = frame;
+        }
+        mDetector = new MotionDetector(TARGET_SHORT_SIDE);
+        for (byte[] frame : mFrames) {
+            mDetector.update(frame, mWidth, mHeight);  // allocates and learns the background
+        }
+    }
+
+    @Benchmark
+    public boolean update() {
+        byte[] frame = mFrames[mIndex];
+        mIndex = (mIndex + 1) % mFrames.length;
+        return mDetector.update(frame, mWidth, mHeight);
+    }
+}
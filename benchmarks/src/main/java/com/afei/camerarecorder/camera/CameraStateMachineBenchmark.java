@@ -0,0 +1,77 @@
+package com.afei.camerarecorder.camera;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * State transitions of {@link CameraStateMachine}, with a listener as CameraModule has: a whole open, preview and
+ * close cycle, and the state check the camera thread makes on every frame while the UI thread changes the state.
+ * <p>
+ * The 60 fps run of CameraModule itself needs Android classes, it is CameraModuleBenchmarkTest of the app.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class CameraStateMachineBenchmark {
+
+    private CameraStateMachine mStateMachine;
+
+    @Setup
+    public void setUp() {
+        mStateMachine = new CameraStateMachine();
+        mStateMachine.addListener(new CameraStateMachine.Listener() {
+            @Override
+            public void onStateChanged(CameraState from, CameraState to) {
+            }
+
+            @Override
+            public void onTransitionRejected(CameraState expected, CameraState actual, CameraState target) {
+            }
+        });
+    }
+
+    /**
+     * Five transitions, CLOSED back to CLOSED.
+     */
+    @Benchmark
+    @Group("cycle")
+    public boolean openPreviewClose() {
+        return mStateMachine.transition(CameraState.CLOSED, CameraState.OPENING)
+                & mStateMachine.transition(CameraState.OPENING, CameraState.OPENED)
+                & mStateMachine.transition(CameraState.OPENED, CameraState.PREVIEW)
+                & mStateMachine.transition(CameraState.PREVIEW, CameraState.CLOSING)
+                & mStateMachine.transition(CameraState.CLOSING, CameraState.CLOSED);
+    }
+
+    @Benchmark
+    @Group("frame")
+    public boolean frameStateCheck() {
+        return mStateMachine.isIn(CameraState.PREVIEW);
+    }
+
+    /**
+     * Preview stopped and started again, as a record start does, racing the frame checks.
+     */
+    @Benchmark
+    @Group("frame")
+    public CameraState previewRestart() {
+        mStateMachine.moveTo(CameraState.OPENING);
+        mStateMachine.moveTo(CameraState.OPENED);
+        mStateMachine.moveTo(CameraState.PREVIEW);
+        return mStateMachine.moveTo(CameraState.OPENED);
+    }
+}
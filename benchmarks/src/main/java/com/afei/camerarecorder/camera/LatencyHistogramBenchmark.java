@@ -0,0 +1,73 @@
+package com.afei.camerarecorder.camera;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link LatencyHistogram#record(long)}, which the capture callback calls a few times per frame: alone, with
+ * the camera, control and encoder threads recording into the same histogram, and while a dump takes snapshots.
+ * <p>
+ * Values are spread like frame intervals and latencies, a few ms with a long tail, so several buckets are hit.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class LatencyHistogramBenchmark {
+
+    private final LatencyHistogram mHistogram = new LatencyHistogram();
+
+    private static long nextValueUs() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return random.nextInt(64) == 0 ? random.nextInt(200000) : 16000 + random.nextInt(2000);
+    }
+
+    @Benchmark
+    @Group("alone")
+    public void record() {
+        mHistogram.record(nextValueUs());
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public void recordContended() {
+        mHistogram.record(nextValueUs());
+    }
+
+    @Benchmark
+    @Group("snapshotted")
+    @GroupThreads(3)
+    public void recordWhileSnapshotted() {
+        mHistogram.record(nextValueUs());
+    }
+
+    @Benchmark
+    @Group("snapshotted")
+    public LatencyHistogram.Snapshot snapshot() {
+        return mHistogram.snapshot();
+    }
+
+    /**
+     * The baseline: the random value alone.
+     */
+    @Benchmark
+    @Group("baseline")
+    public long value() {
+        return nextValueUs();
+    }
+}
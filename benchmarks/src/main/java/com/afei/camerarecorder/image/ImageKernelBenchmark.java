@@ -0,0 +1,231 @@
+package com.afei.camerarecorder.image;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link YuvConverter} and {@link PlaneScaler} kernels on whole frames, and the ARGB conversion striped over
+ * {@link RowStriper} as the analysis stream runs it.
+ * <p>
+ * The score is frames per second, the megabytes counter the MB of source frame read per second: the whole YUV frame
+ * for the conversions, the luma plane for the luma kernels, the plane read for a plane copy. YUV_420_888 frames are
+ * laid out as most devices deliver them, rows padded to 64 bytes and semi-planar chroma, U and V views one byte apart
+ * with a pixel stride of 2.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ImageKernelBenchmark {
+
+    private static final int ROW_ALIGNMENT = 64;
+    private static final int DOWNSCALE_FACTOR = 4;
+
+    @Param({"720p", "1080p", "4K"})
+    public String resolution;
+
+    private int mWidth;
+    private int mHeight;
+    private int mFrameBytes;
+    // packed layouts
+    private byte[] mI420Y;
+    private byte[] mI420U;
+    private byte[] mI420V;
+    private byte[] mNv21;
+    // YUV_420_888
+    private ByteBuffer mY;
+    private ByteBuffer mU;
+    private ByteBuffer mV;
+    private int mRowStride;
+    // outputs and scratch
+    private int[] mArgb;
+    private byte[] mLuma;
+    private byte[] mNv21Out;
+    private byte[] mChroma;
+    private byte[] mCropped;
+    private byte[] mScaled;
+    private byte[] mScratch;
+    private int[] mRowSums;
+    // striped, a copy of each buffer and scratch per stripe
+    private RowStriper mStriper;
+    private RowStriper.RowTask mStripedArgb;
+
+    /**
+     * Megabytes of source frame read, reported per second.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public double megabytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megabytes = 0;
+        }
+
+        void add(int bytes) {
+            megabytes += bytes / 1e6;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        switch (resolution) {
+            case "720p":
+                mWidth = 1280;
+                mHeight = 720;
+                break;
+            case "1080p":
+                mWidth = 1920;
+                mHeight = 1080;
+                break;
+            default:
+                mWidth = 3840;
+                mHeight = 2160;
+                break;
+        }
+        int lumaBytes = mWidth * mHeight;
+        int chromaBytes = (mWidth / 2) * (mHeight / 2);
+        mFrameBytes = lumaBytes + 2 * chromaBytes;
+        Random random = new Random(mWidth);
+
+        mI420Y = randomBytes(random, lumaBytes);
+        mI420U = randomBytes(random, chromaBytes);
+        mI420V = randomBytes(random, chromaBytes);
+        mNv21 = randomBytes(random, mFrameBytes);
+
+        mRowStride = (mWidth + ROW_ALIGNMENT - 1) / ROW_ALIGNMENT * ROW_ALIGNMENT;
+        mY = ByteBuffer.allocateDirect(mRowStride * mHeight);
+        mY.put(randomBytes(random, mY.capacity())).clear();
+        // interleaved VU, the last row ends at its last V, so each view is one byte short of the whole rows
+        ByteBuffer chroma = ByteBuffer.allocateDirect(mRowStride * (mHeight / 2));
+        chroma.put(randomBytes(random, chroma.capacity())).clear();
+        chroma.limit(chroma.capacity() - 1);
+        mV = chroma.slice();
+        chroma.position(1).limit(chroma.capacity());
+        mU = chroma.slice();
+
+        mArgb = new int[lumaBytes];
+        mLuma = randomBytes(random, lumaBytes);
+        mNv21Out = new byte[mFrameBytes];
+        mChroma = new byte[mRowStride];
+        mCropped = new byte[lumaBytes / 4];
+        mScaled = new byte[PlaneScaler.getScaledSize(mWidth, DOWNSCALE_FACTOR)
+                * PlaneScaler.getScaledSize(mHeight, DOWNSCALE_FACTOR)];
+        mScratch = new byte[YuvConverter.getScratchSize(mWidth)];
+        mRowSums = new int[mWidth];
+
+        mStriper = new RowStriper(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+        int stripeCount = mStriper.getStripeCount(mHeight);
+        ByteBuffer[][] planes = new ByteBuffer[stripeCount][];
+        byte[][] scratch = new byte[stripeCount][];
+        for (int i = 0; i < stripeCount; i++) {
+            planes[i] = new ByteBuffer[]{mY.duplicate(), mU.duplicate(), mV.duplicate()};
+            scratch[i] = new byte[YuvConverter.getScratchSize(mWidth)];
+        }
+        mStripedArgb = (stripe, rowStart, rowEnd) -> YuvConverter.yuv420888ToArgb(planes[stripe][0], mRowStride,
+                planes[stripe][1], planes[stripe][2], mRowStride, 2, mWidth, mHeight, mArgb, scratch[stripe],
+                rowStart, rowEnd);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mStriper.quit();
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    @Benchmark
+    public int[] i420ToArgb(Bytes bytes) {
+        YuvConverter.i420ToArgb(mI420Y, mI420U, mI420V, mWidth, mHeight, mArgb, 0, mHeight);
+        bytes.add(mFrameBytes);
+        return mArgb;
+    }
+
+    @Benchmark
+    public int[] nv21ToArgb(Bytes bytes) {
+        YuvConverter.nv21ToArgb(mNv21, mWidth, mHeight, mArgb, 0, mHeight);
+        bytes.add(mFrameBytes);
+        return mArgb;
+    }
+
+    @Benchmark
+    public int[] yuv420888ToArgb(Bytes bytes) {
+        YuvConverter.yuv420888ToArgb(mY, mRowStride, mU, mV, mRowStride, 2, mWidth, mHeight, mArgb, mScratch, 0,
+                mHeight);
+        bytes.add(mFrameBytes);
+        return mArgb;
+    }
+
+    @Benchmark
+    public int[] yuv420888ToArgbStriped(Bytes bytes) {
+        mStriper.run(mHeight, mStripedArgb);
+        bytes.add(mFrameBytes);
+        return mArgb;
+    }
+
+    @Benchmark
+    public byte[] yuv420888ToLuma(Bytes bytes) {
+        YuvConverter.yuv420888ToLuma(mY, mRowStride, mWidth, mLuma, 0, mHeight);
+        bytes.add(mWidth * mHeight);
+        return mLuma;
+    }
+
+    @Benchmark
+    public byte[] yuv420888ToNv21(Bytes bytes) {
+        YuvConverter.yuv420888ToNv21(mY, mRowStride, mU, mV, mRowStride, 2, mWidth, mHeight, mNv21Out, mScratch,
+                0, mHeight);
+        bytes.add(mFrameBytes);
+        return mNv21Out;
+    }
+
+    /**
+     * The U plane gathered from its pixel stride of 2, the slow case of a plane copy.
+     */
+    @Benchmark
+    public byte[] copyChromaPlane(Bytes bytes) {
+        int chromaWidth = mWidth / 2;
+        YuvConverter.copyPlane(mU, mRowStride, 2, chromaWidth, mNv21Out, mChroma, 0, mHeight / 2);
+        bytes.add(chromaWidth * (mHeight / 2));
+        return mNv21Out;
+    }
+
+    /**
+     * The center quarter of the luma plane.
+     */
+    @Benchmark
+    public byte[] crop(Bytes bytes) {
+        PlaneScaler.crop(mLuma, mWidth, mWidth / 4, mHeight / 4, mWidth / 2, mHeight / 2, mCropped);
+        bytes.add(mCropped.length);
+        return mCropped;
+    }
+
+    @Benchmark
+    public byte[] boxDownscale(Bytes bytes) {
+        PlaneScaler.boxDownscale(mLuma, mWidth, mHeight, DOWNSCALE_FACTOR, mScaled, mRowSums);
+        bytes.add(mWidth * mHeight);
+        return mScaled;
+    }
+}
@@ -0,0 +1,147 @@
+package com.afei.camerarecorder.record;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link EncodedSampleRingBuffer} sized as CodecRecorder sizes it for a pre-record: one write of a sample in the
+ * steady state, where every GOP written evicts the oldest one, and the drain of the whole pre-roll when a record
+ * starts, each sample copied out as the muxer does.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodedSampleRingBufferBenchmark {
+
+    private static final int KEY_FRAME_FLAG = 1;  // MediaCodec.BUFFER_FLAG_KEY_FRAME
+    private static final int FRAME_RATE = 30;
+    private static final int KEY_FRAME_INTERVAL = 30;  // frames, one second
+    private static final long FRAME_US = 1000000 / FRAME_RATE;
+    private static final long AUDIO_FRAME_US = 1024 * 1000000L / 44100;
+    private static final int AUDIO_BIT_RATE = 128000;
+    private static final int AUDIO_SAMPLE_BYTES = (int) (AUDIO_BIT_RATE / 8 * AUDIO_FRAME_US / 1000000);
+
+    /**
+     * A pre-record running: the buffer and the samples of the two encoders.
+     */
+    @State(Scope.Thread)
+    public static class PreRecord {
+        @Param({"8000000", "20000000"})
+        public int bitRate;
+
+        @Param({"3"})
+        public int preRollSeconds;
+
+        EncodedSampleRingBuffer buffer;
+        private ByteBuffer mKeyFrame;
+        private ByteBuffer[] mFrames;
+        private ByteBuffer mAudio;
+        private int mFrame;
+        private int mAudioFrame;
+        byte[] copy;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            // as CodecRecorder.startPreRecord: the pre-roll, a GOP more and a second of headroom, times 1.5
+            float seconds = preRollSeconds + KEY_FRAME_INTERVAL / FRAME_RATE + 1;
+            int capacityBytes = (int) ((bitRate + AUDIO_BIT_RATE) / 8 * seconds * 1.5f);
+            int maxSamples = (int) ((FRAME_RATE + 44100 / 1024 + 1) * seconds);
+            buffer = new EncodedSampleRingBuffer(capacityBytes, maxSamples, preRollSeconds * 1000000L,
+                    KEY_FRAME_FLAG);
+
+            // a key frame of 5 frames, the others share the rest of the bit rate with +-50 % spread
+            int gopBytes = bitRate / 8 * KEY_FRAME_INTERVAL / FRAME_RATE;
+            int frameBytes = gopBytes / (KEY_FRAME_INTERVAL + 4);
+            Random random = new Random(bitRate);
+            mKeyFrame = directSample(random, 5 * frameBytes);
+            mFrames = new ByteBuffer[KEY_FRAME_INTERVAL - 1];
+            for (int i = 0; i < mFrames.length; i++) {
+                mFrames[i] = directSample(random, frameBytes / 2 + random.nextInt(frameBytes));
+            }
+            mAudio = directSample(random, AUDIO_SAMPLE_BYTES);
+            copy = new byte[5 * frameBytes];
+            fill();
+        }
+
+        /**
+         * Writes the next sample of the two tracks in pts order, as the encoders deliver them.
+         */
+        boolean writeNext() {
+            long videoPtsUs = mFrame * FRAME_US;
+            long audioPtsUs = mAudioFrame * AUDIO_FRAME_US;
+            if (videoPtsUs <= audioPtsUs) {
+                int index = mFrame % KEY_FRAME_INTERVAL;
+                mFrame++;
+                if (index == 0) {
+                    return buffer.write(EncodedSampleRingBuffer.TRACK_VIDEO, mKeyFrame, videoPtsUs, KEY_FRAME_FLAG);
+                }
+                return buffer.write(EncodedSampleRingBuffer.TRACK_VIDEO, mFrames[index - 1], videoPtsUs, 0);
+            }
+            mAudioFrame++;
+            return buffer.write(EncodedSampleRingBuffer.TRACK_AUDIO, mAudio, audioPtsUs, 0);
+        }
+
+        /**
+         * Writes from the next key frame until the buffer holds the whole pre-roll.
+         */
+        void fill() {
+            while (mFrame % KEY_FRAME_INTERVAL != 0) {
+                mFrame++;
+            }
+            mAudioFrame = (int) (mFrame * FRAME_US / AUDIO_FRAME_US);
+            long endUs = (mFrame + (long) (preRollSeconds + 1) * FRAME_RATE) * FRAME_US;
+            while (mFrame * FRAME_US < endUs) {
+                writeNext();
+            }
+        }
+    }
+
+    /**
+     * A full pre-roll before every drain.
+     */
+    public static class FullPreRecord extends PreRecord {
+        @Setup(Level.Invocation)
+        public void refill() {
+            fill();
+        }
+    }
+
+    private static ByteBuffer directSample(Random random, int size) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        ByteBuffer sample = ByteBuffer.allocateDirect(size);
+        sample.put(data).flip();
+        return sample;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public boolean write(PreRecord preRecord) {
+        return preRecord.writeNext();
+    }
+
+    /**
+     * The pre-roll handed to a starting record, each sample copied out as the muxer does.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int drain(FullPreRecord preRecord) {
+        byte[] copy = preRecord.copy;
+        return preRecord.buffer.drainTo((track, data, ptsUs, flags) -> data.get(copy, 0, data.remaining()));
+    }
+}
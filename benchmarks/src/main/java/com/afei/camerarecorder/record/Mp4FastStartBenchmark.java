@@ -0,0 +1,77 @@
+package com.afei.camerarecorder.record;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Mp4FastStart} on files of a few GB laid out like MediaMuxer writes them, ftyp, mdat, then moov. Reports the
+ * time of one rewrite, fsync included, and the peak RSS of the process, which must not grow with the file.
+ * <p>
+ * Needs twice the file size in free space in java.io.tmpdir. {@code -p sizeMb=4608} covers files past 4 GB, with a
+ * 64 bit mdat size and co64 offsets.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx256m"})
+@State(Scope.Benchmark)
+public class Mp4FastStartBenchmark {
+
+    private static final int CHUNK_BYTES = 256 * 1024;  // of one stco entry
+    private static final int SAMPLE_BYTES = 32 * 1024;  // of one stsz entry
+
+    @Param({"256", "2048"})
+    public int sizeMb;
+
+    private File mInput;
+    private File mOutput;
+
+    /**
+     * Peak resident memory of the benchmark process, in MB, -1 where /proc is not there.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Memory {
+        public long peakRssMb;
+
+        @TearDown(Level.Iteration)
+        public void read() {
+            peakRssMb = Mp4Files.getPeakRssKb() / 1024;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mInput = File.createTempFile("faststart", ".mp4");
+        mOutput = File.createTempFile("faststart", ".out.mp4");
+        Mp4Files.writeMoovAtEnd(mInput, (long) sizeMb * 1024 * 1024, CHUNK_BYTES, SAMPLE_BYTES);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mInput.delete();
+        mOutput.delete();
+    }
+
+    @Benchmark
+    public boolean process(Memory memory) throws IOException {
+        return Mp4FastStart.process(mInput, mOutput);
+    }
+}
@@ -0,0 +1,198 @@
+package com.afei.camerarecorder.record;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+/**
+ * Large mp4 files for the benchmarks, written once per trial.
+ */
+final class Mp4Files {
+
+    private static final int WRITE_BUFFER_BYTES = 1024 * 1024;
+    private static final int TIMESCALE = 90000;
+    private static final int FRAME_DURATION = TIMESCALE / 30;
+    private static final int KEY_FRAME_INTERVAL = 30;
+    private static final long FRAME_US = 1000000 / 30;
+    private static final long AUDIO_FRAME_US = 1024 * 1000000L / 44100;
+    private static final int AUDIO_SAMPLE_BYTES = 200;
+    private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0xC0, 0x1E, (byte) 0xDA, 0x02, (byte) 0x80};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+    private static final byte[] AUDIO_SPECIFIC_CONFIG = {0x12, 0x08};
+
+    private Mp4Files() {
+    }
+
+    /**
+     * Writes ftyp, an mdat of random bytes, then a moov box with one 30 fps video track, a sample per sampleBytes and
+     * a chunk per chunkBytes. Its stss has a key frame a second, its chunk offsets are in stco, or co64 past 4 GB.
+     */
+    static void writeMoovAtEnd(File file, long mdatBytes, int chunkBytes, int sampleBytes) throws IOException {
+        try (RandomAccessFile outputFile = new RandomAccessFile(file, "rw")) {
+            outputFile.setLength(0);
+            FileChannel out = outputFile.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(24 + 16);
+            header.putInt(24).putInt(fourcc("ftyp")).putInt(fourcc("isom")).putInt(0x200)
+                    .putInt(fourcc("isom")).putInt(fourcc("mp42"));
+            long dataStart = 24 + 16;
+            header.putInt(1).putInt(fourcc("mdat")).putLong(16 + mdatBytes);  // 64 bit size, may pass 4 GB
+            header.flip();
+            writeFully(out, header);
+            writeRandom(out, mdatBytes);
+
+            int sampleCount = (int) (mdatBytes / sampleBytes);
+            int chunkCount = (int) (mdatBytes / chunkBytes);
+            boolean co64 = dataStart + mdatBytes > 0xFFFFFFFFL;
+            int keyFrameCount = (sampleCount + KEY_FRAME_INTERVAL - 1) / KEY_FRAME_INTERVAL;
+            int sttsSize = 24;
+            int stssSize = 16 + 4 * keyFrameCount;
+            int stszSize = 20 + 4 * sampleCount;
+            int chunkOffsetsSize = 16 + (co64 ? 8 : 4) * chunkCount;
+            int stblSize = 8 + sttsSize + stssSize + stszSize + chunkOffsetsSize;
+            int minfSize = 8 + stblSize;
+            int mdhdSize = 32;
+            int hdlrSize = 33;
+            int mdiaSize = 8 + mdhdSize + hdlrSize + minfSize;
+            int tkhdSize = 92;
+            int trakSize = 8 + tkhdSize + mdiaSize;
+            int moovSize = 8 + trakSize;
+            ByteBuffer moov = ByteBuffer.allocate(moovSize);
+            moov.putInt(moovSize).putInt(fourcc("moov"));
+            moov.putInt(trakSize).putInt(fourcc("trak"));
+            moov.putInt(tkhdSize).putInt(fourcc("tkhd")).putInt(3).putInt(0).putInt(0).putInt(1);  // track 1
+            moov.position(moov.position() + tkhdSize - 24);
+            moov.putInt(mdiaSize).putInt(fourcc("mdia"));
+            moov.putInt(mdhdSize).putInt(fourcc("mdhd")).putInt(0).putInt(0).putInt(0).putInt(TIMESCALE)
+                    .putInt(sampleCount * FRAME_DURATION).putInt(0x55C40000);
+            moov.putInt(hdlrSize).putInt(fourcc("hdlr")).putInt(0).putInt(0).putInt(fourcc("vide"))
+                    .putInt(0).putInt(0).putInt(0).put((byte) 0);
+            moov.putInt(minfSize).putInt(fourcc("minf"));
+            moov.putInt(stblSize).putInt(fourcc("stbl"));
+            moov.putInt(sttsSize).putInt(fourcc("stts")).putInt(0).putInt(1).putInt(sampleCount)
+                    .putInt(FRAME_DURATION);
+            moov.putInt(stssSize).putInt(fourcc("stss")).putInt(0).putInt(keyFrameCount);
+            for (int i = 0; i < keyFrameCount; i++) {
+                moov.putInt(1 + i * KEY_FRAME_INTERVAL);
+            }
+            moov.putInt(stszSize).putInt(fourcc("stsz")).putInt(0).putInt(0).putInt(sampleCount);
+            for (int i = 0; i < sampleCount; i++) {
+                moov.putInt(sampleBytes);
+            }
+            moov.putInt(chunkOffsetsSize).putInt(fourcc(co64 ? "co64" : "stco")).putInt(0).putInt(chunkCount);
+            for (int i = 0; i < chunkCount; i++) {
+                long offset = dataStart + (long) i * chunkBytes;
+                if (co64) {
+                    moov.putLong(offset);
+                } else {
+                    moov.putInt((int) offset);
+                }
+            }
+            moov.flip();
+            writeFully(out, moov);
+        }
+    }
+
+    /**
+     * Records about bytes with {@link FragmentedMp4Writer}, as CodecRecorder does: 30 fps video of videoSampleBytes a
+     * frame, key frames twice as large, and AAC audio, in fragments of a second.
+     */
+    static void writeFragmented(File file, long bytes, int videoSampleBytes) throws IOException {
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(file, 1000000, 4 * 1024 * 1024, 0, bytes);
+        writer.setVideoTrack(1920, 1080, SPS, PPS);
+        writer.setAudioTrack(44100, 1, AUDIO_SPECIFIC_CONFIG);
+        writer.start();
+        Random random = new Random(bytes);
+        ByteBuffer keyFrame = randomSample(random, 2 * videoSampleBytes, 0x65);
+        ByteBuffer frame = randomSample(random, videoSampleBytes, 0x41);
+        ByteBuffer audio = randomSample(random, AUDIO_SAMPLE_BYTES, 0x21);
+        long written = 0;
+        int videoCount = 0;
+        int audioCount = 0;
+        try {
+            while (written < bytes) {
+                long videoPtsUs = videoCount * FRAME_US;
+                if (videoPtsUs <= audioCount * AUDIO_FRAME_US) {
+                    ByteBuffer sample = videoCount % KEY_FRAME_INTERVAL == 0 ? keyFrame : frame;
+                    written += sample.remaining();
+                    writer.writeSample(FragmentedMp4Writer.TRACK_VIDEO, sample.duplicate(), videoPtsUs,
+                            sample == keyFrame);
+                    videoCount++;
+                } else {
+                    writer.writeSample(FragmentedMp4Writer.TRACK_AUDIO, audio.duplicate(),
+                            audioCount * AUDIO_FRAME_US, true);
+                    written += AUDIO_SAMPLE_BYTES;
+                    audioCount++;
+                }
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * @return an Annex-B sample of one NAL unit with the given header, the payload without start codes
+     */
+    private static ByteBuffer randomSample(Random random, int bytes, int nalHeader) {
+        byte[] data = new byte[bytes];
+        random.nextBytes(data);
+        for (int i = 0; i < bytes; i++) {
+            if (data[i] == 0) {
+                data[i] = 1;
+            }
+        }
+        data[0] = 0;
+        data[1] = 0;
+        data[2] = 0;
+        data[3] = 1;
+        data[4] = (byte) nalHeader;
+        return ByteBuffer.wrap(data);
+    }
+
+    /**
+     * @return VmHWM of this process, -1 if unknown
+     */
+    static long getPeakRssKb() {
+        File status = new File("/proc/self/status");
+        if (!status.exists()) {
+            return -1;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(status))) {
+            for (String line; (line = reader.readLine()) != null; ) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            e.printStackTrace();
+        }
+        return -1;
+    }
+
+    private static void writeRandom(FileChannel out, long bytes) throws IOException {
+        byte[] data = new byte[WRITE_BUFFER_BYTES];
+        new Random(bytes).nextBytes(data);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES);
+        while (bytes > 0) {
+            buffer.clear();
+            buffer.put(data, 0, (int) Math.min(bytes, WRITE_BUFFER_BYTES));
+            buffer.flip();
+            bytes -= buffer.remaining();
+            writeFully(out, buffer);
+        }
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    static int fourcc(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+    }
+}
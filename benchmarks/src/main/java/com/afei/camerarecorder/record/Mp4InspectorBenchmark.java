@@ -0,0 +1,111 @@
+package com.afei.camerarecorder.record;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Mp4Inspector} on large recordings of both layouts the app writes: a moov file with its sample tables, as
+ * MediaMuxer and MediaRecorder write it, and a fragmented file, as CodecRecorder writes it. Then a directory of
+ * fragmented clips, inspected in parallel.
+ * <p>
+ * The files are in the page cache after the first run, the scores are the parse, not the disk.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx256m"})
+public class Mp4InspectorBenchmark {
+
+    private static final int VIDEO_SAMPLE_BYTES = 64 * 1024;  // about 16 Mbit/s at 30 fps
+    private static final int CLIP_COUNT = 16;
+    private static final long CLIP_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * One large recording.
+     */
+    @State(Scope.Benchmark)
+    public static class Recording {
+        @Param({"256", "2048"})
+        public int sizeMb;
+
+        @Param({"moov", "fragmented"})
+        public String layout;
+
+        File file;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            file = File.createTempFile("inspect", ".mp4");
+            long bytes = (long) sizeMb * 1024 * 1024;
+            if (layout.equals("moov")) {
+                Mp4Files.writeMoovAtEnd(file, bytes, 256 * 1024, VIDEO_SAMPLE_BYTES);
+            } else {
+                Mp4Files.writeFragmented(file, bytes, VIDEO_SAMPLE_BYTES);
+            }
+            Mp4Inspector.Report report = Mp4Inspector.inspect(file);
+            if (report.getError() != null || report.getVideoTrack() == null) {
+                throw new IOException("unreadable benchmark file: " + report.getError());
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            file.delete();
+        }
+    }
+
+    /**
+     * A directory of fragmented clips, the bulk audit case.
+     */
+    @State(Scope.Benchmark)
+    public static class Directory {
+        File dir;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            dir = Files.createTempDirectory("inspect").toFile();
+            for (int i = 0; i < CLIP_COUNT; i++) {
+                Mp4Files.writeFragmented(new File(dir, "VID_" + i + ".mp4"), CLIP_BYTES, VIDEO_SAMPLE_BYTES);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+
+    @Benchmark
+    public Mp4Inspector.Report inspect(Recording recording) throws IOException {
+        return Mp4Inspector.inspect(recording.file);
+    }
+
+    @Benchmark
+    public List<Mp4Inspector.Report> inspectDirectory(Directory directory) throws InterruptedException {
+        return Mp4Inspector.inspectDirectory(directory.dir);
+    }
+}